@@ -11,6 +11,7 @@ import org.xbill.DNS.SRVRecord;
 import org.xbill.DNS.TextParseException;
 import org.xbill.DNS.Type;
 
+import tigase.jaxmpp.j2se.DNSResolver;
 import tigase.jaxmpp.j2se.connectors.socket.SocketConnector.DnsResolver;
 import tigase.jaxmpp.j2se.connectors.socket.SocketConnector.Entry;
 
@@ -102,4 +103,9 @@ public class AndroidDNSResolver implements DnsResolver {
 		return result;
 	}
 
+	@Override
+	public List<Entry> resolveDirectTLS(String hostname) {
+		return DNSResolver.resolveDirectTLS(hostname);
+	}
+
 }
@@ -33,6 +33,33 @@ import tigase.jaxmpp.core.client.xmpp.modules.roster.RosterStore;
  */
 public abstract class AbstractSessionObject implements SessionObject {
 
+	/**
+	 * Typed keys of core. Referenced here, so they are created before any
+	 * session stores values with their names.
+	 */
+	static final SessionKey<?>[] CORE_KEYS = { Connector.CONNECTOR_STAGE, JaxmppCore.AUTOADD_STANZA_ID };
+
+	private static final Object[] EMPTY = new Object[0];
+
+	@SuppressWarnings("unchecked")
+	private static <T> T valueOf(Object[] values, SessionKey<T> key) {
+		return key.index < values.length ? (T) values[key.index] : null;
+	}
+
+	private static void put(Map<String, Object> map, String key, Object value) {
+		if (value == null)
+			map.remove(key);
+		else
+			map.put(key, value);
+	}
+
+	private static Object[] with(Object[] values, SessionKey<?> key, Object value) {
+		Object[] tmp = new Object[Math.max(values.length, SessionKey.size())];
+		System.arraycopy(values, 0, tmp, 0, values.length);
+		tmp[key.index] = value;
+		return tmp;
+	}
+
 	protected final Logger log = Logger.getLogger(this.getClass().getName());
 
 	protected PresenceStore presence;
@@ -47,6 +74,16 @@ public abstract class AbstractSessionObject implements SessionObject {
 
 	protected Map<String, Object> userProperties;
 
+	/**
+	 * Values of properties with {@linkplain SessionKey typed keys}, indexed by
+	 * key. Arrays are never modified, but replaced (under lock on
+	 * <code>this</code>), so reading needs no locking. Values are also kept in
+	 * maps under names of keys, so reading by name needs no key lookup.
+	 */
+	private volatile Object[] sessionValues = EMPTY;
+
+	private volatile Object[] userValues = EMPTY;
+
 	protected AbstractSessionObject() {
 	}
 
@@ -63,12 +100,23 @@ public abstract class AbstractSessionObject implements SessionObject {
 	 */
 	@Override
 	public void clear() throws JaxmppException {
-		log.fine("Clearing properties!");
-		this.properties.clear();
+		clearProperties();
 		roster.clear();
 		presence.clear();
 	}
 
+	/**
+	 * Clears properties of session, but keeps roster and presences. Used when
+	 * previous stream is going to be resumed, so stores are still valid.
+	 */
+	public void clearProperties() throws JaxmppException {
+		log.fine("Clearing properties!");
+		this.properties.clear();
+		synchronized (this) {
+			this.sessionValues = EMPTY;
+		}
+	}
+
 	/**
 	 * {@inheritDoc}
 	 */
@@ -85,6 +133,17 @@ public abstract class AbstractSessionObject implements SessionObject {
 		return presence;
 	}
 
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public <T> T getProperty(SessionKey<T> key) {
+		T t = valueOf(sessionValues, key);
+		if (t == null)
+			t = valueOf(userValues, key);
+		return t;
+	}
+
 	/**
 	 * {@inheritDoc}
 	 */
@@ -128,6 +187,14 @@ public abstract class AbstractSessionObject implements SessionObject {
 		return this.getProperty(USER_BARE_JID);
 	}
 
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public <T> T getUserProperty(SessionKey<T> key) {
+		return valueOf(userValues, key);
+	}
+
 	/**
 	 * {@inheritDoc}
 	 */
@@ -145,15 +212,28 @@ public abstract class AbstractSessionObject implements SessionObject {
 	 * {@inheritDoc}
 	 */
 	@Override
-	public SessionObject setProperty(String key, Object value) {
-		if (value == null) {
-			this.properties.remove(key);
-		} else {
-			this.properties.put(key, value);
+	public <T> SessionObject setProperty(SessionKey<T> key, T value) {
+		synchronized (this) {
+			this.sessionValues = with(sessionValues, key, value);
+			put(this.properties, key.getName(), value);
 		}
 		return this;
 	}
 
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	@SuppressWarnings("unchecked")
+	public SessionObject setProperty(String key, Object value) {
+		final SessionKey<Object> k = (SessionKey<Object>) SessionKey.get(key);
+		if (k != null)
+			setProperty(k, value);
+		else
+			put(this.properties, key, value);
+		return this;
+	}
+
 	/**
 	 * {@inheritDoc}
 	 */
@@ -166,11 +246,25 @@ public abstract class AbstractSessionObject implements SessionObject {
 	 * {@inheritDoc}
 	 */
 	@Override
+	public <T> UserProperties setUserProperty(SessionKey<T> key, T value) {
+		synchronized (this) {
+			this.userValues = with(userValues, key, value);
+			put(this.userProperties, key.getName(), value);
+		}
+		return this;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	@SuppressWarnings("unchecked")
 	public UserProperties setUserProperty(String key, Object value) {
-		if (value == null)
-			this.userProperties.remove(key);
+		final SessionKey<Object> k = (SessionKey<Object>) SessionKey.get(key);
+		if (k != null)
+			setUserProperty(k, value);
 		else
-			this.userProperties.put(key, value);
+			put(this.userProperties, key, value);
 		return this;
 	}
 
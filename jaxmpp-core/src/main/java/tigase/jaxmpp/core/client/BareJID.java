@@ -22,16 +22,26 @@ package tigase.jaxmpp.core.client;
  */
 public class BareJID implements Comparable<BareJID> {
 
+	static final JIDCache<BareJID> CACHE = new JIDCache<BareJID>(8192) {
+
+		@Override
+		protected BareJID create(String jid) {
+			String[] parsedJid = parseJID(jid);
+			return bareJIDInstance(parsedJid[0], parsedJid[1]);
+		}
+	};
+
 	/**
-	 * Creates instance of {@link BareJID}.
+	 * Creates instance of {@link BareJID}. Instances created from the same
+	 * string are shared by all sessions, as long as they stay in bounded
+	 * cache.
 	 * 
 	 * @param jid
 	 *            string contains full JID or bare JID
 	 * @return bare JID
 	 */
 	public static BareJID bareJIDInstance(String jid) {
-		String[] parsedJid = parseJID(jid);
-		return bareJIDInstance(parsedJid[0], parsedJid[1]);
+		return CACHE.get(jid);
 	}
 
 	/**
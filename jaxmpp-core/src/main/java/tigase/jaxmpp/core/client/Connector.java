@@ -183,6 +183,12 @@ public interface Connector {
 
 	public final static String CONNECTOR_STAGE_KEY = "CONNECTOR#STAGE_KEY";
 
+	/**
+	 * Typed key of {@linkplain #CONNECTOR_STAGE_KEY}. Read on every sent
+	 * stanza.
+	 */
+	public final static SessionKey<State> CONNECTOR_STAGE = SessionKey.create(CONNECTOR_STAGE_KEY);
+
 	public final static String DISABLE_KEEPALIVE_KEY = "CONNECTOR#DISABLEKEEPALIVE";
 
 	// public final static String DISABLE_SOCKET_TIMEOUT_KEY =
@@ -23,6 +23,17 @@ package tigase.jaxmpp.core.client;
  */
 public class JID implements Comparable<JID> {
 
+	static final JIDCache<JID> CACHE = new JIDCache<JID>(8192) {
+
+		@Override
+		protected JID create(String jid) {
+			final int idx = jid.indexOf('/');
+			if (idx == -1)
+				return jidInstance(BareJID.bareJIDInstance(jid), null);
+			return jidInstance(BareJID.bareJIDInstance(jid.substring(0, idx)), jid.substring(idx + 1));
+		}
+	};
+
 	/**
 	 * Creates intance of {@link JID JID} from {@link BareJID}.
 	 * 
@@ -48,16 +59,16 @@ public class JID implements Comparable<JID> {
 	}
 
 	/**
-	 * Creates intance of {@link JID JID}.
+	 * Creates intance of {@link JID JID}. Instances created from the same
+	 * string are shared by all sessions, as long as they stay in bounded
+	 * cache.
 	 * 
 	 * @param jid
 	 *            string contains JID
 	 * @return full JID.
 	 */
 	public static JID jidInstance(String jid) {
-		String[] parsedJid = BareJID.parseJID(jid);
-
-		return jidInstance(parsedJid[0], parsedJid[1], parsedJid[2]);
+		return CACHE.get(jid);
 	}
 
 	/**
@@ -0,0 +1,138 @@
+/*
+ * Tigase XMPP Client Library
+ * Copyright (C) 2006-2012 "Bartosz Małkowski" <bartosz.malkowski@tigase.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.jaxmpp.core.client;
+
+/**
+ * Bounded cache of parsed addresses shared by all sessions in JVM.
+ * <p>
+ * Cache is two-way set associative table. Each string key may be stored in one
+ * of two neighbouring slots, and when both are taken the one not used since
+ * last miss is replaced (clock algorithm limited to single set). Lookups and
+ * updates don't lock: entries are immutable and losing a race only means that
+ * value is parsed once more or less recently used entry stays in cache.
+ * </p>
+ * 
+ * @param <T>
+ *            type of cached values.
+ */
+abstract class JIDCache<T> {
+
+	private static final class Entry<T> {
+
+		private final String key;
+
+		private boolean used;
+
+		private final T value;
+
+		private Entry(String key, T value) {
+			this.key = key;
+			this.value = value;
+		}
+	}
+
+	private final int mask;
+
+	private final Entry<T>[] table;
+
+	/**
+	 * Creates cache.
+	 * 
+	 * @param size
+	 *            maximum number of entries. Rounded up to power of two.
+	 */
+	@SuppressWarnings("unchecked")
+	JIDCache(int size) {
+		int s = 2;
+		while (s < size)
+			s <<= 1;
+		this.table = (Entry<T>[]) new Entry<?>[s];
+		this.mask = s - 2;
+	}
+
+	/**
+	 * Clears cache.
+	 */
+	void clear() {
+		for (int i = 0; i < table.length; i++) {
+			table[i] = null;
+		}
+	}
+
+	/**
+	 * Creates value for key not found in cache.
+	 * 
+	 * @param key
+	 *            key
+	 * @return created value
+	 */
+	protected abstract T create(String key);
+
+	/**
+	 * Returns cached value for given key. If there is no such value, it will be
+	 * created and stored in cache.
+	 * 
+	 * @param key
+	 *            key
+	 * @return value for key
+	 */
+	T get(final String key) {
+		int h = key.hashCode();
+		h ^= (h >>> 16);
+		final int i = h & mask;
+
+		final Entry<T> e0 = table[i];
+		if (e0 != null && (e0.key == key || e0.key.equals(key))) {
+			e0.used = true;
+			return e0.value;
+		}
+		final Entry<T> e1 = table[i + 1];
+		if (e1 != null && (e1.key == key || e1.key.equals(key))) {
+			e1.used = true;
+			return e1.value;
+		}
+
+		final T value = create(key);
+		final Entry<T> n = new Entry<T>(key, value);
+		if (e0 == null || (!e0.used && e1 != null)) {
+			table[i] = n;
+		} else if (e1 == null || !e1.used) {
+			table[i + 1] = n;
+		} else {
+			e0.used = false;
+			e1.used = false;
+			table[i] = n;
+		}
+		return value;
+	}
+
+	/**
+	 * Returns number of stored entries.
+	 * 
+	 * @return number of entries
+	 */
+	int size() {
+		int c = 0;
+		for (int i = 0; i < table.length; i++) {
+			if (table[i] != null)
+				++c;
+		}
+		return c;
+	}
+
+}
@@ -51,6 +51,8 @@ import tigase.jaxmpp.core.client.xmpp.modules.pubsub.PubSubModule;
 import tigase.jaxmpp.core.client.xmpp.modules.registration.InBandRegistrationModule;
 import tigase.jaxmpp.core.client.xmpp.modules.roster.RosterModule;
 import tigase.jaxmpp.core.client.xmpp.modules.roster.RosterStore;
+import tigase.jaxmpp.core.client.xmpp.modules.streammng.StreamManagementModule;
+import tigase.jaxmpp.core.client.xmpp.modules.streammng.StreamManagementModule.StreamManagementEvent;
 import tigase.jaxmpp.core.client.xmpp.modules.vcard.VCardModule;
 import tigase.jaxmpp.core.client.xmpp.stanzas.Stanza;
 
@@ -98,6 +100,11 @@ public abstract class JaxmppCore {
 
 	public static final String AUTOADD_STANZA_ID_KEY = "AUTOADD_STANZA_ID_KEY";
 
+	/**
+	 * Typed key of {@linkplain #AUTOADD_STANZA_ID_KEY}.
+	 */
+	public static final SessionKey<Boolean> AUTOADD_STANZA_ID = SessionKey.create(AUTOADD_STANZA_ID_KEY);
+
 	public static final EventType Connected = new EventType();
 
 	public static final EventType Disconnected = new EventType();
@@ -122,6 +129,8 @@ public abstract class JaxmppCore {
 
 	protected final Listener<ConnectorEvent> streamErrorListener;
 
+	protected final Listener<StreamManagementEvent> streamResumedListener;
+
 	protected final Listener<ConnectorEvent> streamTerminateListener;
 
 	protected final PacketWriter writer = new PacketWriter() {
@@ -135,9 +144,9 @@ public abstract class JaxmppCore {
 					log.finest("SENT: " + stanza.toString());
 				}
 
-				final Boolean autoId = sessionObject.getProperty(AUTOADD_STANZA_ID_KEY);
+				final Boolean autoId = sessionObject.getProperty(AUTOADD_STANZA_ID);
 
-				if (autoId != null && autoId.booleanValue() && !stanza.getAttributes().containsKey("id")) {
+				if (autoId != null && autoId.booleanValue() && stanza.getAttribute("id") == null) {
 					stanza.setAttribute("id", UIDGenerator.next());
 				}
 
@@ -159,6 +168,13 @@ public abstract class JaxmppCore {
 			writer.write(stanza);
 		}
 
+		@Override
+		public ResponseFuture<Stanza> writeAsync(Element stanza, Long timeout) throws JaxmppException {
+			final ResponseFuture<Stanza> future = new ResponseFuture<Stanza>();
+			write(stanza, timeout, ResponseFuture.asCallback(future));
+			return future;
+		}
+
 	};
 
 	public JaxmppCore(SessionObject sessionObject) {
@@ -182,6 +198,13 @@ public abstract class JaxmppCore {
 				onStreamTerminated(be);
 			}
 		};
+		this.streamResumedListener = new Listener<StreamManagementEvent>() {
+
+			@Override
+			public void handleEvent(StreamManagementEvent be) throws JaxmppException {
+				onStreamResumed(be);
+			}
+		};
 		this.streamErrorListener = new Listener<ConnectorEvent>() {
 
 			@Override
@@ -318,6 +341,10 @@ public abstract class JaxmppCore {
 
 		this.modulesManager.register(new SessionEstablishmentModule(observable, sessionObject, writer));
 
+		final StreamManagementModule streamManagementModule = this.modulesManager.register(new StreamManagementModule(
+				observable, sessionObject, writer));
+		streamManagementModule.addListener(StreamManagementModule.StreamResumed, streamResumedListener);
+
 		this.modulesManager.init();
 	}
 
@@ -329,6 +356,14 @@ public abstract class JaxmppCore {
 
 	protected abstract void onStreamError(ConnectorEvent be) throws JaxmppException;
 
+	/**
+	 * Called when previous stream is resumed instead of binding new resource.
+	 * Session is ready to use, like after resource binding.
+	 */
+	protected void onStreamResumed(StreamManagementEvent be) throws JaxmppException {
+		observable.fireEvent(Connected, new JaxmppEvent(Connected, sessionObject));
+	}
+
 	protected abstract void onStreamTerminated(ConnectorEvent be) throws JaxmppException;
 
 	public void removeAllListeners() {
@@ -355,6 +390,23 @@ public abstract class JaxmppCore {
 		this.writer.write(stanza, timeout, asyncCallback);
 	}
 
+	/**
+	 * Sends (IQ) stanza and returns future of response. Futures of many
+	 * requests may be combined with
+	 * {@linkplain ResponseFuture#allOf(java.util.List) allOf()} and
+	 * {@linkplain ResponseFuture#anyOf(java.util.List) anyOf()}.
+	 * 
+	 * @param stanza
+	 *            stanza to send
+	 * @param timeout
+	 *            response timeout in milliseconds or <code>null</code> for
+	 *            default
+	 * @return future completed when response is received
+	 */
+	public ResponseFuture<Stanza> sendAsync(Stanza stanza, Long timeout) throws JaxmppException {
+		return this.writer.writeAsync(stanza, timeout);
+	}
+
 	public void sendMessage(JID toJID, String subject, String message) throws XMLException, JaxmppException {
 		(this.modulesManager.getModule(MessageModule.class)).sendMessage(toJID, subject, message);
 	}
@@ -19,6 +19,7 @@ package tigase.jaxmpp.core.client;
 
 import tigase.jaxmpp.core.client.exceptions.JaxmppException;
 import tigase.jaxmpp.core.client.xml.Element;
+import tigase.jaxmpp.core.client.xmpp.stanzas.Stanza;
 
 /**
  * Interface for writing to XMPP Stream.
@@ -59,4 +60,19 @@ public interface PacketWriter {
 	 */
 	void write(Element stanza, Long timeout, AsyncCallback asyncCallback) throws JaxmppException;
 
+	/**
+	 * Write a (IQ) stanza element to Stream and return future completed with
+	 * response.
+	 * 
+	 * @param stanza
+	 *            stanza {@linkplain Element} to write
+	 * @param timeout
+	 *            time after which future fails with
+	 *            {@linkplain tigase.jaxmpp.core.client.exceptions.ResponseTimeoutException
+	 *            ResponseTimeoutException}. If <code>null</code> then default
+	 *            timeout is used
+	 * @return {@linkplain ResponseFuture} of response
+	 */
+	ResponseFuture<Stanza> writeAsync(Element stanza, Long timeout) throws JaxmppException;
+
 }
\ No newline at end of file
@@ -0,0 +1,309 @@
+/*
+ * Tigase XMPP Client Library
+ * Copyright (C) 2006-2012 "Bartosz Małkowski" <bartosz.malkowski@tigase.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.jaxmpp.core.client;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import tigase.jaxmpp.core.client.XMPPException.ErrorCondition;
+import tigase.jaxmpp.core.client.exceptions.JaxmppException;
+import tigase.jaxmpp.core.client.exceptions.ResponseErrorException;
+import tigase.jaxmpp.core.client.exceptions.ResponseTimeoutException;
+import tigase.jaxmpp.core.client.xmpp.stanzas.Stanza;
+
+/**
+ * Result of asynchronous request, usually response to sent
+ * <code>&lt;iq/&gt;</code> stanza. Futures may be observed, transformed and
+ * combined without blocking any thread.
+ * <p>
+ * Future is completed exactly once: with value or with failure. Received
+ * error response is reported as {@linkplain ResponseErrorException}, lack of
+ * response as {@linkplain ResponseTimeoutException}. Listeners are called by
+ * thread completing future (in practice thread processing response), or
+ * immediately if future is already completed, so they must not block.
+ * </p>
+ * 
+ * @param <T>
+ *            type of result
+ */
+public class ResponseFuture<T> {
+
+	/**
+	 * Listener of future completion.
+	 */
+	public static interface CompletionListener<T> {
+
+		void onComplete(ResponseFuture<T> future) throws JaxmppException;
+
+	}
+
+	/**
+	 * Transformation of result.
+	 */
+	public static interface Function<T, R> {
+
+		R apply(T value) throws JaxmppException;
+
+	}
+
+	private static final Logger log = Logger.getLogger(ResponseFuture.class.getName());
+
+	/**
+	 * Returns future completed when all given futures are completed
+	 * successfully. Result contains values in order of futures. Failure of
+	 * any future fails returned future immediately.
+	 */
+	public static <T> ResponseFuture<List<T>> allOf(final List<ResponseFuture<T>> futures) {
+		final ResponseFuture<List<T>> result = new ResponseFuture<List<T>>();
+		final int size = futures.size();
+		if (size == 0) {
+			result.complete(Collections.<T> emptyList());
+			return result;
+		}
+		final List<T> values = new ArrayList<T>(size);
+		for (int i = 0; i < size; i++)
+			values.add(null);
+		final int[] remaining = new int[] { size };
+		for (int i = 0; i < size; i++) {
+			final int index = i;
+			futures.get(i).addListener(new CompletionListener<T>() {
+
+				@Override
+				public void onComplete(ResponseFuture<T> future) {
+					if (future.failure != null) {
+						result.fail(future.failure);
+						return;
+					}
+					synchronized (values) {
+						values.set(index, future.value);
+						if (--remaining[0] > 0)
+							return;
+					}
+					result.complete(values);
+				}
+			});
+		}
+		return result;
+	}
+
+	/**
+	 * Returns future completed by first completed of given futures, with its
+	 * value or failure.
+	 */
+	public static <T> ResponseFuture<T> anyOf(final List<ResponseFuture<T>> futures) {
+		final ResponseFuture<T> result = new ResponseFuture<T>();
+		for (ResponseFuture<T> future : futures) {
+			future.addListener(new CompletionListener<T>() {
+
+				@Override
+				public void onComplete(ResponseFuture<T> future) {
+					result.completeWith(future);
+				}
+			});
+		}
+		return result;
+	}
+
+	/**
+	 * Creates callback completing given future with received response.
+	 */
+	public static AsyncCallback asCallback(final ResponseFuture<Stanza> future) {
+		return new AsyncCallback() {
+
+			@Override
+			public void onError(Stanza responseStanza, ErrorCondition error) {
+				future.fail(new ResponseErrorException(responseStanza, error));
+			}
+
+			@Override
+			public void onSuccess(Stanza responseStanza) {
+				future.complete(responseStanza);
+			}
+
+			@Override
+			public void onTimeout() {
+				future.fail(new ResponseTimeoutException());
+			}
+		};
+	}
+
+	private boolean done;
+
+	private JaxmppException failure;
+
+	private List<CompletionListener<T>> listeners;
+
+	private T value;
+
+	/**
+	 * Adds listener. If future is already completed, listener is called
+	 * immediately.
+	 */
+	public void addListener(CompletionListener<T> listener) {
+		synchronized (this) {
+			if (!done) {
+				if (listeners == null)
+					listeners = new ArrayList<CompletionListener<T>>(2);
+				listeners.add(listener);
+				return;
+			}
+		}
+		fireComplete(listener);
+	}
+
+	/**
+	 * Completes future with value.
+	 * 
+	 * @return <code>false</code> if future was already completed
+	 */
+	public boolean complete(T value) {
+		return complete(value, null);
+	}
+
+	private boolean complete(T value, JaxmppException failure) {
+		final List<CompletionListener<T>> toNotify;
+		synchronized (this) {
+			if (done)
+				return false;
+			this.done = true;
+			this.value = value;
+			this.failure = failure;
+			toNotify = listeners;
+			listeners = null;
+		}
+		if (toNotify != null) {
+			for (CompletionListener<T> listener : toNotify)
+				fireComplete(listener);
+		}
+		return true;
+	}
+
+	private void completeWith(ResponseFuture<T> future) {
+		complete(future.value, future.failure);
+	}
+
+	/**
+	 * Returns future completed with result of given function applied to
+	 * value of another future. Function returns future, so requests may be
+	 * chained.
+	 */
+	public <R> ResponseFuture<R> compose(final Function<? super T, ResponseFuture<R>> function) {
+		final ResponseFuture<R> result = new ResponseFuture<R>();
+		addListener(new CompletionListener<T>() {
+
+			@Override
+			public void onComplete(ResponseFuture<T> future) {
+				if (future.failure != null) {
+					result.fail(future.failure);
+					return;
+				}
+				try {
+					function.apply(future.value).addListener(new CompletionListener<R>() {
+
+						@Override
+						public void onComplete(ResponseFuture<R> future) {
+							result.completeWith(future);
+						}
+					});
+				} catch (JaxmppException e) {
+					result.fail(e);
+				} catch (RuntimeException e) {
+					result.fail(new JaxmppException(e));
+				}
+			}
+		});
+		return result;
+	}
+
+	/**
+	 * Completes future with failure.
+	 * 
+	 * @return <code>false</code> if future was already completed
+	 */
+	public boolean fail(JaxmppException failure) {
+		if (failure == null)
+			throw new IllegalArgumentException("Failure must be specified");
+		return complete(null, failure);
+	}
+
+	private void fireComplete(CompletionListener<T> listener) {
+		try {
+			listener.onComplete(this);
+		} catch (Exception e) {
+			log.log(Level.WARNING, "Future listener failed", e);
+		}
+	}
+
+	/**
+	 * Returns failure of completed future or <code>null</code> if future is
+	 * not completed or completed successfully.
+	 */
+	public synchronized JaxmppException getFailure() {
+		return failure;
+	}
+
+	/**
+	 * Returns value of completed future without waiting.
+	 * 
+	 * @throws JaxmppException
+	 *             failure of future
+	 * @throws IllegalStateException
+	 *             if future is not completed yet
+	 */
+	public synchronized T getValue() throws JaxmppException {
+		if (!done)
+			throw new IllegalStateException("Future is not completed");
+		if (failure != null)
+			throw failure;
+		return value;
+	}
+
+	public synchronized boolean isDone() {
+		return done;
+	}
+
+	/**
+	 * Returns future completed with result of given function applied to
+	 * value of this future. Failure is passed without calling function.
+	 */
+	public <R> ResponseFuture<R> then(final Function<? super T, ? extends R> function) {
+		final ResponseFuture<R> result = new ResponseFuture<R>();
+		addListener(new CompletionListener<T>() {
+
+			@Override
+			public void onComplete(ResponseFuture<T> future) {
+				if (future.failure != null) {
+					result.fail(future.failure);
+					return;
+				}
+				try {
+					result.complete(function.apply(future.value));
+				} catch (JaxmppException e) {
+					result.fail(e);
+				} catch (RuntimeException e) {
+					result.fail(new JaxmppException(e));
+				}
+			}
+		});
+		return result;
+	}
+
+}
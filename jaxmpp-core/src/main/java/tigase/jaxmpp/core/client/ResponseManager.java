@@ -17,7 +17,6 @@
  */
 package tigase.jaxmpp.core.client;
 
-import java.util.Date;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
@@ -51,6 +50,14 @@ public class ResponseManager {
 			this.callback = callback;
 		}
 
+		/**
+		 * Returns time (in milliseconds) after which response is not
+		 * expected anymore.
+		 */
+		public long getDeadline() {
+			return timestamp + timeout;
+		}
+
 	}
 
 	protected static final long DEFAULT_TIMEOUT = 1000 * 60;
@@ -59,21 +66,41 @@ public class ResponseManager {
 
 	protected final Logger log = Logger.getLogger(this.getClass().getName());
 
+	/**
+	 * Stores handler of response.
+	 * 
+	 * @param id
+	 *            id of sent stanza
+	 * @param entry
+	 *            handler
+	 */
+	protected void addHandler(String id, Entry entry) {
+		this.getHandlers().put(id, entry);
+	}
+
 	public void checkTimeouts() throws JaxmppException {
-		long now = (new Date()).getTime();
+		long now = System.currentTimeMillis();
 		Iterator<java.util.Map.Entry<String, tigase.jaxmpp.core.client.ResponseManager.Entry>> it = this.getHandlers().entrySet().iterator();
 		while (it.hasNext()) {
 			java.util.Map.Entry<String, tigase.jaxmpp.core.client.ResponseManager.Entry> e = it.next();
-			if (e.getValue().timestamp + e.getValue().timeout < now) {
+			if (e.getValue().getDeadline() < now) {
 				it.remove();
-				try {
-					e.getValue().callback.onTimeout();
-				} catch (XMLException e1) {
-				}
+				fireTimeout(e.getValue());
 			}
 		}
 	}
 
+	/**
+	 * Calls {@linkplain AsyncCallback#onTimeout() onTimeout()} of handler
+	 * which was already removed.
+	 */
+	protected void fireTimeout(Entry entry) throws JaxmppException {
+		try {
+			entry.callback.onTimeout();
+		} catch (XMLException e1) {
+		}
+	}
+
 	protected Map<String, Entry> getHandlers() {
 		return handlers;
 	}
@@ -103,7 +130,9 @@ public class ResponseManager {
 		if (!verify(element, entry, sessionObject))
 			return null;
 
-		this.getHandlers().remove(id);
+		// response may be processed concurrently with timeout
+		if (!removeHandler(id, entry))
+			return null;
 
 		AbstractStanzaHandler r = new AbstractStanzaHandler(element, writer, sessionObject) {
 
@@ -161,14 +190,27 @@ public class ResponseManager {
 		}
 
 		if (callback != null) {
-			Entry entry = new Entry(x == null ? null : JID.jidInstance(x), (new Date()).getTime(),
+			Entry entry = new Entry(x == null ? null : JID.jidInstance(x), System.currentTimeMillis(),
 					timeout == null ? DEFAULT_TIMEOUT : timeout, callback);
-			this.getHandlers().put(id, entry);
+			addHandler(id, entry);
 		}
 
 		return id;
 	}
 
+	/**
+	 * Removes handler of response.
+	 * 
+	 * @param id
+	 *            id of sent stanza
+	 * @param entry
+	 *            handler registered for given id
+	 * @return <code>true</code> if handler was removed by this call
+	 */
+	protected boolean removeHandler(String id, Entry entry) {
+		return this.getHandlers().remove(id) != null;
+	}
+
 	private boolean verify(final Element response, final Entry entry, final SessionObject sessionObject) throws XMLException {
 		String x = response.getAttribute("from");
 		final JID jid = x == null ? null : JID.jidInstance(x);
@@ -0,0 +1,104 @@
+/*
+ * Tigase XMPP Client Library
+ * Copyright (C) 2006-2012 "Bartosz Małkowski" <bartosz.malkowski@tigase.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.jaxmpp.core.client;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Typed name of session property. Each key gets dense index, so
+ * {@linkplain AbstractSessionObject} keeps values of such properties in array
+ * instead of map.
+ * <p>
+ * Key is meant for properties read often (for example on every sent stanza)
+ * and changed rarely. It should be created once, as constant, before any
+ * session object stores value with its name. After that, value may be read and
+ * changed both with key and with its name.
+ * </p>
+ * 
+ * @param <T>
+ *            type of property value.
+ */
+public final class SessionKey<T> {
+
+	private static volatile Map<String, SessionKey<?>> keys = new HashMap<String, SessionKey<?>>();
+
+	/**
+	 * Creates new key or returns already existing key with given name.
+	 * 
+	 * @param name
+	 *            name of property
+	 * @return key
+	 */
+	@SuppressWarnings("unchecked")
+	public static synchronized <T> SessionKey<T> create(String name) {
+		SessionKey<?> key = keys.get(name);
+		if (key == null) {
+			key = new SessionKey<T>(name, keys.size());
+			// copy on write: lookups by name are done without locking
+			Map<String, SessionKey<?>> tmp = new HashMap<String, SessionKey<?>>(keys);
+			tmp.put(name, key);
+			keys = tmp;
+		}
+		return (SessionKey<T>) key;
+	}
+
+	/**
+	 * Returns key with given name.
+	 * 
+	 * @param name
+	 *            name of property
+	 * @return key or <code>null</code> if there is no key with that name.
+	 */
+	static SessionKey<?> get(String name) {
+		return keys.get(name);
+	}
+
+	/**
+	 * Returns number of created keys.
+	 * 
+	 * @return number of keys
+	 */
+	static int size() {
+		return keys.size();
+	}
+
+	final int index;
+
+	private final String name;
+
+	private SessionKey(String name, int index) {
+		this.name = name;
+		this.index = index;
+	}
+
+	/**
+	 * Returns name of property.
+	 * 
+	 * @return name of property
+	 */
+	public String getName() {
+		return name;
+	}
+
+	@Override
+	public String toString() {
+		return name;
+	}
+
+}
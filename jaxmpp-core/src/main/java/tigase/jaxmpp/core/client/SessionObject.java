@@ -95,6 +95,16 @@ public interface SessionObject extends UserProperties {
 	 */
 	public PresenceStore getPresence();
 
+	/**
+	 * Returns property. If property isn't set, user property with the same key
+	 * is returned.
+	 * 
+	 * @param key
+	 *            typed key of property
+	 * @return property
+	 */
+	public <T> T getProperty(SessionKey<T> key);
+
 	/**
 	 * Returns property
 	 * 
@@ -125,6 +135,18 @@ public interface SessionObject extends UserProperties {
 	 */
 	public BareJID getUserBareJid();
 
+	/**
+	 * Set property.
+	 * 
+	 * @param key
+	 *            typed key of property
+	 * @param value
+	 *            property value. <code>null</code> to unset property.
+	 * 
+	 * @return instance of <code>this</code> {@linkplain SessionObject}
+	 */
+	public <T> SessionObject setProperty(SessionKey<T> key, T value);
+
 	/**
 	 * Set property.
 	 * 
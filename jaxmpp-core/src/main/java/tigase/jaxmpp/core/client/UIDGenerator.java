@@ -19,149 +19,98 @@ package tigase.jaxmpp.core.client;
 
 /**
  * Unique IDs generator. Used for attribute 'id' in stanzas.
+ * <p>
+ * Each ID is value of counter followed by random prefix chosen once per
+ * process, both written with characters <code>[0-9a-zA-Z]</code>. Generators
+ * take counter values in blocks from one process-wide sequence (see
+ * {@linkplain #reserve(int)}), so IDs don't repeat in one process, and prefix
+ * makes collisions with IDs generated by previous runs unlikely.
+ * </p>
+ * <p>
+ * Default generator is synchronized. Platforms with many sending threads
+ * should register generator keeping per-thread state with
+ * {@linkplain #setGenerator(UIDGenerator)}.
+ * </p>
  * 
  * @author bmalkow
  * 
  */
 public abstract class UIDGenerator {
 
-	private static final class UIDGenerator1 extends UIDGenerator {
-		private int[] key = new int[9];
+	private static final class SynchronizedUIDGenerator extends UIDGenerator {
 
-		private int last;
+		private final char[] buffer = newBuffer();
 
-		private final int[] P;
+		private long limit;
 
-		private long state = 100000l;
-
-		public UIDGenerator1() {
-			for (int i = 0; i < key.length; i++) {
-				int a = ((int) Math.round(Math.random() * 719)) % ELEMENTS.length();
-				key[i] = a;
-			}
-			P = new int[ELEMENTS.length()];
-			for (int i = 0; i < ELEMENTS.length(); i++) {
-				P[i] = i;
-			}
-			for (int i = 0; i < ELEMENTS.length() * 3; i++) {
-				int a = ((int) Math.round(Math.random() * 821) + last) % ELEMENTS.length();
-				last = P[P[((P[(int) ((last + Math.random() * 6173) % P.length)] + 1) % P.length)]];
-
-				swap(i, a);
-			}
-		}
+		private long value;
 
 		@Override
-		public String nextUID() {
-			long x = state++;
-
-			last = P[P[(int) ((x + P[(int) ((last + Math.random() * 6173) % P.length)] + 1) % P.length)]];
-			String r = "" + ELEMENTS.charAt(last);
-			int c = 0;
-			while (x > 0) {
-				int a = (int) (x % ELEMENTS.length());
-				x = x / ELEMENTS.length();
-
-				int m = (key[(c++) % key.length] + a + last);
-
-				r = ELEMENTS.charAt(m % ELEMENTS.length()) + r;
-				last = P[P[(c + P[(last) % P.length] + 1 + m) % P.length]];
-
+		protected synchronized String nextUID() {
+			if (value == limit) {
+				value = reserve(BLOCK_SIZE);
+				limit = value + BLOCK_SIZE;
 			}
-			return r;
-		}
-
-		private void swap(int i, int a) {
-			int tmp = P[i % P.length];
-			P[i % P.length] = P[a % P.length];
-			P[a % P.length] = tmp;
+			return encode(value++, buffer);
 		}
-
 	}
 
-	private static final class UIDGenerator2 extends UIDGenerator {
-
-		private int[] k = { 1, 2, 3, 4, 5, 6, 7, 9, 10, 11 };
-
-		private int[] v = { 0, 1, 2, 3, 4, 5, 6, 7, 9 };
-
-		public UIDGenerator2() {
-			for (int i = 0; i < k.length * 5; i++) {
-				k[i % k.length] = ((k[i % k.length] + k[(i + 1) % k.length] + i + (int) (Math.random() * 6173)) % ELEMENTS.length());
-			}
-		}
-
-		@Override
-		public String nextUID() {
-			String r = "";
-			for (int i = 0; i < v.length; i++) {
-				int a = v[i % v.length] = (v[(i + 2) % v.length] + v[(i + 1) % v.length] + v[(i + 3) % v.length]
-						+ k[i % k.length] + v[(k[(i + 1) % k.length] + 1) % v.length])
-						% ELEMENTS.length();
-				r += ELEMENTS.charAt(a);
-			}
-
-			return r;
-		}
-	}
-
-	private static final class UIDGenerator3 extends UIDGenerator {
-
-		private int[] k1 = new int[32];
+	/**
+	 * Number of counter values reserved at once by generators.
+	 */
+	protected static final int BLOCK_SIZE = 1024;
 
-		private int[] k2 = new int[32];
+	private static final String ELEMENTS = "0123456789abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ";
 
-		private long l = 4;
+	/**
+	 * Maximum number of characters needed to write positive <code>long</code>
+	 * value.
+	 */
+	private static final int MAX_COUNTER_LENGTH = 11;
 
-		private int[] v = { 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0 };
+	private static final char[] PREFIX = new char[6];
 
-		public UIDGenerator3() {
-			for (int i = 0; i < k1.length; i++) {
-				k1[i] = k2[i] = i;
-			}
-			for (int i = 0; i < k1.length; i++) {
-				k1[i] = ((int) (Math.random() * 6173)) % k1.length;
-			}
-			for (int i = k2.length - 1; i >= 0; i--) {
-				int a = ((int) (Math.random() * 6173)) % k2.length;
-				int tmp = k2[i];
-				k2[i] = k2[a];
-				k2[a] = tmp;
-			}
-		}
+	private static long counter;
 
-		private void inc(final int p) {
-			if (p >= l)
-				++l;
-			v[p] = v[p] + 1;
-			if (v[p] >= ELEMENTS.length()) {
-				v[p] = 0;
-				inc(p + 1);
-			}
-		}
+	private static volatile UIDGenerator generator;
 
-		@Override
-		public String nextUID() {
-			inc(0);
-
-			int b = (int) (Math.random() * 6173) % ELEMENTS.length();
-			String t = "" + ELEMENTS.charAt(b);
-			b = k2[b % k2.length] ^ ((b >>> 1) ^ (b << 9));
-			b = k1[b % k1.length] ^ ((b >>> 1) ^ (b << 8));
-			b = k2[b % k2.length] ^ ((b >>> 1) ^ (b << 7));
-			for (int i = 0; i < l; i++) {
-				int a = v[i];
-				a = (a + k1[Math.abs(b) % k1.length]) % ELEMENTS.length();
-				t += ELEMENTS.charAt(a);
-				b = k2[a % k2.length] ^ ((b >>> 1) ^ (b << 9));
-			}
-			return t;
+	static {
+		for (int i = 0; i < PREFIX.length; i++) {
+			PREFIX[i] = ELEMENTS.charAt((int) (Math.random() * ELEMENTS.length()));
 		}
+		generator = new SynchronizedUIDGenerator();
 	}
 
-	private static final String ELEMENTS = "0123456789abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ";
+	/**
+	 * Writes ID made of counter value and process prefix. Buffer must be
+	 * created by {@linkplain #newBuffer()}.
+	 * 
+	 * @param value
+	 *            positive counter value
+	 * @param buffer
+	 *            buffer, owned by calling thread
+	 * @return ID
+	 */
+	protected static String encode(long value, final char[] buffer) {
+		int p = MAX_COUNTER_LENGTH;
+		do {
+			buffer[--p] = ELEMENTS.charAt((int) (value % 62));
+			value /= 62;
+		} while (value > 0);
+		return new String(buffer, p, buffer.length - p);
+	}
 
-	private final static UIDGenerator generator = new UIDGenerator3();
+	/**
+	 * Creates buffer for {@linkplain #encode(long, char[])}. Process prefix is
+	 * already written at the end of it.
+	 * 
+	 * @return new buffer
+	 */
+	protected static char[] newBuffer() {
+		char[] buffer = new char[MAX_COUNTER_LENGTH + PREFIX.length];
+		System.arraycopy(PREFIX, 0, buffer, MAX_COUNTER_LENGTH, PREFIX.length);
+		return buffer;
+	}
 
 	/**
 	 * Generate next id;
@@ -172,6 +121,30 @@ public abstract class UIDGenerator {
 		return generator.nextUID();
 	}
 
+	/**
+	 * Reserves block of counter values. Values from returned one to
+	 * <code>value + count - 1</code> will not be given to anyone else.
+	 * 
+	 * @param count
+	 *            number of values
+	 * @return first value of block
+	 */
+	protected static synchronized long reserve(int count) {
+		final long first = counter + 1;
+		counter += count;
+		return first;
+	}
+
+	/**
+	 * Replaces generator used by {@linkplain #next()}.
+	 * 
+	 * @param generator
+	 *            new generator
+	 */
+	public static void setGenerator(UIDGenerator generator) {
+		UIDGenerator.generator = generator;
+	}
+
 	protected abstract String nextUID();
 
-}
\ No newline at end of file
+}
@@ -27,6 +27,15 @@ package tigase.jaxmpp.core.client;
  */
 public interface UserProperties {
 
+	/**
+	 * Get user property.
+	 * 
+	 * @param key
+	 *            typed key of property
+	 * @return property or <code>null</code> if property isn't set.
+	 */
+	<T> T getUserProperty(SessionKey<T> key);
+
 	/**
 	 * Get user property.
 	 * 
@@ -48,4 +57,16 @@ public interface UserProperties {
 	 */
 	UserProperties setUserProperty(String key, Object value);
 
+	/**
+	 * Set user property.
+	 * 
+	 * @param key
+	 *            typed key of property
+	 * @param value
+	 *            property value. <code>null</code> to unset property
+	 * 
+	 * @return instance of <code>this</code> {@linkplain UserProperties}
+	 */
+	<T> UserProperties setUserProperty(SessionKey<T> key, T value);
+
 }
\ No newline at end of file
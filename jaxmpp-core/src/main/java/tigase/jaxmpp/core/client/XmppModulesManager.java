@@ -23,6 +23,7 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 
+import tigase.jaxmpp.core.client.criteria.CriteriaIndex;
 import tigase.jaxmpp.core.client.observer.Observable;
 import tigase.jaxmpp.core.client.observer.ObservableFactory;
 import tigase.jaxmpp.core.client.xml.Element;
@@ -33,12 +34,15 @@ import tigase.jaxmpp.core.client.xmpp.modules.PacketWriterAware;
 
 /**
  * XMPP Modules Manager. This manager finds correct module to handle given
- * incoming stanza.
+ * incoming stanza. Criteria of modules are indexed when module is registered,
+ * so criteria must not be changed later.
  * 
  * @author bmalkow
  */
 public class XmppModulesManager {
 
+	private volatile CriteriaIndex<XmppModule> index = new CriteriaIndex<XmppModule>();
+
 	private boolean initialized = false;
 
 	private final ArrayList<XmppModule> modules = new ArrayList<XmppModule>();
@@ -63,16 +67,7 @@ public class XmppModulesManager {
 	 * @throws XMLException
 	 */
 	public List<XmppModule> findModules(final Element element) throws XMLException {
-		List<XmppModule> results = null;
-		for (XmppModule plugin : modules) {
-			if (plugin.getCriteria() != null && plugin.getCriteria().match(element)) {
-				if (results == null) {
-					results = new ArrayList<XmppModule>();
-				}
-				results.add(plugin);
-			}
-		}
-		return results;
+		return index.find(element);
 	}
 
 	/**
@@ -105,6 +100,14 @@ public class XmppModulesManager {
 		return (T) this.modulesByClasses.get(moduleClass);
 	}
 
+	private void rebuildIndex() {
+		CriteriaIndex<XmppModule> index = new CriteriaIndex<XmppModule>();
+		for (XmppModule plugin : this.modules) {
+			index.add(plugin.getCriteria(), plugin);
+		}
+		this.index = index;
+	}
+
 	public void init() {
 		this.initialized = true;
 		for (XmppModule mod : this.modules) {
@@ -138,6 +141,7 @@ public class XmppModulesManager {
 
 		this.modulesByClasses.put((Class<XmppModule>) plugin.getClass(), plugin);
 		this.modules.add(plugin);
+		rebuildIndex();
 
 		if (initialized && plugin instanceof InitializingModule) {
 			((InitializingModule) plugin).afterRegister();
@@ -160,6 +164,7 @@ public class XmppModulesManager {
 			((InitializingModule) plugin).beforeUnregister();
 		}
 		this.modules.remove(plugin);
+		rebuildIndex();
 		return (T) this.modulesByClasses.remove(plugin.getClass());
 	}
 
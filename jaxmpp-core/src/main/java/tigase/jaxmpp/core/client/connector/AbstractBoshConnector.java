@@ -111,10 +111,18 @@ public abstract class AbstractBoshConnector implements Connector {
 
 	protected final SessionObject sessionObject;
 
+	/**
+	 * State of this connector. It is also stored in session object for other
+	 * components, but connector reads its own copy.
+	 */
+	private volatile State state;
+
 	public AbstractBoshConnector(Observable parentObservable, SessionObject sessionObject) {
 		this.observable = ObservableFactory.instance(parentObservable);
 		this.log = Logger.getLogger(this.getClass().getName());
 		this.sessionObject = sessionObject;
+		// session may be restored as connected before connector is created
+		this.state = sessionObject.getProperty(CONNECTOR_STAGE);
 		sessionObject.setProperty(DEFAULT_TIMEOUT_KEY, "30");
 	}
 
@@ -173,7 +181,7 @@ public abstract class AbstractBoshConnector implements Connector {
 				this.observable.fireEvent(event.getType(), event);
 
 			}
-			if (response != null) {
+			if (response != null && this.observable.hasListeners(StanzaReceived)) {
 				List<Element> c = response.getChildren();
 				for (Element ch : c) {
 					BoshConnectorEvent event = new BoshConnectorEvent(StanzaReceived, sessionObject);
@@ -211,7 +219,7 @@ public abstract class AbstractBoshConnector implements Connector {
 
 	@Override
 	public State getState() {
-		return this.sessionObject.getProperty(CONNECTOR_STAGE_KEY);
+		return this.state;
 	}
 
 	@Override
@@ -412,8 +420,9 @@ public abstract class AbstractBoshConnector implements Connector {
 	}
 
 	protected void setStage(State state) throws JaxmppException {
-		State s = this.sessionObject.getProperty(CONNECTOR_STAGE_KEY);
-		this.sessionObject.setProperty(CONNECTOR_STAGE_KEY, state);
+		State s = this.state;
+		this.state = state;
+		this.sessionObject.setProperty(CONNECTOR_STAGE, state);
 		if (s != state) {
 			ConnectorEvent e = new ConnectorEvent(StateChanged, sessionObject);
 			observable.fireEvent(e);
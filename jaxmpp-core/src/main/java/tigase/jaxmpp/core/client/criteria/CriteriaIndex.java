@@ -0,0 +1,216 @@
+/*
+ * Tigase XMPP Client Library
+ * Copyright (C) 2006-2012 "Bartosz Małkowski" <bartosz.malkowski@tigase.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.jaxmpp.core.client.criteria;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import tigase.jaxmpp.core.client.xml.Element;
+import tigase.jaxmpp.core.client.xml.XMLException;
+
+/**
+ * Index of criteria. Values are found by name of element, its
+ * <code>type</code> attribute and namespace of its children, so cost of
+ * finding values doesn't depend on number of registered criteria.
+ * <p>
+ * Only {@linkplain ElementCriteria} and {@linkplain Or} criteria are indexed.
+ * Other implementations are checked for each element. Index is only a
+ * prefilter: each found criteria is checked by
+ * {@linkplain Criteria#match(Element)} before its value is returned.
+ * </p>
+ * <p>
+ * Criteria must not be changed after adding to index.
+ * </p>
+ * 
+ * @param <T>
+ *            type of values
+ */
+public class CriteriaIndex<T> {
+
+	private static class Item<T> {
+
+		private final Criteria criteria;
+
+		private final int order;
+
+		private final T value;
+
+		private Item(int order, Criteria criteria, T value) {
+			this.order = order;
+			this.criteria = criteria;
+			this.value = value;
+		}
+	}
+
+	/**
+	 * Items registered for element name and type.
+	 */
+	private static class TypeNode<T> {
+
+		private final HashMap<String, ArrayList<Item<T>>> byChildXmlns = new HashMap<String, ArrayList<Item<T>>>();
+
+		private boolean childXmlnsUsed;
+
+	}
+
+	private static void addCandidates(ArrayList<Item<?>> result, List<? extends Item<?>> items) {
+		if (items == null)
+			return;
+		for (int i = 0; i < items.size(); i++) {
+			final Item<?> item = items.get(i);
+			// insertion keeping registration order, without duplicates
+			int pos = result.size();
+			while (pos > 0 && result.get(pos - 1).order > item.order)
+				--pos;
+			if (pos > 0 && result.get(pos - 1) == item)
+				continue;
+			result.add(pos, item);
+		}
+	}
+
+	private static String getAttribute(ElementCriteria criteria, String name) {
+		return criteria.attrs == null ? null : criteria.attrs.get(name);
+	}
+
+	private int counter;
+
+	private final HashMap<String, HashMap<String, TypeNode<T>>> index = new HashMap<String, HashMap<String, TypeNode<T>>>();
+
+	/**
+	 * Adds criteria to index.
+	 * 
+	 * @param criteria
+	 *            criteria. If <code>null</code> then value will not be found
+	 *            ever.
+	 * @param value
+	 *            value returned if criteria matches element
+	 */
+	public void add(Criteria criteria, T value) {
+		if (criteria == null)
+			return;
+		final Item<T> item = new Item<T>(counter++, criteria, value);
+		addKeys(criteria, item);
+	}
+
+	private void addKey(String name, String type, String childXmlns, Item<T> item) {
+		HashMap<String, TypeNode<T>> types = index.get(name);
+		if (types == null) {
+			types = new HashMap<String, TypeNode<T>>();
+			index.put(name, types);
+		}
+		TypeNode<T> node = types.get(type);
+		if (node == null) {
+			node = new TypeNode<T>();
+			types.put(type, node);
+		}
+		ArrayList<Item<T>> items = node.byChildXmlns.get(childXmlns);
+		if (items == null) {
+			items = new ArrayList<Item<T>>();
+			node.byChildXmlns.put(childXmlns, items);
+		}
+		if (!items.contains(item))
+			items.add(item);
+		node.childXmlnsUsed |= childXmlns != null;
+	}
+
+	private void addKeys(Criteria part, Item<T> item) {
+		if (part != null && part.getClass() == Or.class) {
+			for (Criteria c : ((Or) part).crits) {
+				addKeys(c, item);
+			}
+		} else if (part != null && part.getClass() == ElementCriteria.class) {
+			final ElementCriteria ec = (ElementCriteria) part;
+			String childXmlns = null;
+			if (ec.nextCriteria != null && ec.nextCriteria.getClass() == ElementCriteria.class) {
+				childXmlns = getAttribute((ElementCriteria) ec.nextCriteria, "xmlns");
+			}
+			addKey(ec.name, getAttribute(ec, "type"), childXmlns, item);
+		} else {
+			// unknown criteria implementation: checked always
+			addKey(null, null, null, item);
+		}
+	}
+
+	private List<? extends Element> collect(ArrayList<Item<?>> result, HashMap<String, TypeNode<T>> types, String type,
+			Element element, List<? extends Element> children) throws XMLException {
+		if (types == null)
+			return children;
+		children = collect(result, types.get(null), element, children);
+		if (type != null)
+			children = collect(result, types.get(type), element, children);
+		return children;
+	}
+
+	private List<? extends Element> collect(ArrayList<Item<?>> result, TypeNode<T> node, Element element,
+			List<? extends Element> children) throws XMLException {
+		if (node == null)
+			return children;
+		addCandidates(result, node.byChildXmlns.get(null));
+		if (node.childXmlnsUsed) {
+			if (children == null)
+				children = element.getChildren();
+			if (children != null) {
+				for (int i = 0; i < children.size(); i++) {
+					final String xmlns = children.get(i).getXMLNS();
+					if (xmlns != null)
+						addCandidates(result, node.byChildXmlns.get(xmlns));
+				}
+			}
+		}
+		return children;
+	}
+
+	/**
+	 * Finds values of criteria matching to given element.
+	 * 
+	 * @param element
+	 *            element to check
+	 * @return list of values in order of adding or <code>null</code> if no
+	 *         criteria matches.
+	 */
+	@SuppressWarnings("unchecked")
+	public List<T> find(final Element element) throws XMLException {
+		final String name = element.getName();
+		final String type = element.getAttribute("type");
+		final ArrayList<Item<?>> candidates = new ArrayList<Item<?>>();
+
+		List<? extends Element> children = collect(candidates, index.get(null), type, element, null);
+		if (name != null)
+			collect(candidates, index.get(name), type, element, children);
+
+		List<T> result = null;
+		for (int i = 0; i < candidates.size(); i++) {
+			final Item<T> item = (Item<T>) candidates.get(i);
+			if (item.criteria.match(element)) {
+				if (result == null)
+					result = new ArrayList<T>();
+				result.add(item.value);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Returns number of indexed criteria.
+	 */
+	public int size() {
+		return counter;
+	}
+
+}
@@ -0,0 +1,44 @@
+/*
+ * Tigase XMPP Client Library
+ * Copyright (C) 2006-2012 "Bartosz Małkowski" <bartosz.malkowski@tigase.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.jaxmpp.core.client.exceptions;
+
+import tigase.jaxmpp.core.client.XMPPException;
+import tigase.jaxmpp.core.client.xmpp.stanzas.Stanza;
+
+/**
+ * Received response has type <code>error</code>.
+ */
+public class ResponseErrorException extends XMPPException {
+
+	private static final long serialVersionUID = 1L;
+
+	private final Stanza response;
+
+	public ResponseErrorException(Stanza response, ErrorCondition condition) {
+		super(condition, condition == null ? "Error response" : "Error response: " + condition.getElementName());
+		this.response = response;
+	}
+
+	/**
+	 * Returns received error stanza.
+	 */
+	public Stanza getResponse() {
+		return response;
+	}
+
+}
@@ -167,7 +167,21 @@ public class DefaultObservable implements Observable {
 	 */
 	@Override
 	public void fireEvent(final EventType eventType, final SessionObject sessionObject) throws JaxmppException {
-		fireEvent(eventType, new BaseEvent(eventType, sessionObject));
+		if (hasListeners(eventType))
+			fireEvent(eventType, new BaseEvent(eventType, sessionObject));
+	}
+
+	@Override
+	public boolean hasListeners(final EventType eventType) {
+		synchronized (this.listeners) {
+			if (listeners.containsKey(eventType))
+				return true;
+		}
+		synchronized (this.everythingListener) {
+			if (!everythingListener.isEmpty())
+				return true;
+		}
+		return parent != null && parent.hasListeners(eventType);
 	}
 
 	/**
@@ -48,7 +48,7 @@ public class EventType implements Serializable {
 
 	@Override
 	public int hashCode() {
-		return ("event" + id).hashCode();
+		return id;
 	}
 
 }
\ No newline at end of file
@@ -83,6 +83,17 @@ public interface Observable {
 	 */
 	public void fireEvent(final EventType eventType, final SessionObject sessionObject) throws JaxmppException;
 
+	/**
+	 * Checks if event of given type will be delivered to any listener of
+	 * this observable or of its parents. Allows to skip creating event when
+	 * nobody listens.
+	 * 
+	 * @param eventType
+	 *            type of event
+	 * @return <code>true</code> if there is at least one listener
+	 */
+	public boolean hasListeners(final EventType eventType);
+
 	/**
 	 * Removes all listeners.
 	 */
@@ -17,19 +17,201 @@
  */
 package tigase.jaxmpp.core.client.xml;
 
-import java.util.HashMap;
-import java.util.LinkedList;
+import java.io.IOException;
+import java.util.AbstractList;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
 
 import tigase.jaxmpp.core.client.xmpp.utils.EscapeUtils;
 
 /**
  * Default implementation of XML Element object. This class should be used every
  * time when new XML Element is created.
+ * <p>
+ * Attributes and children are kept in small arrays, created when first
+ * attribute or child is added, so leaf elements don't allocate any
+ * collections. Attributes keep order in which they were added. Each child
+ * knows its position in parent, so {@linkplain #getChildAfter(Element)
+ * getChildAfter()} and {@linkplain #getNextSibling() getNextSibling()} don't
+ * search list of children.
+ * </p>
+ * <p>
+ * {@linkplain #hashCode() Hash code} is computed from the same data as
+ * {@linkplain ElementComparator} compares (name, attributes and number of
+ * children) and is cached until element is modified.
+ * </p>
  */
 public class DefaultElement implements Element {
 
+	private final class AttributesMap extends AbstractMap<String, String> {
+
+		private final Set<Map.Entry<String, String>> entrySet = new AbstractSet<Map.Entry<String, String>>() {
+
+			@Override
+			public Iterator<Map.Entry<String, String>> iterator() {
+				return new Iterator<Map.Entry<String, String>>() {
+
+					private int current = -1;
+
+					private int next = 0;
+
+					@Override
+					public boolean hasNext() {
+						return next < attributesCount;
+					}
+
+					@Override
+					public Map.Entry<String, String> next() {
+						if (next >= attributesCount)
+							throw new NoSuchElementException();
+						current = next++;
+						final String key = attributes[current * 2];
+						return new Map.Entry<String, String>() {
+
+							@Override
+							public boolean equals(Object obj) {
+								if (!(obj instanceof Map.Entry))
+									return false;
+								Map.Entry<?, ?> e = (Map.Entry<?, ?>) obj;
+								return key.equals(e.getKey()) && getValue().equals(e.getValue());
+							}
+
+							@Override
+							public String getKey() {
+								return key;
+							}
+
+							@Override
+							public String getValue() {
+								return attributeValue(key);
+							}
+
+							@Override
+							public int hashCode() {
+								return key.hashCode() ^ getValue().hashCode();
+							}
+
+							@Override
+							public String setValue(String value) {
+								// removing would move next entries
+								if (value == null)
+									throw new NullPointerException("Attribute value is null");
+								return putAttribute(key, value);
+							}
+
+							@Override
+							public String toString() {
+								return key + "=" + getValue();
+							}
+						};
+					}
+
+					@Override
+					public void remove() {
+						if (current == -1)
+							throw new IllegalStateException();
+						removeAttributeAt(current);
+						next = current;
+						current = -1;
+					}
+				};
+			}
+
+			@Override
+			public int size() {
+				return attributesCount;
+			}
+		};
+
+		@Override
+		public void clear() {
+			clearAttributes();
+		}
+
+		@Override
+		public boolean containsKey(Object key) {
+			return key instanceof String && indexOfAttribute((String) key) != -1;
+		}
+
+		@Override
+		public Set<Map.Entry<String, String>> entrySet() {
+			return entrySet;
+		}
+
+		@Override
+		public String get(Object key) {
+			return key instanceof String ? attributeValue((String) key) : null;
+		}
+
+		@Override
+		public String put(String key, String value) {
+			return putAttribute(key, value);
+		}
+
+		@Override
+		public String remove(Object key) {
+			if (!(key instanceof String))
+				return null;
+			int i = indexOfAttribute((String) key);
+			if (i == -1)
+				return null;
+			String old = attributes[i * 2 + 1];
+			removeAttributeAt(i);
+			return old;
+		}
+
+		@Override
+		public int size() {
+			return attributesCount;
+		}
+	}
+
+	private final class ChildrenList extends AbstractList<Element> {
+
+		@Override
+		public void add(int index, Element element) {
+			if (index < 0 || index > childrenCount)
+				throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + childrenCount);
+			insertChild(index, element);
+		}
+
+		@Override
+		public Element get(int index) {
+			if (index < 0 || index >= childrenCount)
+				throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + childrenCount);
+			return children[index];
+		}
+
+		@Override
+		public Element remove(int index) {
+			if (index < 0 || index >= childrenCount)
+				throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + childrenCount);
+			return removeChildAt(index);
+		}
+
+		@Override
+		public Element set(int index, Element element) {
+			Element old = remove(index);
+			insertChild(index, element);
+			return old;
+		}
+
+		@Override
+		public int size() {
+			return childrenCount;
+		}
+	}
+
+	private static final String[] EMPTY_ATTRIBUTES = new String[0];
+
+	private static final Element[] EMPTY_CHILDREN = new Element[0];
+
 	public final static Element create(final Element src) throws XMLException {
 		return create(src, -1);
 	}
@@ -41,15 +223,38 @@ public class DefaultElement implements Element {
 			for (Element e : src.getChildren()) {
 				DefaultElement c = create(e, deep - 1);
 				c.parent = result;
-				result.children.add(c);
+				result.insertChild(result.childrenCount, c);
 			}
 
 		return result;
 	}
 
-	private Map<String, String> attributes;
+	/**
+	 * Names and values of attributes: name of <i>n</i>-th attribute is at
+	 * position <code>2n</code>, value at <code>2n+1</code>.
+	 */
+	private String[] attributes = EMPTY_ATTRIBUTES;
+
+	private int attributesCount;
+
+	private Map<String, String> attributesView;
+
+	private Element[] children = EMPTY_CHILDREN;
 
-	private LinkedList<Element> children;
+	private int childrenCount;
+
+	private List<Element> childrenView;
+
+	/**
+	 * Cached hash code, <code>0</code> if it isn't computed. Single field is
+	 * read and written at once, so element may be hashed by many threads.
+	 */
+	private int hash;
+
+	/**
+	 * Position in children of parent.
+	 */
+	private int index = -1;
 
 	private String name;
 
@@ -67,20 +272,28 @@ public class DefaultElement implements Element {
 		this.name = name;
 		this.value = value;
 		this.xmlns = xmlns;
-
-		parent = null;
-		children = new LinkedList<Element>();
-		attributes = new HashMap<String, String>();
 	}
 
 	@Override
 	public Element addChild(Element child) throws XMLException {
 		child.setParent(this);
-		children.add(child);
+		insertChild(childrenCount, child);
 
 		return child;
 	}
 
+	private String attributeValue(String key) {
+		int i = indexOfAttribute(key);
+		return i == -1 ? null : attributes[i * 2 + 1];
+	}
+
+	private void clearAttributes() {
+		for (int i = 0; i < attributesCount * 2; i++)
+			attributes[i] = null;
+		attributesCount = 0;
+		hash = 0;
+	}
+
 	@Override
 	public boolean equals(Object obj) {
 		if (obj instanceof Element)
@@ -92,38 +305,12 @@ public class DefaultElement implements Element {
 	@Override
 	public String getAsString() throws XMLException {
 		StringBuilder builder = new StringBuilder();
-		builder.append('<');
-		builder.append(name);
-		if (xmlns != null && (parent == null || parent.getXMLNS() == null || !parent.getXMLNS().equals(xmlns))) {
-			builder.append(' ');
-			builder.append("xmlns=\"");
-			builder.append(EscapeUtils.escape(xmlns));
-			builder.append('"');
-		}
-
-		for (Map.Entry<String, String> attr : attributes.entrySet()) {
-			builder.append(' ');
-			builder.append(attr.getKey());
-			builder.append("=\"");
-			builder.append(EscapeUtils.escape(attr.getValue()));
-			builder.append('"');
-		}
-
-		if (children.isEmpty() && value == null) {
-			builder.append('/');
-		}
-		builder.append('>');
-		for (Element element : children) {
-			builder.append(element.getAsString());
-		}
-		if (value != null)
-			builder.append(EscapeUtils.escape(value));
-		if (!(children.isEmpty() && value == null)) {
-			builder.append("</");
-			builder.append(name);
-			builder.append('>');
+		try {
+			writeTo(builder);
+		} catch (IOException e) {
+			// StringBuilder doesn't throw it
+			throw new XMLException(e);
 		}
-
 		return builder.toString();
 	}
 
@@ -132,35 +319,42 @@ public class DefaultElement implements Element {
 		if (attName.equals("xmlns"))
 			return getXMLNS();
 		else
-			return attributes.get(attName);
+			return attributeValue(attName);
 	}
 
 	@Override
 	public Map<String, String> getAttributes() throws XMLException {
-		return attributes;
+		if (attributesView == null)
+			attributesView = new AttributesMap();
+		return attributesView;
 	}
 
 	@Override
 	public Element getChildAfter(Element child) throws XMLException {
-		int index = children.indexOf(child);
+		int index = indexOfChild(child);
 
 		if (index == -1) {
 			throw new XMLException("Element not part of tree");
 		}
+		if (index + 1 >= childrenCount)
+			throw new IndexOutOfBoundsException("Index: " + (index + 1) + ", Size: " + childrenCount);
 
-		return children.get(index + 1);
+		return children[index + 1];
 	}
 
 	@Override
 	public List<Element> getChildren() throws XMLException {
-		return children;
+		if (childrenView == null)
+			childrenView = new ChildrenList();
+		return childrenView;
 	}
 
 	@Override
 	public List<Element> getChildren(String name) throws XMLException {
-		List<Element> retval = new LinkedList<Element>();
+		List<Element> retval = new ArrayList<Element>();
 
-		for (Element element : children) {
+		for (int i = 0; i < childrenCount; i++) {
+			Element element = children[i];
 			if (element.getName().equals(name)) {
 				retval.add(element);
 			}
@@ -171,9 +365,10 @@ public class DefaultElement implements Element {
 
 	@Override
 	public List<Element> getChildrenNS(String xmlns) throws XMLException {
-		List<Element> retval = new LinkedList<Element>();
+		List<Element> retval = new ArrayList<Element>();
 
-		for (Element element : children) {
+		for (int i = 0; i < childrenCount; i++) {
+			Element element = children[i];
 			String x = element.getXMLNS();
 			if (x != null && x.equals(xmlns)) {
 				retval.add(element);
@@ -185,7 +380,8 @@ public class DefaultElement implements Element {
 
 	@Override
 	public Element getChildrenNS(String name, String xmlns) throws XMLException {
-		for (Element element : children) {
+		for (int i = 0; i < childrenCount; i++) {
+			Element element = children[i];
 			if (element.getName().equals(name) && element.getXMLNS().equals(xmlns)) {
 				return element;
 			}
@@ -195,8 +391,8 @@ public class DefaultElement implements Element {
 
 	@Override
 	public Element getFirstChild() throws XMLException {
-		if (!children.isEmpty())
-			return children.getFirst();
+		if (childrenCount > 0)
+			return children[0];
 		else
 			return null;
 	}
@@ -231,35 +427,147 @@ public class DefaultElement implements Element {
 
 	@Override
 	public int hashCode() {
-		try {
-			return getAsString().hashCode();
-		} catch (Exception e) {
-			throw new RuntimeException(e);
+		int h = hash;
+		if (h == 0) {
+			h = name == null ? 0 : name.hashCode();
+			int a = 0;
+			for (int i = 0; i < attributesCount; i++) {
+				a += attributes[i * 2].hashCode() ^ attributes[i * 2 + 1].hashCode();
+			}
+			h = 31 * (31 * h + a) + childrenCount;
+			hash = h;
+		}
+		return h;
+	}
+
+	private int indexOfAttribute(String key) {
+		for (int i = 0; i < attributesCount; i++) {
+			if (attributes[i * 2].equals(key))
+				return i;
 		}
+		return -1;
+	}
+
+	/**
+	 * Finds position of child. Child is found by its stored position or by
+	 * identity. If it isn't found, first equal child is returned.
+	 */
+	private int indexOfChild(Element child) {
+		if (child instanceof DefaultElement) {
+			int i = ((DefaultElement) child).index;
+			if (i >= 0 && i < childrenCount && children[i] == child)
+				return i;
+		}
+		for (int i = 0; i < childrenCount; i++) {
+			if (children[i] == child)
+				return i;
+		}
+		for (int i = 0; i < childrenCount; i++) {
+			if (children[i].equals(child))
+				return i;
+		}
+		return -1;
+	}
+
+	private void insertChild(int index, Element child) {
+		if (childrenCount == children.length) {
+			Element[] tmp = new Element[children.length == 0 ? 2 : children.length * 2];
+			System.arraycopy(children, 0, tmp, 0, childrenCount);
+			children = tmp;
+		}
+		if (index < childrenCount)
+			System.arraycopy(children, index, children, index + 1, childrenCount - index);
+		children[index] = child;
+		childrenCount++;
+		updatePositions(index);
+		hash = 0;
+	}
+
+	/**
+	 * Sets value of attribute. Attribute without value is removed, so names
+	 * and values stored in array are never <code>null</code>.
+	 */
+	private String putAttribute(String key, String value) {
+		if (key == null)
+			throw new NullPointerException("Attribute name is null");
+		int i = indexOfAttribute(key);
+		if (value == null) {
+			if (i == -1)
+				return null;
+			String old = attributes[i * 2 + 1];
+			removeAttributeAt(i);
+			return old;
+		}
+		if (i != -1) {
+			String old = attributes[i * 2 + 1];
+			attributes[i * 2 + 1] = value;
+			hash = 0;
+			return old;
+		}
+		if (attributesCount * 2 == attributes.length) {
+			String[] tmp = new String[attributes.length == 0 ? 4 : attributes.length * 2];
+			System.arraycopy(attributes, 0, tmp, 0, attributesCount * 2);
+			attributes = tmp;
+		}
+		attributes[attributesCount * 2] = key;
+		attributes[attributesCount * 2 + 1] = value;
+		attributesCount++;
+		hash = 0;
+		return null;
 	}
 
 	@Override
 	public void removeAttribute(String key) throws XMLException {
-		attributes.remove(key);
+		int i = indexOfAttribute(key);
+		if (i != -1)
+			removeAttributeAt(i);
+	}
+
+	private void removeAttributeAt(int i) {
+		System.arraycopy(attributes, (i + 1) * 2, attributes, i * 2, (attributesCount - i - 1) * 2);
+		attributesCount--;
+		attributes[attributesCount * 2] = null;
+		attributes[attributesCount * 2 + 1] = null;
+		hash = 0;
 	}
 
 	@Override
 	public void removeChild(Element child) throws XMLException {
-		children.remove(child);
+		int i = indexOfChild(child);
+		if (i != -1)
+			removeChildAt(i);
+	}
+
+	private Element removeChildAt(int index) {
+		Element removed = children[index];
+		System.arraycopy(children, index + 1, children, index, childrenCount - index - 1);
+		childrenCount--;
+		children[childrenCount] = null;
+		if (removed instanceof DefaultElement) {
+			DefaultElement r = (DefaultElement) removed;
+			r.index = -1;
+			if (r.parent == this)
+				r.parent = null;
+		}
+		updatePositions(index);
+		hash = 0;
+		return removed;
 	}
 
 	@Override
 	public void setAttribute(String key, String value) throws XMLException {
 		if (key == null || value == null)
 			return;
-		attributes.put(key, value);
+		putAttribute(key, value);
 	}
 
 	@Override
 	public void setAttributes(Map<String, String> attrs) throws XMLException {
 		if (attrs == null)
 			return;
-		attributes.putAll(attrs);
+		for (Map.Entry<String, String> e : attrs.entrySet()) {
+			setAttribute(e.getKey(), e.getValue());
+		}
 	}
 
 	@Override
@@ -274,7 +582,7 @@ public class DefaultElement implements Element {
 
 	@Override
 	public void setValue(String value) throws XMLException {
-		if (!children.isEmpty()) {
+		if (childrenCount != 0) {
 			throw new XMLException("Unsupported mixed Element with children and value");
 		}
 		this.value = value;
@@ -285,4 +593,44 @@ public class DefaultElement implements Element {
 		this.xmlns = xmlns;
 	}
 
-}
\ No newline at end of file
+	private void updatePositions(int from) {
+		for (int i = from; i < childrenCount; i++) {
+			if (children[i] instanceof DefaultElement)
+				((DefaultElement) children[i]).index = i;
+		}
+	}
+
+	@Override
+	public void writeTo(Appendable out) throws XMLException, IOException {
+		out.append('<');
+		out.append(name);
+		if (xmlns != null && (parent == null || parent.getXMLNS() == null || !parent.getXMLNS().equals(xmlns))) {
+			out.append(" xmlns=\"");
+			EscapeUtils.escape(xmlns, out);
+			out.append('"');
+		}
+
+		for (int i = 0; i < attributesCount; i++) {
+			out.append(' ');
+			out.append(attributes[i * 2]);
+			out.append("=\"");
+			EscapeUtils.escape(attributes[i * 2 + 1], out);
+			out.append('"');
+		}
+
+		if (childrenCount == 0 && value == null) {
+			out.append("/>");
+			return;
+		}
+		out.append('>');
+		for (int i = 0; i < childrenCount; i++) {
+			children[i].writeTo(out);
+		}
+		if (value != null)
+			EscapeUtils.escape(value, out);
+		out.append("</");
+		out.append(name);
+		out.append('>');
+	}
+
+}
@@ -17,6 +17,7 @@
  */
 package tigase.jaxmpp.core.client.xml;
 
+import java.io.IOException;
 import java.util.List;
 import java.util.Map;
 
@@ -221,4 +222,17 @@ public interface Element {
 	 * @throws XMLException
 	 */
 	void setXMLNS(String xmlns) throws XMLException;
+
+	/**
+	 * Writes this element as XML to given output. Unlike
+	 * {@linkplain #getAsString()} it doesn't need to build string of whole
+	 * element.
+	 * 
+	 * @param out
+	 *            output
+	 * @throws IOException
+	 *             if output can't be written
+	 */
+	void writeTo(Appendable out) throws XMLException, IOException;
+
 }
\ No newline at end of file
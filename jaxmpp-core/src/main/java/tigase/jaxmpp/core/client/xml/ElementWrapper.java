@@ -17,6 +17,7 @@
  */
 package tigase.jaxmpp.core.client.xml;
 
+import java.io.IOException;
 import java.util.List;
 import java.util.Map;
 
@@ -266,4 +267,12 @@ public class ElementWrapper implements Element {
 	public void setXMLNS(String xmlns) throws XMLException {
 		element.setXMLNS(xmlns);
 	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void writeTo(Appendable out) throws XMLException, IOException {
+		element.writeTo(out);
+	}
 }
\ No newline at end of file
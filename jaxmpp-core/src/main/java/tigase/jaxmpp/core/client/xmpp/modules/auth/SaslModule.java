@@ -57,6 +57,13 @@ public class SaslModule implements XmppModule {
 		 * the initiating entity; sent in reply to the &lt;abort/&gt; element.
 		 */
 		aborted,
+		/**
+		 * The mechanism requested by the initiating entity cannot be used
+		 * unless the confidentiality and integrity of the underlying stream
+		 * are protected (typically via TLS); sent in reply to an &lt;auth/&gt;
+		 * element.
+		 */
+		encryption_required,
 		/**
 		 * The data provided by the initiating entity could not be processed
 		 * because the BASE64 encoding is incorrect (e.g., because the encoding
@@ -305,7 +312,11 @@ public class SaslModule implements XmppModule {
 		SaslError error = null;
 		if (c != null) {
 			String n = c.getName().replace("-", "_");
-			error = SaslError.valueOf(n);
+			try {
+				error = SaslError.valueOf(n);
+			} catch (IllegalArgumentException e) {
+				log.fine("Unknown SASL failure condition: " + c.getName());
+			}
 		}
 		log.fine("Failure with condition: " + error);
 		SaslEvent event = new SaslEvent(AuthModule.AuthFailed, sessionObject);
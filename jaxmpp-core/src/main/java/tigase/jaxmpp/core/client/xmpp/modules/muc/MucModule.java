@@ -175,7 +175,7 @@ public class MucModule extends AbstractStanzaModule<Stanza> {
 
 			@Override
 			public void handleEvent(ConnectorEvent be) throws JaxmppException {
-				Connector.State s = sessionObject.getProperty(Connector.CONNECTOR_STAGE_KEY);
+				Connector.State s = sessionObject.getProperty(Connector.CONNECTOR_STAGE);
 				if (s == null || s == Connector.State.disconnected || s == Connector.State.disconnecting) {
 					onNetworkDisconnected();
 				}
@@ -17,8 +17,10 @@
  */
 package tigase.jaxmpp.core.client.xmpp.modules.presence;
 
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.TreeSet;
 
 import tigase.jaxmpp.core.client.BareJID;
 import tigase.jaxmpp.core.client.JID;
@@ -40,6 +42,73 @@ public abstract class PresenceStore {
 
 	}
 
+	/**
+	 * Presence of one resource in {@linkplain Ranking}.
+	 */
+	private static final class Entry implements Comparable<Entry> {
+
+		private final boolean available;
+
+		private final Presence presence;
+
+		private final int priority;
+
+		private final long sequence;
+
+		private Entry(Presence presence, boolean available, int priority, long sequence) {
+			this.presence = presence;
+			this.available = available;
+			this.priority = priority;
+			this.sequence = sequence;
+		}
+
+		/**
+		 * Available presences are first, then presences with higher priority,
+		 * then the most recent ones.
+		 */
+		@Override
+		public int compareTo(Entry o) {
+			if (available != o.available)
+				return available ? -1 : 1;
+			if (priority != o.priority)
+				return priority > o.priority ? -1 : 1;
+			return sequence == o.sequence ? 0 : (sequence > o.sequence ? -1 : 1);
+		}
+	}
+
+	/**
+	 * Presences of all resources of one bare JID, ordered from the best one.
+	 * Updating presence of resource costs <code>O(log r)</code>, where
+	 * <code>r</code> is number of resources. Guarded by <code>this</code>.
+	 */
+	protected static final class Ranking {
+
+		private volatile int available;
+
+		private final Map<String, Entry> entries = new HashMap<String, Entry>();
+
+		private final TreeSet<Entry> order = new TreeSet<Entry>();
+
+		private long sequence;
+
+		private Presence best() {
+			return order.isEmpty() ? null : order.first().presence;
+		}
+
+		private void put(String resource, Presence presence, boolean isAvailable, int priority) {
+			Entry e = new Entry(presence, isAvailable, priority, ++sequence);
+			Entry old = entries.put(resource, e);
+			if (old != null) {
+				order.remove(old);
+				if (old.available)
+					--available;
+			}
+			order.add(e);
+			if (isAvailable)
+				++available;
+		}
+	}
+
 	protected Map<BareJID, Presence> bestPresence;
 
 	protected Handler handler;
@@ -48,6 +117,11 @@ public abstract class PresenceStore {
 
 	protected Map<BareJID, Map<String, Presence>> presencesMapByBareJid;
 
+	/**
+	 * Rankings of resources for each known bare JID.
+	 */
+	protected Map<BareJID, Ranking> rankingByBareJid;
+
 	/**
 	 * Removes all known presence information.
 	 */
@@ -68,6 +142,7 @@ public abstract class PresenceStore {
 		} else
 			bestPresence.clear();
 		presencesMapByBareJid.clear();
+		rankingByBareJid.clear();
 	}
 
 	protected abstract Map<String, Presence> createResourcePresenceMap();
@@ -106,33 +181,9 @@ public abstract class PresenceStore {
 		return this.presencesMapByBareJid.get(jid);
 	}
 
-	private Presence intGetBestPresence(final BareJID jid) throws XMLException {
-		Map<String, Presence> resourcesPresence = this.presencesMapByBareJid.get(jid);
-		Presence result = null;
-		if (resourcesPresence != null) {
-			Iterator<Presence> it = resourcesPresence.values().iterator();
-			while (it.hasNext()) {
-				Presence x = it.next();
-				Integer p = x.getPriority();
-				if (result == null || p >= result.getPriority() && x.getType() == null) {
-					result = x;
-				}
-			}
-		}
-		return result;
-	}
-
 	public boolean isAvailable(BareJID jid) throws XMLException {
-		Map<String, Presence> resourcesPresence = this.presencesMapByBareJid.get(jid);
-		boolean result = false;
-		if (resourcesPresence != null) {
-			Iterator<Presence> it = resourcesPresence.values().iterator();
-			while (it.hasNext() && !result) {
-				Presence x = it.next();
-				result = result | x.getType() == null;
-			}
-		}
-		return result;
+		Ranking ranking = this.rankingByBareJid.get(jid);
+		return ranking != null && ranking.available > 0;
 	}
 
 	void setHandler(Handler handler) {
@@ -160,20 +211,35 @@ public abstract class PresenceStore {
 		updateBestPresence(presence);
 	}
 
+	/**
+	 * Updates best presence of sender. Best presence is available presence
+	 * with the highest priority (the most recent one if there is more such
+	 * presences). If no resource is available, the most recent presence with
+	 * the highest priority is used.
+	 * 
+	 * @param presence
+	 *            received presence
+	 */
 	protected void updateBestPresence(final Presence presence) throws XMLException {
-		final BareJID bareFrom = presence.getFrom().getBareJid();
-		this.bestPresence.put(bareFrom, intGetBestPresence(bareFrom));
-
-		// Presence x = this.bestPresence.get(bareFrom);
-		// if (x == null) {
-		// this.bestPresence.put(bareFrom, intGetBestPresence(bareFrom));
-		// } else {
-		// if (presence.getPriority() > x.getPriority() && presence.getType() ==
-		// null) {
-		// this.bestPresence.put(bareFrom, x);
-		// } else {
-		// this.bestPresence.put(bareFrom, intGetBestPresence(bareFrom));
-		// }
-		// }
+		final JID from = presence.getFrom();
+		final BareJID bareFrom = from.getBareJid();
+		final String resource = from.getResource() == null ? "" : from.getResource();
+		final boolean available = presence.getType() == null;
+		final int priority = presence.getPriority();
+
+		Ranking ranking = this.rankingByBareJid.get(bareFrom);
+		if (ranking == null) {
+			synchronized (this.rankingByBareJid) {
+				ranking = this.rankingByBareJid.get(bareFrom);
+				if (ranking == null) {
+					ranking = new Ranking();
+					this.rankingByBareJid.put(bareFrom, ranking);
+				}
+			}
+		}
+		synchronized (ranking) {
+			ranking.put(resource, presence, available, priority);
+			this.bestPresence.put(bareFrom, ranking.best());
+		}
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,459 @@
+/*
+ * Tigase XMPP Client Library
+ * Copyright (C) 2006-2012 "Bartosz Małkowski" <bartosz.malkowski@tigase.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.jaxmpp.core.client.xmpp.modules.streammng;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import tigase.jaxmpp.core.client.Connector;
+import tigase.jaxmpp.core.client.Connector.ConnectorEvent;
+import tigase.jaxmpp.core.client.JID;
+import tigase.jaxmpp.core.client.PacketWriter;
+import tigase.jaxmpp.core.client.SessionObject;
+import tigase.jaxmpp.core.client.XMPPException;
+import tigase.jaxmpp.core.client.XmppModule;
+import tigase.jaxmpp.core.client.criteria.Criteria;
+import tigase.jaxmpp.core.client.criteria.ElementCriteria;
+import tigase.jaxmpp.core.client.exceptions.JaxmppException;
+import tigase.jaxmpp.core.client.observer.BaseEvent;
+import tigase.jaxmpp.core.client.observer.EventType;
+import tigase.jaxmpp.core.client.observer.Listener;
+import tigase.jaxmpp.core.client.observer.Observable;
+import tigase.jaxmpp.core.client.observer.ObservableFactory;
+import tigase.jaxmpp.core.client.xml.DefaultElement;
+import tigase.jaxmpp.core.client.xml.Element;
+import tigase.jaxmpp.core.client.xml.XMLException;
+import tigase.jaxmpp.core.client.xmpp.modules.ResourceBinderModule;
+
+/**
+ * Implementation of <a href='http://xmpp.org/extensions/xep-0198.html'>XEP-0198
+ * Stream Management</a>.
+ * <p>
+ * Module counts stanzas sent and received by connector. Sent stanzas are kept
+ * in queue until server acknowledges them. Acknowledgement is requested after
+ * every {@linkplain #ACK_REQUEST_THRESHOLD_KEY} stanzas. If connection is
+ * broken, stream may be resumed on new connection instead of binding new
+ * resource: stanzas not acknowledged by server are sent again and state of
+ * session (roster, presences, bound JID) is kept.
+ * </p>
+ * 
+ * <dl>
+ * <dt><b>Events:</b></dt>
+ * 
+ * <dd><b>{@link StreamManagementModule#StreamManagementEnabled
+ * StreamManagementEnabled}</b> : {@link StreamManagementEvent
+ * StreamManagementEvent} ()<br>
+ * <div>Fires when server enables stream management.</div></dd>
+ * 
+ * <dd><b>{@link StreamManagementModule#StreamManagementFailed
+ * StreamManagementFailed}</b> : {@link StreamManagementEvent
+ * StreamManagementEvent} ()<br>
+ * <div>Fires when server refuses to enable stream management or to resume
+ * stream.</div></dd>
+ * 
+ * <dd><b>{@link StreamManagementModule#StreamResumed StreamResumed}</b> :
+ * {@link StreamManagementEvent StreamManagementEvent} (jid)<br>
+ * <div>Fires when stream is resumed.</div></dd>
+ * </dl>
+ */
+public class StreamManagementModule implements XmppModule {
+
+	public static class StreamManagementEvent extends BaseEvent {
+
+		private static final long serialVersionUID = 1L;
+
+		private JID jid;
+
+		public StreamManagementEvent(EventType type, SessionObject sessionObject) {
+			super(type, sessionObject);
+		}
+
+		/**
+		 * Returns bound JID of resumed stream.
+		 */
+		public JID getJid() {
+			return jid;
+		}
+
+		public void setJid(JID jid) {
+			this.jid = jid;
+		}
+	}
+
+	/**
+	 * Number of unacknowledged stanzas after which acknowledgement is
+	 * requested. Type: {@linkplain Integer}.
+	 */
+	public static final String ACK_REQUEST_THRESHOLD_KEY = "STREAM_MANAGEMENT_ACK_REQUEST_THRESHOLD_KEY";
+
+	private final static Criteria CRIT = ElementCriteria.xmlns(StreamManagementModule.XMLNS);
+
+	public static final int DEFAULT_ACK_REQUEST_THRESHOLD = 5;
+
+	/**
+	 * If <code>true</code> then stream management will not be enabled.
+	 */
+	public static final String STREAM_MANAGEMENT_DISABLED_KEY = "STREAM_MANAGEMENT_DISABLED_KEY";
+
+	/**
+	 * Event fires when stream management is enabled.
+	 */
+	public static final EventType StreamManagementEnabled = new EventType();
+
+	/**
+	 * Event fires when enabling of stream management or stream resumption
+	 * failed.
+	 */
+	public static final EventType StreamManagementFailed = new EventType();
+
+	/**
+	 * Event fires when stream is resumed.
+	 */
+	public static final EventType StreamResumed = new EventType();
+
+	public static final String XMLNS = "urn:xmpp:sm:3";
+
+	private static final long MAX_H = 0xFFFFFFFFL;
+
+	/**
+	 * Checks if stream management is offered by server and not disabled by
+	 * user.
+	 */
+	public static boolean isStreamManagementAvailable(final SessionObject sessionObject) throws XMLException {
+		final Boolean disabled = sessionObject.getProperty(STREAM_MANAGEMENT_DISABLED_KEY);
+		if (disabled != null && disabled.booleanValue())
+			return false;
+		final Element features = sessionObject.getStreamFeatures();
+		return features != null && features.getChildrenNS("sm", XMLNS) != null;
+	}
+
+	private static boolean isStanza(Element element) throws XMLException {
+		final String name = element.getName();
+		return "message".equals(name) || "presence".equals(name) || "iq".equals(name);
+	}
+
+	/**
+	 * Number of acknowledged stanzas sent by client.
+	 */
+	private long acked;
+
+	private boolean enabled;
+
+	/**
+	 * Number of stanzas received by client.
+	 */
+	private long incoming;
+
+	/**
+	 * <code>true</code> if received stanzas are counted.
+	 */
+	private boolean incomingCounting;
+
+	protected final Logger log;
+
+	private final Observable observable;
+
+	/**
+	 * Number of stanzas sent by client.
+	 */
+	private long outgoing;
+
+	/**
+	 * <code>true</code> if sent stanzas are counted and queued.
+	 */
+	private boolean outgoingCounting;
+
+	private long requestedAt;
+
+	private String resumptionId;
+
+	private JID resumptionJid;
+
+	private boolean resuming;
+
+	protected final SessionObject sessionObject;
+
+	private final LinkedList<Element> unacked = new LinkedList<Element>();
+
+	protected final PacketWriter writer;
+
+	public StreamManagementModule(Observable parentObservable, SessionObject sessionObject, PacketWriter packetWriter) {
+		this.observable = ObservableFactory.instance(parentObservable);
+		this.log = Logger.getLogger(this.getClass().getName());
+		this.sessionObject = sessionObject;
+		this.writer = packetWriter;
+
+		parentObservable.addListener(Connector.StanzaSending, new Listener<ConnectorEvent>() {
+
+			@Override
+			public void handleEvent(ConnectorEvent be) throws JaxmppException {
+				if (be.getStanza() != null)
+					onStanzaSending(be.getStanza());
+			}
+		});
+		parentObservable.addListener(Connector.StanzaReceived, new Listener<ConnectorEvent>() {
+
+			@Override
+			public void handleEvent(ConnectorEvent be) throws JaxmppException {
+				if (be.getStanza() != null)
+					onStanzaReceived(be.getStanza());
+			}
+		});
+	}
+
+	public void addListener(EventType eventType, Listener<? extends StreamManagementEvent> listener) {
+		observable.addListener(eventType, listener);
+	}
+
+	/**
+	 * Removes acknowledged stanzas from queue.
+	 */
+	private synchronized void acknowledge(long h) {
+		long n = (h - acked) & MAX_H;
+		if (n > unacked.size()) {
+			log.warning("Server acknowledged " + n + " stanzas, but only " + unacked.size() + " were sent");
+			n = unacked.size();
+		}
+		for (long i = 0; i < n; i++)
+			unacked.removeFirst();
+		acked = h;
+	}
+
+	/**
+	 * Sends request to enable stream management. Should be called after
+	 * resource binding.
+	 */
+	public void enable() throws JaxmppException {
+		synchronized (this) {
+			reset();
+			outgoingCounting = true;
+		}
+		Element enable = new DefaultElement("enable", null, XMLNS);
+		enable.setAttribute("resume", "true");
+		writer.write(enable);
+	}
+
+	@Override
+	public Criteria getCriteria() {
+		return CRIT;
+	}
+
+	@Override
+	public String[] getFeatures() {
+		return null;
+	}
+
+	/**
+	 * Returns number of sent stanzas not acknowledged by server yet.
+	 */
+	public synchronized int getUnacknowledgedCount() {
+		return unacked.size();
+	}
+
+	public synchronized boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Checks if previous stream may be resumed.
+	 */
+	public synchronized boolean isResumptionAvailable() {
+		return resumptionId != null;
+	}
+
+	/**
+	 * Called by connector thread, so stanzas are counted in order they are
+	 * received, before they are processed.
+	 */
+	private void onStanzaReceived(Element element) throws XMLException {
+		if (isStanza(element)) {
+			synchronized (this) {
+				if (incomingCounting)
+					incoming = (incoming + 1) & MAX_H;
+			}
+		} else if (XMLNS.equals(element.getXMLNS())) {
+			// counting of received stanzas starts just after enabling or
+			// resumption of stream
+			final String name = element.getName();
+			synchronized (this) {
+				if ("enabled".equals(name)) {
+					incoming = 0;
+					incomingCounting = true;
+				} else if ("resumed".equals(name)) {
+					incomingCounting = true;
+				}
+			}
+		}
+	}
+
+	private void onStanzaSending(Element element) throws JaxmppException {
+		if (!isStanza(element))
+			return;
+		final boolean request;
+		synchronized (this) {
+			if (!outgoingCounting)
+				return;
+			outgoing = (outgoing + 1) & MAX_H;
+			unacked.add(element);
+			Integer threshold = sessionObject.getProperty(ACK_REQUEST_THRESHOLD_KEY);
+			request = enabled && ((outgoing - requestedAt) & MAX_H) >= (threshold == null ? DEFAULT_ACK_REQUEST_THRESHOLD : threshold);
+			if (request)
+				requestedAt = outgoing;
+		}
+		if (request)
+			request();
+	}
+
+	@Override
+	public void process(Element element) throws XMPPException, XMLException, JaxmppException {
+		final String name = element.getName();
+		if ("r".equals(name)) {
+			sendAck();
+		} else if ("a".equals(name)) {
+			acknowledge(parseH(element));
+		} else if ("enabled".equals(name)) {
+			processEnabled(element);
+		} else if ("resumed".equals(name)) {
+			processResumed(element);
+		} else if ("failed".equals(name)) {
+			processFailed(element);
+		}
+	}
+
+	private void processEnabled(Element element) throws JaxmppException {
+		synchronized (this) {
+			enabled = true;
+			final String id = element.getAttribute("id");
+			final String resume = element.getAttribute("resume");
+			if (id != null && ("true".equals(resume) || "1".equals(resume))) {
+				resumptionId = id;
+				resumptionJid = sessionObject.getProperty(ResourceBinderModule.BINDED_RESOURCE_JID);
+			}
+		}
+		observable.fireEvent(StreamManagementEnabled, new StreamManagementEvent(StreamManagementEnabled, sessionObject));
+	}
+
+	private void processFailed(Element element) throws JaxmppException {
+		final int lost;
+		synchronized (this) {
+			lost = resuming ? unacked.size() : 0;
+			reset();
+		}
+		if (lost > 0)
+			log.warning("Stream resumption failed. " + lost + " unacknowledged stanzas are lost");
+		observable.fireEvent(StreamManagementFailed, new StreamManagementEvent(StreamManagementFailed, sessionObject));
+	}
+
+	private void processResumed(Element element) throws JaxmppException {
+		final List<Element> toResend;
+		final JID jid;
+		synchronized (this) {
+			acknowledge(parseH(element));
+			toResend = new ArrayList<Element>(unacked);
+			unacked.clear();
+			// resent stanzas will be counted again
+			outgoing = acked;
+			requestedAt = acked;
+			resuming = false;
+			enabled = true;
+			outgoingCounting = true;
+			jid = resumptionJid;
+		}
+		sessionObject.setProperty(ResourceBinderModule.BINDED_RESOURCE_JID, jid);
+		if (log.isLoggable(Level.FINE))
+			log.fine("Stream resumed. Resending " + toResend.size() + " stanzas");
+		for (Element stanza : toResend) {
+			writer.write(stanza);
+		}
+		StreamManagementEvent event = new StreamManagementEvent(StreamResumed, sessionObject);
+		event.setJid(jid);
+		observable.fireEvent(StreamResumed, event);
+	}
+
+	private long parseH(Element element) throws XMLException {
+		final String h = element.getAttribute("h");
+		try {
+			return h == null ? 0 : Long.parseLong(h) & MAX_H;
+		} catch (NumberFormatException e) {
+			throw new XMLException("Invalid value of 'h' attribute: " + h);
+		}
+	}
+
+	public void removeListener(EventType eventType, Listener<? extends StreamManagementEvent> listener) {
+		observable.removeListener(eventType, listener);
+	}
+
+	/**
+	 * Requests acknowledgement of received stanzas from server.
+	 */
+	public void request() throws JaxmppException {
+		writer.write(new DefaultElement("r", null, XMLNS));
+	}
+
+	/**
+	 * Forgets state of stream. Should be called when stream is closed
+	 * gracefully and can't be resumed anymore.
+	 */
+	public synchronized void reset() {
+		enabled = false;
+		resuming = false;
+		outgoingCounting = false;
+		incomingCounting = false;
+		resumptionId = null;
+		resumptionJid = null;
+		acked = 0;
+		outgoing = 0;
+		incoming = 0;
+		requestedAt = 0;
+		unacked.clear();
+	}
+
+	/**
+	 * Sends request to resume previous stream. Should be called instead of
+	 * resource binding.
+	 */
+	public void resume() throws JaxmppException {
+		final Element resume = new DefaultElement("resume", null, XMLNS);
+		synchronized (this) {
+			if (resumptionId == null)
+				throw new JaxmppException("Stream can't be resumed");
+			enabled = false;
+			resuming = true;
+			outgoingCounting = false;
+			incomingCounting = false;
+			resume.setAttribute("h", Long.toString(incoming));
+			resume.setAttribute("previd", resumptionId);
+		}
+		writer.write(resume);
+	}
+
+	/**
+	 * Sends number of received stanzas to server.
+	 */
+	public void sendAck() throws JaxmppException {
+		final Element a = new DefaultElement("a", null, XMLNS);
+		synchronized (this) {
+			a.setAttribute("h", Long.toString(incoming));
+		}
+		writer.write(a);
+	}
+
+}
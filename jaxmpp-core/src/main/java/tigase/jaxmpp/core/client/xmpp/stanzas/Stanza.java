@@ -33,6 +33,26 @@ import tigase.jaxmpp.core.client.xml.XMLException;
  */
 public abstract class Stanza extends ElementWrapper {
 
+	/**
+	 * Value of address attribute with parsed JID. Immutable, so it may be
+	 * shared between threads without locking.
+	 */
+	private static final class Address {
+
+		private final JID jid;
+
+		private final String value;
+
+		private Address(String value) {
+			this(value, JID.jidInstance(value));
+		}
+
+		private Address(String value, JID jid) {
+			this.value = value;
+			this.jid = jid;
+		}
+	}
+
 	public static class UnkownStanzaTypeException extends JaxmppException {
 
 		private static final long serialVersionUID = 1L;
@@ -88,6 +108,10 @@ public abstract class Stanza extends ElementWrapper {
 		}
 	}
 
+	private Address from;
+
+	private Address to;
+
 	public Stanza(Element element) {
 		super(element);
 	}
@@ -123,7 +147,14 @@ public abstract class Stanza extends ElementWrapper {
 	 */
 	public JID getFrom() throws XMLException {
 		String t = getAttribute("from");
-		return t == null ? null : JID.jidInstance(t);
+		if (t == null)
+			return null;
+		Address a = from;
+		if (a == null || a.value != t) {
+			a = new Address(t);
+			from = a;
+		}
+		return a.jid;
 	}
 
 	/**
@@ -142,7 +173,14 @@ public abstract class Stanza extends ElementWrapper {
 	 */
 	public JID getTo() throws XMLException {
 		String t = getAttribute("to");
-		return t == null ? null : JID.jidInstance(t);
+		if (t == null)
+			return null;
+		Address a = to;
+		if (a == null || a.value != t) {
+			a = new Address(t);
+			to = a;
+		}
+		return a.jid;
 	}
 
 	/**
@@ -181,10 +219,14 @@ public abstract class Stanza extends ElementWrapper {
 	 *            {@linkplain JID}
 	 */
 	public void setFrom(JID jid) throws XMLException {
-		if (jid == null)
+		if (jid == null) {
 			removeAttribute("from");
-		else
-			setAttribute("from", jid.toString());
+			from = null;
+		} else {
+			String t = jid.toString();
+			setAttribute("from", t);
+			from = new Address(t, jid);
+		}
 	}
 
 	/**
@@ -205,10 +247,14 @@ public abstract class Stanza extends ElementWrapper {
 	 *            {@linkplain JID}
 	 */
 	public void setTo(JID jid) throws XMLException {
-		if (jid == null)
+		if (jid == null) {
 			removeAttribute("to");
-		else
-			setAttribute("to", jid.toString());
+			to = null;
+		} else {
+			String t = jid.toString();
+			setAttribute("to", t);
+			to = new Address(t, jid);
+		}
 	}
 
 	/**
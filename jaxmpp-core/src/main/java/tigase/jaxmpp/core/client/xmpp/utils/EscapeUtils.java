@@ -17,33 +17,162 @@
  */
 package tigase.jaxmpp.core.client.xmpp.utils;
 
+import java.io.IOException;
+
+/**
+ * Escapes and unescapes XML special characters (<code>&amp;</code>,
+ * <code>&lt;</code>, <code>&gt;</code>, <code>&quot;</code>,
+ * <code>&apos;</code>). Each method scans string once and returns given string
+ * itself if there is nothing to change.
+ */
 public class EscapeUtils {
 
-	private static final String[][] ENTITIES = { { "&", "&amp;" }, { "<", "&lt;" }, { ">", "&gt;" }, { "\"", "&quot;" },
-			{ "'", "&apos;" }, };
+	private static final char[] CHARS = { '&', '<', '>', '"', '\'' };
+
+	private static final String[] ENTITIES = { "&amp;", "&lt;", "&gt;", "&quot;", "&apos;" };
+
+	/**
+	 * Returns entity replacing given character or <code>null</code> if
+	 * character doesn't need escaping.
+	 */
+	private static String entityOf(char c) {
+		if (c > '>')
+			return null;
+		switch (c) {
+		case '&':
+			return "&amp;";
+		case '<':
+			return "&lt;";
+		case '>':
+			return "&gt;";
+		case '"':
+			return "&quot;";
+		case '\'':
+			return "&apos;";
+		default:
+			return null;
+		}
+	}
 
 	public static String escape(String str) {
 		if (str == null)
 			return null;
-		if (str.length() == 0)
+		final int len = str.length();
+		int i = 0;
+		while (i < len && entityOf(str.charAt(i)) == null)
+			i++;
+		if (i == len)
 			return str;
-		for (int i = 0; i < ENTITIES.length; i++) {
-			str = str.replace(ENTITIES[i][0], ENTITIES[i][1]);
+
+		StringBuilder sb = new StringBuilder(len + 16);
+		try {
+			sb.append(str, 0, i);
+			escape(str, i, sb);
+		} catch (IOException e) {
+			// StringBuilder doesn't throw it
+			throw new RuntimeException(e);
 		}
-		return str;
+		return sb.toString();
+	}
+
+	/**
+	 * Writes escaped string to output in one pass. Unchanged parts of string
+	 * are appended as ranges, without copying.
+	 * 
+	 * @param str
+	 *            string to escape
+	 * @param out
+	 *            output
+	 */
+	public static void escape(String str, Appendable out) throws IOException {
+		if (str == null)
+			return;
+		escape(str, 0, out);
+	}
+
+	private static void escape(String str, int from, Appendable out) throws IOException {
+		final int len = str.length();
+		int start = from;
+		for (int i = from; i < len; i++) {
+			final String entity = entityOf(str.charAt(i));
+			if (entity == null)
+				continue;
+			if (i > start)
+				out.append(str, start, i);
+			out.append(entity);
+			start = i + 1;
+		}
+		if (start == 0)
+			out.append(str);
+		else if (start < len)
+			out.append(str, start, len);
+	}
+
+	/**
+	 * Returns index of entity starting at given position or <code>-1</code> if
+	 * there is no known entity.
+	 */
+	private static int entityAt(String str, int i) {
+		for (int e = 0; e < ENTITIES.length; e++) {
+			if (str.startsWith(ENTITIES[e], i))
+				return e;
+		}
+		return -1;
 	}
 
 	public static String unescape(String str) {
 		if (str == null)
 			return null;
-		if (str.length() == 0)
+		final int first = str.indexOf('&');
+		if (first == -1)
 			return str;
-		for (int i = ENTITIES.length - 1; i >= 0; i--) {
-			str = str.replace(ENTITIES[i][1], ENTITIES[i][0]);
+
+		StringBuilder sb = new StringBuilder(str.length());
+		try {
+			sb.append(str, 0, first);
+			unescape(str, first, sb);
+		} catch (IOException e) {
+			// StringBuilder doesn't throw it
+			throw new RuntimeException(e);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Writes unescaped string to output in one pass. Unknown entities are
+	 * left unchanged.
+	 * 
+	 * @param str
+	 *            string to unescape
+	 * @param out
+	 *            output
+	 */
+	public static void unescape(String str, Appendable out) throws IOException {
+		if (str == null)
+			return;
+		unescape(str, 0, out);
+	}
+
+	private static void unescape(String str, int from, Appendable out) throws IOException {
+		final int len = str.length();
+		int start = from;
+		int i = str.indexOf('&', from);
+		while (i != -1) {
+			final int e = entityAt(str, i);
+			if (e >= 0) {
+				if (i > start)
+					out.append(str, start, i);
+				out.append(CHARS[e]);
+				start = i + ENTITIES[e].length();
+				i = str.indexOf('&', start);
+			} else {
+				i = str.indexOf('&', i + 1);
+			}
 		}
-		return str;
+		if (start < len)
+			out.append(str, start, len);
 	}
 
 	private EscapeUtils() {
 	}
-}
\ No newline at end of file
+}
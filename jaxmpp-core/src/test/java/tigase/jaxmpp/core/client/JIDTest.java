@@ -68,4 +68,50 @@ public class JIDTest extends TestCase {
 		assertEquals("a@b/c", jid.toString());
 	}
 
-}
\ No newline at end of file
+	public void testInstancesAreShared() {
+		JID jid = JID.jidInstance("shared@example.com/res");
+		assertSame(jid, JID.jidInstance("shared@example.com/res"));
+		assertSame(BareJID.bareJIDInstance("shared@example.com"), jid.getBareJid());
+		assertSame(jid.getBareJid(), JID.jidInstance("shared@example.com/other").getBareJid());
+	}
+
+	public void testCacheIsBounded() {
+		JIDCache<String> cache = new JIDCache<String>(16) {
+
+			@Override
+			protected String create(String key) {
+				return new String(key);
+			}
+		};
+		for (int i = 0; i < 1000; i++) {
+			assertEquals("k" + i, cache.get("k" + i));
+		}
+		assertTrue(cache.size() <= 16);
+
+		String v = cache.get("hot");
+		for (int i = 0; i < 1000; i++) {
+			cache.get("k" + i);
+			assertSame("Recently used entry evicted", v, cache.get("hot"));
+		}
+	}
+
+	public void testStanzaAddresses() throws Exception {
+		tigase.jaxmpp.core.client.xmpp.stanzas.Message m = tigase.jaxmpp.core.client.xmpp.stanzas.Message.create();
+		assertNull(m.getFrom());
+		m.setAttribute("from", "a@b/c");
+		JID from = m.getFrom();
+		assertEquals(JID.jidInstance("a", "b", "c"), from);
+		assertSame(from, m.getFrom());
+
+		m.setAttribute("from", "x@y");
+		assertEquals(JID.jidInstance("x", "y"), m.getFrom());
+
+		JID to = JID.jidInstance("d@e/f");
+		m.setTo(to);
+		assertSame(to, m.getTo());
+		assertEquals("d@e/f", m.getAttribute("to"));
+		m.setTo(null);
+		assertNull(m.getTo());
+	}
+
+}
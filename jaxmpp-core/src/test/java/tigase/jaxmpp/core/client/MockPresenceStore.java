@@ -12,6 +12,7 @@ public class MockPresenceStore extends PresenceStore {
 		presencesMapByBareJid = new HashMap<BareJID, Map<String, Presence>>();
 		presenceByJid = new HashMap<JID, Presence>();
 		bestPresence = new HashMap<BareJID, Presence>();
+		rankingByBareJid = new HashMap<BareJID, Ranking>();
 	}
 
 	@Override
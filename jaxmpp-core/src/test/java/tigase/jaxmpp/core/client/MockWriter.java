@@ -21,6 +21,7 @@ import java.util.ArrayList;
 
 import tigase.jaxmpp.core.client.exceptions.JaxmppException;
 import tigase.jaxmpp.core.client.xml.Element;
+import tigase.jaxmpp.core.client.xmpp.stanzas.Stanza;
 
 public class MockWriter implements PacketWriter {
 
@@ -55,4 +56,11 @@ public class MockWriter implements PacketWriter {
 		write(stanza);
 	}
 
+	@Override
+	public ResponseFuture<Stanza> writeAsync(Element stanza, Long timeout) throws JaxmppException {
+		final ResponseFuture<Stanza> future = new ResponseFuture<Stanza>();
+		write(stanza, timeout, ResponseFuture.asCallback(future));
+		return future;
+	}
+
 }
\ No newline at end of file
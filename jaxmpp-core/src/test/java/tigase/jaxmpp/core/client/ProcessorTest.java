@@ -45,7 +45,7 @@ public class ProcessorTest extends TestCase {
 		Runnable r = processor.process(e);
 		r.run();
 		assertEquals(
-				"<iq type=\"error\"><error code=\"501\" type=\"cancel\"><feature-not-implemented xmlns=\"urn:ietf:params:xml:ns:xmpp-stanzas\"/></error></iq>",
+				"<iq type=\"error\"><error type=\"cancel\" code=\"501\"><feature-not-implemented xmlns=\"urn:ietf:params:xml:ns:xmpp-stanzas\"/></error></iq>",
 				writer.poll().getAsString());
 	}
 
@@ -57,7 +57,7 @@ public class ProcessorTest extends TestCase {
 		Runnable r = processor.process(e);
 		r.run();
 		assertEquals(
-				"<iq type=\"error\"><error code=\"405\" type=\"cancel\"><not-allowed xmlns=\"urn:ietf:params:xml:ns:xmpp-stanzas\"/></error></iq>",
+				"<iq type=\"error\"><error type=\"cancel\" code=\"405\"><not-allowed xmlns=\"urn:ietf:params:xml:ns:xmpp-stanzas\"/></error></iq>",
 				writer.poll().getAsString());
 	}
 
@@ -69,7 +69,7 @@ public class ProcessorTest extends TestCase {
 
 		Runnable r = processor.process(e);
 		r.run();
-		assertEquals("<iq from=\"a@b.c\" type=\"result\"/>", writer.poll().getAsString());
+		assertEquals("<iq type=\"result\" from=\"a@b.c\"/>", writer.poll().getAsString());
 	}
 
 	public void test04() throws XMLException {
@@ -80,7 +80,7 @@ public class ProcessorTest extends TestCase {
 
 		Runnable r = processor.process(e);
 		r.run();
-		assertEquals("<iq from=\"a@b.c\" type=\"result\"/>", writer.poll().getAsString());
+		assertEquals("<iq type=\"result\" from=\"a@b.c\"/>", writer.poll().getAsString());
 	}
 
 }
\ No newline at end of file
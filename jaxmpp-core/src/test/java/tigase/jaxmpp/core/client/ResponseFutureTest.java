@@ -0,0 +1,135 @@
+/*
+ * Tigase XMPP Client Library
+ * Copyright (C) 2006-2012 "Bartosz Małkowski" <bartosz.malkowski@tigase.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.jaxmpp.core.client;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+import tigase.jaxmpp.core.client.XMPPException.ErrorCondition;
+import tigase.jaxmpp.core.client.exceptions.JaxmppException;
+import tigase.jaxmpp.core.client.exceptions.ResponseErrorException;
+import tigase.jaxmpp.core.client.exceptions.ResponseTimeoutException;
+import tigase.jaxmpp.core.client.xml.DefaultElement;
+import tigase.jaxmpp.core.client.xml.Element;
+import tigase.jaxmpp.core.client.xmpp.stanzas.Stanza;
+
+public class ResponseFutureTest extends TestCase {
+
+	private static Element request(String id) throws JaxmppException {
+		Element es = new DefaultElement("iq");
+		es.setAttribute("id", id);
+		es.setAttribute("type", "get");
+		es.setAttribute("to", "a@b.c");
+		return es;
+	}
+
+	private static Element response(String id, String type) throws JaxmppException {
+		Element er = new DefaultElement("iq");
+		er.setAttribute("type", type);
+		er.setAttribute("id", id);
+		er.setAttribute("from", "a@b.c");
+		if ("error".equals(type)) {
+			Element e1 = new DefaultElement("error");
+			e1.setAttribute("type", "cancel");
+			e1.addChild(new DefaultElement("item-not-found", null, "urn:ietf:params:xml:ns:xmpp-stanzas"));
+			er.addChild(e1);
+		}
+		return er;
+	}
+
+	private final MockSessionObject sessionObject = new MockSessionObject();
+
+	private final MockWriter writer = new MockWriter(sessionObject);
+
+	private void receive(Element response) throws JaxmppException {
+		sessionObject.getResponseHandler(response, writer).run();
+	}
+
+	public void testAllOf() throws JaxmppException {
+		List<ResponseFuture<Stanza>> futures = new ArrayList<ResponseFuture<Stanza>>();
+		futures.add(writer.writeAsync(request("1"), null));
+		futures.add(writer.writeAsync(request("2"), null));
+
+		ResponseFuture<List<Stanza>> all = ResponseFuture.allOf(futures);
+
+		receive(response("2", "result"));
+		assertFalse(all.isDone());
+		receive(response("1", "result"));
+		assertTrue(all.isDone());
+
+		List<Stanza> values = all.getValue();
+		assertEquals("1", values.get(0).getAttribute("id"));
+		assertEquals("2", values.get(1).getAttribute("id"));
+	}
+
+	public void testAnyOf() throws JaxmppException {
+		ResponseFuture<String> f1 = new ResponseFuture<String>();
+		ResponseFuture<String> f2 = new ResponseFuture<String>();
+		List<ResponseFuture<String>> futures = new ArrayList<ResponseFuture<String>>();
+		futures.add(f1);
+		futures.add(f2);
+
+		ResponseFuture<String> any = ResponseFuture.anyOf(futures);
+		f2.complete("second");
+		f1.complete("first");
+
+		assertEquals("second", any.getValue());
+	}
+
+	public void testCompose() throws JaxmppException {
+		ResponseFuture<Stanza> first = writer.writeAsync(request("1"), null);
+		ResponseFuture<String> chain = first.compose(new ResponseFuture.Function<Stanza, ResponseFuture<Stanza>>() {
+
+			@Override
+			public ResponseFuture<Stanza> apply(Stanza value) throws JaxmppException {
+				return writer.writeAsync(request("2"), null);
+			}
+		}).then(new ResponseFuture.Function<Stanza, String>() {
+
+			@Override
+			public String apply(Stanza value) throws JaxmppException {
+				return value.getAttribute("id");
+			}
+		});
+
+		receive(response("1", "result"));
+		assertFalse(chain.isDone());
+		receive(response("2", "result"));
+		assertEquals("2", chain.getValue());
+	}
+
+	public void testError() throws JaxmppException {
+		ResponseFuture<Stanza> future = writer.writeAsync(request("1"), null);
+		receive(response("1", "error"));
+
+		assertTrue(future.getFailure() instanceof ResponseErrorException);
+		ResponseErrorException e = (ResponseErrorException) future.getFailure();
+		assertEquals(ErrorCondition.item_not_found, e.getCondition());
+		assertEquals("1", e.getResponse().getAttribute("id"));
+	}
+
+	public void testTimeout() throws JaxmppException {
+		ResponseFuture<Stanza> future = new ResponseFuture<Stanza>();
+		ResponseFuture.asCallback(future).onTimeout();
+
+		assertTrue(future.getFailure() instanceof ResponseTimeoutException);
+		assertFalse(future.complete(null));
+	}
+
+}
@@ -0,0 +1,88 @@
+/*
+ * Tigase XMPP Client Library
+ * Copyright (C) 2006-2012 "Bartosz Małkowski" <bartosz.malkowski@tigase.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.jaxmpp.core.client;
+
+import junit.framework.TestCase;
+
+public class SessionKeyTest extends TestCase {
+
+	private static final SessionKey<Integer> COUNT = SessionKey.create("test#count");
+
+	public void testCreate() {
+		assertSame(COUNT, SessionKey.create("test#count"));
+		assertSame(Connector.CONNECTOR_STAGE, SessionKey.create(Connector.CONNECTOR_STAGE_KEY));
+		assertEquals("test#count", COUNT.getName());
+	}
+
+	public void testKeyAndNameShareValue() throws Exception {
+		MockSessionObject so = new MockSessionObject();
+		assertNull(so.getProperty(COUNT));
+
+		so.setProperty(COUNT, 1);
+		assertEquals(Integer.valueOf(1), so.getProperty("test#count"));
+
+		so.setProperty("test#count", 2);
+		assertEquals(Integer.valueOf(2), so.getProperty(COUNT));
+
+		so.setProperty("test#count", null);
+		assertNull(so.getProperty(COUNT));
+
+		so.setProperty(Connector.CONNECTOR_STAGE_KEY, Connector.State.connected);
+		assertEquals(Connector.State.connected, so.getProperty(Connector.CONNECTOR_STAGE));
+	}
+
+	public void testUserProperty() throws Exception {
+		MockSessionObject so = new MockSessionObject();
+		so.setUserProperty(JaxmppCore.AUTOADD_STANZA_ID_KEY, Boolean.TRUE);
+		assertEquals(Boolean.TRUE, so.getUserProperty(JaxmppCore.AUTOADD_STANZA_ID));
+		assertEquals(Boolean.TRUE, so.getProperty(JaxmppCore.AUTOADD_STANZA_ID));
+
+		so.setProperty(JaxmppCore.AUTOADD_STANZA_ID, Boolean.FALSE);
+		assertEquals(Boolean.FALSE, so.getProperty(JaxmppCore.AUTOADD_STANZA_ID_KEY));
+
+		// clearing removes session values only
+		so.clear();
+		assertEquals(Boolean.TRUE, so.getProperty(JaxmppCore.AUTOADD_STANZA_ID));
+		assertEquals(Boolean.TRUE, so.getUserProperty(JaxmppCore.AUTOADD_STANZA_ID_KEY));
+	}
+
+	public void testClearedByName() throws Exception {
+		MockSessionObject so = new MockSessionObject();
+		so.setProperty(COUNT, 3);
+		so.clearProperties();
+		assertNull(so.getProperty("test#count"));
+		assertNull(so.getProperty(COUNT));
+
+		so.setUserProperty(COUNT, 4);
+		assertEquals(Integer.valueOf(4), so.getUserProperty("test#count"));
+		so.setUserProperty("test#count", null);
+		assertNull(so.getProperty("test#count"));
+		assertNull(so.getUserProperty(COUNT));
+	}
+
+	public void testKeyCreatedAfterSession() {
+		MockSessionObject so = new MockSessionObject();
+		so.setProperty(COUNT, 5);
+		SessionKey<String> late = SessionKey.create("test#late-" + System.nanoTime());
+		assertNull(so.getProperty(late));
+		so.setProperty(late, "x");
+		assertEquals("x", so.getProperty(late));
+		assertEquals(Integer.valueOf(5), so.getProperty(COUNT));
+	}
+
+}
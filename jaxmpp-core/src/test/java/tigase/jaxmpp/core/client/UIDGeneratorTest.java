@@ -0,0 +1,51 @@
+/*
+ * Tigase XMPP Client Library
+ * Copyright (C) 2006-2012 "Bartosz Małkowski" <bartosz.malkowski@tigase.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.jaxmpp.core.client;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+public class UIDGeneratorTest extends TestCase {
+
+	public void testFormat() {
+		String a = UIDGenerator.next();
+		String b = UIDGenerator.next();
+		assertTrue(a.matches("[0-9a-zA-Z]+"));
+		// the same process prefix at the end
+		assertEquals(a.substring(a.length() - 6), b.substring(b.length() - 6));
+	}
+
+	public void testEncode() {
+		char[] buffer = UIDGenerator.newBuffer();
+		String prefix = new String(buffer, buffer.length - 6, 6);
+		assertEquals("1" + prefix, UIDGenerator.encode(1, buffer));
+		assertEquals("10" + prefix, UIDGenerator.encode(62, buffer));
+		assertEquals("Z" + prefix, UIDGenerator.encode(61, buffer));
+		assertEquals("aZl8N0y58M7" + prefix, UIDGenerator.encode(Long.MAX_VALUE, buffer));
+	}
+
+	public void testUnique() {
+		Set<String> ids = new HashSet<String>();
+		for (int i = 0; i < 100000; i++) {
+			assertTrue(ids.add(UIDGenerator.next()));
+		}
+	}
+
+}
@@ -0,0 +1,113 @@
+/*
+ * Tigase XMPP Client Library
+ * Copyright (C) 2006-2012 "Bartosz Małkowski" <bartosz.malkowski@tigase.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.jaxmpp.core.client;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import tigase.jaxmpp.core.client.criteria.Criteria;
+import tigase.jaxmpp.core.client.criteria.ElementCriteria;
+import tigase.jaxmpp.core.client.exceptions.JaxmppException;
+import tigase.jaxmpp.core.client.xml.DefaultElement;
+import tigase.jaxmpp.core.client.xml.Element;
+import tigase.jaxmpp.core.client.xml.XMLException;
+
+/**
+ * Measures cost of finding modules for stanza depending on number of
+ * registered modules. Indexed search is compared with checking criteria of
+ * each module.
+ */
+public class XmppModulesManagerBenchmark {
+
+	private static class DummyModule implements XmppModule {
+
+		private final Criteria criteria;
+
+		private DummyModule(Criteria criteria) {
+			this.criteria = criteria;
+		}
+
+		@Override
+		public Criteria getCriteria() {
+			return criteria;
+		}
+
+		@Override
+		public String[] getFeatures() {
+			return null;
+		}
+
+		@Override
+		public void process(Element element) throws XMPPException, XMLException, JaxmppException {
+		}
+	}
+
+	private static final int ITERATIONS = 200000;
+
+	private static Element createStanza(String name, String xmlns) throws XMLException {
+		Element stanza = new DefaultElement(name);
+		stanza.setAttribute("type", "get");
+		stanza.addChild(new DefaultElement("query", null, xmlns));
+		return stanza;
+	}
+
+	public static void main(String[] args) throws Exception {
+		final Element[] stanzas = new Element[] { createStanza("iq", "ns:5"), createStanza("message", "ns:x"),
+				createStanza("presence", "ns:y") };
+		for (int modules : new int[] { 10, 20, 50, 100, 200, 500 }) {
+			final XmppModulesManager manager = new XmppModulesManager(null, null);
+			final List<XmppModule> registered = new ArrayList<XmppModule>();
+			for (int i = 0; i < modules; i++) {
+				registered.add(new DummyModule(ElementCriteria.name("iq").add(ElementCriteria.name("query", "ns:" + i))));
+			}
+			registered.add(new DummyModule(ElementCriteria.name("message")));
+			registered.add(new DummyModule(ElementCriteria.name("presence")));
+			for (XmppModule module : registered) {
+				manager.register(module);
+			}
+
+			long indexed = Long.MAX_VALUE;
+			long linear = Long.MAX_VALUE;
+			for (int round = 0; round < 5; round++) {
+				long t = System.nanoTime();
+				for (int i = 0; i < ITERATIONS; i++) {
+					manager.findModules(stanzas[i % stanzas.length]);
+				}
+				indexed = Math.min(indexed, System.nanoTime() - t);
+
+				t = System.nanoTime();
+				for (int i = 0; i < ITERATIONS; i++) {
+					scan(registered, stanzas[i % stanzas.length]);
+				}
+				linear = Math.min(linear, System.nanoTime() - t);
+			}
+			System.out.println(modules + " modules: indexed " + indexed / ITERATIONS + " ns/stanza, linear scan " + linear
+					/ ITERATIONS + " ns/stanza");
+		}
+	}
+
+	private static int scan(List<XmppModule> modules, Element element) throws XMLException {
+		int result = 0;
+		for (XmppModule module : modules) {
+			if (module.getCriteria().match(element))
+				++result;
+		}
+		return result;
+	}
+
+}
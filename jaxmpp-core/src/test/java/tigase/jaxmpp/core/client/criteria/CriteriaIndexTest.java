@@ -0,0 +1,94 @@
+/*
+ * Tigase XMPP Client Library
+ * Copyright (C) 2006-2012 "Bartosz Małkowski" <bartosz.malkowski@tigase.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.jaxmpp.core.client.criteria;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import tigase.jaxmpp.core.client.xml.DefaultElement;
+import tigase.jaxmpp.core.client.xml.Element;
+import tigase.jaxmpp.core.client.xml.XMLException;
+
+public class CriteriaIndexTest {
+
+	private static Element iq(String type, String... childrenXmlns) throws XMLException {
+		Element iq = new DefaultElement("iq");
+		iq.setAttribute("type", type);
+		for (String xmlns : childrenXmlns) {
+			iq.addChild(new DefaultElement("query", null, xmlns));
+		}
+		return iq;
+	}
+
+	private final CriteriaIndex<String> index = new CriteriaIndex<String>();
+
+	public CriteriaIndexTest() {
+		index.add(new Criteria() {
+
+			@Override
+			public Criteria add(Criteria criteria) {
+				return null;
+			}
+
+			@Override
+			public boolean match(Element element) throws XMLException {
+				return "message".equals(element.getName()) && !"groupchat".equals(element.getAttribute("type"));
+			}
+		}, "chat");
+		index.add(ElementCriteria.name("iq").add(ElementCriteria.name("query", "jabber:iq:roster")), "roster");
+		index.add(ElementCriteria.name("presence"), "presence");
+		index.add(ElementCriteria.name("iq", new String[] { "type" }, new String[] { "error" }), "iq-error");
+		index.add(ElementCriteria.xmlns("urn:xmpp:sm:3"), "sm");
+		index.add(new Or(ElementCriteria.name("success", "urn:ietf:params:xml:ns:xmpp-sasl"),
+				ElementCriteria.name("failure", "urn:ietf:params:xml:ns:xmpp-sasl"), ElementCriteria.name("iq").add(
+						ElementCriteria.name("query", "jabber:iq:roster"))), "or");
+		index.add(null, "none");
+	}
+
+	@Test
+	public void testChildXmlns() throws XMLException {
+		assertEquals(Arrays.asList("roster", "or"), index.find(iq("set", "jabber:iq:roster")));
+		// payload is not first child
+		assertEquals(Arrays.asList("roster", "iq-error", "or"), index.find(iq("error", "x", "jabber:iq:roster")));
+		assertNull(index.find(iq("get", "jabber:iq:version")));
+		assertNull(index.find(iq("get")));
+	}
+
+	@Test
+	public void testName() throws XMLException {
+		assertEquals(Arrays.asList("presence"), index.find(new DefaultElement("presence")));
+		assertEquals(Arrays.asList("or"), index.find(new DefaultElement("success", null, "urn:ietf:params:xml:ns:xmpp-sasl")));
+		assertNull(index.find(new DefaultElement("success", null, "x")));
+		assertEquals(Arrays.asList("sm"), index.find(new DefaultElement("r", null, "urn:xmpp:sm:3")));
+		assertEquals(3, index.find(iq("error", "jabber:iq:roster")).size());
+		assertEquals(6, index.size());
+	}
+
+	@Test
+	public void testOpaque() throws XMLException {
+		Element message = new DefaultElement("message");
+		assertEquals(Arrays.asList("chat"), index.find(message));
+		message.setAttribute("type", "groupchat");
+		assertNull(index.find(message));
+	}
+
+}
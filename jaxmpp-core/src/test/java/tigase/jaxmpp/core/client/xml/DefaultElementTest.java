@@ -17,7 +17,9 @@
  */
 package tigase.jaxmpp.core.client.xml;
 
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import junit.framework.TestCase;
 
@@ -160,4 +162,74 @@ public class DefaultElementTest extends TestCase {
 		assertEquals("tigase", c.getXMLNS());
 
 	}
-}
\ No newline at end of file
+
+	public void testAttributesView() throws XMLException {
+		final Element element = createElement();
+		Map<String, String> attrs = element.getAttributes();
+
+		assertEquals(3, attrs.size());
+		attrs.remove("type");
+		assertNull(element.getAttribute("type"));
+		attrs.put("id", "1");
+		assertEquals("1", element.getAttribute("id"));
+		assertEquals("<message to=\"romeo@example.net\" from=\"juliet@example.com/balcony\" id=\"1\"/>",
+				DefaultElement.create(element, 0).getAsString());
+	}
+
+	public void testHashCode() throws XMLException {
+		final Element e1 = createElement();
+		final Element e2 = createElement();
+		assertEquals(e1, e2);
+		assertEquals(e1.hashCode(), e2.hashCode());
+
+		int h = e1.hashCode();
+		e1.setAttribute("id", "1");
+		assertFalse(h == e1.hashCode());
+		e1.removeAttribute("id");
+		assertEquals(h, e1.hashCode());
+
+		e1.removeChild(e1.getFirstChild());
+		assertFalse(e1.equals(e2));
+		assertFalse(h == e1.hashCode());
+	}
+
+	public void testNullAttributeValues() throws XMLException {
+		final Element e = new DefaultElement("x");
+		Map<String, String> attrs = new HashMap<String, String>();
+		attrs.put("a", "1");
+		attrs.put("b", null);
+		e.setAttributes(attrs);
+		assertEquals(1, e.getAttributes().size());
+		assertNull(e.getAttribute("b"));
+
+		assertEquals("1", e.getAttributes().put("a", null));
+		assertTrue(e.getAttributes().isEmpty());
+		e.getAttributes().put("c", null);
+		assertTrue(e.getAttributes().isEmpty());
+		// must not fail on attributes without value
+		assertEquals(new DefaultElement("x").hashCode(), e.hashCode());
+	}
+
+	public void testRemoveChild() throws XMLException {
+		final Element element = new DefaultElement("x");
+		final Element v1 = element.addChild(new DefaultElement("value", "1", null));
+		final Element v2 = element.addChild(new DefaultElement("value", "2", null));
+		final Element v3 = element.addChild(new DefaultElement("value", "3", null));
+
+		element.removeChild(v2);
+		assertNull(v2.getParent());
+		assertEquals(2, element.getChildren().size());
+		assertSame(v3, v1.getNextSibling());
+		assertEquals("<x><value>1</value><value>3</value></x>", element.getAsString());
+	}
+
+	public void testWriteTo() throws Exception {
+		final Element element = createElement();
+		element.getFirstChild().setValue("<I & you>");
+		StringBuilder sb = new StringBuilder();
+		element.writeTo(sb);
+		assertEquals(element.getAsString(), sb.toString());
+		assertTrue(sb.toString().contains("<subject>&lt;I &amp; you&gt;</subject>"));
+	}
+
+}
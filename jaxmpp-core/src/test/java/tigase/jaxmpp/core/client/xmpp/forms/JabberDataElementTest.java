@@ -35,7 +35,7 @@ public class JabberDataElementTest {
 		x.addFORM_TYPE("jabber:bot");
 
 		assertEquals(
-				"<x xmlns=\"jabber:x:data\" type=\"form\"><field var=\"FORM_TYPE\" type=\"hidden\"><value>jabber:bot</value></field></x>",
+				"<x xmlns=\"jabber:x:data\" type=\"form\"><field type=\"hidden\" var=\"FORM_TYPE\"><value>jabber:bot</value></field></x>",
 				x.getAsString());
 
 	}
@@ -49,17 +49,17 @@ public class JabberDataElementTest {
 		x.addFORM_TYPE("jabber:bot");
 
 		assertEquals(
-				"<x xmlns=\"jabber:x:data\" type=\"form\"><field var=\"FORM_TYPE\" type=\"hidden\"><value>jabber:bot</value></field></x>",
+				"<x xmlns=\"jabber:x:data\" type=\"form\"><field type=\"hidden\" var=\"FORM_TYPE\"><value>jabber:bot</value></field></x>",
 				x.getAsString());
 
 		x.setInstructions("in");
 		assertEquals(
-				"<x xmlns=\"jabber:x:data\" type=\"form\"><field var=\"FORM_TYPE\" type=\"hidden\"><value>jabber:bot</value></field><instructions>in</instructions></x>",
+				"<x xmlns=\"jabber:x:data\" type=\"form\"><field type=\"hidden\" var=\"FORM_TYPE\"><value>jabber:bot</value></field><instructions>in</instructions></x>",
 				x.getAsString());
 
 		x.setTitle("tt");
 		assertEquals(
-				"<x xmlns=\"jabber:x:data\" type=\"form\"><field var=\"FORM_TYPE\" type=\"hidden\"><value>jabber:bot</value></field><instructions>in</instructions><title>tt</title></x>",
+				"<x xmlns=\"jabber:x:data\" type=\"form\"><field type=\"hidden\" var=\"FORM_TYPE\"><value>jabber:bot</value></field><instructions>in</instructions><title>tt</title></x>",
 				x.getAsString());
 
 	}
@@ -71,7 +71,7 @@ public class JabberDataElementTest {
 		assertEquals("boolean", field.getAttribute("type"));
 		assertEquals("boolean", field.getType());
 
-		assertEquals("<field var=\"public\" type=\"boolean\"><value>1</value></field>", field.getAsString());
+		assertEquals("<field type=\"boolean\" var=\"public\"><value>1</value></field>", field.getAsString());
 	}
 
 	@Test
@@ -0,0 +1,70 @@
+/*
+ * Tigase XMPP Client Library
+ * Copyright (C) 2006-2012 "Bartosz Małkowski" <bartosz.malkowski@tigase.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.jaxmpp.core.client.xmpp.modules.presence;
+
+import tigase.jaxmpp.core.client.JID;
+import tigase.jaxmpp.core.client.MockPresenceStore;
+import tigase.jaxmpp.core.client.xmpp.stanzas.Presence;
+import tigase.jaxmpp.core.client.xmpp.stanzas.StanzaType;
+
+/**
+ * Presence flood: one contact with growing number of resources sends
+ * presences with changing priority and availability. Time of single
+ * {@linkplain PresenceStore#update(Presence)} should grow logarithmically with
+ * number of resources.
+ */
+public class PresenceStoreBenchmark {
+
+	private static final int UPDATES = 200000;
+
+	public static void main(String[] args) throws Exception {
+		final int[] resources = new int[] { 1, 10, 100, 1000, 10000 };
+		for (int round = 0; round < 3; round++) {
+			for (int r : resources) {
+				run(r);
+			}
+		}
+	}
+
+	private static void run(int resources) throws Exception {
+		Presence[] presences = new Presence[Math.min(UPDATES, resources * 8)];
+		for (int i = 0; i < presences.length; i++) {
+			Presence p = Presence.create();
+			p.setFrom(JID.jidInstance("bot@example.com/r" + (i % resources)));
+			p.setPriority((i * 7) % 50);
+			if (i % 5 == 0)
+				p.setType(StanzaType.unavailable);
+			// cached by Presence
+			p.getPriority();
+			presences[i] = p;
+		}
+
+		PresenceStore store = new MockPresenceStore();
+		int available = 0;
+		long start = System.nanoTime();
+		for (int i = 0; i < UPDATES; i++) {
+			Presence p = presences[i % presences.length];
+			store.update(p);
+			if (store.isAvailable(p.getFrom().getBareJid()))
+				++available;
+		}
+		long time = System.nanoTime() - start;
+		System.out.println(resources + " resources: " + time / UPDATES + " ns/update (" + available + ")");
+	}
+
+}
@@ -0,0 +1,107 @@
+/*
+ * Tigase XMPP Client Library
+ * Copyright (C) 2006-2012 "Bartosz Małkowski" <bartosz.malkowski@tigase.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.jaxmpp.core.client.xmpp.modules.presence;
+
+import junit.framework.TestCase;
+import tigase.jaxmpp.core.client.BareJID;
+import tigase.jaxmpp.core.client.JID;
+import tigase.jaxmpp.core.client.MockPresenceStore;
+import tigase.jaxmpp.core.client.xmpp.stanzas.Presence;
+import tigase.jaxmpp.core.client.xmpp.stanzas.StanzaType;
+
+public class PresenceStoreTest extends TestCase {
+
+	private static Presence presence(String from, Integer priority, StanzaType type) throws Exception {
+		Presence p = Presence.create();
+		p.setFrom(JID.jidInstance(from));
+		if (priority != null)
+			p.setPriority(priority);
+		if (type != null)
+			p.setType(type);
+		return p;
+	}
+
+	private final BareJID jid = BareJID.bareJIDInstance("a@b.c");
+
+	private PresenceStore store;
+
+	@Override
+	protected void setUp() throws Exception {
+		store = new MockPresenceStore();
+	}
+
+	public void testAvailableBeatsUnavailable() throws Exception {
+		Presence off = presence("a@b.c/1", 10, StanzaType.unavailable);
+		store.update(off);
+		assertSame(off, store.getBestPresence(jid));
+		assertFalse(store.isAvailable(jid));
+
+		Presence on = presence("a@b.c/2", 1, null);
+		store.update(on);
+		assertSame(on, store.getBestPresence(jid));
+		assertTrue(store.isAvailable(jid));
+	}
+
+	public void testClear() throws Exception {
+		store.update(presence("a@b.c/1", 1, null));
+		store.clear(false);
+		assertNull(store.getBestPresence(jid));
+		assertFalse(store.isAvailable(jid));
+	}
+
+	public void testHighestPriority() throws Exception {
+		Presence p1 = presence("a@b.c/1", 1, null);
+		Presence p5 = presence("a@b.c/5", 5, null);
+		Presence p3 = presence("a@b.c/3", 3, null);
+		store.update(p1);
+		store.update(p5);
+		store.update(p3);
+		assertSame(p5, store.getBestPresence(jid));
+
+		// resource with highest priority lowers it
+		Presence p5low = presence("a@b.c/5", 0, null);
+		store.update(p5low);
+		assertSame(p3, store.getBestPresence(jid));
+
+		// the most recent one wins when priorities are equal
+		Presence p1high = presence("a@b.c/1", 3, null);
+		store.update(p1high);
+		assertSame(p1high, store.getBestPresence(jid));
+	}
+
+	public void testResourceGoesOffline() throws Exception {
+		store.update(presence("a@b.c/1", 5, null));
+		Presence p2 = presence("a@b.c/2", 1, null);
+		store.update(p2);
+		store.update(presence("a@b.c/1", null, StanzaType.unavailable));
+		assertSame(p2, store.getBestPresence(jid));
+		assertTrue(store.isAvailable(jid));
+
+		Presence off = presence("a@b.c/2", null, StanzaType.unavailable);
+		store.update(off);
+		assertFalse(store.isAvailable(jid));
+		assertEquals(StanzaType.unavailable, store.getBestPresence(jid).getType());
+
+		// the same resource twice doesn't count twice
+		store.update(presence("a@b.c/1", 1, null));
+		store.update(presence("a@b.c/1", 2, null));
+		store.update(presence("a@b.c/1", null, StanzaType.unavailable));
+		assertFalse(store.isAvailable(jid));
+	}
+
+}
@@ -0,0 +1,181 @@
+/*
+ * Tigase XMPP Client Library
+ * Copyright (C) 2006-2012 "Bartosz Małkowski" <bartosz.malkowski@tigase.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.jaxmpp.core.client.xmpp.modules.streammng;
+
+import junit.framework.TestCase;
+import tigase.jaxmpp.core.client.Connector;
+import tigase.jaxmpp.core.client.Connector.ConnectorEvent;
+import tigase.jaxmpp.core.client.JID;
+import tigase.jaxmpp.core.client.MockSessionObject;
+import tigase.jaxmpp.core.client.MockWriter;
+import tigase.jaxmpp.core.client.exceptions.JaxmppException;
+import tigase.jaxmpp.core.client.observer.DefaultObservable;
+import tigase.jaxmpp.core.client.observer.Listener;
+import tigase.jaxmpp.core.client.xml.DefaultElement;
+import tigase.jaxmpp.core.client.xml.Element;
+import tigase.jaxmpp.core.client.xmpp.modules.ResourceBinderModule;
+import tigase.jaxmpp.core.client.xmpp.modules.streammng.StreamManagementModule.StreamManagementEvent;
+
+public class StreamManagementModuleTest extends TestCase {
+
+	private StreamManagementModule module;
+
+	private DefaultObservable observable;
+
+	private MockSessionObject sessionObject;
+
+	private MockWriter writer;
+
+	private Element nonza(String name, String h) throws Exception {
+		Element e = new DefaultElement(name, null, StreamManagementModule.XMLNS);
+		if (h != null)
+			e.setAttribute("h", h);
+		return e;
+	}
+
+	/**
+	 * Simulates connector: element is counted in connector thread and then
+	 * processed by module.
+	 */
+	private void receive(Element element) throws Exception {
+		ConnectorEvent event = new ConnectorEvent(Connector.StanzaReceived, sessionObject);
+		event.setStanza(element);
+		observable.fireEvent(event);
+		if (StreamManagementModule.XMLNS.equals(element.getXMLNS()))
+			module.process(element);
+	}
+
+	private void send(Element element) throws Exception {
+		ConnectorEvent event = new ConnectorEvent(Connector.StanzaSending, sessionObject);
+		event.setStanza(element);
+		observable.fireEvent(event);
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		observable = new DefaultObservable();
+		sessionObject = new MockSessionObject();
+		writer = new MockWriter(sessionObject);
+		module = new StreamManagementModule(observable, sessionObject, writer);
+
+		Element features = new DefaultElement("stream:features");
+		features.addChild(new DefaultElement("sm", null, StreamManagementModule.XMLNS));
+		sessionObject.setStreamFeatures(features);
+		sessionObject.setProperty(ResourceBinderModule.BINDED_RESOURCE_JID, JID.jidInstance("a@b.c/d"));
+	}
+
+	public void testAvailability() throws Exception {
+		assertTrue(StreamManagementModule.isStreamManagementAvailable(sessionObject));
+		sessionObject.setUserProperty(StreamManagementModule.STREAM_MANAGEMENT_DISABLED_KEY, Boolean.TRUE);
+		assertFalse(StreamManagementModule.isStreamManagementAvailable(sessionObject));
+		sessionObject.setUserProperty(StreamManagementModule.STREAM_MANAGEMENT_DISABLED_KEY, null);
+		sessionObject.setStreamFeatures(new DefaultElement("stream:features"));
+		assertFalse(StreamManagementModule.isStreamManagementAvailable(sessionObject));
+	}
+
+	public void testEnableAndAck() throws Exception {
+		module.enable();
+		Element enable = writer.poll();
+		assertEquals("enable", enable.getName());
+		assertEquals("true", enable.getAttribute("resume"));
+
+		Element enabled = nonza("enabled", null);
+		enabled.setAttribute("id", "some-id");
+		enabled.setAttribute("resume", "true");
+		receive(enabled);
+		assertTrue(module.isEnabled());
+		assertTrue(module.isResumptionAvailable());
+
+		for (int i = 0; i < 6; i++)
+			send(new DefaultElement("message"));
+		// nonzas are not counted
+		send(nonza("r", null));
+		assertEquals(6, module.getUnacknowledgedCount());
+		Element r = writer.poll();
+		assertEquals("r", r.getName());
+		assertNull(writer.poll());
+
+		receive(nonza("a", "4"));
+		assertEquals(2, module.getUnacknowledgedCount());
+
+		receive(new DefaultElement("presence"));
+		receive(new DefaultElement("iq"));
+		receive(nonza("r", null));
+		assertEquals("2", writer.poll().getAttribute("h"));
+	}
+
+	public void testFailedResumption() throws Exception {
+		module.enable();
+		writer.poll();
+		Element enabled = nonza("enabled", null);
+		enabled.setAttribute("id", "some-id");
+		enabled.setAttribute("resume", "1");
+		receive(enabled);
+		send(new DefaultElement("message"));
+
+		module.resume();
+		writer.poll();
+		receive(nonza("failed", null));
+		assertFalse(module.isResumptionAvailable());
+		assertEquals(0, module.getUnacknowledgedCount());
+	}
+
+	public void testResume() throws Exception {
+		final JID[] resumed = new JID[1];
+		module.addListener(StreamManagementModule.StreamResumed, new Listener<StreamManagementEvent>() {
+
+			@Override
+			public void handleEvent(StreamManagementEvent be) throws JaxmppException {
+				resumed[0] = be.getJid();
+			}
+		});
+
+		module.enable();
+		writer.poll();
+		Element enabled = nonza("enabled", null);
+		enabled.setAttribute("id", "some-id");
+		enabled.setAttribute("resume", "true");
+		receive(enabled);
+
+		Element m1 = new DefaultElement("message", "1", null);
+		Element m2 = new DefaultElement("message", "2", null);
+		Element m3 = new DefaultElement("message", "3", null);
+		send(m1);
+		send(m2);
+		send(m3);
+		receive(new DefaultElement("message"));
+
+		// connection is broken
+		sessionObject.clearProperties();
+
+		module.resume();
+		Element resume = writer.poll();
+		assertEquals("resume", resume.getName());
+		assertEquals("some-id", resume.getAttribute("previd"));
+		assertEquals("1", resume.getAttribute("h"));
+
+		receive(nonza("resumed", "1"));
+		assertEquals(JID.jidInstance("a@b.c/d"), resumed[0]);
+		assertEquals(JID.jidInstance("a@b.c/d"), sessionObject.getProperty(ResourceBinderModule.BINDED_RESOURCE_JID));
+		assertSame(m2, writer.poll());
+		assertSame(m3, writer.poll());
+		assertNull(writer.poll());
+		assertTrue(module.isEnabled());
+	}
+
+}
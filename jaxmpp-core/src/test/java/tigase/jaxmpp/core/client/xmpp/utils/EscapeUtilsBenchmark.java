@@ -0,0 +1,119 @@
+/*
+ * Tigase XMPP Client Library
+ * Copyright (C) 2006-2012 "Bartosz Małkowski" <bartosz.malkowski@tigase.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.jaxmpp.core.client.xmpp.utils;
+
+/**
+ * Compares single-pass {@linkplain EscapeUtils} with chain of
+ * <code>String.replace()</code> calls used before. Payloads are long chat
+ * message body, Base64 encoded avatar (typical for vCard and IBB) and short
+ * attribute values.
+ */
+public class EscapeUtilsBenchmark {
+
+	private static final String[][] ENTITIES = { { "&", "&amp;" }, { "<", "&lt;" }, { ">", "&gt;" }, { "\"", "&quot;" },
+			{ "'", "&apos;" }, };
+
+	private static final int ITERATIONS = 100000;
+
+	private static volatile int sink;
+
+	private static String base64() {
+		final String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 8 * 1024; i++) {
+			sb.append(alphabet.charAt((i * 31 + 7) % alphabet.length()));
+		}
+		return sb.toString();
+	}
+
+	private static String chatBody() {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 40; i++) {
+			sb.append("Hi! Did you see \"Romeo & Juliet\" yesterday? I think it's <b>great</b>, really. ");
+			sb.append("Zażółć gęślą jaźń, meet me at 7pm. ");
+		}
+		return sb.toString();
+	}
+
+	private static String replaceEscape(String str) {
+		for (int i = 0; i < ENTITIES.length; i++) {
+			str = str.replace(ENTITIES[i][0], ENTITIES[i][1]);
+		}
+		return str;
+	}
+
+	private static String replaceUnescape(String str) {
+		for (int i = ENTITIES.length - 1; i >= 0; i--) {
+			str = str.replace(ENTITIES[i][1], ENTITIES[i][0]);
+		}
+		return str;
+	}
+
+	public static void main(String[] args) throws Exception {
+		String[] payloads = new String[] { chatBody(), base64(), "romeo@example.net/orchard", "Friends & Family" };
+		String[] names = new String[] { "chat-body", "base64-8k", "jid-attribute", "group-attribute" };
+		for (int round = 0; round < 3; round++) {
+			for (int i = 0; i < payloads.length; i++) {
+				run(names[i], payloads[i]);
+			}
+		}
+	}
+
+	private static void run(String name, String payload) throws Exception {
+		final int iterations = payload.length() > 1000 ? ITERATIONS / 10 : ITERATIONS * 10;
+		final String escaped = EscapeUtils.escape(payload);
+		StringBuilder out = new StringBuilder(escaped.length());
+
+		long start = System.nanoTime();
+		for (int i = 0; i < iterations; i++) {
+			sink += replaceEscape(payload).length();
+		}
+		long oldEscape = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		for (int i = 0; i < iterations; i++) {
+			sink += EscapeUtils.escape(payload).length();
+		}
+		long newEscape = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		for (int i = 0; i < iterations; i++) {
+			out.setLength(0);
+			EscapeUtils.escape(payload, out);
+			sink += out.length();
+		}
+		long appendEscape = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		for (int i = 0; i < iterations; i++) {
+			sink += replaceUnescape(escaped).length();
+		}
+		long oldUnescape = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		for (int i = 0; i < iterations; i++) {
+			sink += EscapeUtils.unescape(escaped).length();
+		}
+		long newUnescape = System.nanoTime() - start;
+
+		System.out.println(name + ": escape replace " + oldEscape / iterations + " ns, single-pass " + newEscape
+				/ iterations + " ns, to Appendable " + appendEscape / iterations + " ns; unescape replace " + oldUnescape
+				/ iterations + " ns, single-pass " + newUnescape / iterations + " ns");
+	}
+
+}
@@ -18,6 +18,8 @@
 package tigase.jaxmpp.core.client.xmpp.utils;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 
 import org.junit.Test;
 
@@ -30,6 +32,18 @@ public class EscapeUtilsTest {
 		assertEquals("&lt;a b=&quot;x&apos;x&quot;&gt;", EscapeUtils.escape("<a b=\"x'x\">"));
 	}
 
+	@Test
+	public void testEscapeToAppendable() throws Exception {
+		StringBuilder sb = new StringBuilder();
+		EscapeUtils.escape("<a b=\"x'x\">", sb);
+		assertEquals("&lt;a b=&quot;x&apos;x&quot;&gt;", sb.toString());
+
+		sb.setLength(0);
+		EscapeUtils.escape("plain text", sb);
+		EscapeUtils.escape(null, sb);
+		assertEquals("plain text", sb.toString());
+	}
+
 	@Test
 	public void testUnescape() {
 		assertEquals("<a>", EscapeUtils.unescape("&lt;a&gt;"));
@@ -37,4 +51,42 @@ public class EscapeUtilsTest {
 		assertEquals("<a>\"&<a>", EscapeUtils.unescape("&lt;a&gt;&quot;&amp;&lt;a&gt;"));
 	}
 
-}
\ No newline at end of file
+	@Test
+	public void testReturnsSameWhenNothingToChange() {
+		final String plain = "Nothing special here, just text 123 \u017C\u00F3\u0142w";
+		assertSame(plain, EscapeUtils.escape(plain));
+		assertSame(plain, EscapeUtils.unescape(plain));
+		assertSame("", EscapeUtils.escape(""));
+		assertNull(EscapeUtils.escape(null));
+		assertNull(EscapeUtils.unescape(null));
+	}
+
+	@Test
+	public void testUnescapeIsSingleLevel() {
+		assertEquals("&lt;", EscapeUtils.unescape("&amp;lt;"));
+		assertEquals("&amp;", EscapeUtils.unescape("&amp;amp;"));
+	}
+
+	@Test
+	public void testUnescapeLeavesUnknownEntities() {
+		assertEquals("a & b", EscapeUtils.unescape("a & b"));
+		assertEquals("&nbsp;<&", EscapeUtils.unescape("&nbsp;&lt;&"));
+		assertEquals("x&am", EscapeUtils.unescape("x&am"));
+		assertEquals("'\"", EscapeUtils.unescape("&apos;&quot;"));
+	}
+
+	@Test
+	public void testUnescapeToAppendable() throws Exception {
+		StringBuilder sb = new StringBuilder();
+		EscapeUtils.unescape("&lt;a b=&quot;x&apos;x&quot;&gt;", sb);
+		EscapeUtils.unescape(null, sb);
+		assertEquals("<a b=\"x'x\">", sb.toString());
+	}
+
+	@Test
+	public void testRoundTrip() {
+		final String s = "if (a < b && c > d) return \"'\"; &amp; stays";
+		assertEquals(s, EscapeUtils.unescape(EscapeUtils.escape(s)));
+	}
+
+}
@@ -14,6 +14,7 @@ public class GWTPresenceStore extends PresenceStore {
 		presencesMapByBareJid = new HashMap<BareJID, Map<String, Presence>>();
 		presenceByJid = new HashMap<JID, Presence>();
 		bestPresence = new HashMap<BareJID, Presence>();
+		rankingByBareJid = new HashMap<BareJID, Ranking>();
 	}
 
 	@Override
@@ -298,7 +298,7 @@ public class Jaxmpp extends JaxmppCore {
 			if (s != null) {
 				JSONValue x = JSONParser.parseStrict(s);
 				((GwtSessionObject) sessionObject).restore(x);
-				sessionObject.setProperty(Connector.CONNECTOR_STAGE_KEY, Connector.State.connected);
+				sessionObject.setProperty(Connector.CONNECTOR_STAGE, Connector.State.connected);
 
 				Scheduler.get().scheduleDeferred(new ScheduledCommand() {
 
@@ -144,7 +144,7 @@ public class WebSocketConnector implements Connector {
 
         @Override
         public State getState() {
-                return this.sessionObject.getProperty(CONNECTOR_STAGE_KEY);
+                return this.sessionObject.getProperty(CONNECTOR_STAGE);
         }
 
         @Override
@@ -255,8 +255,8 @@ public class WebSocketConnector implements Connector {
         }
 
         protected void setStage(State state) throws JaxmppException {
-                State s = this.sessionObject.getProperty(CONNECTOR_STAGE_KEY);
-                this.sessionObject.setProperty(CONNECTOR_STAGE_KEY, state);
+                State s = this.sessionObject.getProperty(CONNECTOR_STAGE);
+                this.sessionObject.setProperty(CONNECTOR_STAGE, state);
                 if (s != state) {
                         log.fine("Connector state changed: " + s + "->" + state);
                         ConnectorEvent e = new ConnectorEvent(StateChanged, sessionObject);
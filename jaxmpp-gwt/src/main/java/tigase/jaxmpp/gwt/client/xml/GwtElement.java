@@ -17,6 +17,7 @@
  */
 package tigase.jaxmpp.gwt.client.xml;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -267,4 +268,9 @@ public class GwtElement implements Element {
 	public void setXMLNS(String xmlns) throws XMLException {
 		this.xmlElement.setAttribute("xmlns", xmlns);
 	}
-}
+
+	@Override
+	public void writeTo(Appendable out) throws XMLException, IOException {
+		out.append(getAsString());
+	}
+}
\ No newline at end of file
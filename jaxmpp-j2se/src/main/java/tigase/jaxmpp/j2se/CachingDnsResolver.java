@@ -0,0 +1,348 @@
+/*
+ * Tigase XMPP Client Library
+ * Copyright (C) 2006-2012 "Bartosz Małkowski" <bartosz.malkowski@tigase.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.jaxmpp.j2se;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.xbill.DNS.Lookup;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.SRVRecord;
+import org.xbill.DNS.Type;
+
+import tigase.jaxmpp.j2se.connectors.socket.SocketConnector.DnsResolver;
+import tigase.jaxmpp.j2se.connectors.socket.SocketConnector.Entry;
+
+/**
+ * Resolves <code>_xmpp-client._tcp</code> and <code>_xmpps-client._tcp</code>
+ * (direct TLS) SRV records and caches results as
+ * long as records TTL allows. Domains without SRV records and failed lookups
+ * are cached too (for shorter time), so many connections to the same domain
+ * made at once cause only one DNS query.
+ * <p>
+ * Each call returns all targets ordered by priority, and by weighted random
+ * selection within the same priority, as described in <a
+ * href="http://tools.ietf.org/html/rfc2782">RFC 2782</a>.
+ * </p>
+ */
+public class CachingDnsResolver implements DnsResolver {
+
+	private static class CachedAnswer {
+
+		private final List<Entry> entries;
+
+		private final long expireTime;
+
+		CachedAnswer(List<Entry> entries, long expireTime) {
+			this.entries = entries;
+			this.expireTime = expireTime;
+		}
+	}
+
+	/**
+	 * Cached answers of single SRV service.
+	 */
+	private class ServiceCache {
+
+		private final ConcurrentHashMap<String, CachedAnswer> answers = new ConcurrentHashMap<String, CachedAnswer>();
+
+		private final boolean directTLS;
+
+		private final ConcurrentHashMap<String, FutureTask<CachedAnswer>> inProgress = new ConcurrentHashMap<String, FutureTask<CachedAnswer>>();
+
+		private final String service;
+
+		ServiceCache(boolean directTLS) {
+			this.directTLS = directTLS;
+			this.service = directTLS ? XMPPS_CLIENT_SERVICE : XMPP_CLIENT_SERVICE;
+		}
+
+		private CachedAnswer lookup(final String hostname) {
+			final long now = currentTimeMillis();
+			final List<Entry> entries = new ArrayList<Entry>();
+			long ttl = MAX_TTL;
+			try {
+				Record[] records = lookupSrv(service + "." + hostname);
+				if (records != null)
+					for (Record record : records) {
+						if (!(record instanceof SRVRecord))
+							continue;
+						SRVRecord srv = (SRVRecord) record;
+						String name = srv.getTarget().toString();
+						if (name.endsWith("."))
+							name = name.substring(0, name.length() - 1);
+						ttl = Math.min(ttl, srv.getTTL() * 1000);
+						// "." means that service is not available at this domain
+						if (name.length() == 0)
+							continue;
+						entries.add(new Entry(name, srv.getPort(), srv.getPriority(), srv.getWeight(), directTLS));
+					}
+				if (entries.isEmpty()) {
+					ttl = negativeTtl;
+				}
+			} catch (Exception e) {
+				log.log(Level.FINE, "Can't resolve SRV record of domain " + hostname, e);
+				entries.clear();
+				ttl = failureTtl;
+			}
+			if (entries.isEmpty() && !directTLS)
+				entries.add(new Entry(hostname, DEFAULT_PORT));
+			if (log.isLoggable(Level.FINEST))
+				log.finest("Resolved " + hostname + " to " + entries + " for " + ttl + " ms");
+			return new CachedAnswer(Collections.unmodifiableList(entries), now + Math.max(ttl, 1000));
+		}
+
+		/**
+		 * Makes lookup, or waits for result of lookup of the same domain started
+		 * by other thread.
+		 */
+		private CachedAnswer resolveOnce(final String key) {
+			FutureTask<CachedAnswer> task = new FutureTask<CachedAnswer>(new Callable<CachedAnswer>() {
+
+				@Override
+				public CachedAnswer call() throws Exception {
+					CachedAnswer a = lookup(key);
+					answers.put(key, a);
+					return a;
+				}
+			});
+			FutureTask<CachedAnswer> running = inProgress.putIfAbsent(key, task);
+			if (running == null) {
+				try {
+					task.run();
+				} finally {
+					inProgress.remove(key, task);
+				}
+				running = task;
+			}
+			boolean interrupted = false;
+			try {
+				while (true) {
+					try {
+						return running.get();
+					} catch (InterruptedException e) {
+						interrupted = true;
+					}
+				}
+			} catch (ExecutionException e) {
+				// lookup() doesn't throw exceptions
+				throw new RuntimeException(e.getCause());
+			} finally {
+				if (interrupted)
+					Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	public static final int DEFAULT_PORT = 5222;
+
+	/**
+	 * Name of SRV service of XMPP servers accepting STARTTLS connections.
+	 */
+	public static final String XMPP_CLIENT_SERVICE = "_xmpp-client._tcp";
+
+	/**
+	 * Name of SRV service of XMPP servers accepting direct TLS connections (<a
+	 * href="http://xmpp.org/extensions/xep-0368.html">XEP-0368</a>).
+	 */
+	public static final String XMPPS_CLIENT_SERVICE = "_xmpps-client._tcp";
+
+	/**
+	 * Default time (in milliseconds) of caching result of failed lookup.
+	 */
+	public static final long DEFAULT_FAILURE_TTL = 5 * 1000;
+
+	/**
+	 * Default time (in milliseconds) of caching information that domain has
+	 * no SRV records.
+	 */
+	public static final long DEFAULT_NEGATIVE_TTL = 60 * 1000;
+
+	private static final Logger log = Logger.getLogger(CachingDnsResolver.class.getName());
+
+	private static final long MAX_TTL = 24 * 60 * 60 * 1000;
+
+	private static final Comparator<Entry> priorityComparator = new Comparator<Entry>() {
+
+		@Override
+		public int compare(Entry o1, Entry o2) {
+			return o1.getPriority() < o2.getPriority() ? -1 : (o1.getPriority() == o2.getPriority() ? 0 : 1);
+		}
+	};
+
+	/**
+	 * Orders SRV targets as described in RFC 2782: by priority, and within
+	 * the same priority randomly with probability proportional to weight.
+	 * 
+	 * @param entries
+	 *            SRV targets
+	 * @param random
+	 *            source of randomness
+	 * @return new ordered list
+	 */
+	public static List<Entry> order(List<Entry> entries, Random random) {
+		final ArrayList<Entry> sorted = new ArrayList<Entry>(entries);
+		Collections.sort(sorted, priorityComparator);
+		final ArrayList<Entry> result = new ArrayList<Entry>(sorted.size());
+		int i = 0;
+		while (i < sorted.size()) {
+			int j = i;
+			while (j < sorted.size() && sorted.get(j).getPriority() == sorted.get(i).getPriority())
+				++j;
+			// zero weight entries are placed first, so they have small chance
+			// of being selected
+			final ArrayList<Entry> group = new ArrayList<Entry>(j - i);
+			for (int k = i; k < j; k++) {
+				if (sorted.get(k).getWeight() == 0)
+					group.add(0, sorted.get(k));
+				else
+					group.add(sorted.get(k));
+			}
+			while (!group.isEmpty()) {
+				int sum = 0;
+				for (Entry e : group)
+					sum += e.getWeight();
+				final int r = sum == 0 ? 0 : random.nextInt(sum + 1);
+				int running = 0;
+				for (int k = 0; k < group.size(); k++) {
+					running += group.get(k).getWeight();
+					if (running >= r) {
+						result.add(group.remove(k));
+						break;
+					}
+				}
+			}
+			i = j;
+		}
+		return result;
+	}
+
+	private final ServiceCache cache;
+
+	private final ServiceCache directTLSCache;
+
+	private final long failureTtl;
+
+	private final long negativeTtl;
+
+	private final Random random = new Random();
+
+	public CachingDnsResolver() {
+		this(DEFAULT_NEGATIVE_TTL, DEFAULT_FAILURE_TTL);
+	}
+
+	/**
+	 * @param negativeTtl
+	 *            time (in milliseconds) of caching information that domain
+	 *            has no SRV records
+	 * @param failureTtl
+	 *            time (in milliseconds) of caching result of failed lookup
+	 */
+	public CachingDnsResolver(long negativeTtl, long failureTtl) {
+		this(false, negativeTtl, failureTtl);
+	}
+
+	/**
+	 * @param directTLS
+	 *            <code>true</code> if {@linkplain #resolve(String)} should
+	 *            resolve <code>_xmpps-client._tcp</code> records, as
+	 *            {@linkplain #resolveDirectTLS(String)} does.
+	 * @param negativeTtl
+	 *            time (in milliseconds) of caching information that domain
+	 *            has no SRV records
+	 * @param failureTtl
+	 *            time (in milliseconds) of caching result of failed lookup
+	 */
+	public CachingDnsResolver(boolean directTLS, long negativeTtl, long failureTtl) {
+		this.negativeTtl = negativeTtl;
+		this.failureTtl = failureTtl;
+		this.directTLSCache = new ServiceCache(true);
+		this.cache = directTLS ? directTLSCache : new ServiceCache(false);
+	}
+
+	/**
+	 * Removes all cached results.
+	 */
+	public void clear() {
+		cache.answers.clear();
+		directTLSCache.answers.clear();
+	}
+
+	protected long currentTimeMillis() {
+		return System.currentTimeMillis();
+	}
+
+	/**
+	 * Makes SRV query.
+	 * 
+	 * @param name
+	 *            name of SRV record
+	 * @return found records or <code>null</code> if there is no records
+	 * @throws IOException
+	 *             if lookup failed and may be retried later
+	 */
+	protected Record[] lookupSrv(String name) throws IOException {
+		Lookup lookup = new Lookup(name, Type.SRV);
+		Record[] records = lookup.run();
+		switch (lookup.getResult()) {
+		case Lookup.SUCCESSFUL:
+			return records;
+		case Lookup.HOST_NOT_FOUND:
+		case Lookup.TYPE_NOT_FOUND:
+			return null;
+		default:
+			throw new IOException(lookup.getErrorString());
+		}
+	}
+
+	@Override
+	public List<Entry> resolve(final String hostname) {
+		return resolve(cache, hostname);
+	}
+
+	private List<Entry> resolve(final ServiceCache serviceCache, final String hostname) {
+		final String key = hostname.toLowerCase();
+		CachedAnswer answer = serviceCache.answers.get(key);
+		if (answer == null || answer.expireTime <= currentTimeMillis()) {
+			answer = serviceCache.resolveOnce(key);
+		}
+		synchronized (random) {
+			return order(answer.entries, random);
+		}
+	}
+
+	/**
+	 * {@inheritDoc} Results are cached separately from results of
+	 * {@linkplain #resolve(String)}.
+	 */
+	@Override
+	public List<Entry> resolveDirectTLS(final String hostname) {
+		return resolve(directTLSCache, hostname);
+	}
+
+}
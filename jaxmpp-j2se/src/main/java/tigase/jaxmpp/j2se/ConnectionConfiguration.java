@@ -21,6 +21,7 @@ import tigase.jaxmpp.core.client.SessionObject;
 import tigase.jaxmpp.core.client.connector.AbstractBoshConnector;
 import tigase.jaxmpp.core.client.xmpp.modules.auth.AuthModule;
 import tigase.jaxmpp.j2se.connectors.socket.SocketConnector;
+import tigase.jaxmpp.j2se.connectors.socket.SocketXmppSessionLogic;
 
 /**
  * Connection configuration object.
@@ -29,6 +30,11 @@ public class ConnectionConfiguration extends tigase.jaxmpp.core.client.Connectio
 
 	public static enum ConnectionType {
 		bosh,
+		/**
+		 * Non-blocking socket connection. Many connections share a few selector
+		 * threads.
+		 */
+		nio,
 		socket
 	}
 
@@ -67,6 +73,18 @@ public class ConnectionConfiguration extends tigase.jaxmpp.core.client.Connectio
 		sessionObject.setUserProperty(SocketConnector.TLS_DISABLED_KEY, disabled);
 	}
 
+	/**
+	 * Enable or disable fast login. In fast login mode requests are sent
+	 * before stream features are received, if features of server are known
+	 * from previous login.
+	 * 
+	 * @param fastLogin
+	 *            <code>true</code> to enable fast login
+	 */
+	public void setFastLogin(boolean fastLogin) {
+		sessionObject.setUserProperty(SocketXmppSessionLogic.FAST_LOGIN_KEY, fastLogin);
+	}
+
 	/**
 	 * Set server port. Default is 5222
 	 * 
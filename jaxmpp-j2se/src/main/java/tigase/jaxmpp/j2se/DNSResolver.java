@@ -17,67 +17,36 @@
  */
 package tigase.jaxmpp.j2se;
 
-import java.util.ArrayList;
-import java.util.Hashtable;
 import java.util.List;
 
-import javax.naming.NamingException;
-import javax.naming.directory.Attribute;
-import javax.naming.directory.Attributes;
-import javax.naming.directory.DirContext;
-import javax.naming.directory.InitialDirContext;
-
 import tigase.jaxmpp.j2se.connectors.socket.SocketConnector.Entry;
 
+/**
+ * Default resolver of XMPP server addresses. Results are cached by shared
+ * {@linkplain CachingDnsResolver}.
+ */
 public class DNSResolver {
 
-	public static List<Entry> resolve(final String hostname) throws NamingException {
+	private static final CachingDnsResolver cache = new CachingDnsResolver();
+
+	public static List<Entry> resolve(final String hostname) {
 		if("sankuai.net".equals(hostname)){
 			return java.util.Arrays.asList(new Entry("192.168.2.174", 5222));
 		}
 		if("meituan.com".equals(hostname)){
 			return java.util.Arrays.asList(new Entry("xm.sankuai.com", 5222));
 		}
-		Hashtable<String, String> env = new Hashtable<String, String>(5);
-		env.put("java.naming.factory.initial", "com.sun.jndi.dns.DnsContextFactory");
-		DirContext ctx = new InitialDirContext(env);
-		List<Entry> xresult = new ArrayList<Entry>();
-		try {
-			Attributes attrs = ctx.getAttributes("_xmpp-client._tcp." + hostname, new String[] { "SRV" });
-			Attribute att = attrs.get("SRV");
-
-			if (att != null)
-				for (int i = 0; i < att.size(); i++) {
-					String[] dns_resp = att.get(i).toString().split(" ");
-					Integer port = 5222;
-					String name = dns_resp[3];
-					try {
-						port = Integer.valueOf(dns_resp[2]);
-					} catch (Exception e) {
-						continue;
-					}
-
-					if (name == null)
-						continue;
-
-					if (name.endsWith(".")) {
-						name = name.substring(0, name.length() - 1);
-					}
-
-					Entry e = new Entry(name, port);
-					xresult.add(e);
-				}
-			else {
-				Entry e = new Entry(hostname, 5222);
-				xresult.add(e);
-			}
-		} catch (Exception caught) {
-			Entry e = new Entry(hostname, 5222);
-			xresult.add(e);
-
-		}
+		return cache.resolve(hostname);
+	}
 
-		return xresult;
+	/**
+	 * Resolves addresses of servers accepting direct TLS connections.
+	 * 
+	 * @return list of addresses, empty if domain doesn't publish
+	 *         <code>_xmpps-client._tcp</code> records
+	 */
+	public static List<Entry> resolveDirectTLS(final String hostname) {
+		return cache.resolveDirectTLS(hostname);
 	}
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,197 @@
+/*
+ * Tigase XMPP Client Library
+ * Copyright (C) 2006-2012 "Bartosz Małkowski" <bartosz.malkowski@tigase.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.jaxmpp.j2se;
+
+import java.lang.ref.WeakReference;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import tigase.jaxmpp.j2se.scheduler.ScheduledTask;
+import tigase.jaxmpp.j2se.scheduler.Scheduler;
+
+/**
+ * Runs handlers of received stanzas directly in thread which reads
+ * connection. Handlers are grouped by kinds of stanzas. If handlers of some
+ * kind run longer than time budget, the kind is marked as slow and next
+ * handlers of this kind should be passed to executor. Single overruns (caused
+ * for example by garbage collection) are forgiven: kind is marked as slow
+ * when number of overruns exceeds number of handlers finished in budget by
+ * {@value #OVERRUNS_LIMIT}.
+ * <p>
+ * Watchdog checks periodically how long handler is executed, so kind is
+ * marked as slow (and warning is logged) if handler is blocked for ten times
+ * longer than budget.
+ * </p>
+ */
+public class InlineDispatcher {
+
+	private static class Watchdog implements Runnable {
+
+		private final WeakReference<InlineDispatcher> dispatcher;
+
+		private ScheduledTask scheduledTask;
+
+		private Watchdog(InlineDispatcher dispatcher) {
+			this.dispatcher = new WeakReference<InlineDispatcher>(dispatcher);
+		}
+
+		@Override
+		public void run() {
+			InlineDispatcher d = dispatcher.get();
+			if (d == null) {
+				scheduledTask.cancel();
+				return;
+			}
+			d.check();
+		}
+	}
+
+	public static final long DEFAULT_BUDGET = 5;
+
+	public static final int OVERRUNS_LIMIT = 3;
+
+	private static final Logger log = Logger.getLogger(InlineDispatcher.class.getName());
+
+	private final long budget;
+
+	private volatile Object currentKind;
+
+	private volatile long currentStart;
+
+	private volatile Thread currentThread;
+
+	private final ConcurrentHashMap<Object, Integer> overruns = new ConcurrentHashMap<Object, Integer>();
+
+	private final Set<Object> slowKinds = Collections.newSetFromMap(new ConcurrentHashMap<Object, Boolean>());
+
+	private final Watchdog watchdog;
+
+	/**
+	 * @param budget
+	 *            maximal time of handler execution in milliseconds
+	 * @param scheduler
+	 *            scheduler of watchdog. If <code>null</code> then execution
+	 *            time is checked only when handler finishes.
+	 */
+	public InlineDispatcher(long budget, Scheduler scheduler) {
+		this.budget = TimeUnit.MILLISECONDS.toNanos(budget);
+		if (scheduler != null) {
+			long period = Math.max(budget, 10);
+			this.watchdog = new Watchdog(this);
+			this.watchdog.scheduledTask = scheduler.schedule(watchdog, period, period);
+		} else {
+			this.watchdog = null;
+		}
+	}
+
+	private void check() {
+		final Object kind = this.currentKind;
+		final long start = this.currentStart;
+		final Thread thread = this.currentThread;
+		if (kind != null && System.nanoTime() - start > budget * 10 && !slowKinds.contains(kind)) {
+			markSlow(kind);
+			if (log.isLoggable(Level.WARNING)) {
+				Exception e = new Exception("Stack trace of " + thread);
+				if (thread != null)
+					e.setStackTrace(thread.getStackTrace());
+				log.log(Level.WARNING, "Handler of " + kind + " blocks reader thread for "
+						+ TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms", e);
+			}
+		}
+	}
+
+	/**
+	 * Returns time budget in milliseconds.
+	 */
+	public long getBudget() {
+		return TimeUnit.NANOSECONDS.toMillis(budget);
+	}
+
+	/**
+	 * Returns kinds of stanzas which handlers exceeded budget.
+	 */
+	public Set<Object> getSlowKinds() {
+		return Collections.unmodifiableSet(slowKinds);
+	}
+
+	/**
+	 * Checks if handler of given kind exceeded budget.
+	 */
+	public boolean isSlow(Object kind) {
+		return slowKinds.contains(kind);
+	}
+
+	private void markSlow(Object kind) {
+		if (slowKinds.add(kind) && log.isLoggable(Level.FINE))
+			log.fine("Handlers of " + kind + " will be passed to executor");
+	}
+
+	/**
+	 * Executes handler in current thread and measures its execution time.
+	 * 
+	 * @param kind
+	 *            kind of stanza
+	 * @param handler
+	 *            handler to execute
+	 */
+	public void run(Object kind, Runnable handler) {
+		final long start = System.nanoTime();
+		this.currentThread = Thread.currentThread();
+		this.currentStart = start;
+		this.currentKind = kind;
+		try {
+			handler.run();
+		} finally {
+			this.currentKind = null;
+			updateOverruns(kind, System.nanoTime() - start > budget);
+		}
+	}
+
+	private void updateOverruns(Object kind, boolean overrun) {
+		if (overrun) {
+			Integer n = overruns.get(kind);
+			n = n == null ? 1 : n + 1;
+			if (n >= OVERRUNS_LIMIT) {
+				overruns.remove(kind);
+				markSlow(kind);
+			} else
+				overruns.put(kind, n);
+		} else if (!overruns.isEmpty()) {
+			Integer n = overruns.get(kind);
+			if (n != null) {
+				if (n <= 1)
+					overruns.remove(kind);
+				else
+					overruns.put(kind, n - 1);
+			}
+		}
+	}
+
+	/**
+	 * Stops watchdog.
+	 */
+	public void stop() {
+		if (watchdog != null)
+			watchdog.scheduledTask.cancel();
+	}
+
+}
@@ -14,6 +14,7 @@ public class J2SEPresenceStore extends PresenceStore {
 		presencesMapByBareJid = new ConcurrentHashMap<BareJID, Map<String, Presence>>();
 		presenceByJid = new ConcurrentHashMap<JID, Presence>();
 		bestPresence = new ConcurrentHashMap<BareJID, Presence>();
+		rankingByBareJid = new ConcurrentHashMap<BareJID, Ranking>();
 	}
 
 	@Override
@@ -3,11 +3,26 @@ package tigase.jaxmpp.j2se;
 import java.util.concurrent.ConcurrentHashMap;
 
 import tigase.jaxmpp.core.client.AbstractSessionObject;
+import tigase.jaxmpp.core.client.SessionObject;
+import tigase.jaxmpp.core.client.UserProperties;
+import tigase.jaxmpp.core.client.exceptions.JaxmppException;
 import tigase.jaxmpp.core.client.xmpp.modules.presence.PresenceStore;
 import tigase.jaxmpp.core.client.xmpp.modules.roster.RosterStore;
 
+/**
+ * Session object with {@linkplain ThreadSafeResponseManager}. Limits of
+ * requests waiting for response (see
+ * {@linkplain ThreadSafeResponseManager#MAX_IN_FLIGHT_REQUESTS_KEY} and
+ * {@linkplain ThreadSafeResponseManager#MAX_IN_FLIGHT_WAIT_KEY}) are passed to
+ * response manager when properties are changed, not on every request.
+ */
 public class J2SESessionObject extends AbstractSessionObject {
 
+	private static boolean isInFlightKey(String key) {
+		return ThreadSafeResponseManager.MAX_IN_FLIGHT_REQUESTS_KEY.equals(key)
+				|| ThreadSafeResponseManager.MAX_IN_FLIGHT_WAIT_KEY.equals(key);
+	}
+
 	public J2SESessionObject() {
 		presence = new J2SEPresenceStore();
 		properties = new ConcurrentHashMap<String, Object>();
@@ -16,4 +31,36 @@ public class J2SESessionObject extends AbstractSessionObject {
 		userProperties = new ConcurrentHashMap<String, Object>();
 	}
 
+	@Override
+	public void clearProperties() throws JaxmppException {
+		super.clearProperties();
+		updateInFlightLimits();
+	}
+
+	@Override
+	public SessionObject setProperty(String key, Object value) {
+		super.setProperty(key, value);
+		if (isInFlightKey(key))
+			updateInFlightLimits();
+		return this;
+	}
+
+	@Override
+	public UserProperties setUserProperty(String key, Object value) {
+		super.setUserProperty(key, value);
+		if (isInFlightKey(key))
+			updateInFlightLimits();
+		return this;
+	}
+
+	private void updateInFlightLimits() {
+		if (!(responseManager instanceof ThreadSafeResponseManager))
+			return;
+		Integer limit = getProperty(ThreadSafeResponseManager.MAX_IN_FLIGHT_REQUESTS_KEY);
+		Long wait = getProperty(ThreadSafeResponseManager.MAX_IN_FLIGHT_WAIT_KEY);
+		ThreadSafeResponseManager rm = (ThreadSafeResponseManager) responseManager;
+		rm.setMaxInFlightRequests(limit == null ? 0 : limit);
+		rm.setMaxInFlightWait(wait == null ? ThreadSafeResponseManager.DEFAULT_MAX_IN_FLIGHT_WAIT : wait);
+	}
+
 }
@@ -17,9 +17,10 @@
  */
 package tigase.jaxmpp.j2se;
 
-import java.util.Timer;
-import java.util.TimerTask;
+import java.lang.ref.WeakReference;
 import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 
 import tigase.jaxmpp.core.client.Connector;
@@ -27,8 +28,12 @@ import tigase.jaxmpp.core.client.Connector.ConnectorEvent;
 import tigase.jaxmpp.core.client.JaxmppCore;
 import tigase.jaxmpp.core.client.Processor;
 import tigase.jaxmpp.core.client.SessionObject;
+import tigase.jaxmpp.core.client.UIDGenerator;
+import tigase.jaxmpp.core.client.XMPPException;
+import tigase.jaxmpp.core.client.XMPPException.ErrorCondition;
 import tigase.jaxmpp.core.client.XmppSessionLogic.SessionListener;
 import tigase.jaxmpp.core.client.exceptions.JaxmppException;
+import tigase.jaxmpp.core.client.observer.Listener;
 import tigase.jaxmpp.core.client.observer.Observable;
 import tigase.jaxmpp.core.client.observer.ObservableFactory;
 import tigase.jaxmpp.core.client.observer.ObservableFactory.FactorySpi;
@@ -36,14 +41,22 @@ import tigase.jaxmpp.core.client.xml.Element;
 import tigase.jaxmpp.core.client.xml.XMLException;
 import tigase.jaxmpp.core.client.xmpp.modules.ResourceBinderModule;
 import tigase.jaxmpp.core.client.xmpp.modules.ResourceBinderModule.ResourceBindEvent;
+import tigase.jaxmpp.core.client.xmpp.modules.SessionEstablishmentModule;
+import tigase.jaxmpp.core.client.xmpp.modules.SessionEstablishmentModule.SessionEstablishmentEvent;
 import tigase.jaxmpp.core.client.xmpp.modules.auth.SaslModule;
 import tigase.jaxmpp.core.client.xmpp.modules.capabilities.CapabilitiesModule;
 import tigase.jaxmpp.core.client.xmpp.modules.disco.DiscoInfoModule;
 import tigase.jaxmpp.core.client.xmpp.modules.presence.PresenceModule;
+import tigase.jaxmpp.core.client.xmpp.modules.streammng.StreamManagementModule;
+import tigase.jaxmpp.core.client.xmpp.modules.streammng.StreamManagementModule.StreamManagementEvent;
 import tigase.jaxmpp.core.client.xmpp.utils.DateTimeFormat;
 import tigase.jaxmpp.j2se.connectors.bosh.BoshConnector;
+import tigase.jaxmpp.j2se.connectors.socket.NioSocketConnector;
 import tigase.jaxmpp.j2se.connectors.socket.SocketConnector;
 import tigase.jaxmpp.j2se.observer.ThreadSafeObservable;
+import tigase.jaxmpp.j2se.scheduler.ScheduledTask;
+import tigase.jaxmpp.j2se.scheduler.Scheduler;
+import tigase.jaxmpp.j2se.scheduler.SchedulerFactory;
 import tigase.jaxmpp.j2se.xmpp.modules.auth.saslmechanisms.ExternalMechanism;
 
 /**
@@ -52,30 +65,156 @@ import tigase.jaxmpp.j2se.xmpp.modules.auth.saslmechanisms.ExternalMechanism;
  */
 public class Jaxmpp extends JaxmppCore {
 
-	private class LoginTimeoutTask extends TimerTask {
+	/**
+	 * Periodically checks timeouts of response handlers. Task keeps only weak
+	 * reference to {@linkplain Jaxmpp}, so shared scheduler doesn't prevent
+	 * unused instances from being garbage collected.
+	 */
+	private static class CheckTimeoutsTask implements Runnable {
+
+		private final WeakReference<Jaxmpp> jaxmpp;
+
+		private ScheduledTask scheduledTask;
+
+		private CheckTimeoutsTask(Jaxmpp jaxmpp) {
+			this.jaxmpp = new WeakReference<Jaxmpp>(jaxmpp);
+		}
 
 		@Override
 		public void run() {
-			synchronized (Jaxmpp.this) {
-				Jaxmpp.this.notify();
+			Jaxmpp j = jaxmpp.get();
+			if (j == null) {
+				scheduledTask.cancel();
+				return;
+			}
+			try {
+				j.checkTimeouts();
+			} catch (JaxmppException e) {
+				e.printStackTrace();
 			}
 		}
 	}
 
-	public static final String CONNECTOR_TYPE = "connectorType";
+	/**
+	 * Ordering key of stanza scoped to one {@linkplain Jaxmpp}. Executor may
+	 * be shared by many sessions, and stanzas from the same contact received
+	 * by different sessions don't need to wait for each other.
+	 */
+	private static final class OrderingKey {
+
+		private final String key;
 
-	private static final Executor DEFAULT_EXECUTOR = new Executor() {
+		private final Jaxmpp session;
+
+		private OrderingKey(Jaxmpp session, String key) {
+			this.session = session;
+			this.key = key;
+		}
 
 		@Override
-		public void execute(Runnable command) {
-			(new Thread(command)).start();
+		public boolean equals(Object obj) {
+			if (!(obj instanceof OrderingKey))
+				return false;
+			OrderingKey o = (OrderingKey) obj;
+			return session == o.session && key.equals(o.key);
 		}
-	};
+
+		@Override
+		public int hashCode() {
+			return 31 * System.identityHashCode(session) + key.hashCode();
+		}
+
+		@Override
+		public String toString() {
+			return key;
+		}
+	}
+
+	/**
+	 * Task of received stanza counted as pending until it is executed.
+	 */
+	private final class PendingTask implements Runnable {
+
+		private final Runnable task;
+
+		private PendingTask(Runnable task) {
+			this.task = task;
+		}
+
+		@Override
+		public void run() {
+			try {
+				task.run();
+			} finally {
+				pendingStanzas.decrementAndGet();
+			}
+		}
+
+		@Override
+		public String toString() {
+			return task.toString();
+		}
+	}
+
+	private class LoginTimeoutTask implements Runnable {
+
+		@Override
+		public void run() {
+			loginFinished();
+		}
+	}
+
+	public static final String CONNECTOR_TYPE = "connectorType";
+
+	/**
+	 * Executor shared by all instances. Its queue is not limited, because
+	 * received stanzas are limited by each instance (see
+	 * {@linkplain #MAX_PENDING_STANZAS_KEY}).
+	 */
+	private static final Executor DEFAULT_EXECUTOR = new OrderedExecutor(OrderedExecutor.getDefaultThreads(), Math.max(
+			OrderedExecutor.getDefaultThreads(), OrderedExecutor.DEFAULT_MAX_THREADS), Integer.MAX_VALUE, "jaxmpp-executor");
+
+	/**
+	 * Default maximal number of received stanzas waiting for processing.
+	 */
+	public static final int DEFAULT_MAX_PENDING_STANZAS = 10000;
 
 	public static final String EXCEPTION_KEY = "jaxmpp#ThrowedException";;
 
+	/**
+	 * If <code>true</code> then received stanzas are processed in thread
+	 * reading connection, without passing them to executor. Handlers must not
+	 * wait for other stanzas (for example for responses of sent IQs) in this
+	 * mode.
+	 */
+	public static final String INLINE_DISPATCH_KEY = "jaxmpp#inlineDispatch";
+
+	/**
+	 * Time budget (in milliseconds) of processing stanza in inline mode.
+	 * Stanzas of kinds which processing took longer are passed to executor.
+	 * Default value is {@value InlineDispatcher#DEFAULT_BUDGET}.
+	 */
+	public static final String INLINE_DISPATCH_BUDGET_KEY = "jaxmpp#inlineDispatchBudget";
+
 	public static final String LOGIN_TIMEOUT_KEY = "LOGIN_TIMEOUT_KEY";
 
+	/**
+	 * Name of property containing maximal number ({@linkplain Integer}) of
+	 * received stanzas of this session waiting for processing in executor.
+	 * Messages and presences above limit are dropped, IQ requests are answered
+	 * with <code>resource-constraint</code> error. IQ responses are not
+	 * limited. Thread reading connection is never blocked. Property is read at
+	 * login. Default value is {@value #DEFAULT_MAX_PENDING_STANZAS}.
+	 */
+	public static final String MAX_PENDING_STANZAS_KEY = "jaxmpp#maxPendingStanzas";
+
+	/**
+	 * If <code>false</code> then presences waiting for processing are not
+	 * skipped when newer presence from the same JID is received. Coalescing is
+	 * enabled by default.
+	 */
+	public static final String PRESENCE_COALESCING_KEY = "jaxmpp#presenceCoalescing";
+
 	public static final String SYNCHRONIZED_MODE = "jaxmpp#synchronized";
 
 	static {
@@ -92,13 +231,39 @@ public class Jaxmpp extends JaxmppCore {
 			}
 		});
 		DateTimeFormat.setProvider(new DateTimeFormatProviderImpl());
+		UIDGenerator.setGenerator(new ThreadLocalUIDGenerator());
 	}
 
 	private Executor executor;
 
-	private TimerTask loginTimeoutTask;
+	private InlineDispatcher inlineDispatcher;
 
-	private final Timer timer = new Timer(true);
+	/**
+	 * <code>true</code> when login started in sync mode is finished. Guarded
+	 * by <code>this</code>.
+	 */
+	private boolean loginFinished;
+
+	private ScheduledTask loginTimeoutTask;
+
+	private volatile int maxPendingStanzas = DEFAULT_MAX_PENDING_STANZAS;
+
+	private final AtomicInteger pendingStanzas = new AtomicInteger();
+
+	private final PresenceCoalescer presenceCoalescer = new PresenceCoalescer();
+
+	private final Listener<SessionEstablishmentEvent> sessionEstablishmentListener = new Listener<SessionEstablishmentEvent>() {
+
+		@Override
+		public void handleEvent(SessionEstablishmentEvent be) throws JaxmppException {
+			// result of session request may be processed before result of
+			// resource binding
+			if (sessionObject.getProperty(ResourceBinderModule.BINDED_RESOURCE_JID) != null)
+				loginFinished();
+		}
+	};
+
+	protected final Scheduler scheduler = SchedulerFactory.getScheduler();
 
 	public Jaxmpp() {
 		this(new J2SESessionObject());
@@ -108,18 +273,8 @@ public class Jaxmpp extends JaxmppCore {
 	public Jaxmpp(SessionObject sessionObject) {
 		super(sessionObject);
 		setExecutor(DEFAULT_EXECUTOR);
-		TimerTask checkTimeouts = new TimerTask() {
-
-			@Override
-			public void run() {
-				try {
-					checkTimeouts();
-				} catch (JaxmppException e) {
-					e.printStackTrace();
-				}
-			}
-		};
-		timer.schedule(checkTimeouts, 30 * 1000, 30 * 1000);
+		CheckTimeoutsTask checkTimeouts = new CheckTimeoutsTask(this);
+		checkTimeouts.scheduledTask = scheduler.schedule(checkTimeouts, 30 * 1000, 30 * 1000);
 
 		this.processor = new Processor(this.modulesManager, this.sessionObject, this.writer);
 
@@ -128,6 +283,10 @@ public class Jaxmpp extends JaxmppCore {
 		ResourceBinderModule r = this.modulesManager.getModule(ResourceBinderModule.class);
 		r.addListener(ResourceBinderModule.ResourceBindSuccess, resourceBindListener);
 
+		SessionEstablishmentModule s = this.modulesManager.getModule(SessionEstablishmentModule.class);
+		s.addListener(SessionEstablishmentModule.SessionEstablishmentSuccess, sessionEstablishmentListener);
+		s.addListener(SessionEstablishmentModule.SessionEstablishmentError, sessionEstablishmentListener);
+
 	}
 
 	protected void checkTimeouts() throws JaxmppException {
@@ -138,6 +297,9 @@ public class Jaxmpp extends JaxmppCore {
 		if (sessionObject.getProperty(CONNECTOR_TYPE) == null || "socket".equals(sessionObject.getProperty(CONNECTOR_TYPE))) {
 			log.info("Using SocketConnector");
 			return new SocketConnector(observable, this.sessionObject);
+		} else if ("nio".equals(sessionObject.getProperty(CONNECTOR_TYPE))) {
+			log.info("Using NioSocketConnector");
+			return new NioSocketConnector(observable, this.sessionObject);
 		} else if ("bosh".equals(sessionObject.getProperty(CONNECTOR_TYPE))) {
 			log.info("Using BOSHConnector");
 			return new BoshConnector(observable, this.sessionObject);
@@ -151,6 +313,10 @@ public class Jaxmpp extends JaxmppCore {
 	}
 
 	public void disconnect(boolean snc) throws JaxmppException {
+		// stream is closed gracefully, so it can't be resumed
+		StreamManagementModule sm = this.modulesManager.getModule(StreamManagementModule.class);
+		if (sm != null)
+			sm.reset();
 		if (this.connector != null) {
 			try {
 				this.connector.stop();
@@ -175,6 +341,50 @@ public class Jaxmpp extends JaxmppCore {
 		return new ConnectionConfiguration(this.sessionObject);
 	}
 
+	/**
+	 * Returns key of stanza used to keep order of processing stanzas by
+	 * {@linkplain OrderedExecutor}. Messages, presences and IQ requests are
+	 * ordered by bare JID of sender, IQ responses by id. Other elements
+	 * (stream features, SASL etc.) are processed in order of receiving. Keys
+	 * are scoped to this instance, because executor may be shared.
+	 * 
+	 * @param stanza
+	 *            received element
+	 * @return ordering key
+	 */
+	protected Object getOrderingKey(Element stanza) throws XMLException {
+		final String name = stanza.getName();
+		if ("iq".equals(name) || "message".equals(name) || "presence".equals(name)) {
+			if ("iq".equals(name)) {
+				final String type = stanza.getAttribute("type");
+				final String id = stanza.getAttribute("id");
+				if (id != null && ("result".equals(type) || "error".equals(type)))
+					return new OrderingKey(this, "iq:" + id);
+			}
+			final String from = stanza.getAttribute("from");
+			if (from == null)
+				return this;
+			final int i = from.indexOf('/');
+			return new OrderingKey(this, i == -1 ? from : from.substring(0, i));
+		}
+		return this;
+	}
+
+	/**
+	 * Returns kind of stanza used by inline dispatch mode to find handlers
+	 * exceeding time budget. Kind is made of name of stanza and namespace of
+	 * its first child.
+	 * 
+	 * @param stanza
+	 *            received element
+	 * @return kind of stanza
+	 */
+	protected Object getDispatchKind(Element stanza) throws XMLException {
+		final Element child = stanza.getFirstChild();
+		final String xmlns = child == null ? null : child.getXMLNS();
+		return xmlns == null ? stanza.getName() : stanza.getName() + " " + xmlns;
+	}
+
 	public Executor getExecutor() {
 		return executor;
 	}
@@ -195,7 +405,13 @@ public class Jaxmpp extends JaxmppCore {
 	 *            whole connecting process will be done in this method.
 	 */
 	public void login(boolean sync) throws JaxmppException {
-		this.sessionObject.clear();
+		StreamManagementModule sm = this.modulesManager.getModule(StreamManagementModule.class);
+		if (sm != null && sm.isResumptionAvailable()) {
+			// roster and presences are still valid if stream will be resumed
+			this.sessionObject.clearProperties();
+		} else {
+			this.sessionObject.clear();
+		}
 
 		if (this.sessionLogic != null) {
 			this.sessionLogic.unbind();
@@ -206,6 +422,9 @@ public class Jaxmpp extends JaxmppCore {
 			this.connector = null;
 		}
 
+		Integer maxPending = sessionObject.getProperty(MAX_PENDING_STANZAS_KEY);
+		this.maxPendingStanzas = maxPending == null ? DEFAULT_MAX_PENDING_STANZAS : maxPending;
+
 		this.connector = createConnector();
 
 		this.connector.addListener(Connector.StanzaReceived, this.stanzaReceivedListener);
@@ -222,18 +441,20 @@ public class Jaxmpp extends JaxmppCore {
 		});
 
 		try {
+			synchronized (Jaxmpp.this) {
+				loginFinished = false;
+			}
 			this.sessionLogic.beforeStart();
 			this.connector.start();
 			this.sessionObject.setProperty(SYNCHRONIZED_MODE, Boolean.valueOf(sync));
 			if (sync) {
-				loginTimeoutTask = new LoginTimeoutTask();
 				Long delay = sessionObject.getProperty(LOGIN_TIMEOUT_KEY);
 				log.finest("Starting LoginTimeoutTask");
-				timer.schedule(loginTimeoutTask, delay == null ? 1000 * 60 * 5 : delay);
+				loginTimeoutTask = scheduler.schedule(new LoginTimeoutTask(), delay == null ? 1000 * 60 * 5 : delay);
 				synchronized (Jaxmpp.this) {
-					Jaxmpp.this.wait();
+					while (!loginFinished)
+						Jaxmpp.this.wait();
 					log.finest("Waked up");
-					Jaxmpp.this.wait(512);
 				}
 
 				if (loginTimeoutTask != null) {
@@ -257,6 +478,34 @@ public class Jaxmpp extends JaxmppCore {
 		}
 	}
 
+	/**
+	 * Returns dispatcher used in inline dispatch mode.
+	 */
+	public synchronized InlineDispatcher getInlineDispatcher() {
+		if (inlineDispatcher == null) {
+			Long budget = sessionObject.getProperty(INLINE_DISPATCH_BUDGET_KEY);
+			inlineDispatcher = new InlineDispatcher(budget == null ? InlineDispatcher.DEFAULT_BUDGET : budget, scheduler);
+		}
+		return inlineDispatcher;
+	}
+
+	/**
+	 * Returns coalescer of received presences.
+	 */
+	public PresenceCoalescer getPresenceCoalescer() {
+		return presenceCoalescer;
+	}
+
+	private boolean isPresenceCoalescingEnabled() {
+		Boolean coalescing = sessionObject.getProperty(PRESENCE_COALESCING_KEY);
+		return coalescing == null || coalescing;
+	}
+
+	private boolean isInlineDispatchEnabled() {
+		Boolean inline = sessionObject.getProperty(INLINE_DISPATCH_KEY);
+		return inline != null && inline;
+	}
+
 	@Override
 	protected void modulesInit() {
 		super.modulesInit();
@@ -278,54 +527,142 @@ public class Jaxmpp extends JaxmppCore {
         } catch (Exception e1) {
             log.log(Level.FINE, "Disconnecting error", e1);
         }
-		synchronized (Jaxmpp.this) {
-			// (new Exception("DEBUG")).printStackTrace();
-			Jaxmpp.this.notify();
-		}
+		loginFinished();
 		JaxmppEvent event = new JaxmppEvent(Disconnected, sessionObject);
 		observable.fireEvent(event);
 	}
 
-	@Override
-	protected void onResourceBinded(ResourceBindEvent be) throws JaxmppException {
+	/**
+	 * Wakes up thread waiting in {@linkplain #login(boolean)}.
+	 */
+	private void loginFinished() {
 		synchronized (Jaxmpp.this) {
-			// (new Exception("DEBUG")).printStackTrace();
-			Jaxmpp.this.notify();
+			loginFinished = true;
+			Jaxmpp.this.notifyAll();
 		}
+	}
+
+	@Override
+	protected void onResourceBinded(ResourceBindEvent be) throws JaxmppException {
+		// login is finished when session is established too
+		if (!SessionEstablishmentModule.isSessionEstablishingAvailable(sessionObject)
+				|| sessionObject.getProperty(SessionEstablishmentModule.SESSION_ESTABLISHED) != null)
+			loginFinished();
 		JaxmppEvent event = new JaxmppEvent(Connected, sessionObject);
 		observable.fireEvent(event);
 	}
 
 	@Override
 	protected void onStanzaReceived(Element stanza) {
-		Runnable r = this.processor.process(stanza);
-		if (r != null)
-			executor.execute(r);
+		try {
+			final Executor executor = this.executor;
+			final Object key = executor instanceof OrderedExecutor ? getOrderingKey(stanza) : null;
+			if (isInlineDispatchEnabled()) {
+				final InlineDispatcher dispatcher = getInlineDispatcher();
+				final Object kind = getDispatchKind(stanza);
+				// stanza can't overtake stanzas with the same key waiting in
+				// executor
+				if (!dispatcher.isSlow(kind) && (key == null || !((OrderedExecutor) executor).isBusy(key))) {
+					Runnable r = this.processor.process(stanza);
+					if (r != null)
+						dispatcher.run(kind, r);
+					return;
+				}
+			}
+			// responses are limited by number of sent requests, and can't be
+			// dropped after their handlers are taken by processor
+			final boolean limited = !isResponse(stanza);
+			if (limited && pendingStanzas.incrementAndGet() > maxPendingStanzas) {
+				pendingStanzas.decrementAndGet();
+				rejectStanza(stanza);
+				return;
+			}
+			Runnable r;
+			if (isPresenceCoalescingEnabled() && PresenceCoalescer.canBeCoalesced(stanza))
+				r = presenceCoalescer.offer(stanza, this.processor);
+			else
+				r = this.processor.process(stanza);
+			if (r == null) {
+				if (limited)
+					pendingStanzas.decrementAndGet();
+				return;
+			}
+			if (limited)
+				r = new PendingTask(r);
+			try {
+				if (key != null)
+					((OrderedExecutor) executor).execute(key, r);
+				else
+					executor.execute(r);
+			} catch (RejectedExecutionException e) {
+				if (limited)
+					pendingStanzas.decrementAndGet();
+				rejectStanza(stanza);
+			}
+		} catch (XMLException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static boolean isResponse(Element stanza) throws XMLException {
+		if (!"iq".equals(stanza.getName()))
+			return false;
+		final String type = stanza.getAttribute("type");
+		return "result".equals(type) || "error".equals(type);
+	}
+
+	/**
+	 * Called when received stanza can't be processed because too many
+	 * stanzas wait for processing. IQ requests are answered with
+	 * <code>resource-constraint</code> error, other stanzas are dropped.
+	 */
+	protected void rejectStanza(Element stanza) throws XMLException {
+		log.warning("Too many stanzas waiting for processing, dropped " + stanza.getName() + " "
+				+ stanza.getAttribute("id"));
+		final String type = stanza.getAttribute("type");
+		if (!"iq".equals(stanza.getName()) || !("get".equals(type) || "set".equals(type)))
+			return;
+		Element error = Processor.createError(stanza, new XMPPException(ErrorCondition.resource_constraint));
+		if (error == null)
+			return;
+		try {
+			writer.write(error);
+		} catch (JaxmppException e) {
+			log.log(Level.FINE, "Can't send error response", e);
+		}
 	}
 
 	@Override
 	protected void onStreamError(ConnectorEvent be) throws JaxmppException {
-		synchronized (Jaxmpp.this) {
-			// (new Exception("DEBUG")).printStackTrace();
-			Jaxmpp.this.notify();
-		}
+		loginFinished();
 		JaxmppEvent event = new JaxmppEvent(Disconnected, sessionObject);
 		observable.fireEvent(event);
 	}
 
+	@Override
+	protected void onStreamResumed(StreamManagementEvent be) throws JaxmppException {
+		loginFinished();
+		JaxmppEvent event = new JaxmppEvent(Connected, sessionObject);
+		observable.fireEvent(event);
+	}
+
 	@Override
 	protected void onStreamTerminated(ConnectorEvent be) throws JaxmppException {
-		synchronized (Jaxmpp.this) {
-			// (new Exception("DEBUG")).printStackTrace();
-			Jaxmpp.this.notify();
-		}
+		loginFinished();
 		JaxmppEvent event = new JaxmppEvent(Disconnected, sessionObject);
 		observable.fireEvent(event);
 	}
 
 	/**
 	 * Sets custom {@linkplain Executor} for processing incoming stanzas in
-	 * modules.
+	 * modules. If it is {@linkplain OrderedExecutor} then stanzas are ordered
+	 * by keys returned by {@linkplain #getOrderingKey(Element)}. By default
+	 * {@linkplain OrderedExecutor} shared by all instances is used. It starts
+	 * additional threads when all threads are busy, so handlers may wait for
+	 * responses (for example {@linkplain WatchedXmpp#call}), but each
+	 * waiting handler holds one thread until response or timeout. Stanzas
+	 * rejected by executor are handled as stanzas above
+	 * {@linkplain #MAX_PENDING_STANZAS_KEY}.
 	 * 
 	 * @param executor
 	 *            executor
@@ -0,0 +1,378 @@
+/*
+ * Tigase XMPP Client Library
+ * Copyright (C) 2006-2012 "Bartosz Małkowski" <bartosz.malkowski@tigase.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.jaxmpp.j2se;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Executor with bounded number of threads, which keeps order of tasks with
+ * the same key. Tasks with the same key (for example stanzas from one contact)
+ * are executed one by one in order of submitting. Tasks with different keys
+ * are executed in parallel.
+ * <p>
+ * Executor keeps core number of threads. Task may block its thread (for
+ * example handler waiting for response of sent IQ), and the response needs
+ * free thread too. So when all threads are busy, executor starts additional
+ * threads, up to maximal number. Additional threads are stopped after one
+ * minute of idleness. Tasks are queued only when maximal number of threads is
+ * busy, so handlers waiting for responses should still not take more threads
+ * than that.
+ * </p>
+ * <p>
+ * Number of waiting tasks is limited. If limit is reached then task is
+ * rejected with {@linkplain RejectedExecutionException}. Thread which submits
+ * task (usually thread reading connection, maybe shared by many connections)
+ * is never blocked. Tasks submitted from threads of executor are always
+ * accepted, so task may submit next tasks.
+ * </p>
+ */
+public class OrderedExecutor implements Executor {
+
+	/**
+	 * Serial queue of tasks with the same key. Lane is in pool queue or is
+	 * executed as long as it has tasks.
+	 */
+	private final class Lane implements Runnable {
+
+		private final Object key;
+
+		private final ArrayDeque<Runnable> tasks = new ArrayDeque<Runnable>();
+
+		private Lane(Object key) {
+			this.key = key;
+		}
+
+		@Override
+		public void run() {
+			try {
+				boolean next;
+				do {
+					final Runnable task;
+					synchronized (lock) {
+						task = tasks.poll();
+						--queueSize;
+					}
+					try {
+						task.run();
+					} catch (Throwable e) {
+						log.log(Level.WARNING, "Task " + task + " failed", e);
+					}
+					synchronized (lock) {
+						next = !tasks.isEmpty();
+						if (!next && key != null)
+							lanes.remove(key);
+					}
+					// tasks from other lanes are executed before next task
+					// from this lane. After shutdown all tasks are executed
+					// here.
+				} while (next && !resubmit(this));
+			} finally {
+				busyLanes.decrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * Queue of pool. Refuses lane when there are more lanes to execute than
+	 * threads, so pool starts new thread if maximal number of threads isn't
+	 * reached yet. Lanes and threads are counted by executor, because
+	 * {@linkplain ThreadPoolExecutor} counts threads under its main lock.
+	 */
+	private final class LaneQueue extends LinkedBlockingQueue<Runnable> {
+
+		private static final long serialVersionUID = 1L;
+
+		private boolean force(Runnable r) {
+			return super.offer(r);
+		}
+
+		@Override
+		public boolean offer(Runnable r) {
+			final int size = poolThreads.get();
+			if (size < pool.getMaximumPoolSize() && busyLanes.get() > size)
+				return false;
+			return super.offer(r);
+		}
+	}
+
+	private final class WorkerThread extends Thread {
+
+		private WorkerThread(Runnable target, String name) {
+			super(target, name);
+		}
+
+		private OrderedExecutor getExecutor() {
+			return OrderedExecutor.this;
+		}
+
+		@Override
+		public void run() {
+			try {
+				super.run();
+			} finally {
+				poolThreads.decrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * Default limit of waiting tasks.
+	 */
+	public static final int DEFAULT_CAPACITY = 10000;
+
+	private static final Logger log = Logger.getLogger(OrderedExecutor.class.getName());
+
+	/**
+	 * Default maximal number of threads.
+	 */
+	public static final int DEFAULT_MAX_THREADS = 256;
+
+	/**
+	 * Returns default core number of threads: twice number of processors but
+	 * not less than 4.
+	 */
+	public static int getDefaultThreads() {
+		return Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
+	}
+
+	/**
+	 * Number of lanes passed to pool, which are waiting in pool queue or are
+	 * executed.
+	 */
+	private final AtomicInteger busyLanes = new AtomicInteger();
+
+	private final int capacity;
+
+	private final HashMap<Object, Lane> lanes = new HashMap<Object, Lane>();
+
+	private final Object lock = new Object();
+
+	private final ThreadPoolExecutor pool;
+
+	/**
+	 * Number of started threads.
+	 */
+	private final AtomicInteger poolThreads = new AtomicInteger();
+
+	private final LaneQueue queue = new LaneQueue();
+
+	/**
+	 * Number of tasks waiting for execution. Guarded by lock.
+	 */
+	private int queueSize;
+
+	public OrderedExecutor() {
+		this(getDefaultThreads(), Math.max(getDefaultThreads(), DEFAULT_MAX_THREADS), DEFAULT_CAPACITY, "jaxmpp-executor");
+	}
+
+	/**
+	 * Creates executor with fixed number of threads.
+	 * 
+	 * @param threads
+	 *            number of threads
+	 * @param capacity
+	 *            maximal number of waiting tasks
+	 */
+	public OrderedExecutor(int threads, int capacity) {
+		this(threads, capacity, "jaxmpp-executor");
+	}
+
+	/**
+	 * Creates executor with fixed number of threads.
+	 * 
+	 * @param threads
+	 *            number of threads
+	 * @param capacity
+	 *            maximal number of waiting tasks
+	 * @param name
+	 *            prefix of threads names
+	 */
+	public OrderedExecutor(int threads, int capacity, final String name) {
+		this(threads, threads, capacity, name);
+	}
+
+	/**
+	 * @param threads
+	 *            core number of threads
+	 * @param maxThreads
+	 *            maximal number of threads, started when all threads are
+	 *            busy
+	 * @param capacity
+	 *            maximal number of waiting tasks
+	 * @param name
+	 *            prefix of threads names
+	 */
+	public OrderedExecutor(int threads, int maxThreads, int capacity, final String name) {
+		if (threads < 1 || maxThreads < threads || capacity < 1)
+			throw new IllegalArgumentException();
+		this.capacity = capacity;
+		this.pool = new ThreadPoolExecutor(threads, maxThreads, 60, TimeUnit.SECONDS, queue, new ThreadFactory() {
+
+			private final AtomicInteger counter = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new WorkerThread(r, name + "-" + counter.incrementAndGet());
+				t.setDaemon(true);
+				poolThreads.incrementAndGet();
+				return t;
+			}
+		}, new RejectedExecutionHandler() {
+
+			@Override
+			public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+				if (executor.isShutdown())
+					throw new RejectedExecutionException("Executor is shut down");
+				// all threads are busy
+				queue.force(r);
+			}
+		});
+		this.pool.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * Executes task without ordering against other tasks.
+	 */
+	@Override
+	public void execute(Runnable command) {
+		execute(null, command);
+	}
+
+	/**
+	 * Executes task after all previously submitted tasks with the same key.
+	 * 
+	 * @param key
+	 *            ordering key. If <code>null</code> then task is not ordered.
+	 * @param command
+	 *            task
+	 * @throws RejectedExecutionException
+	 *             if executor is shut down or limit of waiting tasks is
+	 *             reached
+	 */
+	public void execute(Object key, Runnable command) {
+		if (command == null)
+			throw new NullPointerException();
+		final Lane lane;
+		synchronized (lock) {
+			if (pool.isShutdown())
+				throw new RejectedExecutionException("Executor is shut down");
+			if (queueSize >= capacity && !isExecutorThread())
+				throw new RejectedExecutionException("Limit of " + capacity + " waiting tasks is reached");
+			++queueSize;
+			final Lane existing = key == null ? null : lanes.get(key);
+			if (existing != null) {
+				existing.tasks.add(command);
+				return;
+			}
+			lane = new Lane(key);
+			lane.tasks.add(command);
+			if (key != null)
+				lanes.put(key, lane);
+		}
+		// new lane is passed to pool outside of lock
+		busyLanes.incrementAndGet();
+		try {
+			pool.execute(lane);
+		} catch (RejectedExecutionException e) {
+			// executor was shut down meanwhile
+			busyLanes.decrementAndGet();
+			synchronized (lock) {
+				queueSize -= lane.tasks.size();
+				lane.tasks.clear();
+				if (key != null)
+					lanes.remove(key);
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Returns maximal number of waiting tasks.
+	 */
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Returns number of keys which have tasks waiting or executed at the
+	 * moment.
+	 */
+	public int getLanesCount() {
+		synchronized (lock) {
+			return lanes.size();
+		}
+	}
+
+	/**
+	 * Returns number of tasks waiting for execution.
+	 */
+	public int getQueueSize() {
+		synchronized (lock) {
+			return queueSize;
+		}
+	}
+
+	/**
+	 * Checks if there are tasks with given key waiting or executed at the
+	 * moment.
+	 */
+	public boolean isBusy(Object key) {
+		synchronized (lock) {
+			return lanes.containsKey(key);
+		}
+	}
+
+	private boolean isExecutorThread() {
+		final Thread t = Thread.currentThread();
+		return t instanceof WorkerThread && ((WorkerThread) t).getExecutor() == this;
+	}
+
+	/**
+	 * Puts lane at the end of pool queue. Called by thread executing lane,
+	 * which takes next task from queue right after, so new thread is not
+	 * needed.
+	 */
+	private boolean resubmit(Lane lane) {
+		if (pool.isShutdown())
+			return false;
+		busyLanes.incrementAndGet();
+		queue.force(lane);
+		return true;
+	}
+
+	/**
+	 * Stops accepting tasks. Already submitted tasks will be executed.
+	 */
+	public void shutdown() {
+		synchronized (lock) {
+			pool.shutdown();
+		}
+	}
+
+}
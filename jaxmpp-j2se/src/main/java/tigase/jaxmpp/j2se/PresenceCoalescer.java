@@ -0,0 +1,150 @@
+/*
+ * Tigase XMPP Client Library
+ * Copyright (C) 2006-2012 "Bartosz Małkowski" <bartosz.malkowski@tigase.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.jaxmpp.j2se;
+
+import java.util.HashMap;
+import java.util.List;
+
+import tigase.jaxmpp.core.client.Processor;
+import tigase.jaxmpp.core.client.xml.Element;
+import tigase.jaxmpp.core.client.xml.XMLException;
+
+/**
+ * Skips processing of presences which are superseded by newer presence from
+ * the same full JID, received before the older one was processed. Presences
+ * are passed to {@linkplain Processor} just before execution, so superseded
+ * presences are not processed by modules at all.
+ * <p>
+ * Only presences without type or with type <code>unavailable</code> are
+ * coalesced. Subscription requests and responses, errors and MUC presences
+ * with status codes are always processed.
+ * </p>
+ */
+public class PresenceCoalescer {
+
+	private static final class Entry {
+
+		private final Element presence;
+
+		private boolean started;
+
+		private boolean superseded;
+
+		private Entry(Element presence) {
+			this.presence = presence;
+		}
+	}
+
+	private static final String MUC_USER_XMLNS = "http://jabber.org/protocol/muc#user";
+
+	/**
+	 * Checks if presence may be skipped when newer presence from the same JID
+	 * is received.
+	 * 
+	 * @param stanza
+	 *            received element
+	 */
+	public static boolean canBeCoalesced(Element stanza) throws XMLException {
+		if (!"presence".equals(stanza.getName()) || stanza.getAttribute("from") == null)
+			return false;
+		final String type = stanza.getAttribute("type");
+		if (type != null && !"unavailable".equals(type))
+			return false;
+		final Element x = stanza.getChildrenNS("x", MUC_USER_XMLNS);
+		if (x != null) {
+			List<Element> statuses = x.getChildren("status");
+			if (statuses != null && !statuses.isEmpty())
+				return false;
+		}
+		return true;
+	}
+
+	private long coalesced;
+
+	private long offered;
+
+	private final HashMap<String, Entry> pending = new HashMap<String, Entry>();
+
+	private synchronized boolean claim(String jid, Entry entry) {
+		if (entry.superseded)
+			return false;
+		entry.started = true;
+		if (pending.get(jid) == entry)
+			pending.remove(jid);
+		return true;
+	}
+
+	/**
+	 * Returns number of presences which were not processed, because newer
+	 * presence from the same JID was received.
+	 */
+	public synchronized long getCoalescedCount() {
+		return coalesced;
+	}
+
+	/**
+	 * Returns number of presences passed to coalescer.
+	 */
+	public synchronized long getOfferedCount() {
+		return offered;
+	}
+
+	/**
+	 * Returns number of presences waiting for processing.
+	 */
+	public synchronized int getPendingCount() {
+		return pending.size();
+	}
+
+	/**
+	 * Registers received presence. Presence from the same JID waiting for
+	 * processing is marked as superseded.
+	 * 
+	 * @param presence
+	 *            received presence. It must be accepted by
+	 *            {@linkplain #canBeCoalesced(Element)}.
+	 * @param processor
+	 *            processor of stanzas
+	 * @return task which processes presence, unless newer presence is
+	 *         received before it is executed
+	 */
+	public Runnable offer(final Element presence, final Processor processor) throws XMLException {
+		final String jid = presence.getAttribute("from");
+		final Entry entry = new Entry(presence);
+		synchronized (this) {
+			++offered;
+			final Entry old = pending.put(jid, entry);
+			if (old != null && !old.started) {
+				old.superseded = true;
+				++coalesced;
+			}
+		}
+		return new Runnable() {
+
+			@Override
+			public void run() {
+				if (!claim(jid, entry))
+					return;
+				Runnable r = processor.process(entry.presence);
+				if (r != null)
+					r.run();
+			}
+		};
+	}
+
+}
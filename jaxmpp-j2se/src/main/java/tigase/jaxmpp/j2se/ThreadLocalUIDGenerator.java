@@ -0,0 +1,57 @@
+/*
+ * Tigase XMPP Client Library
+ * Copyright (C) 2006-2012 "Bartosz Małkowski" <bartosz.malkowski@tigase.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.jaxmpp.j2se;
+
+import tigase.jaxmpp.core.client.UIDGenerator;
+
+/**
+ * IDs generator without shared mutable state on the hot path. Each thread
+ * takes own block of counter values and has own buffer, so sending threads
+ * don't contend with each other. Only reserving next block (once per
+ * {@linkplain UIDGenerator#BLOCK_SIZE} IDs) is synchronized.
+ */
+public class ThreadLocalUIDGenerator extends UIDGenerator {
+
+	private static final class State {
+
+		private final char[] buffer = newBuffer();
+
+		private long limit;
+
+		private long value;
+	}
+
+	private final ThreadLocal<State> state = new ThreadLocal<State>() {
+
+		@Override
+		protected State initialValue() {
+			return new State();
+		}
+	};
+
+	@Override
+	protected String nextUID() {
+		final State s = state.get();
+		if (s.value == s.limit) {
+			s.value = reserve(BLOCK_SIZE);
+			s.limit = s.value + BLOCK_SIZE;
+		}
+		return encode(s.value++, s.buffer);
+	}
+
+}
@@ -1,17 +1,338 @@
 package tigase.jaxmpp.j2se;
 
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.logging.Level;
 
 import tigase.jaxmpp.core.client.ResponseManager;
+import tigase.jaxmpp.core.client.exceptions.JaxmppException;
+import tigase.jaxmpp.j2se.scheduler.ScheduledTask;
+import tigase.jaxmpp.j2se.scheduler.Scheduler;
+import tigase.jaxmpp.j2se.scheduler.SchedulerFactory;
 
+/**
+ * Response manager which may be used by many threads. Handlers are
+ * additionally ordered by deadline, so expired ones are found without
+ * scanning all waiting handlers, and timeouts are fired by
+ * {@linkplain Scheduler} close to deadline.
+ * <p>
+ * Number of requests waiting for response may be limited (see
+ * {@linkplain #MAX_IN_FLIGHT_REQUESTS_KEY}). When limit is reached, thread
+ * registering next handler (in practice thread sending request with callback)
+ * is blocked until response is received or one of requests times out. Blocked
+ * thread wakes up at earliest deadline and expires timed out requests itself,
+ * so it doesn't depend on scheduler. Thread is never blocked longer than
+ * {@linkplain #MAX_IN_FLIGHT_WAIT_KEY}; after that request is registered above
+ * the limit. Threads which read received stanzas (marked by connectors with
+ * {@linkplain #setReaderThread(boolean)}) never wait: responses can't be
+ * handled until they return, so their requests are registered above the
+ * limit at once.
+ * </p>
+ */
 public class ThreadSafeResponseManager extends ResponseManager {
 
-	private final Map<String, Entry> handlers = new ConcurrentHashMap<String, ResponseManager.Entry>();
+	private static final class Expiry implements Comparable<Expiry> {
+
+		private final long deadline;
+
+		private final Entry entry;
+
+		private final String id;
+
+		private Expiry(String id, Entry entry) {
+			this.id = id;
+			this.entry = entry;
+			this.deadline = entry.getDeadline();
+		}
+
+		@Override
+		public int compareTo(Expiry o) {
+			if (deadline != o.deadline)
+				return deadline < o.deadline ? -1 : 1;
+			return id.compareTo(o.id);
+		}
+
+	}
+
+	private class ExpiryTask implements Runnable {
+
+		private final long deadline;
+
+		private ScheduledTask scheduledTask;
+
+		private ExpiryTask(long deadline) {
+			this.deadline = deadline;
+		}
+
+		@Override
+		public void run() {
+			synchronized (expiryLock) {
+				if (expiryTask == this)
+					expiryTask = null;
+			}
+			checkTimeouts();
+			scheduleExpiry();
+		}
+	}
+
+	/**
+	 * Name of property containing maximal number ({@linkplain Integer}) of
+	 * requests waiting for response. <code>0</code> or no value means no
+	 * limit.
+	 */
+	public static final String MAX_IN_FLIGHT_REQUESTS_KEY = "jaxmpp#maxInFlightRequests";
+
+	/**
+	 * Name of property containing maximal time ({@linkplain Long}, in
+	 * milliseconds) of waiting for free slot when limit of requests waiting
+	 * for response is reached. After that request is registered above limit.
+	 * Default value is {@linkplain #DEFAULT_MAX_IN_FLIGHT_WAIT}.
+	 */
+	public static final String MAX_IN_FLIGHT_WAIT_KEY = "jaxmpp#maxInFlightWait";
+
+	/**
+	 * Default maximal time of waiting for free slot: 10 seconds.
+	 */
+	public static final long DEFAULT_MAX_IN_FLIGHT_WAIT = 1000 * 10;
+
+	private static final ThreadLocal<Boolean> READER_THREAD = new ThreadLocal<Boolean>();
+
+	/**
+	 * Checks if current thread is marked as thread reading received stanzas.
+	 */
+	public static boolean isReaderThread() {
+		return READER_THREAD.get() == Boolean.TRUE;
+	}
+
+	/**
+	 * Marks current thread as thread reading received stanzas (or clears the
+	 * mark). Such thread is never blocked when limit of requests waiting for
+	 * response is reached.
+	 * 
+	 * @param reader
+	 *            <code>true</code> to mark thread
+	 */
+	public static void setReaderThread(boolean reader) {
+		if (reader)
+			READER_THREAD.set(Boolean.TRUE);
+		else
+			READER_THREAD.remove();
+	}
+
+	private final ConcurrentSkipListSet<Expiry> expiries = new ConcurrentSkipListSet<Expiry>();
+
+	private final Object expiryLock = new Object();
+
+	private ExpiryTask expiryTask;
+
+	private final ConcurrentMap<String, Entry> handlers = new ConcurrentHashMap<String, ResponseManager.Entry>();
+
+	private final Object inFlightLock = new Object();
+
+	private int inFlightRequests;
+
+	private int maxInFlightRequests;
+
+	private long maxInFlightWait = DEFAULT_MAX_IN_FLIGHT_WAIT;
+
+	private final Scheduler scheduler;
+
+	public ThreadSafeResponseManager() {
+		this(SchedulerFactory.getScheduler());
+	}
+
+	/**
+	 * @param scheduler
+	 *            scheduler of timeouts
+	 */
+	public ThreadSafeResponseManager(Scheduler scheduler) {
+		this.scheduler = scheduler;
+	}
+
+	private void acquire() {
+		boolean interrupted = false;
+		long giveUpAt = 0;
+		while (true) {
+			synchronized (inFlightLock) {
+				if (interrupted || maxInFlightRequests <= 0 || inFlightRequests < maxInFlightRequests) {
+					++inFlightRequests;
+					break;
+				}
+				if (isReaderThread()) {
+					if (log.isLoggable(Level.FINE))
+						log.fine("Limit of " + maxInFlightRequests
+								+ " requests waiting for response is exceeded by thread reading stanzas.");
+					++inFlightRequests;
+					break;
+				}
+				final long now = System.currentTimeMillis();
+				if (giveUpAt == 0)
+					giveUpAt = now + maxInFlightWait;
+				if (now >= giveUpAt) {
+					log.warning("No response to " + inFlightRequests + " requests for " + maxInFlightWait
+							+ " ms. Limit of requests waiting for response is exceeded.");
+					++inFlightRequests;
+					break;
+				}
+				final long wakeAt = Math.min(giveUpAt, getEarliestDeadline());
+				if (wakeAt > now) {
+					try {
+						inFlightLock.wait(wakeAt - now);
+					} catch (InterruptedException e) {
+						// limit is exceeded rather than request lost
+						interrupted = true;
+					}
+					continue;
+				}
+			}
+			// earliest deadline passed, but scheduler hasn't expired request
+			// yet. Timeout handlers can't be called with lock held.
+			checkTimeouts();
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+	}
+
+	@Override
+	protected void addHandler(String id, Entry entry) {
+		acquire();
+		Entry old = handlers.put(id, entry);
+		if (old != null) {
+			// request with the same id was sent again
+			expiries.remove(new Expiry(id, old));
+			release();
+		}
+		expiries.add(new Expiry(id, entry));
+		scheduleExpiry();
+	}
+
+	/**
+	 * Fires timeouts of all expired handlers. Only handlers with deadline
+	 * already passed are visited.
+	 */
+	@Override
+	public void checkTimeouts() {
+		final long now = System.currentTimeMillis();
+		for (Expiry e : expiries) {
+			if (e.deadline > now)
+				break;
+			expiries.remove(e);
+			if (!handlers.remove(e.id, e.entry))
+				continue;
+			release();
+			try {
+				fireTimeout(e.entry);
+			} catch (JaxmppException ex) {
+				log.log(Level.WARNING, "Timeout handler of request " + e.id + " failed", ex);
+			}
+		}
+	}
+
+	private long getEarliestDeadline() {
+		try {
+			return expiries.first().deadline;
+		} catch (NoSuchElementException e) {
+			return Long.MAX_VALUE;
+		}
+	}
 
 	@Override
 	protected Map<String, Entry> getHandlers() {
 		return this.handlers;
 	}
 
+	/**
+	 * Returns number of requests waiting for response.
+	 */
+	public int getInFlightRequests() {
+		synchronized (inFlightLock) {
+			return inFlightRequests;
+		}
+	}
+
+	public int getMaxInFlightRequests() {
+		synchronized (inFlightLock) {
+			return maxInFlightRequests;
+		}
+	}
+
+	public long getMaxInFlightWait() {
+		synchronized (inFlightLock) {
+			return maxInFlightWait;
+		}
+	}
+
+	private void release() {
+		synchronized (inFlightLock) {
+			--inFlightRequests;
+			inFlightLock.notify();
+		}
+	}
+
+	@Override
+	protected boolean removeHandler(String id, Entry entry) {
+		if (!handlers.remove(id, entry))
+			return false;
+		expiries.remove(new Expiry(id, entry));
+		release();
+		return true;
+	}
+
+	/**
+	 * Schedules check of timeouts at earliest deadline, unless it is already
+	 * scheduled at the same or earlier time.
+	 */
+	private void scheduleExpiry() {
+		final Expiry first;
+		try {
+			first = expiries.first();
+		} catch (NoSuchElementException e) {
+			return;
+		}
+		synchronized (expiryLock) {
+			if (expiryTask != null) {
+				if (expiryTask.deadline <= first.deadline)
+					return;
+				expiryTask.scheduledTask.cancel();
+			}
+			expiryTask = new ExpiryTask(first.deadline);
+			expiryTask.scheduledTask = scheduler.schedule(expiryTask,
+					Math.max(1, first.deadline - System.currentTimeMillis()));
+		}
+	}
+
+	/**
+	 * Sets maximal number of requests waiting for response.
+	 *
+	 * @param maxInFlightRequests
+	 *            limit or <code>0</code> to disable it
+	 */
+	public void setMaxInFlightRequests(int maxInFlightRequests) {
+		synchronized (inFlightLock) {
+			if (this.maxInFlightRequests == maxInFlightRequests)
+				return;
+			this.maxInFlightRequests = maxInFlightRequests;
+			inFlightLock.notifyAll();
+		}
+	}
+
+	/**
+	 * Sets maximal time of waiting for free slot when limit of requests
+	 * waiting for response is reached.
+	 *
+	 * @param maxInFlightWait
+	 *            time in milliseconds
+	 */
+	public void setMaxInFlightWait(long maxInFlightWait) {
+		synchronized (inFlightLock) {
+			if (this.maxInFlightWait == maxInFlightWait)
+				return;
+			this.maxInFlightWait = maxInFlightWait;
+			inFlightLock.notifyAll();
+		}
+	}
+
 }
@@ -1,16 +1,28 @@
 package tigase.jaxmpp.j2se;
 
 
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import tigase.jaxmpp.core.client.AsyncCallback;
 import tigase.jaxmpp.core.client.JID;
+import tigase.jaxmpp.core.client.ResponseFuture;
+import tigase.jaxmpp.core.client.ResponseFuture.CompletionListener;
 import tigase.jaxmpp.core.client.Connector.ConnectorEvent;
+import tigase.jaxmpp.core.client.Connector.State;
 import tigase.jaxmpp.core.client.JaxmppCore.JaxmppEvent;
 import tigase.jaxmpp.core.client.XMPPException.ErrorCondition;
 import tigase.jaxmpp.core.client.connector.StreamError;
 import tigase.jaxmpp.core.client.exceptions.JaxmppException;
+import tigase.jaxmpp.core.client.exceptions.ResponseErrorException;
+import tigase.jaxmpp.core.client.exceptions.ResponseTimeoutException;
 import tigase.jaxmpp.core.client.observer.Listener;
 import tigase.jaxmpp.core.client.xml.DefaultElement;
 import tigase.jaxmpp.core.client.xml.XMLException;
@@ -19,6 +31,7 @@ import tigase.jaxmpp.core.client.xmpp.modules.auth.AuthModule.AuthEvent;
 import tigase.jaxmpp.core.client.xmpp.stanzas.IQ;
 import tigase.jaxmpp.core.client.xmpp.stanzas.Stanza;
 import tigase.jaxmpp.core.client.xmpp.stanzas.StanzaType;
+import tigase.jaxmpp.j2se.scheduler.ScheduledTask;
 
 
 
@@ -38,10 +51,42 @@ public class WatchedXmpp extends Jaxmpp{
     private static final int LOGIN_PERIOD = 10;
     private static final int CONNECT_PERIOD = 10;
     private static final int PING_PERIOD = 60;
-    
+    /**
+     * Default time of waiting for finish of login, in seconds.
+     */
+    private static final int LOGIN_TIMEOUT = 5 * 60;
+
+    /**
+     * Executor of watchdog steps. Connecting (DNS lookup, TCP connect) blocks,
+     * so steps are not run by threads of shared scheduler.
+     */
+    private static final Executor WATCHDOG_EXECUTOR = createWatchdogExecutor();
+
+    private static Executor createWatchdogExecutor() {
+        final int threads = Math.max(2, Runtime.getRuntime().availableProcessors());
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+
+                    private final AtomicInteger counter = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "WatchedXmpp-watchdog-" + counter.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
 
     private volatile boolean connectable=true;
     private volatile boolean loginable;
+    /**
+     * Time of last login attempt, <code>0</code> if there was no attempt
+     * since connection was established.
+     */
+    private volatile long loginStarted;
     
     public WatchedXmpp(){
         super(new J2SESessionObject());
@@ -54,25 +99,40 @@ public class WatchedXmpp extends Jaxmpp{
             }
         });
 
-        watchdog.start();
+        schedule(0);
 
         addListener(Jaxmpp.Disconnected,new Listener<JaxmppEvent>() {
             @Override
             public void handleEvent(JaxmppEvent be) throws JaxmppException {
-                watchdog.interrupt();
+                resume();
+            }
+        });
+        // login is asynchronous, so watchdog starts pinging when it's finished
+        addListener(Jaxmpp.Connected,new Listener<JaxmppEvent>() {
+            @Override
+            public void handleEvent(JaxmppEvent be) throws JaxmppException {
+                resume();
             }
         });
     }
     public void setConnectable(boolean connectable){
         this.connectable=connectable;
-        watchdog.interrupt();
+        resume();
     }
     private void setLonginable(boolean loginable){
         this.loginable=loginable;
-        watchdog.interrupt();
+        resume();
     }
+    /**
+     * Runs watchdog immediately, unless it is running now.
+     */
     public void resume(){
-        watchdog.interrupt();
+        synchronized(watchdog){
+            if(running){
+                return;
+            }
+        }
+        schedule(0);
     }
     @Override
     protected void onStreamError(ConnectorEvent be) throws JaxmppException {
@@ -92,140 +152,167 @@ public class WatchedXmpp extends Jaxmpp{
         disconnect();
     }
     
-    private final Thread watchdog=new Thread(new Runnable(){
+    /**
+     * Watchdog is scheduled by shared scheduler, but run by
+     * {@linkplain #WATCHDOG_EXECUTOR}. Each run makes one step of
+     * login/connect/ping loop and schedules next one. Login is asynchronous,
+     * so step doesn't wait for server.
+     */
+    private final Runnable watchdog=new Runnable(){
         public void run(){
-            while(true){
-                log.info("WatchDog:Not Loginable...");
-                demoLogin();
+            WATCHDOG_EXECUTOR.execute(watchStep);
+        }
+    };
 
-                sleep(WATCH_PERIOD);
+    private final Runnable watchStep=new Runnable(){
+        public void run(){
+            synchronized(watchdog){
+                if(running){
+                    return;
+                }
+                running=true;
+            }
+            int delay=WATCH_PERIOD;
+            try{
+                delay=watch();
+            }finally{
+                synchronized(watchdog){
+                    running=false;
+                }
+                schedule(delay);
             }
         }
-    });
-    
-    private void demoLogin() {
-        while(loginable){
-            log.info("WatchDog:Loginable...");
-            demoConnect();
+    };
+
+    private boolean running;
+
+    private ScheduledTask watchdogTask;
 
-            sleep(LOGIN_PERIOD);
+    private void schedule(int seconds){
+        synchronized(watchdog){
+            if(watchdogTask!=null){
+                watchdogTask.cancel();
+            }
+            watchdogTask=scheduler.schedule(watchdog, seconds*1000L);
         }
     }
 
-    private void demoConnect() {
-        while(loginable&&connectable){
-            log.info("WatchDog:Loginable&Connectable...");
-            try{
-            	if(!isConnected()){
-            		super.login();
-            	}
-
+    /**
+     * @return delay of next step in seconds
+     */
+    private int watch() {
+        if(!loginable){
+            log.info("WatchDog:Not Loginable...");
+            return WATCH_PERIOD;
+        }
+        if(!connectable){
+            log.info("WatchDog:Loginable...");
+            return LOGIN_PERIOD;
+        }
+        log.info("WatchDog:Loginable&Connectable...");
+        try{
+            if(isConnected()){
+                loginStarted=0;
                 ping();
-            }catch(JaxmppException ie){
-            	if(ie.getCause() instanceof InterruptedException){
-            		sleep(PING_PERIOD);
-            	}else{
-            		log.log(Level.WARNING,"XMPP异常",ie);
-            	}
-            }catch(Throwable th){
-            	log.log(Level.WARNING,"网络链接异常",th);
+                return PING_PERIOD;
             }
-
-            sleep(CONNECT_PERIOD);
+            final long now=System.currentTimeMillis();
+            final long started=loginStarted;
+            final boolean connecting=connector!=null&&connector.getState()!=State.disconnected;
+            if(started!=0&&connecting&&now-started<getLoginTimeout()*1000L){
+                // Connected event resumes watchdog
+                return CONNECT_PERIOD;
+            }
+            if(started!=0&&now-started<CONNECT_PERIOD*1000L){
+                // don't reconnect too often when server drops connection
+                return (int)((CONNECT_PERIOD*1000L-(now-started)+999)/1000);
+            }
+            if(connecting){
+                log.warning("WatchDog:Login timeout");
+                disconnect();
+            }
+            loginStarted=now;
+            super.login(false);
+            return CONNECT_PERIOD;
+        }catch(JaxmppException ie){
+            if(ie.getCause() instanceof InterruptedException){
+                return PING_PERIOD;
+            }else{
+                log.log(Level.WARNING,"XMPP异常",ie);
+            }
+        }catch(Throwable th){
+            log.log(Level.WARNING,"网络链接异常",th);
         }
+        return CONNECT_PERIOD;
+    }
+
+    private int getLoginTimeout(){
+        Long timeout=sessionObject.getProperty(LOGIN_TIMEOUT_KEY);
+        return timeout==null?LOGIN_TIMEOUT:(int)(timeout/1000);
     }
 
     private void ping() throws XMLException, JaxmppException {
-        while(isConnected()){
-            log.finest("WatchDog:Ping...");
-            IQ iq = IQ.create();
-            iq.setType(StanzaType.get);
-            iq.setTo(JID.jidInstance(sessionObject.getUserBareJid().getDomain()));
-            iq.addChild(new DefaultElement("ping", null, "urn:xmpp:ping"));
-
-            send(iq,PING_PERIOD*1000L, new AsyncCallback(){
-                long t1=System.currentTimeMillis();
-                @Override
-                public void onError(Stanza responseStanza, ErrorCondition error)
-                        throws JaxmppException {
-                    log.info("Error..."+(System.currentTimeMillis()-t1)+"ms");
-                }
+        log.finest("WatchDog:Ping...");
+        IQ iq = IQ.create();
+        iq.setType(StanzaType.get);
+        iq.setTo(JID.jidInstance(sessionObject.getUserBareJid().getDomain()));
+        iq.addChild(new DefaultElement("ping", null, "urn:xmpp:ping"));
 
-                @Override
-                public void onSuccess(Stanza responseStanza)
-                        throws JaxmppException {
-                    log.finest("Pong..."+(System.currentTimeMillis()-t1)+"ms");
-                }
+        send(iq,PING_PERIOD*1000L, new AsyncCallback(){
+            long t1=System.currentTimeMillis();
+            @Override
+            public void onError(Stanza responseStanza, ErrorCondition error)
+                    throws JaxmppException {
+                log.info("Error..."+(System.currentTimeMillis()-t1)+"ms");
+            }
 
-                @Override
-                public void onTimeout() throws JaxmppException {
-                    log.warning("Timeout..."+(System.currentTimeMillis()-t1)+"ms");
-                    disconnect();
-                }
-            });
+            @Override
+            public void onSuccess(Stanza responseStanza)
+                    throws JaxmppException {
+                log.finest("Pong..."+(System.currentTimeMillis()-t1)+"ms");
+            }
 
-            sleep(PING_PERIOD);
-        }
-    }
-    private void sleep(int seconds){
-        try {
-            Thread.sleep(seconds*1000);
-        } catch (InterruptedException e) {
-            log.info("Watchdog:Resumed...");
-        }
+            @Override
+            public void onTimeout() throws JaxmppException {
+                log.warning("Timeout..."+(System.currentTimeMillis()-t1)+"ms");
+                disconnect();
+            }
+        });
     }
 
-    
     public Stanza call(Stanza request) throws JaxmppException{
-        SyncCaller caller=new SyncCaller();
-        send(request, null, caller);
         return call(request,10*1000);
     }
+    /**
+     * Sends request and waits for response.
+     *
+     * @return response stanza (also error one) or <code>null</code> if
+     *         there is no response in given time
+     */
     public Stanza call(Stanza request,long timeout) throws JaxmppException{
-        SyncCaller caller=new SyncCaller();
-        send(request, null, caller);
-        return caller.get(timeout);
-    }
-
-    static class SyncCaller implements AsyncCallback{
-        public Stanza get(long timeout) throws JaxmppException{
-            synchronized(this){
-                if(status==0){
-                    try {
-                        wait(timeout);
-                    } catch (InterruptedException e) {
-                        e.printStackTrace();
-                    }
-                }
-            }
-            return response;
-        }
-
-        Stanza response;
-        private int status;
-        @Override
-        public void onError(Stanza responseStanza, ErrorCondition error)
-                throws JaxmppException {
-            synchronized(this){
-                status=2;
-                this.response=responseStanza;
-                this.notify();
+        final CountDownLatch latch=new CountDownLatch(1);
+        ResponseFuture<Stanza> future=sendAsync(request, timeout);
+        future.addListener(new CompletionListener<Stanza>() {
+            @Override
+            public void onComplete(ResponseFuture<Stanza> future) {
+                latch.countDown();
             }
+        });
+        try {
+            latch.await(timeout, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new JaxmppException(e);
         }
-
-        @Override
-        public void onSuccess(Stanza responseStanza) throws JaxmppException {
-            synchronized(this){
-                status=1;
-                this.response=responseStanza;
-                this.notify();
-            }
+        if(!future.isDone()){
+            return null;
         }
-
-        @Override
-        public void onTimeout() throws JaxmppException {
-            
+        JaxmppException failure=future.getFailure();
+        if(failure instanceof ResponseErrorException){
+            return ((ResponseErrorException)failure).getResponse();
+        }else if(failure instanceof ResponseTimeoutException){
+            return null;
         }
-        
+        return future.getValue();
     }
-}
\ No newline at end of file
+}
@@ -97,13 +97,11 @@ public abstract class BoshWorker implements BoshRequest {
 			try {
 				URL url = sessionObject.getProperty(BoshConnector.URL_KEY);
 				this.conn = (HttpURLConnection) (url.openConnection());
-				String b = body.getAsString();
-				// System.out.println("S: " + b);
 
 				if (!conn.getDoOutput())
 					conn.setDoOutput(true);
-				OutputStreamWriter wr = new OutputStreamWriter(conn.getOutputStream());
-				wr.write(b);
+				OutputStreamWriter wr = new OutputStreamWriter(conn.getOutputStream(), "UTF-8");
+				body.writeTo(wr);
 				wr.flush();
 
 				final int responseCode = conn.getResponseCode();
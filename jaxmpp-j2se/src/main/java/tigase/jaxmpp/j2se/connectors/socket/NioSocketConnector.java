@@ -0,0 +1,669 @@
+/*
+ * Tigase XMPP Client Library
+ * Copyright (C) 2006-2012 "Bartosz Małkowski" <bartosz.malkowski@tigase.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.jaxmpp.j2se.connectors.socket;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLEngineResult.Status;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.TrustManager;
+
+import tigase.jaxmpp.core.client.SessionObject;
+import tigase.jaxmpp.core.client.exceptions.JaxmppException;
+import tigase.jaxmpp.core.client.observer.Observable;
+import tigase.jaxmpp.core.client.xml.Element;
+import tigase.jaxmpp.core.client.xml.XMLException;
+import tigase.jaxmpp.j2se.OrderedExecutor;
+import tigase.jaxmpp.j2se.ThreadSafeResponseManager;
+
+/**
+ * Non-blocking version of {@linkplain SocketConnector}. Connector doesn't
+ * start own threads: channel is served by one of {@linkplain SelectorLoop}s
+ * from {@linkplain SelectorLoopPool}, TLS is handled by {@linkplain SSLEngine},
+ * received bytes are parsed by {@linkplain Utf8StreamParser} and whitespace
+ * pings are sent by idle check of selector loop.
+ *
+ * Selector loop only reads and parses data. Parsed elements, stream events
+ * and errors are processed in order by {@linkplain OrderedExecutor}, so slow
+ * listeners don't stop other channels served by the same loop.
+ *
+ * Custom pool of selectors may be set in session object with key
+ * {@linkplain #SELECTOR_LOOP_POOL_KEY}, custom executor with key
+ * {@linkplain #DISPATCH_EXECUTOR_KEY}. By default pool and executor shared by
+ * all connectors in JVM are used.
+ */
+public class NioSocketConnector extends SocketConnector {
+
+	/**
+	 * Task processing received data. Thread executing it is marked as reader
+	 * thread, so it isn't blocked by limit of requests waiting for response.
+	 */
+	private static abstract class DispatchTask implements Runnable {
+
+		protected abstract void process();
+
+		@Override
+		public final void run() {
+			final boolean reader = ThreadSafeResponseManager.isReaderThread();
+			ThreadSafeResponseManager.setReaderThread(true);
+			try {
+				process();
+			} finally {
+				if (!reader)
+					ThreadSafeResponseManager.setReaderThread(false);
+			}
+		}
+	}
+
+	private static OrderedExecutor defaultDispatchExecutor;
+
+	public static final String DISPATCH_EXECUTOR_KEY = "nio#DispatchExecutor";
+
+	private static final ByteBuffer EMPTY_BUFFER = ByteBuffer.allocate(0);
+
+	public static final String SELECTOR_LOOP_POOL_KEY = "nio#SelectorLoopPool";
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * Returns executor shared by all connectors in JVM. Its queue is not
+	 * limited, because selector loop must not wait for free space.
+	 */
+	public static synchronized OrderedExecutor getDefaultDispatchExecutor() {
+		if (defaultDispatchExecutor == null) {
+			defaultDispatchExecutor = new OrderedExecutor(OrderedExecutor.getDefaultThreads(), Math.max(
+					OrderedExecutor.getDefaultThreads(), OrderedExecutor.DEFAULT_MAX_THREADS), Integer.MAX_VALUE,
+					"jaxmpp-nio-dispatch");
+		}
+		return defaultDispatchExecutor;
+	}
+
+	private static ByteBuffer ensureRemaining(ByteBuffer buffer, int required) {
+		if (buffer.remaining() >= required)
+			return buffer;
+		ByteBuffer result = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + required));
+		buffer.flip();
+		result.put(buffer);
+		return result;
+	}
+
+	private ByteBuffer appIn;
+
+	private volatile SocketChannel channel;
+
+	private final AtomicBoolean closed = new AtomicBoolean(true);
+
+	private OrderedExecutor dispatchExecutor;
+
+	private XMPPDomBuilderHandler domHandler;
+
+	private boolean handshaking;
+
+	private SelectionKey key;
+
+	private volatile long keepaliveDelay = -1;
+
+	private volatile long lastRead;
+
+	private volatile long lastWrite;
+
+	private SelectorLoop loop;
+
+	private ByteBuffer netIn = ByteBuffer.allocate(4096);
+
+	private ByteBuffer netOut = ByteBuffer.allocate(1024);
+
+	private final Utf8StreamParser parser = new Utf8StreamParser();
+
+	private ByteBuffer pendingOut;
+
+	private Entry serverHost;
+
+	private volatile SSLEngine sslEngine;
+
+	/**
+	 * Serialized stanza. Guarded by {@linkplain #writeLock}.
+	 */
+	private final Utf8BufferAppender stanzaOut = new Utf8BufferAppender(1024);
+
+	private long handshakeStartTime;
+
+	private boolean restartAfterHandshake;
+
+	private final Object writeLock = new Object();
+
+	private boolean writeInterest;
+
+	public NioSocketConnector(Observable parentObservable, SessionObject sessionObject) {
+		super(parentObservable, sessionObject);
+	}
+
+	private void closeChannel() {
+		final SocketChannel ch = this.channel;
+		if (ch == null || !closed.compareAndSet(false, true))
+			return;
+		try {
+			ch.close();
+		} catch (IOException e) {
+			log.log(Level.FINEST, "Problem with closing channel", e);
+		}
+		dispatch(new DispatchTask() {
+
+			@Override
+			protected void process() {
+				connectionClosed();
+			}
+		});
+	}
+
+	/**
+	 * Creates DOM handler which processes TLS elements immediately, because
+	 * they change the way next bytes are read, and passes other elements and
+	 * stream events to dispatch executor.
+	 */
+	@Override
+	protected XMPPDomBuilderHandler createDomHandler() {
+		return new XMPPDomBuilderHandler(new StreamListener() {
+
+			@Override
+			public void nextElement(final tigase.xml.Element element) {
+				if ("urn:ietf:params:xml:ns:xmpp-tls".equals(element.getXMLNS())) {
+					try {
+						processElement(element);
+					} catch (JaxmppException e) {
+						log.log(Level.SEVERE, "Error on processing element", e);
+					}
+					return;
+				}
+				dispatch(new DispatchTask() {
+
+					@Override
+					protected void process() {
+						try {
+							processElement(element);
+						} catch (JaxmppException e) {
+							log.log(Level.SEVERE, "Error on processing element", e);
+						}
+					}
+				});
+			}
+
+			@Override
+			public void xmppStreamClosed() {
+				if (log.isLoggable(Level.FINEST))
+					log.finest("xmppStreamClosed()");
+				dispatchStreamTerminate();
+			}
+
+			@Override
+			public void xmppStreamOpened(final Map<String, String> attribs) {
+				if (log.isLoggable(Level.FINEST))
+					log.finest("xmppStreamOpened()");
+				dispatch(new DispatchTask() {
+
+					@Override
+					protected void process() {
+						onStreamStart(attribs);
+					}
+				});
+			}
+		});
+	}
+
+	/**
+	 * Passes task to dispatch executor. Tasks of connector are executed in
+	 * order of dispatching.
+	 */
+	private void dispatch(DispatchTask task) {
+		OrderedExecutor executor = dispatchExecutor;
+		if (executor == null)
+			executor = getDefaultDispatchExecutor();
+		try {
+			executor.execute(this, task);
+		} catch (RejectedExecutionException e) {
+			log.log(Level.WARNING, "Dispatch executor refused task, executing in selector loop", e);
+			task.run();
+		}
+	}
+
+	private void dispatchStreamTerminate() {
+		dispatch(new DispatchTask() {
+
+			@Override
+			protected void process() {
+				try {
+					onStreamTerminate();
+				} catch (JaxmppException e) {
+					log.log(Level.SEVERE, "Error on terminating stream", e);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Stream compression is not supported by this connector.
+	 */
+	@Override
+	protected boolean isCompressionSupported() {
+		return false;
+	}
+
+	@Override
+	protected void closeConnection() {
+		closeChannel();
+	}
+
+	private SSLContext getSSLContext(String serverName) throws Exception {
+		TrustManager[] trustManagers = sessionObject.getProperty(TRUST_MANAGERS_KEY);
+		if (trustManagers == null)
+			return SSLContext.getDefault();
+		return SSLContextCache.getInstance().get(getKeyManagers(), trustManagers, serverName);
+	}
+
+	@Override
+	protected String getTLSServerName() {
+		String domain = sessionObject.getProperty(SessionObject.DOMAIN_NAME);
+		return domain != null ? domain : serverHost.getHostname();
+	}
+
+	private void handshakeFinished() throws JaxmppException {
+		synchronized (writeLock) {
+			// TLS 1.3 reports FINISHED also after post-handshake messages
+			if (!handshaking)
+				return;
+			handshaking = false;
+			if (pendingOut != null && pendingOut.position() > 0) {
+				pendingOut.flip();
+				try {
+					wrap(pendingOut);
+					flushOut();
+				} catch (IOException e) {
+					throw new JaxmppException(e);
+				}
+			}
+			pendingOut = null;
+		}
+		boolean resumed = SSLContextCache.getInstance().handshakeCompleted(sslEngine.getSession(), handshakeStartTime);
+		log.info("TLS completed " + (resumed ? "(session resumed) " : "") + sslEngine.getSession());
+		sessionObject.setProperty(ENCRYPTED_KEY, Boolean.TRUE);
+		sessionObject.setProperty(DISABLE_KEEPALIVE_KEY, Boolean.FALSE);
+		if (restartAfterHandshake)
+			restartStream();
+		// listeners may send data which must follow new stream header
+		dispatch(new DispatchTask() {
+
+			@Override
+			protected void process() {
+				try {
+					ConnectorEvent event = new SocketConnectorEvent(EncryptionEstablished, sessionObject);
+					observable.fireEvent(EncryptionEstablished, event);
+				} catch (JaxmppException e) {
+					log.log(Level.SEVERE, "Error on processing EncryptionEstablished", e);
+				}
+			}
+		});
+	}
+
+	private void flushOut() throws IOException {
+		netOut.flip();
+		try {
+			if (netOut.hasRemaining()) {
+				channel.write(netOut);
+				lastWrite = System.currentTimeMillis();
+			}
+		} finally {
+			netOut.compact();
+		}
+		final boolean pending = netOut.position() > 0;
+		if (key != null && pending != writeInterest) {
+			writeInterest = pending;
+			loop.setInterestOps(key, pending ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+		}
+	}
+
+	void onChannelError(final IOException e) {
+		if (getState() != State.disconnecting && getState() != State.disconnected) {
+			log.log(Level.WARNING, "Exception in channel", e);
+			dispatch(new DispatchTask() {
+
+				@Override
+				protected void process() {
+					try {
+						onErrorInThread(e);
+					} catch (JaxmppException e1) {
+						e1.printStackTrace();
+					}
+				}
+			});
+		}
+		closeChannel();
+	}
+
+	void onIdleCheck(long now) throws JaxmppException {
+		if (closed.get())
+			return;
+		if (sslEngine == null && now - lastRead > SOCKET_TIMEOUT) {
+			onChannelError(new SocketTimeoutException("Read timed out"));
+		} else if (keepaliveDelay > 0 && now - lastWrite >= keepaliveDelay) {
+			keepalive();
+		}
+	}
+
+	void onReadable() {
+		try {
+			int r = channel.read(netIn);
+			if (r == -1) {
+				if (log.isLoggable(Level.FINEST))
+					log.finest("Disconnecting: state=" + getState());
+				if (!closed.get())
+					dispatchStreamTerminate();
+				closeChannel();
+				return;
+			}
+			lastRead = System.currentTimeMillis();
+			if (sslEngine == null) {
+				netIn.flip();
+				parser.parse(domHandler, netIn);
+				netIn.compact();
+			} else {
+				unwrap();
+			}
+		} catch (IOException e) {
+			onChannelError(e);
+		} catch (JaxmppException e) {
+			log.log(Level.SEVERE, "Error on processing data", e);
+		}
+	}
+
+	void onRegistered(SelectionKey key) {
+		synchronized (writeLock) {
+			this.key = key;
+			if (netOut.position() > 0) {
+				writeInterest = true;
+				key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+			}
+		}
+	}
+
+	void onWritable() {
+		try {
+			synchronized (writeLock) {
+				flushOut();
+			}
+		} catch (IOException e) {
+			onChannelError(e);
+		}
+	}
+
+	@Override
+	protected void openConnection(Entry serverHost) throws IOException, JaxmppException {
+		InetAddress x = InetAddress.getByName(serverHost.getHostname());
+		if (log.isLoggable(Level.FINEST))
+			log.finest("Opening channel " + x + ":" + serverHost.getPort());
+		SocketChannel ch = SocketChannel.open();
+		try {
+			ch.socket().connect(new InetSocketAddress(x, serverHost.getPort()), SOCKET_TIMEOUT);
+			ch.socket().setKeepAlive(false);
+			ch.socket().setTcpNoDelay(true);
+			ch.configureBlocking(false);
+		} catch (IOException e) {
+			ch.close();
+			throw e;
+		}
+
+		SelectorLoopPool pool = sessionObject.getProperty(SELECTOR_LOOP_POOL_KEY);
+		if (pool == null)
+			pool = SelectorLoopPool.getDefault();
+
+		synchronized (writeLock) {
+			this.serverHost = serverHost;
+			this.sslEngine = null;
+			this.handshaking = false;
+			this.pendingOut = null;
+			this.key = null;
+			this.writeInterest = false;
+			this.netIn.clear();
+			this.netOut.clear();
+			this.domHandler = createDomHandler();
+			this.dispatchExecutor = sessionObject.getProperty(DISPATCH_EXECUTOR_KEY);
+			this.keepaliveDelay = -1;
+			this.lastRead = this.lastWrite = System.currentTimeMillis();
+			this.loop = pool.next();
+			this.channel = ch;
+			this.closed.set(false);
+		}
+		if (serverHost.isDirectTLS()) {
+			// handshake data is written when channel is registered
+			try {
+				beginHandshake(false);
+			} catch (IOException e) {
+				ch.close();
+				throw e;
+			} catch (Exception e) {
+				ch.close();
+				throw new JaxmppException(e);
+			}
+		}
+		loop.register(ch, this);
+	}
+
+	private void processHandshake(HandshakeStatus hs) throws IOException, JaxmppException {
+		while (true) {
+			switch (hs) {
+			case NEED_TASK:
+				Runnable task;
+				while ((task = sslEngine.getDelegatedTask()) != null) {
+					task.run();
+				}
+				hs = sslEngine.getHandshakeStatus();
+				break;
+			case NEED_WRAP:
+				synchronized (writeLock) {
+					hs = wrap(EMPTY_BUFFER).getHandshakeStatus();
+					flushOut();
+				}
+				break;
+			case FINISHED:
+				handshakeFinished();
+				return;
+			default:
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Creates {@linkplain SSLEngine} and starts handshake.
+	 * 
+	 * @param startTls
+	 *            <code>true</code> if stream should be restarted after
+	 *            handshake
+	 */
+	private void beginHandshake(boolean startTls) throws Exception {
+		final String serverName = getTLSServerName();
+		SSLEngine engine = getSSLContext(serverName).createSSLEngine(serverName, serverHost.getPort());
+		engine.setUseClientMode(true);
+
+		appIn = ByteBuffer.allocate(engine.getSession().getApplicationBufferSize());
+		synchronized (writeLock) {
+			this.handshaking = true;
+			this.restartAfterHandshake = startTls;
+			this.sslEngine = engine;
+		}
+		log.fine("Start handshake");
+		handshakeStartTime = System.currentTimeMillis();
+		engine.beginHandshake();
+		processHandshake(engine.getHandshakeStatus());
+	}
+
+	@Override
+	protected void proceedTLS() throws JaxmppException {
+		log.fine("Proceeding TLS");
+		try {
+			sessionObject.setProperty(DISABLE_KEEPALIVE_KEY, Boolean.TRUE);
+			beginHandshake(true);
+		} catch (final Exception e) {
+			log.log(Level.SEVERE, "Can't establish encrypted connection", e);
+			dispatch(new DispatchTask() {
+
+				@Override
+				protected void process() {
+					try {
+						onError(null, e);
+					} catch (JaxmppException e1) {
+						log.log(Level.SEVERE, "Error on processing TLS failure", e1);
+					}
+				}
+			});
+		}
+	}
+
+	@Override
+	public void send(byte[] buffer) throws JaxmppException {
+		if (channel != null)
+			try {
+				if (log.isLoggable(Level.FINEST))
+					log.finest("Send: " + new String(buffer, UTF8));
+				write(ByteBuffer.wrap(buffer));
+			} catch (IOException e) {
+				throw new JaxmppException(e);
+			}
+	}
+
+	@Override
+	public void send(CharSequence data) throws JaxmppException {
+		send(data.toString().getBytes(UTF8));
+	}
+
+	/**
+	 * Sends stanza. Data is always passed to channel immediately, stanzas sent
+	 * while socket buffer is full are written together.
+	 */
+	@Override
+	public void send(Element stanza, boolean flush) throws XMLException, JaxmppException {
+		if (channel != null)
+			try {
+				if (log.isLoggable(Level.FINEST))
+					log.finest("Send: " + stanza.getAsString());
+
+				// listeners may send elements (e.g. ack requests), which must
+				// be written after this stanza
+				synchronized (writeLock) {
+					stanzaOut.reset();
+					stanza.writeTo(stanzaOut);
+					write(stanzaOut.finish());
+					if (observable.hasListeners(StanzaSending))
+						try {
+							SocketConnectorEvent event = new SocketConnectorEvent(StanzaSending, sessionObject);
+							event.setStanza(stanza);
+							observable.fireEvent(event);
+						} catch (Exception e) {
+						}
+				}
+			} catch (IOException e) {
+				this.stop(true);
+				throw new JaxmppException(e);
+			}
+	}
+
+	@Override
+	protected void startKeepalive(long delay) {
+		this.keepaliveDelay = delay;
+	}
+
+	private void unwrap() throws IOException, JaxmppException {
+		netIn.flip();
+		try {
+			while (netIn.hasRemaining()) {
+				SSLEngineResult r = sslEngine.unwrap(netIn, appIn);
+				if (r.getStatus() == Status.BUFFER_OVERFLOW) {
+					appIn = ensureRemaining(appIn, sslEngine.getSession().getApplicationBufferSize());
+					continue;
+				} else if (r.getStatus() == Status.BUFFER_UNDERFLOW) {
+					break;
+				} else if (r.getStatus() == Status.CLOSED) {
+					dispatchStreamTerminate();
+					return;
+				}
+				processHandshake(r.getHandshakeStatus());
+				if (r.bytesConsumed() == 0 && r.bytesProduced() == 0)
+					break;
+			}
+		} finally {
+			netIn.compact();
+		}
+		netIn = ensureRemaining(netIn, sslEngine.getSession().getPacketBufferSize() - netIn.position());
+		appIn.flip();
+		parser.parse(domHandler, appIn);
+		appIn.compact();
+	}
+
+	private SSLEngineResult wrap(ByteBuffer src) throws SSLException {
+		SSLEngineResult r;
+		while (true) {
+			r = sslEngine.wrap(src, netOut);
+			if (r.getStatus() == Status.BUFFER_OVERFLOW) {
+				netOut = ensureRemaining(netOut, sslEngine.getSession().getPacketBufferSize());
+				continue;
+			} else if (r.getStatus() == Status.CLOSED) {
+				throw new SSLException("SSLEngine is closed");
+			}
+			if (r.getHandshakeStatus() == HandshakeStatus.NEED_TASK) {
+				Runnable task;
+				while ((task = sslEngine.getDelegatedTask()) != null) {
+					task.run();
+				}
+			}
+			if (!src.hasRemaining() || (r.bytesConsumed() == 0 && r.bytesProduced() == 0))
+				return r;
+		}
+	}
+
+	private void write(ByteBuffer data) throws IOException {
+		synchronized (writeLock) {
+			if (sslEngine == null) {
+				netOut = ensureRemaining(netOut, data.remaining());
+				netOut.put(data);
+			} else if (handshaking) {
+				pendingOut = ensureRemaining(pendingOut == null ? ByteBuffer.allocate(data.remaining()) : pendingOut,
+						data.remaining());
+				pendingOut.put(data);
+				return;
+			} else {
+				wrap(data);
+			}
+			flushOut();
+		}
+	}
+
+}
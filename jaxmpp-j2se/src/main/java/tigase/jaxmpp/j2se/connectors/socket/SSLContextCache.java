@@ -0,0 +1,167 @@
+/*
+ * Tigase XMPP Client Library
+ * Copyright (C) 2006-2012 "Bartosz Małkowski" <bartosz.malkowski@tigase.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.jaxmpp.j2se.connectors.socket;
+
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.TrustManager;
+
+/**
+ * Shared cache of {@linkplain SSLContext}s. Connections using the same trust
+ * managers, key managers and server share one context, so they share its
+ * client session cache and reconnection may resume previous TLS session
+ * instead of making full handshake.
+ */
+public class SSLContextCache {
+
+	private static final class Key {
+
+		private final int hash;
+
+		private final String host;
+
+		private final KeyManager[] keyManagers;
+
+		private final TrustManager[] trustManagers;
+
+		Key(KeyManager[] keyManagers, TrustManager[] trustManagers, String host) {
+			this.keyManagers = keyManagers == null ? new KeyManager[0] : keyManagers.clone();
+			this.trustManagers = trustManagers.clone();
+			this.host = host;
+			this.hash = 31 * (31 * Arrays.hashCode(this.keyManagers) + Arrays.hashCode(this.trustManagers))
+					+ (host == null ? 0 : host.hashCode());
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key))
+				return false;
+			Key o = (Key) obj;
+			return hash == o.hash && (host == null ? o.host == null : host.equals(o.host))
+					&& Arrays.equals(keyManagers, o.keyManagers) && Arrays.equals(trustManagers, o.trustManagers);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+	}
+
+	/**
+	 * Maximal number of cached contexts.
+	 */
+	public static final int MAX_SIZE = 64;
+
+	private static final SSLContextCache instance = new SSLContextCache();
+
+	public static SSLContextCache getInstance() {
+		return instance;
+	}
+
+	private final LinkedHashMap<Key, SSLContext> contexts = new LinkedHashMap<Key, SSLContext>(16, 0.75f, true) {
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Key, SSLContext> eldest) {
+			return size() > MAX_SIZE;
+		}
+	};
+
+	private final AtomicLong fullHandshakes = new AtomicLong();
+
+	private final AtomicLong resumedHandshakes = new AtomicLong();
+
+	SSLContextCache() {
+	}
+
+	/**
+	 * Removes all cached contexts.
+	 */
+	public synchronized void clear() {
+		contexts.clear();
+	}
+
+	/**
+	 * Returns context initialized with given managers. Context is created
+	 * only if there is no cached one.
+	 * 
+	 * @param keyManagers
+	 *            key managers, may be <code>null</code>
+	 * @param trustManagers
+	 *            trust managers
+	 * @param host
+	 *            name of server
+	 */
+	public SSLContext get(KeyManager[] keyManagers, TrustManager[] trustManagers, String host)
+			throws GeneralSecurityException {
+		final Key key = new Key(keyManagers, trustManagers, host);
+		synchronized (this) {
+			SSLContext ctx = contexts.get(key);
+			if (ctx == null) {
+				ctx = SSLContext.getInstance("TLS");
+				ctx.init(key.keyManagers, key.trustManagers, new SecureRandom());
+				contexts.put(key, ctx);
+			}
+			return ctx;
+		}
+	}
+
+	/**
+	 * Returns number of completed handshakes which created new TLS session.
+	 */
+	public long getFullHandshakes() {
+		return fullHandshakes.get();
+	}
+
+	/**
+	 * Returns number of completed handshakes which resumed previous TLS
+	 * session.
+	 */
+	public long getResumedHandshakes() {
+		return resumedHandshakes.get();
+	}
+
+	/**
+	 * Updates handshake counters.
+	 * 
+	 * @param session
+	 *            established session
+	 * @param handshakeStartTime
+	 *            time when handshake was started
+	 * @return <code>true</code> if session was resumed
+	 */
+	boolean handshakeCompleted(SSLSession session, long handshakeStartTime) {
+		// resumed session was created during one of previous handshakes
+		final boolean resumed = session.getCreationTime() < handshakeStartTime;
+		if (resumed)
+			resumedHandshakes.incrementAndGet();
+		else
+			fullHandshakes.incrementAndGet();
+		return resumed;
+	}
+
+}
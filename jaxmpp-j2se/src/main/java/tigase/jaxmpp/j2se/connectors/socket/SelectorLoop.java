@@ -0,0 +1,176 @@
+/*
+ * Tigase XMPP Client Library
+ * Copyright (C) 2006-2012 "Bartosz Małkowski" <bartosz.malkowski@tigase.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.jaxmpp.j2se.connectors.socket;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Single thread owning one {@linkplain Selector}. All registered channels are
+ * read and written by this thread, so one loop may serve many connections.
+ * Once per second loop calls {@linkplain NioSocketConnector#onIdleCheck(long)}
+ * on every registered connector to handle keepalive and read timeouts.
+ */
+public class SelectorLoop implements Runnable {
+
+	private static final long IDLE_CHECK_PERIOD = 1000;
+
+	private long lastIdleCheck = System.currentTimeMillis();
+
+	private final Logger log = Logger.getLogger(this.getClass().getName());
+
+	private final Selector selector;
+
+	private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+
+	private final Thread thread;
+
+	public SelectorLoop(String name) throws IOException {
+		this.selector = Selector.open();
+		this.thread = new Thread(this, name);
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+
+	private void checkIdle() {
+		final long now = System.currentTimeMillis();
+		if (now - lastIdleCheck < IDLE_CHECK_PERIOD)
+			return;
+		lastIdleCheck = now;
+		for (SelectionKey key : selector.keys()) {
+			if (!key.isValid())
+				continue;
+			NioSocketConnector connector = (NioSocketConnector) key.attachment();
+			try {
+				connector.onIdleCheck(now);
+			} catch (Exception e) {
+				log.log(Level.WARNING, "Problem on idle check", e);
+			}
+		}
+	}
+
+	/**
+	 * Executes task in loop thread.
+	 *
+	 * @param task
+	 *            task to execute
+	 */
+	public void execute(Runnable task) {
+		if (Thread.currentThread() == thread) {
+			task.run();
+		} else {
+			tasks.offer(task);
+			selector.wakeup();
+		}
+	}
+
+	public boolean isLoopThread() {
+		return Thread.currentThread() == thread;
+	}
+
+	private void processKey(SelectionKey key) {
+		final NioSocketConnector connector = (NioSocketConnector) key.attachment();
+		try {
+			if (key.isReadable()) {
+				connector.onReadable();
+			}
+			if (key.isValid() && key.isWritable()) {
+				connector.onWritable();
+			}
+		} catch (CancelledKeyException e) {
+			log.finest("Key cancelled");
+		}
+	}
+
+	/**
+	 * Registers channel in this loop. Registration is done asynchronously in
+	 * loop thread.
+	 *
+	 * @param channel
+	 *            connected channel in non-blocking mode
+	 * @param connector
+	 *            connector which will process events of channel
+	 */
+	public void register(final SocketChannel channel, final NioSocketConnector connector) {
+		execute(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					SelectionKey key = channel.register(selector, SelectionKey.OP_READ, connector);
+					connector.onRegistered(key);
+				} catch (IOException e) {
+					connector.onChannelError(e);
+				}
+			}
+		});
+	}
+
+	@Override
+	public void run() {
+		while (true) {
+			try {
+				Runnable task;
+				while ((task = tasks.poll()) != null) {
+					try {
+						task.run();
+					} catch (Exception e) {
+						log.log(Level.WARNING, "Exception in selector task", e);
+					}
+				}
+
+				selector.select(IDLE_CHECK_PERIOD);
+
+				Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+				while (it.hasNext()) {
+					SelectionKey key = it.next();
+					it.remove();
+					if (key.isValid())
+						processKey(key);
+				}
+
+				checkIdle();
+			} catch (Exception e) {
+				log.log(Level.SEVERE, "Exception in selector loop", e);
+			}
+		}
+	}
+
+	/**
+	 * Changes interest set of key. Change is applied in loop thread.
+	 */
+	public void setInterestOps(final SelectionKey key, final int ops) {
+		execute(new Runnable() {
+
+			@Override
+			public void run() {
+				if (key.isValid() && key.interestOps() != ops)
+					key.interestOps(ops);
+			}
+		});
+	}
+
+}
@@ -0,0 +1,66 @@
+/*
+ * Tigase XMPP Client Library
+ * Copyright (C) 2006-2012 "Bartosz Małkowski" <bartosz.malkowski@tigase.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.jaxmpp.j2se.connectors.socket;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Fixed group of {@linkplain SelectorLoop}s. Connections are assigned to loops
+ * in round-robin order.
+ */
+public class SelectorLoopPool {
+
+	private static SelectorLoopPool defaultPool;
+
+	/**
+	 * Returns pool shared by all {@linkplain NioSocketConnector}s in JVM. Size of
+	 * pool may be changed by system property
+	 * <code>jaxmpp.nio.selectors</code>.
+	 */
+	public static synchronized SelectorLoopPool getDefault() throws IOException {
+		if (defaultPool == null) {
+			int size = Integer.getInteger("jaxmpp.nio.selectors", Math.min(4, Runtime.getRuntime().availableProcessors()));
+			defaultPool = new SelectorLoopPool(size);
+		}
+		return defaultPool;
+	}
+
+	private final AtomicInteger counter = new AtomicInteger();
+
+	private final SelectorLoop[] loops;
+
+	public SelectorLoopPool(int size) throws IOException {
+		if (size < 1)
+			throw new IllegalArgumentException("Pool size must be greater than 0");
+		this.loops = new SelectorLoop[size];
+		for (int i = 0; i < size; i++) {
+			loops[i] = new SelectorLoop("jaxmpp-selector-" + i);
+		}
+	}
+
+	public SelectorLoop next() {
+		int i = counter.getAndIncrement() & Integer.MAX_VALUE;
+		return loops[i % loops.length];
+	}
+
+	public int size() {
+		return loops.length;
+	}
+
+}
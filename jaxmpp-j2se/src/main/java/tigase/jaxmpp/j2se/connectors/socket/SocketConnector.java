@@ -18,13 +18,15 @@
 package tigase.jaxmpp.j2se.connectors.socket;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.Reader;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.security.GeneralSecurityException;
 import java.security.NoSuchAlgorithmException;
-import java.security.SecureRandom;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
 import java.util.*;
@@ -35,7 +37,6 @@ import javax.net.ssl.HandshakeCompletedEvent;
 import javax.net.ssl.HandshakeCompletedListener;
 import javax.net.ssl.KeyManager;
 import javax.net.ssl.KeyManagerFactory;
-import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLSocket;
 import javax.net.ssl.SSLSocketFactory;
 import javax.net.ssl.TrustManager;
@@ -61,7 +62,11 @@ import tigase.jaxmpp.core.client.xml.XMLException;
 import tigase.jaxmpp.core.client.xmpp.modules.registration.InBandRegistrationModule;
 import tigase.jaxmpp.j2se.DNSResolver;
 import tigase.jaxmpp.j2se.Jaxmpp;
+import tigase.jaxmpp.j2se.ThreadSafeResponseManager;
 import tigase.jaxmpp.j2se.connectors.DeviceInfoManager;
+import tigase.jaxmpp.j2se.scheduler.ScheduledTask;
+import tigase.jaxmpp.j2se.scheduler.Scheduler;
+import tigase.jaxmpp.j2se.scheduler.SchedulerFactory;
 import tigase.jaxmpp.j2se.xml.J2seElement;
 import tigase.xml.SimpleParser;
 import tigase.xml.SingletonFactory;
@@ -74,6 +79,16 @@ public class SocketConnector implements Connector {
 	public static interface DnsResolver {
 
 		List<Entry> resolve(String hostname);
+
+		/**
+		 * Resolves addresses of servers accepting direct TLS connections
+		 * (<code>_xmpps-client._tcp</code> records). Implementation without
+		 * own lookup may return {@linkplain DNSResolver#resolveDirectTLS(String)}.
+		 * 
+		 * @return list of addresses, empty if domain doesn't publish such
+		 *         records
+		 */
+		List<Entry> resolveDirectTLS(String hostname);
 	}
 
 	public final static class Entry {
@@ -82,9 +97,36 @@ public class SocketConnector implements Connector {
 
 		private final Integer port;
 
+		private final int priority;
+
+		private final int weight;
+
+		private final boolean directTLS;
+
 		public Entry(String host, Integer port) {
+			this(host, port, 0, 0);
+		}
+
+		/**
+		 * Creates entry from SRV record.
+		 */
+		public Entry(String host, Integer port, int priority, int weight) {
+			this(host, port, priority, weight, false);
+		}
+
+		/**
+		 * Creates entry from SRV record.
+		 * 
+		 * @param directTLS
+		 *            <code>true</code> if TLS handshake should be made
+		 *            immediately after connecting, without STARTTLS
+		 */
+		public Entry(String host, Integer port, int priority, int weight, boolean directTLS) {
 			this.hostname = host;
 			this.port = port;
+			this.priority = priority;
+			this.weight = weight;
+			this.directTLS = directTLS;
 		}
 
 		public String getHostname() {
@@ -95,9 +137,21 @@ public class SocketConnector implements Connector {
 			return port;
 		}
 
+		public int getPriority() {
+			return priority;
+		}
+
+		public int getWeight() {
+			return weight;
+		}
+
+		public boolean isDirectTLS() {
+			return directTLS;
+		}
+
 		@Override
 		public String toString() {
-			return hostname + ":" + port;
+			return hostname + ":" + port + (directTLS ? " (TLS)" : "");
 		}
 
 	}
@@ -114,44 +168,31 @@ public class SocketConnector implements Connector {
 
 	private class Worker extends Thread {
 
-		private final char[] buffer = new char[10240];
+		private final byte[] buffer = new byte[10240];
 
-		private SocketConnector connector;
+		private final char[] charBuffer;
 
-		private final XMPPDomBuilderHandler domHandler = new XMPPDomBuilderHandler(new StreamListener() {
+		private Reader charReader;
 
-			@Override
-			public void nextElement(tigase.xml.Element element) {
-				try {
-					processElement(element);
-				} catch (JaxmppException e) {
-					log.log(Level.SEVERE, "Error on processing element", e);
-				}
-			}
+		private InputStream charReaderSource;
 
-			@Override
-			public void xmppStreamClosed() {
-				try {
-					if (log.isLoggable(Level.FINEST))
-						log.finest("xmppStreamClosed()");
-					SocketConnector.this.onStreamTerminate();
-				} catch (JaxmppException e) {
-					e.printStackTrace();
-				}
-			}
+		private SocketConnector connector;
 
-			@Override
-			public void xmppStreamOpened(Map<String, String> attribs) {
-				if (log.isLoggable(Level.FINEST))
-					log.finest("xmppStreamOpened()");
-				SocketConnector.this.onStreamStart(attribs);
-			}
-		});
+		private final XMPPDomBuilderHandler domHandler = createDomHandler();
+
+		private final SimpleParser charParser;
 
-		private final SimpleParser parser = SingletonFactory.getParserInstance();
+		private final Utf8StreamParser parser = new Utf8StreamParser();
 
 		public Worker(SocketConnector connector) {
 			this.connector = connector;
+			if (sessionObject.getProperty(USE_CHAR_PARSER_KEY) == Boolean.TRUE) {
+				this.charParser = SingletonFactory.getParserInstance();
+				this.charBuffer = new char[10240];
+			} else {
+				this.charParser = null;
+				this.charBuffer = null;
+			}
 		}
 
 		@Override
@@ -160,23 +201,41 @@ public class SocketConnector implements Connector {
 			log.fine("Worker Interrupted");
 		}
 
+		private InputStream current;
+
+		private int read(InputStream in) throws IOException {
+			current = in;
+			if (charParser == null)
+				return in.read(buffer);
+			if (charReaderSource != in) {
+				charReader = new InputStreamReader(in, "UTF-8");
+				charReaderSource = in;
+			}
+			return charReader.read(charBuffer);
+		}
+
 		@Override
 		public void run() {
 			super.run();
 			log.finest(hashCode() + " Starting " + this);
+			// stanzas (and requests sent by their handlers) are processed here
+			ThreadSafeResponseManager.setReaderThread(true);
 
 			int r = -2;
 			try {
-				while (connector.reader != null && !isInterrupted() && (r = connector.reader.read(buffer)) != -1
+				while (connector.reader != null && !isInterrupted() && (r = read(connector.reader)) != -1
 						&& connector.getState() != Connector.State.disconnected) {
-					parser.parse(domHandler, buffer, 0, r);
+					if (charParser == null)
+						parser.parse(domHandler, buffer, 0, r);
+					else
+						charParser.parse(domHandler, charBuffer, 0, r);
 				}
 				// if (log.isLoggable(Level.FINEST))
 				log.finest(hashCode() + "Disconnecting: state=" + connector.getState() + "; buffer=" + r + "   " + this);
 				if (!isInterrupted())
 					connector.onStreamTerminate();
 			} catch (Exception e) {
-				if (SocketConnector.this.getState() != Connector.State.disconnecting
+				if (!stopped && SocketConnector.this.getState() != Connector.State.disconnecting
 						&& SocketConnector.this.getState() != Connector.State.disconnected) {
 					log.log(Level.WARNING, "Exception in worker", e);
 					try {
@@ -188,11 +247,29 @@ public class SocketConnector implements Connector {
 			} finally {
 				interrupt();
 				log.finest("Worker2 is interrupted");
-				connector.workerTerminated(this);
+				// inflater is returned to pool by thread which used it
+				if (current instanceof ZlibInputStream)
+					((ZlibInputStream) current).close();
+				connector.connectionClosed();
 			}
 		}
 	}
 
+	/**
+	 * Property set to <code>true</code> when stream compression is active.
+	 */
+	public static final String COMPRESSED_KEY = "socket#Compressed";
+
+	/**
+	 * If <code>true</code> then stream compression will not be negotiated.
+	 */
+	public static final String COMPRESSION_DISABLED_KEY = "COMPRESSION_DISABLED";
+
+	/**
+	 * Event fires when server refuses to compress stream.
+	 */
+	public final static EventType CompressionFailed = new EventType();
+
 	/**
 	 * see-other-host
 	 */
@@ -204,14 +281,65 @@ public class SocketConnector implements Connector {
 
 	public static final String SERVER_PORT = "socket#ServerPort";
 
+	/**
+	 * If <code>true</code> then connector makes TLS handshake immediately after
+	 * connecting (<a href="http://xmpp.org/extensions/xep-0368.html">XEP-0368</a>)
+	 * instead of STARTTLS negotiation. Servers are found using
+	 * <code>_xmpps-client._tcp</code> SRV records, or {@link #SERVER_HOST} and
+	 * {@link #SERVER_PORT} (default <code>5223</code>) if set. If domain has no
+	 * such records, STARTTLS is used.
+	 */
+	public static final String DIRECT_TLS_KEY = "socket#DirectTLS";
+
 	public static final String SSL_SOCKET_FACTORY_KEY = "socket#SSLSocketFactory";
 
 	public static final String TLS_DISABLED_KEY = "TLS_DISABLED";
 
+	/**
+	 * If <code>true</code> then received bytes are decoded to characters and
+	 * parsed by {@linkplain SimpleParser}. By default bytes are parsed directly
+	 * by {@linkplain Utf8StreamParser}.
+	 */
+	public static final String USE_CHAR_PARSER_KEY = "socket#UseCharParser";
+
 	public static final String KEY_MANAGERS_KEY = "KEY_MANAGERS_KEY";
 
 	public static final String SASL_EXTERNAL_ENABLED_KEY = "SASL_EXTERNAL_ENABLED_KEY";
 
+	/**
+	 * Size of write queue (in bytes) which causes immediate write. Type:
+	 * {@linkplain Integer}.
+	 */
+	public static final String WRITE_BUFFER_SIZE_KEY = "socket#WriteBufferSize";
+
+	/**
+	 * Maximal time (in milliseconds) stanza may wait in write queue. Type:
+	 * {@linkplain Long}. <code>0</code> disables coalescing of stanzas sent
+	 * from single thread.
+	 */
+	public static final String WRITE_COALESCING_DELAY_KEY = "socket#WriteCoalescingDelay";
+
+	/**
+	 * Checks if server offers <a
+	 * href='http://xmpp.org/extensions/xep-0138.html'>zlib stream
+	 * compression</a>.
+	 */
+	public static boolean isCompressionAvailable(SessionObject sessionObject) throws XMLException {
+		final Element sf = sessionObject.getStreamFeatures();
+		if (sf == null)
+			return false;
+		Element m = sf.getChildrenNS("compression", "http://jabber.org/features/compress");
+		if (m == null)
+			return false;
+		List<Element> methods = m.getChildren("method");
+		if (methods != null)
+			for (Element method : methods) {
+				if ("zlib".equals(method.getValue()))
+					return true;
+			}
+		return false;
+	}
+
 	public static boolean isTLSAvailable(SessionObject sessionObject) throws XMLException {
 		final Element sf = sessionObject.getStreamFeatures();
 		if (sf == null)
@@ -220,7 +348,7 @@ public class SocketConnector implements Connector {
 		return m != null;
 	}
 
-	private final TrustManager dummyTrustManager = new X509TrustManager() {
+	private static final TrustManager dummyTrustManager = new X509TrustManager() {
 
 		@Override
 		public void checkClientTrusted(X509Certificate[] arg0, String arg1) throws CertificateException {
@@ -236,30 +364,47 @@ public class SocketConnector implements Connector {
 		}
 	};
 
-	private final Logger log;
+	protected final Logger log;
 
 	protected Observable observable;
 
-	private TimerTask pingTask;
+	private ScheduledTask pingTask;
 
 	private boolean preventAgainstFireErrors = false;
 
-	private Reader reader;
+	private InputStream reader;
 
-	private SessionObject sessionObject;
+	protected SessionObject sessionObject;
+
+	private final Object sendLock = new Object();
 
 	private Socket socket;
 
+	/**
+	 * State of this connector. It is also stored in session object for other
+	 * components, but connector reads its own copy.
+	 */
+	private volatile State state = State.disconnected;
+
+	/**
+	 * Set when connector is stopped. Connection state is kept in session
+	 * object, which may be already used by next connector, so worker of
+	 * stopped connector must not change it.
+	 */
+	private volatile boolean stopped;
+
+	private ZlibOutputStream zlibOut;
+
 	/**
 	 * Socket timeout.
 	 */
-	private int SOCKET_TIMEOUT = 1000 * 60 * 3;
+	protected int SOCKET_TIMEOUT = 1000 * 60 * 3;
 
-	private final Timer timer = new Timer(true);
+	protected final Scheduler scheduler = SchedulerFactory.getScheduler();
 
 	private Worker worker;
 
-	private OutputStream writer;
+	private volatile WriteQueue writeQueue;
 
 	public SocketConnector(Observable parentObservable, SessionObject sessionObject2) {
 		this.observable = ObservableFactory.instance(parentObservable);
@@ -276,6 +421,42 @@ public class SocketConnector implements Connector {
 		observable.addListener(listener);
 	}
 
+	/**
+	 * Creates DOM handler which passes parsed stanzas and stream events back to
+	 * this connector.
+	 */
+	protected XMPPDomBuilderHandler createDomHandler() {
+		return new XMPPDomBuilderHandler(new StreamListener() {
+
+			@Override
+			public void nextElement(tigase.xml.Element element) {
+				try {
+					processElement(element);
+				} catch (JaxmppException e) {
+					log.log(Level.SEVERE, "Error on processing element", e);
+				}
+			}
+
+			@Override
+			public void xmppStreamClosed() {
+				try {
+					if (log.isLoggable(Level.FINEST))
+						log.finest("xmppStreamClosed()");
+					SocketConnector.this.onStreamTerminate();
+				} catch (JaxmppException e) {
+					e.printStackTrace();
+				}
+			}
+
+			@Override
+			public void xmppStreamOpened(Map<String, String> attribs) {
+				if (log.isLoggable(Level.FINEST))
+					log.finest("xmppStreamOpened()");
+				SocketConnector.this.onStreamStart(attribs);
+			}
+		});
+	}
+
 	@Override
 	public XmppSessionLogic createSessionLogic(XmppModulesManager modulesManager, PacketWriter writer) {
 		if (sessionObject.getProperty(InBandRegistrationModule.IN_BAND_REGISTRATION_MODE_KEY) == Boolean.TRUE) {
@@ -312,6 +493,8 @@ public class SocketConnector implements Connector {
 	}
 
 	protected void fireOnStanzaReceived(Element response, SessionObject sessionObject) throws JaxmppException {
+		if (!this.observable.hasListeners(StanzaReceived))
+			return;
 		ConnectorEvent event = new SocketConnectorEvent(StanzaReceived, sessionObject);
 		event.setStanza(response);
 		this.observable.fireEvent(event.getType(), event);
@@ -327,6 +510,8 @@ public class SocketConnector implements Connector {
 		Integer port = (Integer) sessionObject.getProperty(SERVER_PORT);
 		if (serverHost == null)
 			return null;
+		if (isDirectTLS())
+			return new Entry(serverHost, port == null ? 5223 : port, 0, 0, true);
 		return new Entry(serverHost, port == null ? 5222 : port);
 
 	}
@@ -341,8 +526,25 @@ public class SocketConnector implements Connector {
 	 */
 	@Override
 	public State getState() {
-		State st = this.sessionObject.getProperty(CONNECTOR_STAGE_KEY);
-		return st == null ? State.disconnected : st;
+		return state;
+	}
+
+	/**
+	 * Checks if stream compression is active.
+	 */
+	public boolean isCompressed() {
+		return ((Boolean) sessionObject.getProperty(COMPRESSED_KEY)) == Boolean.TRUE;
+	}
+
+	private boolean isDirectTLS() {
+		return sessionObject.getProperty(DIRECT_TLS_KEY) == Boolean.TRUE;
+	}
+
+	/**
+	 * Checks if connector is able to compress stream.
+	 */
+	protected boolean isCompressionSupported() {
+		return true;
 	}
 
 	@Override
@@ -358,6 +560,51 @@ public class SocketConnector implements Connector {
 			send(new byte[] { 32 });
 	}
 
+	/**
+	 * Opens connection to given server and starts reading incoming data.
+	 * 
+	 * @param serverHost
+	 *            address of XMPP server
+	 */
+	protected void openConnection(Entry serverHost) throws IOException, JaxmppException {
+		InetAddress x = InetAddress.getByName(serverHost.getHostname());
+		if (log.isLoggable(Level.FINEST))
+			log.finest("Starting socket " + x + ":" + serverHost.getPort());
+		socket = new Socket();
+		try {
+			socket.connect(new InetSocketAddress(x, serverHost.getPort()), SOCKET_TIMEOUT);
+		} catch (IOException e) {
+			socket.close();
+			throw e;
+		}
+		// if (sessionObject.getProperty(DISABLE_SOCKET_TIMEOUT_KEY) == null
+		// || ((Boolean)
+		// sessionObject.getProperty(DISABLE_SOCKET_TIMEOUT_KEY)).booleanValue())
+		// {
+		// socket.setSoTimeout(SOCKET_TIMEOUT);
+		// }
+		socket.setSoTimeout(SOCKET_TIMEOUT);
+		socket.setKeepAlive(false);
+		socket.setTcpNoDelay(true);
+		if (serverHost.isDirectTLS()) {
+			try {
+				socket = createTLSSocket(socket);
+			} catch (IOException e) {
+				socket.close();
+				throw e;
+			} catch (GeneralSecurityException e) {
+				socket.close();
+				throw new JaxmppException(e);
+			}
+			observable.fireEvent(EncryptionEstablished, new SocketConnectorEvent(EncryptionEstablished, sessionObject));
+		}
+		writeQueue = createWriteQueue(socket.getOutputStream());
+		reader = socket.getInputStream();
+		worker = new Worker(this);
+		log.finest("Starting worker...");
+		worker.start();
+	}
+
 	protected void onError(Element response, Throwable caught) throws JaxmppException {
 		if (response != null) {
 			Element seeOtherHost = response.getChildrenNS("see-other-host", "urn:ietf:params:xml:ns:xmpp-streams");
@@ -406,6 +653,15 @@ public class SocketConnector implements Connector {
 
 	}
 
+	public void onCompressStanza(tigase.xml.Element elem) throws JaxmppException {
+		if (elem.getName().equals("compressed")) {
+			proceedCompression();
+		} else if (elem.getName().equals("failure")) {
+			log.info("Compression failure");
+			observable.fireEvent(CompressionFailed, new SocketConnectorEvent(CompressionFailed, sessionObject));
+		}
+	}
+
 	public void onTLSStanza(tigase.xml.Element elem) throws JaxmppException {
 		if (elem.getName().equals("proceed")) {
 			proceedTLS();
@@ -419,59 +675,90 @@ public class SocketConnector implements Connector {
 		return result == null ? new KeyManager[0] : result;
 	}
 
-	protected void proceedTLS() throws JaxmppException {
-		log.fine("Proceeding TLS");
+	/**
+	 * Returns name of server used in TLS handshake.
+	 */
+	protected String getTLSServerName() {
+		String domain = sessionObject.getProperty(SessionObject.DOMAIN_NAME);
+		return domain != null ? domain : socket.getInetAddress().getHostName();
+	}
+
+	protected void proceedCompression() throws JaxmppException {
+		log.fine("Proceeding compression");
 		try {
 			sessionObject.setProperty(DISABLE_KEEPALIVE_KEY, Boolean.TRUE);
-			TrustManager[] trustManagers = sessionObject.getProperty(TRUST_MANAGERS_KEY);
-			final SSLSocketFactory factory;
-			if (trustManagers == null) {
-				if (sessionObject.getProperty(SSL_SOCKET_FACTORY_KEY) != null) {
-					factory = sessionObject.getProperty(SSL_SOCKET_FACTORY_KEY);
-				} else {
-					factory = (SSLSocketFactory) SSLSocketFactory.getDefault();
-				}
+			flushAndCloseWriteQueue();
+			zlibOut = new ZlibOutputStream(socket.getOutputStream());
+			writeQueue = createWriteQueue(zlibOut);
+			reader = new ZlibInputStream(socket.getInputStream());
+			sessionObject.setProperty(COMPRESSED_KEY, Boolean.TRUE);
+			restartStream();
+		} catch (Exception e) {
+			log.log(Level.SEVERE, "Can't establish compressed connection", e);
+			onError(null, e);
+		} finally {
+			sessionObject.setProperty(DISABLE_KEEPALIVE_KEY, Boolean.FALSE);
+		}
+	}
+
+	/**
+	 * Wraps connected socket with {@linkplain SSLSocket} and makes TLS
+	 * handshake.
+	 */
+	private SSLSocket createTLSSocket(final Socket plainSocket) throws IOException, GeneralSecurityException {
+		TrustManager[] trustManagers = sessionObject.getProperty(TRUST_MANAGERS_KEY);
+		final String serverName = getTLSServerName();
+		final SSLSocketFactory factory;
+		if (trustManagers == null) {
+			if (sessionObject.getProperty(SSL_SOCKET_FACTORY_KEY) != null) {
+				factory = sessionObject.getProperty(SSL_SOCKET_FACTORY_KEY);
 			} else {
-				SSLContext ctx = SSLContext.getInstance("TLS");
-				ctx.init(getKeyManagers(), trustManagers, new SecureRandom());
-				factory = ctx.getSocketFactory();
+				factory = (SSLSocketFactory) SSLSocketFactory.getDefault();
 			}
+		} else {
+			factory = SSLContextCache.getInstance().get(getKeyManagers(), trustManagers, serverName).getSocketFactory();
+		}
 
-			SSLSocket s1 = (SSLSocket) factory.createSocket(socket, socket.getInetAddress().getHostAddress(), socket.getPort(),
-					true);
-
-			// if (sessionObject.getProperty(DISABLE_SOCKET_TIMEOUT_KEY) == null
-			// || !((Boolean)
-			// sessionObject.getProperty(DISABLE_SOCKET_TIMEOUT_KEY)).booleanValue())
-			// {
-			// s1.setSoTimeout(SOCKET_TIMEOUT);
-			// }
-			s1.setSoTimeout(0);
-			s1.setKeepAlive(false);
-			s1.setTcpNoDelay(true);
-			s1.setUseClientMode(true);
-			s1.addHandshakeCompletedListener(new HandshakeCompletedListener() {
-
-				@Override
-				public void handshakeCompleted(HandshakeCompletedEvent arg0) {
-					log.info("TLS completed " + arg0);
-					sessionObject.setProperty(ENCRYPTED_KEY, Boolean.TRUE);
-					ConnectorEvent event = new SocketConnectorEvent(EncryptionEstablished, sessionObject);
-					try {
-						observable.fireEvent(EncryptionEstablished, event);
-					} catch (JaxmppException e) {
-						throw new RuntimeException(e);
-					}
-				}
-			});
-			writer = null;
+		// server name is used to find session which may be resumed
+		SSLSocket s1 = (SSLSocket) factory.createSocket(plainSocket, serverName, plainSocket.getPort(), true);
+		final long handshakeStartTime = System.currentTimeMillis();
+
+		// if (sessionObject.getProperty(DISABLE_SOCKET_TIMEOUT_KEY) == null
+		// || !((Boolean)
+		// sessionObject.getProperty(DISABLE_SOCKET_TIMEOUT_KEY)).booleanValue())
+		// {
+		// s1.setSoTimeout(SOCKET_TIMEOUT);
+		// }
+		s1.setSoTimeout(0);
+		s1.setKeepAlive(false);
+		s1.setTcpNoDelay(true);
+		s1.setUseClientMode(true);
+		s1.addHandshakeCompletedListener(new HandshakeCompletedListener() {
+
+			@Override
+			public void handshakeCompleted(HandshakeCompletedEvent arg0) {
+				boolean resumed = SSLContextCache.getInstance().handshakeCompleted(arg0.getSession(), handshakeStartTime);
+				log.info("TLS completed " + (resumed ? "(session resumed) " : "") + arg0);
+			}
+		});
+		log.fine("Start handshake");
+		s1.startHandshake();
+		sessionObject.setProperty(ENCRYPTED_KEY, Boolean.TRUE);
+		return s1;
+	}
+
+	protected void proceedTLS() throws JaxmppException {
+		log.fine("Proceeding TLS");
+		try {
+			sessionObject.setProperty(DISABLE_KEEPALIVE_KEY, Boolean.TRUE);
+			flushAndCloseWriteQueue();
 			reader = null;
-			log.fine("Start handshake");
-			s1.startHandshake();
-			socket = s1;
-			writer = socket.getOutputStream();
-			reader = new InputStreamReader(socket.getInputStream());
+			socket = createTLSSocket(socket);
+			writeQueue = createWriteQueue(socket.getOutputStream());
+			reader = socket.getInputStream();
 			restartStream();
+			// listeners may send data which must follow new stream header
+			observable.fireEvent(EncryptionEstablished, new SocketConnectorEvent(EncryptionEstablished, sessionObject));
 		} catch (javax.net.ssl.SSLHandshakeException e) {
 			log.log(Level.SEVERE, "Can't establish encrypted connection", e);
 			onError(null, e);
@@ -488,6 +775,8 @@ public class SocketConnector implements Connector {
 			log.finest("RECV: " + elem.toString());
 		if (elem != null && elem.getXMLNS() != null && elem.getXMLNS().equals("urn:ietf:params:xml:ns:xmpp-tls")) {
 			onTLSStanza(elem);
+		} else if (elem != null && "http://jabber.org/protocol/compress".equals(elem.getXMLNS())) {
+			onCompressStanza(elem);
 		} else
 			try {
 				onResponse(new J2seElement(elem));
@@ -507,7 +796,7 @@ public class SocketConnector implements Connector {
 			this.sessionObject.setProperty(SERVER_HOST, newHost);
 			worker = null;
 			reader = null;
-			writer = null;
+			closeWriteQueue();
 
 			this.sessionObject.setProperty(RECONNECTING_KEY, Boolean.TRUE);
 			this.sessionObject.setProperty(Jaxmpp.SYNCHRONIZED_MODE, x1);
@@ -564,36 +853,83 @@ public class SocketConnector implements Connector {
 
 		if (log.isLoggable(Level.FINEST))
 			log.finest("Restarting XMPP Stream");
-		send(sb.toString().getBytes());
+		send(sb);
 	}
 
+	/**
+	 * Sends bytes immediately. All stanzas waiting in write queue are sent
+	 * before.
+	 */
 	public void send(byte[] buffer) throws JaxmppException {
-		if (writer != null)
+		final WriteQueue writeQueue = this.writeQueue;
+		if (writeQueue != null)
+			try {
+				if (log.isLoggable(Level.FINEST))
+					log.finest("Send: " + new String(buffer, "UTF-8"));
+				writeQueue.write(buffer, true);
+			} catch (IOException e) {
+				throw new JaxmppException(e);
+			}
+	}
+
+	/**
+	 * Sends characters encoded in UTF-8 immediately. All stanzas waiting in
+	 * write queue are sent before.
+	 */
+	public void send(CharSequence data) throws JaxmppException {
+		final WriteQueue writeQueue = this.writeQueue;
+		if (writeQueue != null)
 			try {
 				if (log.isLoggable(Level.FINEST))
-					log.finest("Send: " + new String(buffer));
-				writer.write(buffer);
+					log.finest("Send: " + data);
+				writeQueue.write(data, true);
 			} catch (IOException e) {
 				throw new JaxmppException(e);
 			}
 	}
 
+	/**
+	 * Sends stanza. IQs and other non-stanza elements are written
+	 * immediately, messages and presences may be held for a short time in
+	 * write queue to be sent together with following stanzas.
+	 */
 	@Override
 	public void send(Element stanza) throws XMLException, JaxmppException {
-		if (writer != null)
+		final String name = stanza.getName();
+		send(stanza, !"message".equals(name) && !"presence".equals(name));
+	}
+
+	/**
+	 * Sends stanza.
+	 * 
+	 * @param stanza
+	 *            stanza to send
+	 * @param flush
+	 *            <code>true</code> if stanza (and all stanzas waiting in queue)
+	 *            should be written immediately. Otherwise stanza may wait in
+	 *            queue up to {@linkplain #WRITE_COALESCING_DELAY_KEY} ms.
+	 */
+	public void send(Element stanza, boolean flush) throws XMLException, JaxmppException {
+		final WriteQueue writeQueue = this.writeQueue;
+		if (writeQueue != null)
 			try {
-				String t = stanza.getAsString();
 				if (log.isLoggable(Level.FINEST))
-					log.finest("Send: " + t);
-
-				try {
-					SocketConnectorEvent event = new SocketConnectorEvent(StanzaSending, sessionObject);
-					event.setStanza(stanza);
-					observable.fireEvent(event);
-				} catch (Exception e) {
+					log.finest("Send: " + stanza.getAsString());
+
+				// listeners may send elements (e.g. ack requests), which must
+				// be queued after this stanza
+				synchronized (sendLock) {
+					writeQueue.write(stanza, false);
+					if (observable.hasListeners(StanzaSending))
+						try {
+							SocketConnectorEvent event = new SocketConnectorEvent(StanzaSending, sessionObject);
+							event.setStanza(stanza);
+							observable.fireEvent(event);
+						} catch (Exception e) {
+						}
 				}
-
-				writer.write(t.getBytes());
+				if (flush)
+					writeQueue.flush();
 			} catch (IOException e) {
 				this.stop(true);
 				throw new JaxmppException(e);
@@ -609,8 +945,9 @@ public class SocketConnector implements Connector {
 	}
 
 	protected void setStage(State state) throws JaxmppException {
-		State s = this.sessionObject.getProperty(CONNECTOR_STAGE_KEY);
-		this.sessionObject.setProperty(CONNECTOR_STAGE_KEY, state);
+		State s = this.state;
+		this.state = state;
+		this.sessionObject.setProperty(CONNECTOR_STAGE, state);
 		if (s != state) {
 			log.fine("Connector state changed: " + s + "->" + state);
 			ConnectorEvent e = new SocketConnectorEvent(StateChanged, sessionObject);
@@ -624,6 +961,7 @@ public class SocketConnector implements Connector {
 	@Override
 	public void start() throws XMLException, JaxmppException {
 		preventAgainstFireErrors = false;
+		stopped = false;
 		log.fine("Start connector.");
 
 		if (sessionObject.getProperty(TRUST_MANAGERS_KEY) == null)
@@ -633,67 +971,52 @@ public class SocketConnector implements Connector {
 
 		try {
 			Entry serverHost = getHostFromSessionObject();
+			final List<Entry> xx;
 			if (serverHost == null) {
 				String x = sessionObject.getProperty(SessionObject.DOMAIN_NAME);
 				log.info("Resolving SRV recrd of domain '" + x + "'");
-				List<Entry> xx;
+				xx = new ArrayList<Entry>();
 				DnsResolver dnsResolver = UniversalFactory.createInstance(DnsResolver.class.getName());
+				// direct TLS servers are preferred, STARTTLS is fallback
 				if (dnsResolver != null) {
-					xx = dnsResolver.resolve(x);
+					if (isDirectTLS())
+						xx.addAll(dnsResolver.resolveDirectTLS(x));
+					xx.addAll(dnsResolver.resolve(x));
 				} else {
-					xx = DNSResolver.resolve(x);
-				}
-
-				if (xx.size() > 0) {
-					serverHost = xx.get(0);
+					if (isDirectTLS())
+						xx.addAll(DNSResolver.resolveDirectTLS(x));
+					xx.addAll(DNSResolver.resolve(x));
 				}
+			} else {
+				xx = Collections.singletonList(serverHost);
 			}
 
+			if (xx.isEmpty())
+				throw new JaxmppException("No address of server found");
+
 			sessionObject.setProperty(DISABLE_KEEPALIVE_KEY, Boolean.FALSE);
 
-			if (log.isLoggable(Level.FINER))
-				log.finer("Preparing connection to " + serverHost);
-
-			InetAddress x = InetAddress.getByName(serverHost.getHostname());
-			if (log.isLoggable(Level.FINEST))
-				log.finest("Starting socket " + x + ":" + serverHost.getPort());
-			socket = new Socket(x, serverHost.getPort());
-			// if (sessionObject.getProperty(DISABLE_SOCKET_TIMEOUT_KEY) == null
-			// || ((Boolean)
-			// sessionObject.getProperty(DISABLE_SOCKET_TIMEOUT_KEY)).booleanValue())
-			// {
-			// socket.setSoTimeout(SOCKET_TIMEOUT);
-			// }
-			socket.setSoTimeout(SOCKET_TIMEOUT);
-			socket.setKeepAlive(false);
-			socket.setTcpNoDelay(true);
-			// writer = new BufferedOutputStream(socket.getOutputStream());
-			writer = socket.getOutputStream();
-			reader = new InputStreamReader(socket.getInputStream());
-			worker = new Worker(this);
-			log.finest("Starting worker...");
-			worker.start();
+			// targets are tried in order returned by resolver
+			IOException connectException = null;
+			for (Entry host : xx) {
+				if (log.isLoggable(Level.FINER))
+					log.finer("Preparing connection to " + host);
+				try {
+					openConnection(host);
+					connectException = null;
+					break;
+				} catch (IOException e) {
+					log.log(Level.FINE, "Can't connect to " + host, e);
+					connectException = e;
+				}
+			}
+			if (connectException != null)
+				throw connectException;
 
 			restartStream();
 
 			setStage(State.connected);
 
-			this.pingTask = new TimerTask() {
-
-				@Override
-				public void run() {
-					new Thread() {
-						@Override
-						public void run() {
-							try {
-								keepalive();
-							} catch (JaxmppException e) {
-								log.log(Level.SEVERE, "Can't ping!", e);
-							}
-						}
-					}.start();
-				}
-			};
 			long delay = SOCKET_TIMEOUT - 1000 * 5;
 
 			if (log.isLoggable(Level.CONFIG))
@@ -701,7 +1024,7 @@ public class SocketConnector implements Connector {
 
 			if (sessionObject.getProperty(EXTERNAL_KEEPALIVE_KEY) == null
 					|| ((Boolean) sessionObject.getProperty(EXTERNAL_KEEPALIVE_KEY) == false)) {
-				timer.schedule(pingTask, delay, delay);
+				startKeepalive(delay);
 			}
 
 			fireOnConnected(sessionObject);
@@ -712,15 +1035,48 @@ public class SocketConnector implements Connector {
 		}
 	}
 
-	public void startTLS() throws JaxmppException {
-		if (writer != null)
-			try {
-				log.fine("Start TLS");
-				DefaultElement e = new DefaultElement("starttls", null, "urn:ietf:params:xml:ns:xmpp-tls");
-				send(e.getAsString().getBytes());
-			} catch (Exception e) {
-				throw new JaxmppException(e);
+	/**
+	 * Starts sending whitespace pings.
+	 * 
+	 * @param delay
+	 *            ping period in milliseconds
+	 */
+	protected void startKeepalive(long delay) {
+		this.pingTask = scheduler.schedule(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					keepalive();
+				} catch (JaxmppException e) {
+					log.log(Level.SEVERE, "Can't ping!", e);
+				}
 			}
+		}, delay, delay);
+	}
+
+	/**
+	 * Requests zlib compression of stream.
+	 */
+	public void startCompression() throws JaxmppException {
+		try {
+			log.fine("Start compression");
+			DefaultElement e = new DefaultElement("compress", null, "http://jabber.org/protocol/compress");
+			e.addChild(new DefaultElement("method", "zlib", null));
+			send(e.getAsString());
+		} catch (Exception e) {
+			throw new JaxmppException(e);
+		}
+	}
+
+	public void startTLS() throws JaxmppException {
+		try {
+			log.fine("Start TLS");
+			DefaultElement e = new DefaultElement("starttls", null, "urn:ietf:params:xml:ns:xmpp-tls");
+			send(e.getAsString());
+		} catch (Exception e) {
+			throw new JaxmppException(e);
+		}
 	}
 
 	@Override
@@ -730,6 +1086,7 @@ public class SocketConnector implements Connector {
 
 	@Override
 	public void stop(boolean terminate) throws JaxmppException {
+		stopped = true;
 		if (getState() == State.disconnected)
 			return;
 		setStage(State.disconnecting);
@@ -738,19 +1095,24 @@ public class SocketConnector implements Connector {
 		terminateAllWorkers();
 	}
 
-	private void terminateAllWorkers() throws JaxmppException {
-		log.finest("Terminating all workers");
-		if (this.pingTask != null) {
-			this.pingTask.cancel();
-			this.pingTask = null;
-		}
-		setStage(State.disconnected);
+	/**
+	 * Closes connection. Worker thread will be stopped.
+	 */
+	protected void closeConnection() {
+		closeWriteQueue();
 		try {
 			if (socket != null)
 				socket.close();
 		} catch (IOException e) {
 			log.log(Level.FINEST, "Problem with closing socket", e);
 		}
+		final ZlibOutputStream zlibOut = this.zlibOut;
+		this.zlibOut = null;
+		if (zlibOut != null) {
+			if (log.isLoggable(Level.FINE))
+				log.fine("Compressed " + zlibOut.getBytesIn() + " bytes to " + zlibOut.getBytesOut());
+			zlibOut.close();
+		}
 		try {
 			if (worker != null)
 				worker.interrupt();
@@ -759,17 +1121,73 @@ public class SocketConnector implements Connector {
 		}
 	}
 
+	private void closeWriteQueue() {
+		final WriteQueue writeQueue = this.writeQueue;
+		this.writeQueue = null;
+		if (writeQueue != null)
+			writeQueue.close();
+	}
+
+	/**
+	 * Writes data waiting in write queue to current stream and closes queue.
+	 * Used before stream is replaced by compressed or encrypted one.
+	 */
+	private void flushAndCloseWriteQueue() throws IOException {
+		final WriteQueue writeQueue = this.writeQueue;
+		this.writeQueue = null;
+		if (writeQueue != null)
+			writeQueue.flushAndClose();
+	}
+
+	private WriteQueue createWriteQueue(OutputStream out) {
+		Integer size = sessionObject.getProperty(WRITE_BUFFER_SIZE_KEY);
+		Long delay = sessionObject.getProperty(WRITE_COALESCING_DELAY_KEY);
+		return new WriteQueue(out, size == null ? WriteQueue.DEFAULT_MAX_BUFFER_SIZE : size,
+				delay == null ? WriteQueue.DEFAULT_COALESCING_DELAY : delay, scheduler);
+	}
+
+	/**
+	 * Writes immediately all stanzas waiting in write queue.
+	 */
+	public void flush() throws JaxmppException {
+		final WriteQueue writeQueue = this.writeQueue;
+		if (writeQueue != null)
+			try {
+				writeQueue.flush();
+			} catch (IOException e) {
+				throw new JaxmppException(e);
+			}
+	}
+
+	protected void terminateAllWorkers() throws JaxmppException {
+		log.finest("Terminating all workers");
+		if (this.pingTask != null) {
+			this.pingTask.cancel();
+			this.pingTask = null;
+		}
+		setStage(State.disconnected);
+		closeConnection();
+	}
+
 	private void terminateStream() throws JaxmppException {
 		final State state = getState();
 		if (state == State.connected || state == State.connecting) {
 			String x = "</stream:stream>";
 			log.fine("Terminating XMPP Stream");
-			send(x.getBytes());
+			send(x);
 		} else
 			log.fine("Stream terminate not sent, because of connection state==" + state);
 	}
 
-	private void workerTerminated(final Worker worker) {
+	/**
+	 * Called when connection is closed and nothing will be read from it
+	 * anymore.
+	 */
+	protected void connectionClosed() {
+		if (stopped) {
+			log.finest("Worker terminated");
+			return;
+		}
 		try {
 			setStage(State.disconnected);
 		} catch (JaxmppException e) {
@@ -17,10 +17,13 @@
  */
 package tigase.jaxmpp.j2se.connectors.socket;
 
+import java.util.logging.Logger;
+
 import tigase.jaxmpp.core.client.*;
 import tigase.jaxmpp.core.client.Connector.ConnectorEvent;
 import tigase.jaxmpp.core.client.exceptions.JaxmppException;
 import tigase.jaxmpp.core.client.observer.Listener;
+import tigase.jaxmpp.core.client.xml.Element;
 import tigase.jaxmpp.core.client.xml.XMLException;
 import tigase.jaxmpp.core.client.xmpp.modules.ResourceBinderModule;
 import tigase.jaxmpp.core.client.xmpp.modules.ResourceBinderModule.ResourceBindEvent;
@@ -33,9 +36,48 @@ import tigase.jaxmpp.core.client.xmpp.modules.auth.NonSaslAuthModule;
 import tigase.jaxmpp.core.client.xmpp.modules.auth.NonSaslAuthModule.NonSaslAuthEvent;
 import tigase.jaxmpp.core.client.xmpp.modules.auth.SaslModule.SaslEvent;
 import tigase.jaxmpp.core.client.xmpp.modules.presence.PresenceModule;
+import tigase.jaxmpp.core.client.xmpp.modules.streammng.StreamManagementModule;
+import tigase.jaxmpp.core.client.xmpp.modules.streammng.StreamManagementModule.StreamManagementEvent;
 
 public class SocketXmppSessionLogic implements XmppSessionLogic {
 
+    private static final Logger log = Logger.getLogger(SocketXmppSessionLogic.class.getName());
+
+    /**
+     * Stream features received during successful login. Used to send requests
+     * of next login before features are received.
+     */
+    private static class RememberedFeatures {
+
+        private final String domain;
+
+        private final Element[] features;
+
+        RememberedFeatures(String domain, Element[] features) {
+            this.domain = domain;
+            this.features = features;
+        }
+    }
+
+    /**
+     * If <code>true</code> then requests of login steps (STARTTLS, SASL
+     * authentication, resource binding and session establishment) are sent
+     * without waiting for stream features, using features received during
+     * previous successful login. If received features are different, they are
+     * forgotten and next login is made step by step. Pipelined request which
+     * failed is then replaced by step chosen using received features (for
+     * example STARTTLS, when server requires it now).
+     */
+    public static final String FAST_LOGIN_KEY = "socket#FastLogin";
+
+    private static final String REMEMBERED_FEATURES_KEY = "socket#RememberedFeatures";
+
+    private static final int STAGE_PLAIN = 0;
+
+    private static final int STAGE_SECURED = 1;
+
+    private static final int STAGE_AUTHORIZED = 2;
+
     private final SocketConnector connector;
     private final XmppModulesManager modulesManager;
     private final Listener<AuthModule.AuthEvent> saslEventListener;
@@ -49,6 +91,17 @@ public class SocketXmppSessionLogic implements XmppSessionLogic {
     private Listener<SessionEstablishmentEvent> sessionEstablishmentListener;
     private SessionEstablishmentModule sessionEstablishmentModule;
     private SessionListener sessionListener;
+    private StreamManagementModule streamManagementModule;
+    private final Listener<StreamManagementEvent> streamManagementFailedListener;
+    private boolean resumptionRequested;
+    /**
+     * <code>true</code> if received features differ from remembered ones and
+     * pipelined request is not finished yet.
+     */
+    private boolean replan;
+    private final Element[] receivedFeatures = new Element[3];
+    private int pipelinedStage = -1;
+    private boolean sessionPipelined;
 
     public SocketXmppSessionLogic(SocketConnector connector, XmppModulesManager modulesManager, SessionObject sessionObject,
                                   PacketWriter writer) {
@@ -116,6 +169,17 @@ public class SocketXmppSessionLogic implements XmppSessionLogic {
                         sessionBindedAndEstablished();
                     }
                 };
+        this.streamManagementFailedListener = new Listener<StreamManagementEvent>() {
+
+            @Override
+            public void handleEvent(StreamManagementEvent be) throws JaxmppException {
+                try {
+                    processStreamManagementFailed(be);
+                } catch (JaxmppException e) {
+                    processException(e);
+                }
+            }
+        };
     }
 
     static Throwable extractCauseException(Throwable ex) {
@@ -138,6 +202,18 @@ public class SocketXmppSessionLogic implements XmppSessionLogic {
             Throwable e1 = extractCauseException(be.getCaught());
             JaxmppException e = (JaxmppException) (e1 instanceof JaxmppException ? e1 : new JaxmppException(e1));
             processException(e);
+        } else if (be.getType() == SocketConnector.CompressionFailed) {
+            synchronized (this) {
+                replan = false;
+            }
+            // continue without compression
+            startSession(false);
+        } else if (be.getType() == Connector.Connected || be.getType() == Connector.EncryptionEstablished) {
+            synchronized (this) {
+                replan = false;
+            }
+            // new stream header is sent
+            pipelineNextStep();
         }
     }
 
@@ -163,11 +239,29 @@ public class SocketXmppSessionLogic implements XmppSessionLogic {
             throw new JaxmppException("Unauthorized with condition=" + be.getError());
         } else if (be.getType() == AuthModule.AuthSuccess) {
             connector.restartStream();
+            pipelineNextStep();
         }
     }
 
     protected void processResourceBindEvent(ResourceBindEvent be) throws JaxmppException {
-        if (SessionEstablishmentModule.isSessionEstablishingAvailable(sessionObject)) {
+        if (be.getType() == ResourceBinderModule.ResourceBindError) {
+            synchronized (this) {
+                if (!replan)
+                    return;
+                // binding was requested using outdated features
+                replan = false;
+                sessionPipelined = false;
+            }
+            startNextStep(false);
+            return;
+        }
+        synchronized (this) {
+            replan = false;
+        }
+        if (sessionPipelined) {
+            // session request is already sent
+            return;
+        } else if (SessionEstablishmentModule.isSessionEstablishingAvailable(sessionObject)) {
             modulesManager.getModule(SessionEstablishmentModule.class).establish();
         } else
             sessionBindedAndEstablished();
@@ -175,13 +269,117 @@ public class SocketXmppSessionLogic implements XmppSessionLogic {
 
     protected void processSaslEvent(SaslEvent be) throws JaxmppException {
         if (be.getType() == AuthModule.AuthFailed) {
+            synchronized (this) {
+                if (replan) {
+                    // mechanism was chosen using outdated features, or server
+                    // requires STARTTLS now
+                    replan = false;
+                    startNextStep(false);
+                    return;
+                }
+            }
             throw new JaxmppException("Unauthorized with condition=" + be.getError());
         } else if (be.getType() == AuthModule.AuthSuccess) {
+            synchronized (this) {
+                final boolean tlsSkipped = replan && !connector.isSecure() && isTLSOffered();
+                replan = false;
+                if (tlsSkipped)
+                    throw new JaxmppException("Server offers STARTTLS now, but authentication was sent before "
+                            + "stream features. Login is aborted, next one will use STARTTLS");
+            }
             connector.restartStream();
+            pipelineNextStep();
         }
     }
 
-    protected void processStreamFeatures(StreamFeaturesReceivedEvent be) throws JaxmppException {
+    private int getStage() {
+        if (sessionObject.getProperty(AuthModule.AUTHORIZED) == Boolean.TRUE)
+            return STAGE_AUTHORIZED;
+        return connector.isSecure() ? STAGE_SECURED : STAGE_PLAIN;
+    }
+
+    /**
+     * Checks if features received on plain connection offer STARTTLS, which
+     * isn't disabled.
+     */
+    private boolean isTLSOffered() throws XMLException {
+        final Element features = receivedFeatures[STAGE_PLAIN];
+        return features != null && features.getChildrenNS("starttls", "urn:ietf:params:xml:ns:xmpp-tls") != null
+                && sessionObject.getProperty(SocketConnector.TLS_DISABLED_KEY) != Boolean.TRUE;
+    }
+
+    private boolean isFastLogin() {
+        return sessionObject.getProperty(FAST_LOGIN_KEY) == Boolean.TRUE;
+    }
+
+    /**
+     * Sends request of next login step if features of current stage are
+     * remembered and weren't received yet.
+     */
+    private synchronized void pipelineNextStep() throws JaxmppException {
+        // stream header may be not sent yet
+        if (!isFastLogin() || connector.getState() != Connector.State.connected)
+            return;
+        final RememberedFeatures remembered = sessionObject.getUserProperty(REMEMBERED_FEATURES_KEY);
+        final int stage = getStage();
+        if (remembered == null || !remembered.domain.equals(sessionObject.getProperty(SessionObject.DOMAIN_NAME))
+                || remembered.features[stage] == null || receivedFeatures[stage] != null || pipelinedStage == stage)
+            return;
+        log.fine("Sending request before stream features are received");
+        pipelinedStage = stage;
+        // modules check features stored in session object
+        sessionObject.setStreamFeatures(remembered.features[stage]);
+        startNextStep(true);
+    }
+
+    protected synchronized void processStreamFeatures(StreamFeaturesReceivedEvent be) throws JaxmppException {
+        final int stage = getStage();
+        // first features of stage are remembered, features received after
+        // compression are not
+        if (receivedFeatures[stage] == null)
+            receivedFeatures[stage] = be.getFeatures();
+        if (pipelinedStage != stage) {
+            startNextStep(false);
+        } else {
+            pipelinedStage = -1;
+            final RememberedFeatures remembered = sessionObject.getUserProperty(REMEMBERED_FEATURES_KEY);
+            try {
+                if (remembered != null
+                        && !remembered.features[stage].getAsString().equals(be.getFeatures().getAsString())) {
+                    log.fine("Stream features changed, fast login disabled");
+                    sessionObject.setUserProperty(REMEMBERED_FEATURES_KEY, null);
+                    // step is chosen again when pipelined request fails
+                    replan = true;
+                }
+            } catch (XMLException e) {
+                e.printStackTrace();
+            }
+        }
+        // features of all stages are known now. Login may finish (and
+        // connection may be closed) before session is established.
+        if (stage == STAGE_AUTHORIZED)
+            rememberFeatures();
+    }
+
+    private void rememberFeatures() {
+        if (!isFastLogin())
+            return;
+        synchronized (this) {
+            final String domain = sessionObject.getProperty(SessionObject.DOMAIN_NAME);
+            if (domain != null)
+                sessionObject.setUserProperty(REMEMBERED_FEATURES_KEY, new RememberedFeatures(domain,
+                        receivedFeatures.clone()));
+        }
+    }
+
+    /**
+     * Starts next login step, depending on current stream features.
+     * 
+     * @param pipelined
+     *            <code>true</code> if stream features are remembered from
+     *            previous login
+     */
+    private void startNextStep(boolean pipelined) throws JaxmppException {
         try {
             final Boolean tlsDisabled = sessionObject.getProperty(SocketConnector.TLS_DISABLED_KEY);
             final boolean authAvailable = AuthModule.isAuthAvailable(sessionObject);
@@ -194,16 +392,55 @@ public class SocketXmppSessionLogic implements XmppSessionLogic {
                 connector.startTLS();
             } else if (!isAuthorized && authAvailable) {
                 authModule.login();
+            } else if (isAuthorized && !connector.isCompressed() && connector.isCompressionSupported()
+                    && SocketConnector.isCompressionAvailable(sessionObject)
+                    && sessionObject.getProperty(SocketConnector.COMPRESSION_DISABLED_KEY) != Boolean.TRUE) {
+                connector.startCompression();
             } else if (isAuthorized) {
+                startSession(pipelined);
+            }
+        } catch (XMLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Binds resource or resumes previous stream.
+     * 
+     * @param pipelined
+     *            <code>true</code> if session request should be sent without
+     *            waiting for result of binding
+     */
+    protected void startSession(boolean pipelined) throws JaxmppException {
+        try {
+            if (streamManagementModule != null && streamManagementModule.isResumptionAvailable()
+                    && StreamManagementModule.isStreamManagementAvailable(sessionObject)) {
+                resumptionRequested = true;
+                streamManagementModule.resume();
+            } else {
                 resourceBinder.bind();
+                if (pipelined && SessionEstablishmentModule.isSessionEstablishingAvailable(sessionObject)) {
+                    sessionPipelined = true;
+                    modulesManager.getModule(SessionEstablishmentModule.class).establish();
+                }
             }
         } catch (XMLException e) {
             e.printStackTrace();
         }
     }
 
+    protected void processStreamManagementFailed(StreamManagementEvent be) throws JaxmppException {
+        if (resumptionRequested) {
+            // previous session is lost, start new one
+            resumptionRequested = false;
+            resourceBinder.bind();
+        }
+    }
+
     private void sessionBindedAndEstablished() throws JaxmppException {
-        //do nothing
+        if (streamManagementModule != null && StreamManagementModule.isStreamManagementAvailable(sessionObject)) {
+            streamManagementModule.enable();
+        }
     }
 
     @Override
@@ -213,31 +450,46 @@ public class SocketXmppSessionLogic implements XmppSessionLogic {
         authModule = this.modulesManager.getModule(AuthModule.class);
         resourceBinder = this.modulesManager.getModule(ResourceBinderModule.class);
         this.sessionEstablishmentModule = this.modulesManager.getModule(SessionEstablishmentModule.class);
+        this.streamManagementModule = this.modulesManager.getModule(StreamManagementModule.class);
 
         connector.addListener(Connector.Error, connectorListener);
+        connector.addListener(SocketConnector.CompressionFailed, connectorListener);
+        connector.addListener(Connector.Connected, connectorListener);
+        connector.addListener(Connector.EncryptionEstablished, connectorListener);
         featuresModule.addListener(StreamFeaturesModule.StreamFeaturesReceived, streamFeaturesEventListener);
         authModule.addListener(AuthModule.AuthSuccess, this.saslEventListener);
         authModule.addListener(AuthModule.AuthFailed, this.saslEventListener);
         resourceBinder.addListener(ResourceBinderModule.ResourceBindSuccess, resourceBindListener);
+        resourceBinder.addListener(ResourceBinderModule.ResourceBindError, resourceBindListener);
         this.sessionEstablishmentModule.addListener(SessionEstablishmentModule.SessionEstablishmentSuccess,
                 this.sessionEstablishmentListener);
         this.sessionEstablishmentModule.addListener(SessionEstablishmentModule.SessionEstablishmentError,
                 this.sessionEstablishmentListener);
+        if (this.streamManagementModule != null)
+            this.streamManagementModule.addListener(StreamManagementModule.StreamManagementFailed,
+                    this.streamManagementFailedListener);
 
     }
 
     @Override
     public void unbind() throws JaxmppException {
         connector.removeListener(Connector.Error, connectorListener);
+        connector.removeListener(SocketConnector.CompressionFailed, connectorListener);
+        connector.removeListener(Connector.Connected, connectorListener);
+        connector.removeListener(Connector.EncryptionEstablished, connectorListener);
         featuresModule.removeListener(StreamFeaturesModule.StreamFeaturesReceived, streamFeaturesEventListener);
         authModule.removeListener(AuthModule.AuthSuccess, this.saslEventListener);
         authModule.removeListener(AuthModule.AuthFailed, this.saslEventListener);
         resourceBinder.removeListener(ResourceBinderModule.ResourceBindSuccess, resourceBindListener);
+        resourceBinder.removeListener(ResourceBinderModule.ResourceBindError, resourceBindListener);
 
         this.sessionEstablishmentModule.removeListener(SessionEstablishmentModule.SessionEstablishmentSuccess,
                 this.sessionEstablishmentListener);
         this.sessionEstablishmentModule.removeListener(SessionEstablishmentModule.SessionEstablishmentError,
                 this.sessionEstablishmentListener);
+        if (this.streamManagementModule != null)
+            this.streamManagementModule.removeListener(StreamManagementModule.StreamManagementFailed,
+                    this.streamManagementFailedListener);
 
     }
 
@@ -0,0 +1,184 @@
+/*
+ * Tigase XMPP Client Library
+ * Copyright (C) 2006-2012 "Bartosz Małkowski" <bartosz.malkowski@tigase.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.jaxmpp.j2se.connectors.socket;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes appended characters in UTF-8 directly into reusable byte array.
+ * Allows to serialize element without building string of it. Surrogate pair
+ * may be appended in two calls; unpaired surrogate is encoded as
+ * <code>'?'</code>.
+ * <p>
+ * Usage: {@linkplain #reset()}, appending, {@linkplain #finish()} and reading
+ * returned buffer. Buffer is valid until next reset. Instance is not
+ * thread-safe.
+ * </p>
+ */
+class Utf8BufferAppender implements Appendable {
+
+	/**
+	 * Buffer bigger than this is not kept between uses.
+	 */
+	private static final int MAX_RETAINED_SIZE = 64 * 1024;
+
+	private byte[] buffer;
+
+	private int count;
+
+	/**
+	 * High surrogate waiting for low one appended in next call.
+	 */
+	private char highSurrogate;
+
+	private final int initialSize;
+
+	Utf8BufferAppender(int initialSize) {
+		this.initialSize = initialSize;
+		this.buffer = new byte[initialSize];
+	}
+
+	@Override
+	public Appendable append(char c) {
+		if (c < 0x80 && highSurrogate == 0) {
+			if (count == buffer.length)
+				ensureCapacity(1);
+			buffer[count++] = (byte) c;
+		} else {
+			encode(c);
+		}
+		return this;
+	}
+
+	@Override
+	public Appendable append(CharSequence csq) {
+		return append(csq, 0, csq.length());
+	}
+
+	@Override
+	public Appendable append(CharSequence csq, int start, int end) {
+		ensureCapacity(end - start);
+		for (int i = start; i < end; i++) {
+			final char c = csq.charAt(i);
+			if (c < 0x80 && highSurrogate == 0) {
+				if (count == buffer.length)
+					ensureCapacity(end - i);
+				buffer[count++] = (byte) c;
+			} else {
+				encode(c);
+			}
+		}
+		return this;
+	}
+
+	/**
+	 * Appends already encoded bytes.
+	 */
+	void append(byte[] data, int offset, int length) {
+		endCharacters();
+		ensureCapacity(length);
+		System.arraycopy(data, offset, buffer, count, length);
+		count += length;
+	}
+
+	private void encode(char c) {
+		ensureCapacity(4);
+		if (highSurrogate != 0) {
+			final char high = highSurrogate;
+			highSurrogate = 0;
+			if (Character.isLowSurrogate(c)) {
+				final int cp = Character.toCodePoint(high, c);
+				buffer[count++] = (byte) (0xF0 | (cp >> 18));
+				buffer[count++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+				buffer[count++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+				buffer[count++] = (byte) (0x80 | (cp & 0x3F));
+				return;
+			}
+			buffer[count++] = '?';
+			ensureCapacity(3);
+		}
+		if (c < 0x80) {
+			buffer[count++] = (byte) c;
+		} else if (c < 0x800) {
+			buffer[count++] = (byte) (0xC0 | (c >> 6));
+			buffer[count++] = (byte) (0x80 | (c & 0x3F));
+		} else if (Character.isHighSurrogate(c)) {
+			highSurrogate = c;
+		} else if (Character.isLowSurrogate(c)) {
+			buffer[count++] = '?';
+		} else {
+			buffer[count++] = (byte) (0xE0 | (c >> 12));
+			buffer[count++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+			buffer[count++] = (byte) (0x80 | (c & 0x3F));
+		}
+	}
+
+	private void ensureCapacity(int required) {
+		if (buffer.length - count >= required)
+			return;
+		byte[] tmp = new byte[Math.max(buffer.length * 2, count + required)];
+		System.arraycopy(buffer, 0, tmp, 0, count);
+		buffer = tmp;
+	}
+
+	/**
+	 * Ends appended text. High surrogate waiting for low one is encoded as
+	 * <code>'?'</code>.
+	 */
+	void endCharacters() {
+		if (highSurrogate != 0) {
+			highSurrogate = 0;
+			ensureCapacity(1);
+			buffer[count++] = '?';
+		}
+	}
+
+	/**
+	 * Finishes encoding and returns buffer ready to read.
+	 */
+	ByteBuffer finish() {
+		endCharacters();
+		return ByteBuffer.wrap(buffer, 0, count);
+	}
+
+	/**
+	 * Returns number of encoded bytes.
+	 */
+	int size() {
+		return count;
+	}
+
+	/**
+	 * Removes bytes encoded after given size.
+	 */
+	void truncate(int size) {
+		count = size;
+		highSurrogate = 0;
+	}
+
+	/**
+	 * Prepares appender for next data.
+	 */
+	void reset() {
+		count = 0;
+		highSurrogate = 0;
+		if (buffer.length > MAX_RETAINED_SIZE)
+			buffer = new byte[initialSize];
+	}
+
+}
@@ -0,0 +1,529 @@
+/*
+ * Tigase XMPP Client Library
+ * Copyright (C) 2006-2012 "Bartosz Małkowski" <bartosz.malkowski@tigase.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.jaxmpp.j2se.connectors.socket;
+
+import java.nio.ByteBuffer;
+
+import tigase.xml.SimpleHandler;
+
+/**
+ * XML stream parser working directly on UTF-8 encoded bytes. It produces the
+ * same {@linkplain SimpleHandler} callbacks as {@linkplain tigase.xml.SimpleParser},
+ * but without decoding whole input to characters first.
+ * <p>
+ * All markup characters are ASCII and never appear inside multi-byte UTF-8
+ * sequence, so parser works on raw bytes and collects bytes of current token
+ * (element name, attribute name or value, character data). Token is decoded
+ * to {@linkplain StringBuilder} only when it is complete, so multi-byte
+ * sequences split between reads are handled without special care. Texts
+ * contained only ASCII characters are copied without decoding.
+ * </p>
+ * <p>
+ * Like {@linkplain tigase.xml.SimpleParser} this class is stateless. State of
+ * parsing is kept by handler (see
+ * {@linkplain SimpleHandler#saveParserState(Object)}), so one instance may be
+ * shared by all connections.
+ * </p>
+ */
+public class Utf8StreamParser {
+
+	private static final class ParserState {
+
+		private StringBuilder attribName;
+
+		private int attribsCount;
+
+		private StringBuilder[] attribNames = new StringBuilder[8];
+
+		private StringBuilder[] attribValues = new StringBuilder[8];
+
+		/**
+		 * Number of matched bytes of current markup terminator.
+		 */
+		private int matched;
+
+		private StringBuilder name;
+
+		private byte quote;
+
+		private int state = TEXT;
+
+		private byte[] token = new byte[256];
+
+		private int tokenLength;
+
+		private void add(byte b) {
+			if (tokenLength == token.length) {
+				byte[] tmp = new byte[token.length * 2];
+				System.arraycopy(token, 0, tmp, 0, tokenLength);
+				token = tmp;
+			}
+			token[tokenLength++] = b;
+		}
+
+		private void add(byte[] data, int off, int len) {
+			if (tokenLength + len > token.length) {
+				byte[] tmp = new byte[Math.max(token.length * 2, tokenLength + len)];
+				System.arraycopy(token, 0, tmp, 0, tokenLength);
+				token = tmp;
+			}
+			System.arraycopy(data, off, token, tokenLength, len);
+			tokenLength += len;
+		}
+
+		private void addAttribute(StringBuilder name, StringBuilder value) {
+			if (attribsCount == attribNames.length) {
+				StringBuilder[] n = new StringBuilder[attribNames.length * 2];
+				StringBuilder[] v = new StringBuilder[attribValues.length * 2];
+				System.arraycopy(attribNames, 0, n, 0, attribsCount);
+				System.arraycopy(attribValues, 0, v, 0, attribsCount);
+				attribNames = n;
+				attribValues = v;
+			}
+			attribNames[attribsCount] = name;
+			attribValues[attribsCount++] = value;
+		}
+
+		private StringBuilder takeToken() {
+			StringBuilder sb = new StringBuilder(tokenLength);
+			decode(token, tokenLength, sb);
+			tokenLength = 0;
+			return sb;
+		}
+	}
+
+	private static final int ATTRIB_NAME = 5;
+
+	private static final int ATTRIB_VALUE = 7;
+
+	private static final int ATTRIB_VALUE_START = 6;
+
+	private static final int ATTRIBS = 4;
+
+	private static final int CDATA_SECTION = 13;
+
+	private static final int COMMENT = 12;
+
+	private static final int DECLARATION = 11;
+
+	private static final int ELEMENT_NAME = 2;
+
+	private static final int EMPTY_ELEMENT_END = 8;
+
+	private static final int END_ELEMENT_NAME = 3;
+
+	private static final int ERROR = -1;
+
+	private static final byte[] CDATA_SECTION_END = "]]>".getBytes();
+
+	private static final byte[] CDATA_SECTION_START = "[CDATA[".getBytes();
+
+	private static final byte[] COMMENT_END = "-->".getBytes();
+
+	private static final byte[] COMMENT_START = "--".getBytes();
+
+	private static final int MARKUP_DECLARATION = 10;
+
+	public static final int MAX_ATTRIBS_NUMBER = 50;
+
+	public static final int MAX_CDATA_SIZE = 1024 * 1024;
+
+	public static final int MAX_NAME_SIZE = 1024;
+
+	public static final int MAX_ATTRIBUTE_VALUE_SIZE = 10 * 1024;
+
+	private static final int OPEN_BRACKET = 1;
+
+	private static final int PROCESSING_INSTRUCTION = 9;
+
+	private static final byte[] PROCESSING_INSTRUCTION_END = "?>".getBytes();
+
+	private static final int TEXT = 0;
+
+	private static final char REPLACEMENT_CHAR = '\uFFFD';
+
+	/**
+	 * Decodes UTF-8 bytes. Malformed sequences are replaced by U+FFFD.
+	 */
+	static void decode(final byte[] data, final int length, final StringBuilder out) {
+		int i = 0;
+		while (i < length) {
+			final int b = data[i];
+			if (b >= 0) {
+				out.append((char) b);
+				++i;
+				continue;
+			}
+			final int needed;
+			int cp;
+			if ((b & 0xE0) == 0xC0) {
+				needed = 1;
+				cp = b & 0x1F;
+			} else if ((b & 0xF0) == 0xE0) {
+				needed = 2;
+				cp = b & 0x0F;
+			} else if ((b & 0xF8) == 0xF0) {
+				needed = 3;
+				cp = b & 0x07;
+			} else {
+				out.append(REPLACEMENT_CHAR);
+				++i;
+				continue;
+			}
+			int j = 1;
+			for (; j <= needed && i + j < length; j++) {
+				final int c = data[i + j];
+				if ((c & 0xC0) != 0x80)
+					break;
+				cp = (cp << 6) | (c & 0x3F);
+			}
+			if (j <= needed) {
+				out.append(REPLACEMENT_CHAR);
+				i += j;
+			} else {
+				i += j;
+				if (needed == 1 && cp < 0x80 || needed == 2 && cp < 0x800 || needed == 3 && cp < 0x10000 || cp > 0x10FFFF
+						|| (cp >= 0xD800 && cp <= 0xDFFF)) {
+					out.append(REPLACEMENT_CHAR);
+				} else if (cp >= 0x10000) {
+					out.append((char) (0xD800 + ((cp - 0x10000) >> 10)));
+					out.append((char) (0xDC00 + ((cp - 0x10000) & 0x3FF)));
+				} else {
+					out.append((char) cp);
+				}
+			}
+		}
+	}
+
+	private static boolean isWhitespace(byte b) {
+		return b == ' ' || b == '\n' || b == '\r' || b == '\t';
+	}
+
+	private void error(SimpleHandler handler, ParserState st, String message) {
+		st.state = ERROR;
+		st.tokenLength = 0;
+		handler.error(message);
+	}
+
+	private void finishElement(SimpleHandler handler, ParserState st, boolean empty) {
+		StringBuilder[] names = null;
+		StringBuilder[] values = null;
+		if (st.attribsCount > 0) {
+			names = new StringBuilder[st.attribsCount];
+			values = new StringBuilder[st.attribsCount];
+			System.arraycopy(st.attribNames, 0, names, 0, st.attribsCount);
+			System.arraycopy(st.attribValues, 0, values, 0, st.attribsCount);
+			for (int i = 0; i < st.attribsCount; i++) {
+				st.attribNames[i] = null;
+				st.attribValues[i] = null;
+			}
+		}
+		st.attribsCount = 0;
+		final StringBuilder name = st.name;
+		st.name = null;
+		handler.startElement(name, names, values);
+		if (empty)
+			handler.endElement(name);
+		st.state = TEXT;
+	}
+
+	/**
+	 * Parses bytes of XML stream. All remaining bytes of buffer are consumed.
+	 *
+	 * @param handler
+	 *            handler receiving parsed items and keeping state of parser
+	 * @param data
+	 *            UTF-8 encoded data
+	 */
+	public void parse(SimpleHandler handler, ByteBuffer data) {
+		if (data.hasArray()) {
+			final int off = data.arrayOffset() + data.position();
+			final int len = data.remaining();
+			data.position(data.limit());
+			parse(handler, data.array(), off, len);
+		} else {
+			final byte[] tmp = new byte[data.remaining()];
+			data.get(tmp);
+			parse(handler, tmp, 0, tmp.length);
+		}
+	}
+
+	/**
+	 * Parses bytes of XML stream.
+	 *
+	 * @param handler
+	 *            handler receiving parsed items and keeping state of parser
+	 * @param data
+	 *            UTF-8 encoded data
+	 * @param off
+	 *            offset of first byte to parse
+	 * @param len
+	 *            number of bytes to parse
+	 */
+	public void parse(SimpleHandler handler, byte[] data, int off, int len) {
+		ParserState st = (ParserState) handler.restoreParserState();
+		if (st == null)
+			st = new ParserState();
+		final int end = off + len;
+		for (int i = off; i < end && st.state != ERROR; i++) {
+			final byte b = data[i];
+			switch (st.state) {
+			case TEXT:
+				if (b == '<') {
+					if (st.tokenLength > 0)
+						handler.elementCData(st.takeToken());
+					st.state = OPEN_BRACKET;
+				} else if (st.tokenLength >= MAX_CDATA_SIZE) {
+					error(handler, st, "Character data exceeded size limit");
+				} else {
+					// fast path for text
+					int j = i;
+					while (j < end && data[j] != '<')
+						++j;
+					final int n = Math.min(j - i, MAX_CDATA_SIZE - st.tokenLength);
+					st.add(data, i, n);
+					i += n - 1;
+				}
+				break;
+			case OPEN_BRACKET:
+				if (b == '/') {
+					st.state = END_ELEMENT_NAME;
+				} else if (b == '?') {
+					st.state = PROCESSING_INSTRUCTION;
+					st.matched = 0;
+					st.add(b);
+				} else if (b == '!') {
+					st.state = MARKUP_DECLARATION;
+					st.add(b);
+				} else if (isWhitespace(b) || b == '>' || b == '<') {
+					error(handler, st, "Invalid element name");
+				} else {
+					st.state = ELEMENT_NAME;
+					st.add(b);
+				}
+				break;
+			case ELEMENT_NAME:
+				if (isWhitespace(b)) {
+					st.name = st.takeToken();
+					st.state = ATTRIBS;
+				} else if (b == '/') {
+					st.name = st.takeToken();
+					st.state = EMPTY_ELEMENT_END;
+				} else if (b == '>') {
+					st.name = st.takeToken();
+					finishElement(handler, st, false);
+				} else if (b == '<' || st.tokenLength >= MAX_NAME_SIZE) {
+					error(handler, st, "Invalid element name");
+				} else {
+					st.add(b);
+				}
+				break;
+			case END_ELEMENT_NAME:
+				if (b == '>') {
+					handler.endElement(st.takeToken());
+					st.state = TEXT;
+				} else if (b == '<' || st.tokenLength >= MAX_NAME_SIZE) {
+					error(handler, st, "Invalid closing element name");
+				} else if (!isWhitespace(b)) {
+					st.add(b);
+				}
+				break;
+			case ATTRIBS:
+				if (b == '/') {
+					st.state = EMPTY_ELEMENT_END;
+				} else if (b == '>') {
+					finishElement(handler, st, false);
+				} else if (b == '<' || b == '=' || b == '"' || b == '\'') {
+					error(handler, st, "Invalid attribute");
+				} else if (!isWhitespace(b)) {
+					if (st.attribsCount >= MAX_ATTRIBS_NUMBER) {
+						error(handler, st, "Too many attributes");
+					} else {
+						st.state = ATTRIB_NAME;
+						st.add(b);
+					}
+				}
+				break;
+			case ATTRIB_NAME:
+				if (b == '=') {
+					st.attribName = st.takeToken();
+					st.state = ATTRIB_VALUE_START;
+				} else if (b == '<' || b == '>' || b == '/' || st.tokenLength >= MAX_NAME_SIZE) {
+					error(handler, st, "Invalid attribute name");
+				} else if (!isWhitespace(b)) {
+					st.add(b);
+				}
+				break;
+			case ATTRIB_VALUE_START:
+				if (b == '\'' || b == '"') {
+					st.quote = b;
+					st.state = ATTRIB_VALUE;
+				} else if (!isWhitespace(b)) {
+					error(handler, st, "Attribute value must be quoted");
+				}
+				break;
+			case ATTRIB_VALUE:
+				if (b == st.quote) {
+					st.addAttribute(st.attribName, st.takeToken());
+					st.attribName = null;
+					st.state = ATTRIBS;
+				} else if (b == '<' || st.tokenLength >= MAX_ATTRIBUTE_VALUE_SIZE) {
+					error(handler, st, "Invalid attribute value");
+				} else {
+					// fast path for attribute value
+					int j = i;
+					while (j < end && data[j] != st.quote && data[j] != '<')
+						++j;
+					final int n = Math.min(j - i, MAX_ATTRIBUTE_VALUE_SIZE - st.tokenLength);
+					st.add(data, i, n);
+					i += n - 1;
+				}
+				break;
+			case EMPTY_ELEMENT_END:
+				if (b == '>') {
+					finishElement(handler, st, true);
+				} else {
+					error(handler, st, "Invalid empty element");
+				}
+				break;
+			case MARKUP_DECLARATION:
+				st.add(b);
+				if (startsWith(st, COMMENT_START)) {
+					st.state = COMMENT;
+					st.matched = 0;
+				} else if (startsWith(st, CDATA_SECTION_START)) {
+					st.state = CDATA_SECTION;
+					st.matched = 0;
+					st.tokenLength = 0;
+				} else if (!isPrefix(st, COMMENT_START) && !isPrefix(st, CDATA_SECTION_START)) {
+					st.state = DECLARATION;
+					if (b == '>')
+						otherXML(handler, st, 1);
+				}
+				break;
+			case DECLARATION:
+				if (b == '>') {
+					otherXML(handler, st, 0);
+				} else if (st.tokenLength >= MAX_CDATA_SIZE) {
+					error(handler, st, "Declaration exceeded size limit");
+				} else {
+					st.add(b);
+				}
+				break;
+			case PROCESSING_INSTRUCTION:
+				if (matchTerminator(st, b, PROCESSING_INSTRUCTION_END)) {
+					otherXML(handler, st, 1);
+				} else if (st.tokenLength >= MAX_CDATA_SIZE) {
+					error(handler, st, "Processing instruction exceeded size limit");
+				} else {
+					st.add(b);
+				}
+				break;
+			case COMMENT:
+				if (matchTerminator(st, b, COMMENT_END)) {
+					otherXML(handler, st, 2);
+				} else if (st.tokenLength >= MAX_CDATA_SIZE) {
+					error(handler, st, "Comment exceeded size limit");
+				} else {
+					st.add(b);
+				}
+				break;
+			case CDATA_SECTION:
+				if (matchTerminator(st, b, CDATA_SECTION_END)) {
+					// CDATA section content is passed to handler in escaped
+					// form, like all other character data
+					st.tokenLength -= 2;
+					final int length = st.tokenLength;
+					final byte[] content = new byte[length];
+					System.arraycopy(st.token, 0, content, 0, length);
+					st.tokenLength = 0;
+					for (int k = 0; k < length; k++) {
+						final byte c = content[k];
+						if (c == '<')
+							addAll(st, "&lt;");
+						else if (c == '>')
+							addAll(st, "&gt;");
+						else if (c == '&')
+							addAll(st, "&amp;");
+						else
+							st.add(c);
+					}
+					st.state = TEXT;
+				} else if (st.tokenLength >= MAX_CDATA_SIZE) {
+					error(handler, st, "Character data exceeded size limit");
+				} else {
+					st.add(b);
+				}
+				break;
+			}
+		}
+		handler.saveParserState(st);
+	}
+
+	private static void addAll(ParserState st, String ascii) {
+		for (int i = 0; i < ascii.length(); i++)
+			st.add((byte) ascii.charAt(i));
+	}
+
+	private static boolean isPrefix(ParserState st, byte[] pattern) {
+		// token starts with '!'
+		final int n = st.tokenLength - 1;
+		if (n > pattern.length)
+			return false;
+		for (int i = 0; i < n; i++) {
+			if (st.token[i + 1] != pattern[i])
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Checks if byte completes given terminator. Bytes of terminator, except
+	 * last one, are added to token as ordinary content.
+	 */
+	private static boolean matchTerminator(ParserState st, byte b, byte[] terminator) {
+		if (b == terminator[st.matched]) {
+			if (st.matched == terminator.length - 1) {
+				st.matched = 0;
+				return true;
+			}
+			++st.matched;
+			return false;
+		}
+		if (b != terminator[0]) {
+			st.matched = 0;
+		} else if (st.matched != 2 || terminator[1] != b) {
+			// "]]]>" still ends with "]]"
+			st.matched = 1;
+		}
+		return false;
+	}
+
+	private void otherXML(SimpleHandler handler, ParserState st, int trailing) {
+		st.tokenLength -= Math.min(trailing, st.tokenLength);
+		handler.otherXML(st.takeToken());
+		st.state = TEXT;
+	}
+
+	private static boolean startsWith(ParserState st, byte[] pattern) {
+		if (st.tokenLength - 1 != pattern.length)
+			return false;
+		return isPrefix(st, pattern);
+	}
+
+}
@@ -0,0 +1,272 @@
+/*
+ * Tigase XMPP Client Library
+ * Copyright (C) 2006-2012 "Bartosz Małkowski" <bartosz.malkowski@tigase.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.jaxmpp.j2se.connectors.socket;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import tigase.jaxmpp.core.client.xml.Element;
+import tigase.jaxmpp.core.client.xml.XMLException;
+import tigase.jaxmpp.j2se.scheduler.ScheduledTask;
+import tigase.jaxmpp.j2se.scheduler.Scheduler;
+import tigase.jaxmpp.j2se.scheduler.SchedulerFactory;
+
+/**
+ * Outbound queue of single connection. Data is encoded to UTF-8 directly into
+ * internal buffer and written to stream in one call when:
+ * <ul>
+ * <li>flush is requested explicitly,</li>
+ * <li>buffer reaches size limit,</li>
+ * <li>coalescing delay since first buffered write elapsed.</li>
+ * </ul>
+ * Writes from many threads which meet while stream is busy are also merged
+ * into one write.
+ */
+public class WriteQueue {
+
+	public static final long DEFAULT_COALESCING_DELAY = 10;
+
+	/**
+	 * Default limit is size of maximal TLS record.
+	 */
+	public static final int DEFAULT_MAX_BUFFER_SIZE = 16 * 1024;
+
+	private static final Logger log = Logger.getLogger(WriteQueue.class.getName());
+
+	/**
+	 * Buffered data. Used only while holding lock of queue.
+	 */
+	private Utf8BufferAppender buffer;
+
+	private boolean closed;
+
+	private final long coalescingDelay;
+
+	private ScheduledTask flushTask;
+
+	private final Runnable flushTaskRunnable = new Runnable() {
+
+		@Override
+		public void run() {
+			try {
+				flush();
+			} catch (IOException e) {
+				log.log(Level.FINE, "Can't flush write queue", e);
+			}
+		}
+	};
+
+	private final int maxBufferSize;
+
+	private final OutputStream out;
+
+	private final Scheduler scheduler;
+
+	private Utf8BufferAppender spare;
+
+	private long writesCounter;
+
+	private final Object writeLock = new Object();
+
+	public WriteQueue(OutputStream out) {
+		this(out, DEFAULT_MAX_BUFFER_SIZE, DEFAULT_COALESCING_DELAY);
+	}
+
+	/**
+	 * @param out
+	 *            stream to write to
+	 * @param maxBufferSize
+	 *            size of buffered data which causes immediate write
+	 * @param coalescingDelay
+	 *            maximal time (in milliseconds) data may wait in queue. If
+	 *            <code>0</code> then data is written immediately.
+	 */
+	public WriteQueue(OutputStream out, int maxBufferSize, long coalescingDelay) {
+		this(out, maxBufferSize, coalescingDelay, SchedulerFactory.getScheduler());
+	}
+
+	/**
+	 * @param out
+	 *            stream to write to
+	 * @param maxBufferSize
+	 *            size of buffered data which causes immediate write
+	 * @param coalescingDelay
+	 *            maximal time (in milliseconds) data may wait in queue. If
+	 *            <code>0</code> then data is written immediately.
+	 * @param scheduler
+	 *            scheduler of delayed flushes
+	 */
+	public WriteQueue(OutputStream out, int maxBufferSize, long coalescingDelay, Scheduler scheduler) {
+		this.out = out;
+		this.scheduler = scheduler;
+		this.maxBufferSize = maxBufferSize;
+		this.coalescingDelay = coalescingDelay;
+		this.buffer = new Utf8BufferAppender(Math.min(maxBufferSize, 1024));
+	}
+
+	/**
+	 * Discards buffered data. Queue will not accept any data anymore.
+	 */
+	public synchronized void close() {
+		closed = true;
+		buffer.reset();
+		if (flushTask != null) {
+			flushTask.cancel();
+			flushTask = null;
+		}
+	}
+
+	/**
+	 * Writes buffered data to stream and closes queue. Data added later is
+	 * not accepted, so nothing is left in buffer.
+	 */
+	public void flushAndClose() throws IOException {
+		synchronized (this) {
+			closed = true;
+		}
+		flush();
+	}
+
+	/**
+	 * Writes all buffered data to stream.
+	 */
+	public void flush() throws IOException {
+		synchronized (writeLock) {
+			final Utf8BufferAppender data;
+			synchronized (this) {
+				if (flushTask != null) {
+					flushTask.cancel();
+					flushTask = null;
+				}
+				if (buffer.size() == 0)
+					return;
+				data = buffer;
+				buffer = spare != null ? spare : new Utf8BufferAppender(Math.min(maxBufferSize, 1024));
+				spare = null;
+			}
+			try {
+				ByteBuffer bytes = data.finish();
+				out.write(bytes.array(), bytes.arrayOffset() + bytes.position(), bytes.remaining());
+				out.flush();
+				++writesCounter;
+			} finally {
+				data.reset();
+				synchronized (this) {
+					spare = data;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns number of writes made to stream.
+	 */
+	public long getWritesCounter() {
+		synchronized (writeLock) {
+			return writesCounter;
+		}
+	}
+
+	private void scheduleFlush() {
+		flushTask = scheduler.schedule(flushTaskRunnable, coalescingDelay);
+	}
+
+	/**
+	 * Adds bytes to queue.
+	 *
+	 * @param data
+	 *            bytes to send
+	 * @param flush
+	 *            <code>true</code> if data should be written immediately
+	 */
+	public void write(byte[] data, boolean flush) throws IOException {
+		final boolean flushNow;
+		synchronized (this) {
+			if (closed)
+				return;
+			buffer.append(data, 0, data.length);
+			flushNow = shouldFlush(flush);
+		}
+		if (flushNow)
+			flush();
+	}
+
+	/**
+	 * Adds characters to queue. Characters are encoded in UTF-8.
+	 *
+	 * @param data
+	 *            characters to send
+	 * @param flush
+	 *            <code>true</code> if data should be written immediately
+	 */
+	public void write(CharSequence data, boolean flush) throws IOException {
+		final boolean flushNow;
+		synchronized (this) {
+			if (closed)
+				return;
+			buffer.append(data);
+			buffer.endCharacters();
+			flushNow = shouldFlush(flush);
+		}
+		if (flushNow)
+			flush();
+	}
+
+	/**
+	 * Adds element to queue. Element is serialized and encoded in UTF-8
+	 * directly into buffer, without building string.
+	 *
+	 * @param element
+	 *            element to send
+	 * @param flush
+	 *            <code>true</code> if data should be written immediately
+	 */
+	public void write(Element element, boolean flush) throws IOException, XMLException {
+		final boolean flushNow;
+		synchronized (this) {
+			if (closed)
+				return;
+			final int start = buffer.size();
+			boolean written = false;
+			try {
+				element.writeTo(buffer);
+				buffer.endCharacters();
+				written = true;
+			} finally {
+				// don't send partially serialized element
+				if (!written)
+					buffer.truncate(start);
+			}
+			flushNow = shouldFlush(flush);
+		}
+		if (flushNow)
+			flush();
+	}
+
+	private boolean shouldFlush(boolean flush) {
+		if (flush || coalescingDelay <= 0 || buffer.size() >= maxBufferSize)
+			return true;
+		if (flushTask == null)
+			scheduleFlush();
+		return false;
+	}
+
+}
@@ -0,0 +1,96 @@
+/*
+ * Tigase XMPP Client Library
+ * Copyright (C) 2006-2012 "Bartosz Małkowski" <bartosz.malkowski@tigase.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.jaxmpp.j2se.connectors.socket;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Decompressing stream for <a
+ * href='http://xmpp.org/extensions/xep-0138.html'>XEP-0138</a>. Returns data
+ * as soon as it is decompressed, without waiting for full buffer.
+ * {@linkplain Inflater} and buffer are taken from {@linkplain ZlibPool} and
+ * returned to it on {@linkplain #close()}. Underlying stream is not closed.
+ * <p>
+ * Stream is not thread-safe: it should be read and closed by the same thread.
+ * </p>
+ */
+class ZlibInputStream extends InputStream {
+
+	private byte[] buffer;
+
+	private final InputStream in;
+
+	private Inflater inflater;
+
+	ZlibInputStream(InputStream in) {
+		this.in = in;
+		this.inflater = ZlibPool.takeInflater();
+		this.buffer = ZlibPool.takeBuffer();
+	}
+
+	@Override
+	public int available() throws IOException {
+		return inflater == null ? 0 : in.available();
+	}
+
+	@Override
+	public void close() {
+		if (inflater == null)
+			return;
+		ZlibPool.releaseInflater(inflater);
+		ZlibPool.releaseBuffer(buffer);
+		inflater = null;
+		buffer = null;
+	}
+
+	@Override
+	public int read() throws IOException {
+		byte[] b = new byte[1];
+		int r = read(b, 0, 1);
+		return r == -1 ? -1 : b[0] & 0xFF;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (inflater == null)
+			throw new IOException("Stream closed");
+		if (len == 0)
+			return 0;
+		try {
+			while (true) {
+				int n = inflater.inflate(b, off, len);
+				if (n > 0)
+					return n;
+				if (inflater.finished() || inflater.needsDictionary())
+					return -1;
+				if (inflater.needsInput()) {
+					int r = in.read(buffer, 0, buffer.length);
+					if (r == -1)
+						return -1;
+					inflater.setInput(buffer, 0, r);
+				}
+			}
+		} catch (DataFormatException e) {
+			throw new IOException("Invalid compressed data", e);
+		}
+	}
+
+}
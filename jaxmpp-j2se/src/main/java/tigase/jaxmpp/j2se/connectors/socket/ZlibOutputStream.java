@@ -0,0 +1,112 @@
+/*
+ * Tigase XMPP Client Library
+ * Copyright (C) 2006-2012 "Bartosz Małkowski" <bartosz.malkowski@tigase.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.jaxmpp.j2se.connectors.socket;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+
+/**
+ * Compressing stream for <a
+ * href='http://xmpp.org/extensions/xep-0138.html'>XEP-0138</a>. Every
+ * {@linkplain #flush()} does zlib sync-flush, so peer may decompress all data
+ * written so far and latency is not increased. {@linkplain Deflater} and
+ * buffer are taken from {@linkplain ZlibPool} and returned to it on
+ * {@linkplain #close()}. Underlying stream is not closed.
+ */
+class ZlibOutputStream extends OutputStream {
+
+	private byte[] buffer;
+
+	private long bytesIn;
+
+	private long bytesOut;
+
+	private Deflater deflater;
+
+	private final OutputStream out;
+
+	ZlibOutputStream(OutputStream out) {
+		this.out = out;
+		this.deflater = ZlibPool.takeDeflater();
+		this.buffer = ZlibPool.takeBuffer();
+	}
+
+	private void checkOpen() throws IOException {
+		if (deflater == null)
+			throw new IOException("Stream closed");
+	}
+
+	@Override
+	public synchronized void close() {
+		if (deflater == null)
+			return;
+		ZlibPool.releaseDeflater(deflater);
+		ZlibPool.releaseBuffer(buffer);
+		deflater = null;
+		buffer = null;
+	}
+
+	private void deflate(int flush) throws IOException {
+		int n;
+		do {
+			n = deflater.deflate(buffer, 0, buffer.length, flush);
+			if (n > 0) {
+				out.write(buffer, 0, n);
+				bytesOut += n;
+			}
+		} while (n == buffer.length || (flush == Deflater.NO_FLUSH && !deflater.needsInput()));
+	}
+
+	@Override
+	public synchronized void flush() throws IOException {
+		checkOpen();
+		deflate(Deflater.SYNC_FLUSH);
+		out.flush();
+	}
+
+	/**
+	 * Returns number of bytes written to this stream.
+	 */
+	public synchronized long getBytesIn() {
+		return bytesIn;
+	}
+
+	/**
+	 * Returns number of compressed bytes written to underlying stream.
+	 */
+	public synchronized long getBytesOut() {
+		return bytesOut;
+	}
+
+	@Override
+	public synchronized void write(byte[] b, int off, int len) throws IOException {
+		checkOpen();
+		if (len == 0)
+			return;
+		deflater.setInput(b, off, len);
+		bytesIn += len;
+		deflate(Deflater.NO_FLUSH);
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		write(new byte[] { (byte) b }, 0, 1);
+	}
+
+}
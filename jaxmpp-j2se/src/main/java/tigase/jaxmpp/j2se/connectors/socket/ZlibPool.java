@@ -0,0 +1,146 @@
+/*
+ * Tigase XMPP Client Library
+ * Copyright (C) 2006-2012 "Bartosz Małkowski" <bartosz.malkowski@tigase.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.jaxmpp.j2se.connectors.socket;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Pool of {@linkplain Deflater}s, {@linkplain Inflater}s and their buffers
+ * shared by all compressed connections. Creating zlib streams allocates
+ * native memory (over 256KB for deflater), so instances are reused across
+ * reconnections instead of being created for each connection.
+ */
+class ZlibPool {
+
+	static final int BUFFER_SIZE = 8 * 1024;
+
+	/**
+	 * Maximal number of idle objects of each kind kept in pool.
+	 */
+	static final int MAX_IDLE = Integer.getInteger("jaxmpp.zlib.pool", 32);
+
+	private static final Pool<byte[]> buffers = new Pool<byte[]>() {
+
+		@Override
+		protected byte[] create() {
+			return new byte[BUFFER_SIZE];
+		}
+	};
+
+	private static final Pool<Deflater> deflaters = new Pool<Deflater>() {
+
+		@Override
+		protected Deflater create() {
+			return new Deflater(Deflater.DEFAULT_COMPRESSION);
+		}
+
+		@Override
+		protected void destroy(Deflater item) {
+			item.end();
+		}
+
+		@Override
+		protected void reset(Deflater item) {
+			item.reset();
+		}
+	};
+
+	private static final Pool<Inflater> inflaters = new Pool<Inflater>() {
+
+		@Override
+		protected Inflater create() {
+			return new Inflater();
+		}
+
+		@Override
+		protected void destroy(Inflater item) {
+			item.end();
+		}
+
+		@Override
+		protected void reset(Inflater item) {
+			item.reset();
+		}
+	};
+
+	private static abstract class Pool<T> {
+
+		private final ConcurrentLinkedQueue<T> idle = new ConcurrentLinkedQueue<T>();
+
+		private final AtomicInteger idleCount = new AtomicInteger();
+
+		protected abstract T create();
+
+		protected void destroy(T item) {
+		}
+
+		void release(T item) {
+			if (item == null)
+				return;
+			if (idleCount.incrementAndGet() > MAX_IDLE) {
+				idleCount.decrementAndGet();
+				destroy(item);
+				return;
+			}
+			reset(item);
+			idle.offer(item);
+		}
+
+		protected void reset(T item) {
+		}
+
+		T take() {
+			T item = idle.poll();
+			if (item == null)
+				return create();
+			idleCount.decrementAndGet();
+			return item;
+		}
+	}
+
+	static void releaseBuffer(byte[] buffer) {
+		buffers.release(buffer);
+	}
+
+	static void releaseDeflater(Deflater deflater) {
+		deflaters.release(deflater);
+	}
+
+	static void releaseInflater(Inflater inflater) {
+		inflaters.release(inflater);
+	}
+
+	static byte[] takeBuffer() {
+		return buffers.take();
+	}
+
+	static Deflater takeDeflater() {
+		return deflaters.take();
+	}
+
+	static Inflater takeInflater() {
+		return inflaters.take();
+	}
+
+	private ZlibPool() {
+	}
+
+}
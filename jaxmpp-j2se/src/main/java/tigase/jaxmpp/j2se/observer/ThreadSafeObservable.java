@@ -17,9 +17,11 @@
  */
 package tigase.jaxmpp.j2se.observer;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -43,17 +45,51 @@ import tigase.jaxmpp.core.client.observer.Observable;
  * observable.fireEvent(new ResourceBinderModule.ResourceBindEvent(ResourceBinderModule.ResourceBindSuccess));
  * </pre>
  * 
+ * Listeners of event type registered in this observable and in its
+ * (thread-safe) parents are collected into one array, which is reused until
+ * listeners of any of these observables change. Firing event checks only this
+ * array instead of looking up listeners at each level of parents chain.
+ * 
  * @author bmalkow
  * 
  */
 public class ThreadSafeObservable implements Observable {
 
+	/**
+	 * Listeners of event type collected along parents chain.
+	 */
+	private static final class Dispatch {
+
+		private final Listener<? extends BaseEvent>[] listeners;
+
+		private final long stamp;
+
+		/**
+		 * First parent which isn't {@linkplain ThreadSafeObservable}. Event is
+		 * passed to it after calling collected listeners.
+		 */
+		private final Observable tail;
+
+		private Dispatch(long stamp, Listener<? extends BaseEvent>[] listeners, Observable tail) {
+			this.stamp = stamp;
+			this.listeners = listeners;
+			this.tail = tail;
+		}
+	}
+
+	private final ConcurrentHashMap<EventType, Dispatch> dispatches = new ConcurrentHashMap<EventType, Dispatch>();
+
 	private final CopyOnWriteArrayList<Listener<? extends BaseEvent>> everythingListener = new CopyOnWriteArrayList<Listener<? extends BaseEvent>>();
 
 	private final ConcurrentHashMap<EventType, CopyOnWriteArrayList<Listener<? extends BaseEvent>>> listeners = new ConcurrentHashMap<EventType, CopyOnWriteArrayList<Listener<? extends BaseEvent>>>();
 
 	private final Logger log = Logger.getLogger(this.getClass().getName());
 
+	/**
+	 * Incremented on each change of listeners.
+	 */
+	private final AtomicInteger modCount = new AtomicInteger();
+
 	private final Observable parent;
 
 	/**
@@ -91,6 +127,7 @@ public class ThreadSafeObservable implements Observable {
 				listeners.put(eventType, lst);
 			}
 			lst.add(listener);
+			modCount.incrementAndGet();
 		}
 	}
 
@@ -104,6 +141,7 @@ public class ThreadSafeObservable implements Observable {
 	public void addListener(Listener<? extends BaseEvent> listener) {
 		synchronized (this.everythingListener) {
 			this.everythingListener.add(listener);
+			modCount.incrementAndGet();
 		}
 	}
 
@@ -130,31 +168,23 @@ public class ThreadSafeObservable implements Observable {
 	@Override
 	@SuppressWarnings("unchecked")
 	public void fireEvent(final EventType eventType, final BaseEvent event) throws JaxmppException {
-		try {
-			// if (log.isLoggable(Level.FINEST))
-			// log.finest("Fire event " + eventType);
-			List<Listener<? extends BaseEvent>> lst = listeners.get(eventType);
-			if (lst != null) {
-				event.setHandled(true);
-				for (Listener<? extends BaseEvent> listener : lst) {
-					((Listener<BaseEvent>) listener).handleEvent(event);
-				}
-			}
-			if (!everythingListener.isEmpty()) {
-				event.setHandled(true);
-				for (Listener<? extends BaseEvent> listener : this.everythingListener) {
+		final Dispatch dispatch = getDispatch(eventType);
+		if (dispatch.listeners.length > 0) {
+			event.setHandled(true);
+			try {
+				for (Listener<? extends BaseEvent> listener : dispatch.listeners) {
 					((Listener<BaseEvent>) listener).handleEvent(event);
 				}
+			} catch (JaxmppException e) {
+				log.log(Level.WARNING, "Problem on calling observers", e);
+				throw e;
+			} catch (Exception e) {
+				log.log(Level.WARNING, "Problem on calling observers", e);
+				throw new JaxmppException(e);
 			}
-		} catch (JaxmppException e) {
-			log.log(Level.WARNING, "Problem on calling observers", e);
-			throw e;
-		} catch (Exception e) {
-			log.log(Level.WARNING, "Problem on calling observers", e);
-			throw new JaxmppException(e);
 		}
-		if (parent != null) {
-			parent.fireEvent(eventType, event);
+		if (dispatch.tail != null) {
+			dispatch.tail.fireEvent(eventType, event);
 		}
 	}
 
@@ -166,7 +196,59 @@ public class ThreadSafeObservable implements Observable {
 	 */
 	@Override
 	public void fireEvent(final EventType eventType, final SessionObject sessionObject) throws JaxmppException {
-		fireEvent(eventType, new BaseEvent(eventType, sessionObject));
+		if (hasListeners(eventType))
+			fireEvent(eventType, new BaseEvent(eventType, sessionObject));
+	}
+
+	/**
+	 * Returns listeners of given event type collected along parents chain.
+	 * Collected listeners are cached until listeners of this observable or
+	 * any of its thread-safe parents change.
+	 */
+	@SuppressWarnings("unchecked")
+	private Dispatch getDispatch(final EventType eventType) {
+		// stamp is read before collecting listeners, so change made during
+		// collecting causes collecting them again next time
+		final long stamp = getStamp();
+		Dispatch dispatch = dispatches.get(eventType);
+		if (dispatch != null && dispatch.stamp == stamp)
+			return dispatch;
+
+		final ArrayList<Listener<? extends BaseEvent>> collected = new ArrayList<Listener<? extends BaseEvent>>();
+		Observable o = this;
+		while (o instanceof ThreadSafeObservable) {
+			ThreadSafeObservable tso = (ThreadSafeObservable) o;
+			List<Listener<? extends BaseEvent>> lst = tso.listeners.get(eventType);
+			if (lst != null)
+				collected.addAll(lst);
+			collected.addAll(tso.everythingListener);
+			o = tso.parent;
+		}
+		dispatch = new Dispatch(stamp, collected.toArray(new Listener[collected.size()]), o);
+		dispatches.put(eventType, dispatch);
+		return dispatch;
+	}
+
+	/**
+	 * Sum of modification counters of this observable and its thread-safe
+	 * parents. Counters only grow, so stamp changes after each change of
+	 * listeners in chain.
+	 */
+	private long getStamp() {
+		long stamp = 0;
+		Observable o = this;
+		while (o instanceof ThreadSafeObservable) {
+			ThreadSafeObservable tso = (ThreadSafeObservable) o;
+			stamp += tso.modCount.get();
+			o = tso.parent;
+		}
+		return stamp;
+	}
+
+	@Override
+	public boolean hasListeners(final EventType eventType) {
+		final Dispatch dispatch = getDispatch(eventType);
+		return dispatch.listeners.length > 0 || (dispatch.tail != null && dispatch.tail.hasListeners(eventType));
 	}
 
 	/**
@@ -176,9 +258,11 @@ public class ThreadSafeObservable implements Observable {
 	public void removeAllListeners() {
 		synchronized (this.everythingListener) {
 			everythingListener.clear();
+			modCount.incrementAndGet();
 		}
 		synchronized (this.listeners) {
 			listeners.clear();
+			modCount.incrementAndGet();
 		}
 	}
 
@@ -199,6 +283,7 @@ public class ThreadSafeObservable implements Observable {
 				if (lst.isEmpty()) {
 					listeners.remove(eventType);
 				}
+				modCount.incrementAndGet();
 			}
 		}
 	}
@@ -215,6 +300,7 @@ public class ThreadSafeObservable implements Observable {
 	public void removeListener(Listener<? extends BaseEvent> listener) {
 		synchronized (this.everythingListener) {
 			this.everythingListener.remove(listener);
+			modCount.incrementAndGet();
 		}
 	}
 
@@ -0,0 +1,322 @@
+/*
+ * Tigase XMPP Client Library
+ * Copyright (C) 2006-2012 "Bartosz Małkowski" <bartosz.malkowski@tigase.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.jaxmpp.j2se.scheduler;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * {@linkplain Scheduler} based on hashed timing wheel. Scheduling and
+ * cancelling of task is O(1) and all tasks are served by single timer thread,
+ * so it scales to thousands of sessions. Precision of execution time is limited
+ * to length of one tick.
+ * <p>
+ * Timer thread only moves the wheel; expired tasks are executed by
+ * {@linkplain Executor}, so long running task doesn't delay the wheel. Default
+ * executor is fixed pool of daemon threads (see
+ * {@linkplain #getDefaultThreads()}), so many tasks expiring in the same tick
+ * wait in queue instead of starting thread each. Tasks shouldn't block for
+ * long time, because they delay other expired tasks then. Timer thread sleeps
+ * when no task is scheduled.
+ * </p>
+ */
+public class HashedWheelScheduler implements Scheduler {
+
+	private static final class Bucket {
+
+		private Task head;
+
+		private void add(Task task) {
+			task.next = head;
+			head = task;
+		}
+	}
+
+	private final class Task implements ScheduledTask, Runnable {
+
+		private long deadline;
+
+		private Task next;
+
+		private final long period;
+
+		private long rounds;
+
+		private final AtomicInteger state = new AtomicInteger(ST_WAITING);
+
+		private final Runnable task;
+
+		private Task(Runnable task, long deadline, long period) {
+			this.task = task;
+			this.deadline = deadline;
+			this.period = period;
+		}
+
+		@Override
+		public boolean cancel() {
+			return state.compareAndSet(ST_WAITING, ST_CANCELLED);
+		}
+
+		@Override
+		public boolean isCancelled() {
+			return state.get() == ST_CANCELLED;
+		}
+
+		@Override
+		public void run() {
+			if (state.get() == ST_CANCELLED)
+				return;
+			try {
+				task.run();
+			} catch (Throwable e) {
+				log.log(Level.WARNING, "Scheduled task failed", e);
+			}
+		}
+	}
+
+	public static final long DEFAULT_TICK_DURATION = 10;
+
+	public static final int DEFAULT_WHEEL_SIZE = 512;
+
+	private static final Logger log = Logger.getLogger(HashedWheelScheduler.class.getName());
+
+	private static final int ST_CANCELLED = 2;
+
+	private static final int ST_EXPIRED = 1;
+
+	private static final int ST_WAITING = 0;
+
+	private static Executor createDefaultExecutor(final String name) {
+		final int threads = getDefaultThreads();
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+
+					private final AtomicInteger counter = new AtomicInteger();
+
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, name + "-" + counter.incrementAndGet());
+						t.setDaemon(true);
+						return t;
+					}
+				});
+		pool.allowCoreThreadTimeOut(true);
+		return pool;
+	}
+
+	/**
+	 * Returns number of threads of default executor: number of processors but
+	 * not less than 2.
+	 */
+	public static int getDefaultThreads() {
+		return Math.max(2, Runtime.getRuntime().availableProcessors());
+	}
+
+	private final Executor executor;
+
+	private final int mask;
+
+	private final Queue<Task> newTasks = new ConcurrentLinkedQueue<Task>();
+
+	private volatile boolean stopped;
+
+	private final long startTime;
+
+	private final Thread thread;
+
+	private final long tickDuration;
+
+	/**
+	 * Current tick. Accessed only by timer thread.
+	 */
+	private long tick;
+
+	/**
+	 * Number of tasks in wheel. Accessed only by timer thread.
+	 */
+	private int tasksCount;
+
+	private final Bucket[] wheel;
+
+	public HashedWheelScheduler(String name) {
+		this(name, DEFAULT_TICK_DURATION, DEFAULT_WHEEL_SIZE, null);
+	}
+
+	/**
+	 * @param name
+	 *            name of timer thread
+	 * @param tickDuration
+	 *            length of tick in milliseconds
+	 * @param wheelSize
+	 *            number of buckets in wheel. It is rounded up to power of 2.
+	 * @param executor
+	 *            executor of expired tasks. If <code>null</code> then fixed
+	 *            pool of daemon threads is used.
+	 */
+	public HashedWheelScheduler(String name, long tickDuration, int wheelSize, Executor executor) {
+		if (tickDuration <= 0)
+			throw new IllegalArgumentException("tickDuration must be positive");
+		int size = 1;
+		while (size < wheelSize)
+			size <<= 1;
+		this.wheel = new Bucket[size];
+		for (int i = 0; i < size; i++)
+			wheel[i] = new Bucket();
+		this.mask = size - 1;
+		this.tickDuration = tickDuration;
+		this.executor = executor == null ? createDefaultExecutor(name) : executor;
+		this.startTime = System.currentTimeMillis();
+		this.thread = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				work();
+			}
+		}, name);
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+
+	private long currentTick() {
+		return (System.currentTimeMillis() - startTime) / tickDuration;
+	}
+
+	private void expire(Bucket bucket) {
+		Task prev = null;
+		Task t = bucket.head;
+		while (t != null) {
+			final Task next = t.next;
+			boolean remove = false;
+			if (t.state.get() == ST_CANCELLED) {
+				remove = true;
+			} else if (t.rounds > 0) {
+				--t.rounds;
+			} else {
+				remove = true;
+				if (t.period <= 0)
+					t.state.compareAndSet(ST_WAITING, ST_EXPIRED);
+				execute(t);
+			}
+			if (remove) {
+				if (prev == null)
+					bucket.head = next;
+				else
+					prev.next = next;
+				t.next = null;
+				--tasksCount;
+				if (t.period > 0 && t.state.get() == ST_WAITING) {
+					t.deadline += t.period;
+					place(t);
+				}
+			} else {
+				prev = t;
+			}
+			t = next;
+		}
+	}
+
+	private void execute(Task t) {
+		try {
+			executor.execute(t);
+		} catch (RuntimeException e) {
+			log.log(Level.WARNING, "Can't execute scheduled task", e);
+		}
+	}
+
+	private void place(Task t) {
+		long deadlineTick = (t.deadline - startTime + tickDuration - 1) / tickDuration;
+		if (deadlineTick <= tick)
+			deadlineTick = tick + 1;
+		t.rounds = (deadlineTick - tick - 1) / wheel.length;
+		wheel[(int) (deadlineTick & mask)].add(t);
+		++tasksCount;
+	}
+
+	@Override
+	public ScheduledTask schedule(Runnable task, long delay) {
+		return schedule(task, delay, 0);
+	}
+
+	@Override
+	public ScheduledTask schedule(Runnable task, long delay, long period) {
+		if (stopped)
+			throw new IllegalStateException("Scheduler is stopped");
+		Task t = new Task(task, System.currentTimeMillis() + Math.max(0, delay), period);
+		newTasks.offer(t);
+		synchronized (this) {
+			if (tasksCount == 0)
+				notify();
+		}
+		return t;
+	}
+
+	/**
+	 * Stops timer thread. Waiting tasks will not be executed.
+	 */
+	public void stop() {
+		stopped = true;
+		thread.interrupt();
+	}
+
+	private void transferNewTasks() {
+		Task t;
+		while ((t = newTasks.poll()) != null) {
+			if (t.state.get() != ST_CANCELLED)
+				place(t);
+		}
+	}
+
+	private void work() {
+		tick = currentTick();
+		try {
+			while (!stopped) {
+				synchronized (this) {
+					while (tasksCount == 0 && newTasks.isEmpty() && !stopped)
+						wait();
+				}
+				if (tasksCount == 0) {
+					// wheel was empty, so there is nothing to catch up
+					tick = currentTick();
+				}
+				transferNewTasks();
+
+				final long now = currentTick();
+				while (tick < now) {
+					++tick;
+					expire(wheel[(int) (tick & mask)]);
+				}
+
+				final long sleep = startTime + (tick + 1) * tickDuration - System.currentTimeMillis();
+				if (sleep > 0)
+					Thread.sleep(sleep);
+			}
+		} catch (InterruptedException e) {
+			if (!stopped)
+				log.log(Level.WARNING, "Scheduler thread interrupted", e);
+		}
+	}
+
+}
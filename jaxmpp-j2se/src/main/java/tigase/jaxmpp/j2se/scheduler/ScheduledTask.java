@@ -0,0 +1,34 @@
+/*
+ * Tigase XMPP Client Library
+ * Copyright (C) 2006-2012 "Bartosz Małkowski" <bartosz.malkowski@tigase.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.jaxmpp.j2se.scheduler;
+
+/**
+ * Handle of task scheduled in {@linkplain Scheduler}.
+ */
+public interface ScheduledTask {
+
+	/**
+	 * Cancels task. Execution which is already in progress is not interrupted.
+	 * 
+	 * @return <code>true</code> if task was cancelled by this call
+	 */
+	boolean cancel();
+
+	boolean isCancelled();
+
+}
@@ -0,0 +1,51 @@
+/*
+ * Tigase XMPP Client Library
+ * Copyright (C) 2006-2012 "Bartosz Małkowski" <bartosz.malkowski@tigase.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.jaxmpp.j2se.scheduler;
+
+/**
+ * Service executing delayed and periodic tasks. One instance is shared by all
+ * {@linkplain tigase.jaxmpp.j2se.Jaxmpp} instances and connectors in JVM (see
+ * {@linkplain SchedulerFactory}), so tasks should be short and must not block.
+ */
+public interface Scheduler {
+
+	/**
+	 * Schedules task for single execution.
+	 * 
+	 * @param task
+	 *            task to execute
+	 * @param delay
+	 *            delay in milliseconds
+	 * @return handle of scheduled task
+	 */
+	ScheduledTask schedule(Runnable task, long delay);
+
+	/**
+	 * Schedules task for repeated execution with fixed rate.
+	 * 
+	 * @param task
+	 *            task to execute
+	 * @param delay
+	 *            delay of first execution in milliseconds
+	 * @param period
+	 *            time between executions in milliseconds
+	 * @return handle of scheduled task
+	 */
+	ScheduledTask schedule(Runnable task, long delay, long period);
+
+}
@@ -0,0 +1,46 @@
+/*
+ * Tigase XMPP Client Library
+ * Copyright (C) 2006-2012 "Bartosz Małkowski" <bartosz.malkowski@tigase.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.jaxmpp.j2se.scheduler;
+
+import tigase.jaxmpp.core.client.factory.UniversalFactory;
+
+/**
+ * Provides {@linkplain Scheduler} used by library. Alternative implementation
+ * may be registered in {@linkplain UniversalFactory} with name
+ * <code>Scheduler.class.getName()</code>. By default
+ * {@linkplain HashedWheelScheduler} shared by whole JVM is used.
+ */
+public class SchedulerFactory {
+
+	private static HashedWheelScheduler defaultScheduler;
+
+	private static synchronized Scheduler getDefault() {
+		if (defaultScheduler == null)
+			defaultScheduler = new HashedWheelScheduler("jaxmpp-scheduler");
+		return defaultScheduler;
+	}
+
+	public static Scheduler getScheduler() {
+		Scheduler s = UniversalFactory.createInstance(Scheduler.class.getName());
+		return s == null ? getDefault() : s;
+	}
+
+	private SchedulerFactory() {
+	}
+
+}
@@ -17,7 +17,9 @@
  */
 package tigase.jaxmpp.j2se.xml;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 
@@ -25,19 +27,45 @@ import tigase.jaxmpp.core.client.xml.Element;
 import tigase.jaxmpp.core.client.xml.ElementComparator;
 import tigase.jaxmpp.core.client.xml.XMLException;
 
+/**
+ * {@linkplain Element} wrapping <code>tigase.xml.Element</code>.
+ * <p>
+ * Wrappers of children are created once, when children are requested first
+ * time, and are reused by all later calls. Each child wrapper knows its
+ * parent wrapper and its position, so siblings are found without comparing
+ * elements. Tree must be modified only by wrappers, because changes made
+ * directly in wrapped element aren't visible in created wrappers.
+ * </p>
+ */
 public class J2seElement implements Element {
 
+	/**
+	 * Wrappers of children. <code>null</code> if not created yet.
+	 */
+	private List<J2seElement> children;
+
+	/**
+	 * Unmodifiable view of {@linkplain #children}.
+	 */
+	private List<Element> childrenView;
+
+	/**
+	 * Position in list of children of parent.
+	 */
+	private int index;
+
 	private J2seElement parent;
 
 	private final tigase.xml.Element xmlElement;
 
 	public J2seElement(tigase.xml.Element xmlElement) {
-		this(xmlElement, null);
+		this(xmlElement, null, -1);
 	}
 
-	private J2seElement(tigase.xml.Element xmlElement, J2seElement parent) {
+	private J2seElement(tigase.xml.Element xmlElement, J2seElement parent, int index) {
 		this.xmlElement = xmlElement;
 		this.parent = parent;
+		this.index = index;
 	}
 
 	@Override
@@ -45,6 +73,23 @@ public class J2seElement implements Element {
 		throw new RuntimeException("Not implemented in J2seElement");
 	}
 
+	private List<J2seElement> children() {
+		if (children == null) {
+			List<tigase.xml.Element> x = this.xmlElement.getChildren();
+			if (x == null || x.isEmpty()) {
+				children = Collections.emptyList();
+			} else {
+				ArrayList<J2seElement> result = new ArrayList<J2seElement>(x.size());
+				for (tigase.xml.Element e : x) {
+					result.add(new J2seElement(e, this, result.size()));
+				}
+				children = result;
+			}
+			childrenView = Collections.<Element> unmodifiableList(children);
+		}
+		return children;
+	}
+
 	@Override
 	public String getAsString() throws XMLException {
 		return this.xmlElement.toString();
@@ -66,57 +111,50 @@ public class J2seElement implements Element {
 		if (index == -1) {
 			throw new XMLException("Element not part of tree");
 		}
-		tigase.xml.Element n = this.xmlElement.getChildren().get(index + 1);
-		return new J2seElement(n, this);
+		return children().get(index + 1);
 	}
 
 	@Override
 	public List<Element> getChildren() throws XMLException {
-		ArrayList<Element> result = new ArrayList<Element>();
-		List<tigase.xml.Element> x = this.xmlElement.getChildren();
-		if (x != null)
-			for (tigase.xml.Element e : x) {
-				result.add(new J2seElement(e, this));
-			}
-		return result;
+		children();
+		return childrenView;
 	}
 
 	@Override
 	public List<Element> getChildren(String name) throws XMLException {
 		ArrayList<Element> result = new ArrayList<Element>();
-		List<tigase.xml.Element> x = this.xmlElement.getChildren();
-		if (x != null)
-			for (tigase.xml.Element e : x) {
-				if (e != null && name.equals(e.getName()))
-					result.add(new J2seElement(e, this));
-			}
+		for (J2seElement e : children()) {
+			if (name.equals(e.xmlElement.getName()))
+				result.add(e);
+		}
 		return result;
 	}
 
 	@Override
 	public List<Element> getChildrenNS(String xmlns) throws XMLException {
 		ArrayList<Element> result = new ArrayList<Element>();
-		for (tigase.xml.Element e : this.xmlElement.getChildren()) {
-			String x = e.getXMLNS();
+		for (J2seElement e : children()) {
+			String x = e.xmlElement.getXMLNS();
 			if (x != null && x.equals(xmlns))
-				result.add(new J2seElement(e, this));
+				result.add(e);
 		}
 		return result;
 	}
 
 	@Override
 	public Element getChildrenNS(String name, String xmlns) throws XMLException {
-		tigase.xml.Element e = this.xmlElement.getChild(name, xmlns);
-		if (e != null)
-			return new J2seElement(e, this);
+		for (J2seElement e : children()) {
+			if (name.equals(e.xmlElement.getName()) && (xmlns == null || xmlns.equals(e.xmlElement.getXMLNS())))
+				return e;
+		}
 		return null;
 	}
 
 	@Override
 	public Element getFirstChild() throws XMLException {
-		List<tigase.xml.Element> children = this.xmlElement.getChildren();
-		if (children != null && children.size() > 0)
-			return new J2seElement(children.get(0), this);
+		List<J2seElement> children = children();
+		if (children.size() > 0)
+			return children.get(0);
 		return null;
 	}
 
@@ -134,7 +172,7 @@ public class J2seElement implements Element {
 
 	@Override
 	public Element getParent() throws XMLException {
-		return this.parent == null ? null : new J2seElement(this.parent.xmlElement, (J2seElement) this.parent.getParent());
+		return this.parent;
 	}
 
 	@Override
@@ -148,16 +186,22 @@ public class J2seElement implements Element {
 	}
 
 	private int indexOf(final Element child) {
-		List<tigase.xml.Element> children = this.xmlElement.getChildren();
-		if (children != null)
+		if (child instanceof J2seElement) {
+			J2seElement c = (J2seElement) child;
+			if (c.parent == this)
+				return c.index;
+			List<J2seElement> children = children();
 			for (int i = 0; i < children.size(); i++) {
-				tigase.xml.Element cc = children.get(i);
-				if (child instanceof J2seElement) {
-					if (((J2seElement) child).xmlElement.equals(cc))
-						return i;
-				} else if (cc instanceof tigase.xml.Element && ElementComparator.equal(new J2seElement(cc, null), child))
+				if (children.get(i).xmlElement == c.xmlElement)
 					return i;
 			}
+			return -1;
+		}
+		List<J2seElement> children = children();
+		for (int i = 0; i < children.size(); i++) {
+			if (ElementComparator.equal(children.get(i), child))
+				return i;
+		}
 		return -1;
 	}
 
@@ -169,8 +213,15 @@ public class J2seElement implements Element {
 	@Override
 	public void removeChild(Element child) throws XMLException {
 		int index = indexOf(child);
-		if (index != -1)
-			this.xmlElement.getChildren().remove(index);
+		if (index == -1)
+			return;
+		J2seElement removed = children.remove(index);
+		this.xmlElement.removeChild(removed.xmlElement);
+		removed.parent = null;
+		removed.index = -1;
+		for (int i = index; i < children.size(); i++) {
+			children.get(i).index = i;
+		}
 
 	}
 
@@ -199,4 +250,41 @@ public class J2seElement implements Element {
 		setAttribute("xmlns", xmlns);
 	}
 
+	/**
+	 * Writes the same data as <code>toString()</code> of wrapped element, but
+	 * without building string of whole tree. Attribute values and character
+	 * data are written as they are stored in wrapped element.
+	 */
+	@Override
+	public void writeTo(Appendable out) throws XMLException, IOException {
+		final String name = this.xmlElement.getName();
+		out.append('<');
+		out.append(name);
+		final Map<String, String> attributes = this.xmlElement.getAttributes();
+		if (attributes != null) {
+			for (Map.Entry<String, String> e : attributes.entrySet()) {
+				out.append(' ');
+				out.append(e.getKey());
+				out.append("=\"");
+				out.append(e.getValue());
+				out.append('"');
+			}
+		}
+		final String cdata = this.xmlElement.getCData();
+		final List<J2seElement> children = children();
+		if (cdata == null && children.isEmpty()) {
+			out.append("/>");
+			return;
+		}
+		out.append('>');
+		if (cdata != null)
+			out.append(cdata);
+		for (J2seElement child : children) {
+			child.writeTo(out);
+		}
+		out.append("</");
+		out.append(name);
+		out.append('>');
+	}
+
 }
\ No newline at end of file
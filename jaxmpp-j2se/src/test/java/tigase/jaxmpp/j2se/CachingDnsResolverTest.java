@@ -0,0 +1,206 @@
+/*
+ * Tigase XMPP Client Library
+ * Copyright (C) 2006-2012 "Bartosz Małkowski" <bartosz.malkowski@tigase.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.jaxmpp.j2se;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.xbill.DNS.DClass;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.SRVRecord;
+
+import tigase.jaxmpp.j2se.connectors.socket.SocketConnector.Entry;
+
+public class CachingDnsResolverTest extends TestCase {
+
+	private static class TestResolver extends CachingDnsResolver {
+
+		private volatile CountDownLatch block;
+
+		private volatile boolean fail;
+
+		private final AtomicInteger lookups = new AtomicInteger();
+
+		private volatile Record[] records;
+
+		private volatile long time = 1000000;
+
+		TestResolver() {
+			super(60 * 1000, 5 * 1000);
+		}
+
+		@Override
+		protected long currentTimeMillis() {
+			return time;
+		}
+
+		@Override
+		protected Record[] lookupSrv(String name) throws IOException {
+			lookups.incrementAndGet();
+			if (block != null)
+				try {
+					block.await(5, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+				}
+			if (fail)
+				throw new IOException("SERVFAIL");
+			return records;
+		}
+	}
+
+	private static Record srv(int ttl, int priority, int weight, String target) throws Exception {
+		return new SRVRecord(Name.fromString("_xmpp-client._tcp.example.com."), DClass.IN, ttl, priority, weight, 5222,
+				Name.fromString(target));
+	}
+
+	public void testCachedUntilTtl() throws Exception {
+		TestResolver r = new TestResolver();
+		r.records = new Record[] { srv(300, 0, 0, "xmpp.example.com.") };
+
+		List<Entry> e = r.resolve("example.com");
+		assertEquals(1, e.size());
+		assertEquals("xmpp.example.com", e.get(0).getHostname());
+		assertEquals(Integer.valueOf(5222), e.get(0).getPort());
+
+		r.time += 299 * 1000;
+		r.resolve("Example.COM");
+		assertEquals(1, r.lookups.get());
+
+		r.time += 1000;
+		r.resolve("example.com");
+		assertEquals(2, r.lookups.get());
+	}
+
+	public void testConcurrentLookupsAreMerged() throws Exception {
+		final TestResolver r = new TestResolver();
+		r.records = new Record[] { srv(300, 0, 0, "xmpp.example.com.") };
+		r.block = new CountDownLatch(1);
+
+		final List<Thread> threads = new ArrayList<Thread>();
+		final AtomicInteger resolved = new AtomicInteger();
+		for (int i = 0; i < 20; i++) {
+			Thread t = new Thread() {
+				@Override
+				public void run() {
+					if (r.resolve("example.com").size() == 1)
+						resolved.incrementAndGet();
+				}
+			};
+			threads.add(t);
+			t.start();
+		}
+		Thread.sleep(100);
+		r.block.countDown();
+		for (Thread t : threads)
+			t.join(5000);
+
+		assertEquals(20, resolved.get());
+		assertEquals(1, r.lookups.get());
+	}
+
+	public void testDirectTLS() throws Exception {
+		final List<String> names = new ArrayList<String>();
+		CachingDnsResolver r = new CachingDnsResolver(true, 60 * 1000, 5 * 1000) {
+
+			@Override
+			protected Record[] lookupSrv(String name) throws IOException {
+				names.add(name);
+				return null;
+			}
+		};
+		assertTrue(r.resolve("example.com").isEmpty());
+		assertEquals(Arrays.asList("_xmpps-client._tcp.example.com"), names);
+	}
+
+	public void testDirectTLSCachedSeparately() throws Exception {
+		final List<String> names = new ArrayList<String>();
+		CachingDnsResolver r = new CachingDnsResolver() {
+
+			@Override
+			protected Record[] lookupSrv(String name) throws IOException {
+				names.add(name);
+				return null;
+			}
+		};
+		assertTrue(r.resolveDirectTLS("example.com").isEmpty());
+		assertEquals(1, r.resolve("example.com").size());
+		assertTrue(r.resolveDirectTLS("example.com").isEmpty());
+		assertEquals(Arrays.asList("_xmpps-client._tcp.example.com", "_xmpp-client._tcp.example.com"), names);
+	}
+
+	public void testFailureAndNegativeCaching() throws Exception {
+		TestResolver r = new TestResolver();
+		r.fail = true;
+		List<Entry> e = r.resolve("example.com");
+		assertEquals("example.com", e.get(0).getHostname());
+		assertEquals(Integer.valueOf(5222), e.get(0).getPort());
+
+		r.time += 4 * 1000;
+		r.resolve("example.com");
+		assertEquals(1, r.lookups.get());
+		r.time += 1000;
+		r.fail = false;
+		r.records = null;
+		r.resolve("example.com");
+		assertEquals(2, r.lookups.get());
+
+		r.time += 59 * 1000;
+		assertEquals("example.com", r.resolve("example.com").get(0).getHostname());
+		assertEquals(2, r.lookups.get());
+		r.time += 1000;
+		r.resolve("example.com");
+		assertEquals(3, r.lookups.get());
+	}
+
+	public void testOrder() throws Exception {
+		Entry a = new Entry("a", 5222, 10, 0);
+		Entry b = new Entry("b", 5222, 20, 90);
+		Entry c = new Entry("c", 5222, 20, 10);
+		Entry d = new Entry("d", 5222, 5, 0);
+
+		Random random = new Random(1);
+		int bFirst = 0;
+		for (int i = 0; i < 1000; i++) {
+			List<Entry> o = CachingDnsResolver.order(Arrays.asList(a, b, c, d), random);
+			assertEquals(4, o.size());
+			assertSame(d, o.get(0));
+			assertSame(a, o.get(1));
+			if (o.get(2) == b)
+				++bFirst;
+		}
+		assertTrue("b selected " + bFirst, bFirst > 850 && bFirst < 950);
+	}
+
+	public void testServiceNotAvailable() throws Exception {
+		TestResolver r = new TestResolver();
+		r.records = new Record[] { srv(300, 0, 0, ".") };
+		List<Entry> e = r.resolve("example.com");
+		assertEquals(1, e.size());
+		assertEquals("example.com", e.get(0).getHostname());
+	}
+
+}
@@ -0,0 +1,86 @@
+/*
+ * Tigase XMPP Client Library
+ * Copyright (C) 2006-2012 "Bartosz Małkowski" <bartosz.malkowski@tigase.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.jaxmpp.j2se;
+
+import java.util.Arrays;
+
+import tigase.jaxmpp.core.client.exceptions.JaxmppException;
+import tigase.jaxmpp.core.client.observer.Listener;
+import tigase.jaxmpp.core.client.xml.DefaultElement;
+import tigase.jaxmpp.core.client.xml.Element;
+import tigase.jaxmpp.core.client.xmpp.modules.chat.MessageModule;
+import tigase.jaxmpp.core.client.xmpp.modules.chat.MessageModule.MessageEvent;
+
+/**
+ * Compares latency of processing received message (from passing it to
+ * {@linkplain Jaxmpp} to calling listener) in inline dispatch mode and with
+ * executor.
+ */
+public class InlineDispatchBenchmark {
+
+	private static final int MESSAGES = 20000;
+
+	private static volatile long received;
+
+	public static void main(String[] args) throws Exception {
+		for (int round = 0; round < 3; round++) {
+			run(false);
+			run(true);
+		}
+	}
+
+	private static void run(boolean inline) throws Exception {
+		final Jaxmpp jaxmpp = new Jaxmpp();
+		jaxmpp.getProperties().setUserProperty(Jaxmpp.INLINE_DISPATCH_KEY, inline);
+		jaxmpp.addListener(MessageModule.MessageReceived, new Listener<MessageEvent>() {
+
+			@Override
+			public void handleEvent(MessageEvent be) throws JaxmppException {
+				received = System.nanoTime();
+			}
+		});
+
+		final long[] latency = new long[MESSAGES];
+		for (int i = 0; i < MESSAGES; i++) {
+			Element message = new DefaultElement("message");
+			message.setAttribute("from", "user" + (i % 10) + "@example.com/res");
+			message.setAttribute("type", "chat");
+			message.addChild(new DefaultElement("body", "Message " + i, null));
+
+			received = 0;
+			final long start = System.nanoTime();
+			jaxmpp.onStanzaReceived(message);
+			while (received == 0)
+				Thread.yield();
+			latency[i] = received - start;
+		}
+		String slow = "";
+		if (inline) {
+			slow = ", slow kinds " + jaxmpp.getInlineDispatcher().getSlowKinds();
+			jaxmpp.getInlineDispatcher().stop();
+		}
+
+		Arrays.sort(latency);
+		long sum = 0;
+		for (long l : latency)
+			sum += l;
+		System.out.println((inline ? "inline: " : "executor: ") + "mean " + sum / MESSAGES / 1000 + " us, p50 "
+				+ latency[MESSAGES / 2] / 1000 + " us, p99 " + latency[MESSAGES * 99 / 100] / 1000 + " us" + slow);
+	}
+
+}
@@ -0,0 +1,149 @@
+/*
+ * Tigase XMPP Client Library
+ * Copyright (C) 2006-2012 "Bartosz Małkowski" <bartosz.malkowski@tigase.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.jaxmpp.j2se;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+import tigase.jaxmpp.core.client.exceptions.JaxmppException;
+import tigase.jaxmpp.core.client.observer.Listener;
+import tigase.jaxmpp.core.client.xml.DefaultElement;
+import tigase.jaxmpp.core.client.xml.Element;
+import tigase.jaxmpp.core.client.xmpp.modules.chat.MessageModule;
+import tigase.jaxmpp.core.client.xmpp.modules.chat.MessageModule.MessageEvent;
+import tigase.jaxmpp.j2se.scheduler.SchedulerFactory;
+
+public class InlineDispatcherTest extends TestCase {
+
+	private static Element message(String from, String body) throws Exception {
+		Element message = new DefaultElement("message");
+		message.setAttribute("from", from);
+		message.setAttribute("type", "chat");
+		message.addChild(new DefaultElement("body", body, null));
+		return message;
+	}
+
+	public void testBudget() throws Exception {
+		InlineDispatcher dispatcher = new InlineDispatcher(10, null);
+		final Runnable fast = new Runnable() {
+
+			@Override
+			public void run() {
+			}
+		};
+		dispatcher.run("fast", fast);
+		assertFalse(dispatcher.isSlow("fast"));
+		final Runnable slow = new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					Thread.sleep(20);
+				} catch (InterruptedException e) {
+				}
+			}
+		};
+		// single overruns are forgiven
+		for (int i = 0; i < 10; i++) {
+			dispatcher.run("sometimes slow", i % 2 == 0 ? slow : fast);
+		}
+		assertFalse(dispatcher.isSlow("sometimes slow"));
+		for (int i = 0; i < InlineDispatcher.OVERRUNS_LIMIT; i++) {
+			assertFalse(dispatcher.isSlow("slow"));
+			dispatcher.run("slow", slow);
+		}
+		assertTrue(dispatcher.isSlow("slow"));
+		assertFalse(dispatcher.isSlow("fast"));
+	}
+
+	public void testJaxmppDispatch() throws Exception {
+		final Jaxmpp jaxmpp = new Jaxmpp();
+		jaxmpp.getProperties().setUserProperty(Jaxmpp.INLINE_DISPATCH_KEY, Boolean.TRUE);
+		jaxmpp.getProperties().setUserProperty(Jaxmpp.INLINE_DISPATCH_BUDGET_KEY, 20L);
+
+		final Thread[] handlerThread = new Thread[1];
+		final long[] sleep = new long[] { 0 };
+		final CountDownLatch processed = new CountDownLatch(1 + 2 * InlineDispatcher.OVERRUNS_LIMIT);
+		jaxmpp.addListener(MessageModule.MessageReceived, new Listener<MessageEvent>() {
+
+			@Override
+			public void handleEvent(MessageEvent be) throws JaxmppException {
+				handlerThread[0] = Thread.currentThread();
+				try {
+					Thread.sleep(sleep[0]);
+				} catch (InterruptedException e) {
+				}
+				processed.countDown();
+			}
+		});
+
+		// first messages may exceed budget because of loading classes
+		for (int i = 0; i < InlineDispatcher.OVERRUNS_LIMIT; i++) {
+			jaxmpp.onStanzaReceived(message("a@example.com/x", "fast"));
+			assertSame(Thread.currentThread(), handlerThread[0]);
+		}
+
+		// handlers exceed budget, so next messages are passed to executor
+		sleep[0] = 40;
+		for (int i = 0; i < InlineDispatcher.OVERRUNS_LIMIT; i++) {
+			jaxmpp.onStanzaReceived(message("a@example.com/x", "slow"));
+			assertSame(Thread.currentThread(), handlerThread[0]);
+		}
+		sleep[0] = 0;
+		jaxmpp.onStanzaReceived(message("b@example.com/x", "3"));
+		assertTrue(processed.await(5, TimeUnit.SECONDS));
+		assertNotSame(Thread.currentThread(), handlerThread[0]);
+		assertEquals(1, jaxmpp.getInlineDispatcher().getSlowKinds().size());
+		jaxmpp.getInlineDispatcher().stop();
+	}
+
+	public void testWatchdog() throws Exception {
+		final InlineDispatcher dispatcher = new InlineDispatcher(20, SchedulerFactory.getScheduler());
+		final CountDownLatch release = new CountDownLatch(1);
+		Thread t = new Thread() {
+			@Override
+			public void run() {
+				dispatcher.run("blocking", new Runnable() {
+
+					@Override
+					public void run() {
+						try {
+							release.await();
+						} catch (InterruptedException e) {
+						}
+					}
+				});
+			}
+		};
+		t.start();
+		try {
+			// handler is still executed
+			long end = System.currentTimeMillis() + 5000;
+			while (!dispatcher.isSlow("blocking") && System.currentTimeMillis() < end)
+				Thread.sleep(10);
+			assertTrue(dispatcher.isSlow("blocking"));
+			assertTrue(t.isAlive());
+		} finally {
+			release.countDown();
+			t.join();
+			dispatcher.stop();
+		}
+	}
+
+}
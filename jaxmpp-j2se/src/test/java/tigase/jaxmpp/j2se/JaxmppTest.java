@@ -1,9 +1,27 @@
 package tigase.jaxmpp.j2se;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
 import junit.framework.Assert;
 
 import org.junit.Test;
 
+import tigase.jaxmpp.core.client.connector.ConnectorWrapper;
+import tigase.jaxmpp.core.client.exceptions.JaxmppException;
+import tigase.jaxmpp.core.client.observer.Listener;
+import tigase.jaxmpp.core.client.xml.DefaultElement;
+import tigase.jaxmpp.core.client.xml.Element;
+import tigase.jaxmpp.core.client.xml.XMLException;
+import tigase.jaxmpp.core.client.xmpp.modules.chat.MessageModule;
+import tigase.jaxmpp.core.client.xmpp.modules.chat.MessageModule.MessageEvent;
+import tigase.jaxmpp.core.client.xmpp.stanzas.IQ;
+import tigase.jaxmpp.core.client.xmpp.stanzas.Stanza;
+import tigase.jaxmpp.core.client.xmpp.stanzas.StanzaType;
+
 public class JaxmppTest {
 
 	@Test
@@ -16,4 +34,152 @@ public class JaxmppTest {
 
 	}
 
+	private static Element message(String from) throws XMLException {
+		Element message = new DefaultElement("message");
+		message.setAttribute("from", from);
+		message.setAttribute("type", "chat");
+		message.addChild(new DefaultElement("body", "Hello", null));
+		return message;
+	}
+
+	@Test
+	public void testOrderingKeyScopedToSession() throws Exception {
+		Jaxmpp a = new Jaxmpp();
+		Jaxmpp b = new Jaxmpp();
+		Element m = message("room@muc.example.com/nick");
+
+		Assert.assertEquals(a.getOrderingKey(m), a.getOrderingKey(message("room@muc.example.com/other")));
+		Assert.assertFalse(a.getOrderingKey(m).equals(b.getOrderingKey(m)));
+	}
+
+	/**
+	 * Thread reading connection isn't blocked when executor is full. IQ
+	 * request is answered with error.
+	 */
+	@Test
+	public void testStanzaRejectedWhenExecutorFull() throws Exception {
+		final OrderedExecutor executor = new OrderedExecutor(1, 1);
+		final List<Element> sent = Collections.synchronizedList(new ArrayList<Element>());
+		final Jaxmpp jaxmpp = new Jaxmpp() {
+			{
+				connector = new ConnectorWrapper(null) {
+
+					@Override
+					public State getState() {
+						return State.connected;
+					}
+
+					@Override
+					public void send(Element stanza) throws XMLException, JaxmppException {
+						sent.add(stanza);
+					}
+				};
+			}
+		};
+		jaxmpp.setExecutor(executor);
+
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		jaxmpp.addListener(MessageModule.MessageReceived, new Listener<MessageEvent>() {
+
+			@Override
+			public void handleEvent(MessageEvent be) throws JaxmppException {
+				started.countDown();
+				try {
+					release.await(10, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+				}
+			}
+		});
+		try {
+			jaxmpp.onStanzaReceived(message("romeo@example.net/orchard"));
+			Assert.assertTrue(started.await(5, TimeUnit.SECONDS));
+			jaxmpp.onStanzaReceived(message("romeo@example.net/orchard"));
+
+			Element iq = new DefaultElement("iq");
+			iq.setAttribute("type", "get");
+			iq.setAttribute("id", "v1");
+			iq.setAttribute("from", "juliet@example.com/balcony");
+			iq.addChild(new DefaultElement("query", null, "jabber:iq:version"));
+			final long start = System.currentTimeMillis();
+			jaxmpp.onStanzaReceived(iq);
+			Assert.assertTrue(System.currentTimeMillis() - start < 1000);
+
+			Assert.assertEquals(1, sent.size());
+			Element error = sent.get(0);
+			Assert.assertEquals("error", error.getAttribute("type"));
+			Assert.assertEquals("v1", error.getAttribute("id"));
+			Assert.assertNotNull(error.getFirstChild().getChildren("resource-constraint").get(0));
+		} finally {
+			release.countDown();
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * Handler processed by the only core thread of executor waits for response
+	 * of IQ. Response must be processed by additional thread.
+	 */
+	@Test
+	public void testSynchronousCallFromHandler() throws Exception {
+		final OrderedExecutor executor = new OrderedExecutor(1, 4, 100, "test-executor");
+		final WatchedXmpp[] jaxmpp = new WatchedXmpp[1];
+		jaxmpp[0] = new WatchedXmpp() {
+			{
+				connector = new ConnectorWrapper(null) {
+
+					@Override
+					public State getState() {
+						return State.connected;
+					}
+
+					@Override
+					public void send(final Element stanza) throws XMLException, JaxmppException {
+						if (!"iq".equals(stanza.getName()))
+							return;
+						final String id = stanza.getAttribute("id");
+						// server answers in thread reading connection
+						new Thread() {
+
+							@Override
+							public void run() {
+								try {
+									Element result = new DefaultElement("iq");
+									result.setAttribute("type", "result");
+									result.setAttribute("id", id);
+									onStanzaReceived(result);
+								} catch (XMLException e) {
+									throw new RuntimeException(e);
+								}
+							}
+						}.start();
+					}
+				};
+			}
+		};
+		jaxmpp[0].setExecutor(executor);
+
+		final Stanza[] response = new Stanza[1];
+		final CountDownLatch done = new CountDownLatch(1);
+		jaxmpp[0].addListener(MessageModule.MessageReceived, new Listener<MessageEvent>() {
+
+			@Override
+			public void handleEvent(MessageEvent be) throws JaxmppException {
+				IQ iq = IQ.create();
+				iq.setType(StanzaType.get);
+				iq.addChild(new DefaultElement("query", null, "jabber:iq:version"));
+				response[0] = jaxmpp[0].call(iq, 5000);
+				done.countDown();
+			}
+		});
+
+		final long start = System.currentTimeMillis();
+		jaxmpp[0].onStanzaReceived(message("romeo@example.net/orchard"));
+		Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+		Assert.assertNotNull("No response", response[0]);
+		Assert.assertEquals(StanzaType.result, response[0].getType());
+		Assert.assertTrue("Response waited for timeout", System.currentTimeMillis() - start < 4000);
+		executor.shutdown();
+	}
+
 }
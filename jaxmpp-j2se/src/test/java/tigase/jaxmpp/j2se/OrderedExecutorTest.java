@@ -0,0 +1,222 @@
+/*
+ * Tigase XMPP Client Library
+ * Copyright (C) 2006-2012 "Bartosz Małkowski" <bartosz.malkowski@tigase.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.jaxmpp.j2se;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+public class OrderedExecutorTest extends TestCase {
+
+	private OrderedExecutor executor;
+
+	@Override
+	protected void tearDown() throws Exception {
+		executor.shutdown();
+	}
+
+	public void testCapacity() throws Exception {
+		executor = new OrderedExecutor(1, 2);
+		final CountDownLatch release = new CountDownLatch(1);
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch nested = new CountDownLatch(1);
+		executor.execute("a", new Runnable() {
+
+			@Override
+			public void run() {
+				started.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+				}
+				// tasks submitted by executor threads are always accepted
+				executor.execute("d", new Runnable() {
+
+					@Override
+					public void run() {
+						nested.countDown();
+					}
+				});
+			}
+		});
+		assertTrue(started.await(5, TimeUnit.SECONDS));
+		executor.execute("a", new Runnable() {
+
+			@Override
+			public void run() {
+			}
+		});
+		executor.execute("b", new Runnable() {
+
+			@Override
+			public void run() {
+			}
+		});
+		assertEquals(2, executor.getQueueSize());
+
+		// queue is full, submitting thread is not blocked
+		try {
+			executor.execute("c", new Runnable() {
+
+				@Override
+				public void run() {
+				}
+			});
+			fail("Task accepted above limit");
+		} catch (RejectedExecutionException e) {
+		}
+		assertEquals(2, executor.getQueueSize());
+		assertFalse(executor.isBusy("c"));
+
+		release.countDown();
+		assertTrue(nested.await(5, TimeUnit.SECONDS));
+	}
+
+	public void testGrowsWhenThreadsBusy() throws Exception {
+		executor = new OrderedExecutor(1, 3, 100, "test-executor");
+		final CountDownLatch release = new CountDownLatch(1);
+		final CountDownLatch started = new CountDownLatch(3);
+		for (String key : new String[] { "a", "b", "c" }) {
+			executor.execute(key, new Runnable() {
+
+				@Override
+				public void run() {
+					started.countDown();
+					try {
+						release.await();
+					} catch (InterruptedException e) {
+					}
+				}
+			});
+		}
+		// three blocked tasks run at once on one core thread and two
+		// additional ones
+		assertTrue(started.await(5, TimeUnit.SECONDS));
+
+		final CountDownLatch done = new CountDownLatch(1);
+		executor.execute("d", new Runnable() {
+
+			@Override
+			public void run() {
+				done.countDown();
+			}
+		});
+		// maximal number of threads is reached, so task waits in queue
+		assertFalse(done.await(200, TimeUnit.MILLISECONDS));
+		release.countDown();
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+	}
+
+	public void testOrder() throws Exception {
+		executor = new OrderedExecutor(4, 100000);
+		final int keys = 20;
+		final int tasks = 2000;
+		final Map<String, List<Integer>> results = new HashMap<String, List<Integer>>();
+		for (int k = 0; k < keys; k++) {
+			results.put("k" + k, Collections.synchronizedList(new ArrayList<Integer>()));
+		}
+		final CountDownLatch done = new CountDownLatch(keys * tasks);
+		for (int i = 0; i < tasks; i++) {
+			for (int k = 0; k < keys; k++) {
+				final List<Integer> list = results.get("k" + k);
+				final int value = i;
+				executor.execute("k" + k, new Runnable() {
+
+					@Override
+					public void run() {
+						list.add(value);
+						done.countDown();
+					}
+				});
+			}
+		}
+		assertTrue(done.await(30, TimeUnit.SECONDS));
+		for (List<Integer> list : results.values()) {
+			assertEquals(tasks, list.size());
+			for (int i = 0; i < tasks; i++) {
+				assertEquals(i, list.get(i).intValue());
+			}
+		}
+		assertEquals(0, executor.getQueueSize());
+		// lane is removed after last task is finished
+		long end = System.currentTimeMillis() + 5000;
+		while (executor.getLanesCount() > 0 && System.currentTimeMillis() < end)
+			Thread.sleep(10);
+		assertEquals(0, executor.getLanesCount());
+	}
+
+	public void testParallel() throws Exception {
+		executor = new OrderedExecutor(2, 10);
+		// both tasks must be executed at the same time
+		final CountDownLatch barrier = new CountDownLatch(2);
+		final CountDownLatch done = new CountDownLatch(2);
+		for (String key : new String[] { "a", "b" }) {
+			executor.execute(key, new Runnable() {
+
+				@Override
+				public void run() {
+					barrier.countDown();
+					try {
+						if (barrier.await(5, TimeUnit.SECONDS))
+							done.countDown();
+					} catch (InterruptedException e) {
+					}
+				}
+			});
+		}
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+	}
+
+	public void testShutdown() throws Exception {
+		executor = new OrderedExecutor(1, 100);
+		final List<Integer> result = Collections.synchronizedList(new ArrayList<Integer>());
+		final CountDownLatch done = new CountDownLatch(10);
+		for (int i = 0; i < 10; i++) {
+			final int value = i;
+			executor.execute("a", new Runnable() {
+
+				@Override
+				public void run() {
+					result.add(value);
+					done.countDown();
+				}
+			});
+		}
+		executor.shutdown();
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+		assertEquals(10, result.size());
+		try {
+			executor.execute(new Runnable() {
+
+				@Override
+				public void run() {
+				}
+			});
+			fail();
+		} catch (RejectedExecutionException e) {
+		}
+	}
+
+}
@@ -0,0 +1,142 @@
+/*
+ * Tigase XMPP Client Library
+ * Copyright (C) 2006-2012 "Bartosz Małkowski" <bartosz.malkowski@tigase.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.jaxmpp.j2se;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import junit.framework.TestCase;
+import tigase.jaxmpp.core.client.JID;
+import tigase.jaxmpp.core.client.exceptions.JaxmppException;
+import tigase.jaxmpp.core.client.observer.Listener;
+import tigase.jaxmpp.core.client.xml.DefaultElement;
+import tigase.jaxmpp.core.client.xml.Element;
+import tigase.jaxmpp.core.client.xmpp.modules.presence.PresenceModule;
+import tigase.jaxmpp.core.client.xmpp.modules.presence.PresenceModule.PresenceEvent;
+import tigase.jaxmpp.core.client.xmpp.stanzas.Presence.Show;
+
+public class PresenceCoalescerTest extends TestCase {
+
+	private static Element presence(String from, String type, String show) throws Exception {
+		Element presence = new DefaultElement("presence");
+		presence.setAttribute("from", from);
+		if (type != null)
+			presence.setAttribute("type", type);
+		if (show != null)
+			presence.addChild(new DefaultElement("show", show, null));
+		return presence;
+	}
+
+	private final List<PresenceEvent> events = new ArrayList<PresenceEvent>();
+
+	private Jaxmpp jaxmpp;
+
+	private final List<Runnable> tasks = new ArrayList<Runnable>();
+
+	private void runTasks() {
+		for (Runnable r : tasks) {
+			r.run();
+		}
+		tasks.clear();
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		jaxmpp = new Jaxmpp();
+		// tasks are queued until runTasks() is called
+		jaxmpp.setExecutor(new Executor() {
+
+			@Override
+			public void execute(Runnable command) {
+				tasks.add(command);
+			}
+		});
+		Listener<PresenceEvent> listener = new Listener<PresenceEvent>() {
+
+			@Override
+			public void handleEvent(PresenceEvent be) throws JaxmppException {
+				events.add(be);
+			}
+		};
+		jaxmpp.addListener(PresenceModule.ContactChangedPresence, listener);
+		jaxmpp.addListener(PresenceModule.SubscribeRequest, listener);
+	}
+
+	public void testCanBeCoalesced() throws Exception {
+		assertTrue(PresenceCoalescer.canBeCoalesced(presence("a@b/c", null, "away")));
+		assertTrue(PresenceCoalescer.canBeCoalesced(presence("a@b/c", "unavailable", null)));
+		assertFalse(PresenceCoalescer.canBeCoalesced(presence("a@b/c", "subscribe", null)));
+		assertFalse(PresenceCoalescer.canBeCoalesced(presence("a@b/c", "unsubscribed", null)));
+		assertFalse(PresenceCoalescer.canBeCoalesced(presence("a@b/c", "error", null)));
+		assertFalse(PresenceCoalescer.canBeCoalesced(new DefaultElement("presence")));
+		assertFalse(PresenceCoalescer.canBeCoalesced(new DefaultElement("message")));
+
+		Element muc = presence("room@muc/nick", null, null);
+		Element x = new DefaultElement("x", null, "http://jabber.org/protocol/muc#user");
+		muc.addChild(x);
+		assertTrue(PresenceCoalescer.canBeCoalesced(muc));
+		Element status = new DefaultElement("status");
+		status.setAttribute("code", "110");
+		x.addChild(status);
+		assertFalse(PresenceCoalescer.canBeCoalesced(muc));
+	}
+
+	public void testCoalescing() throws Exception {
+		jaxmpp.onStanzaReceived(presence("a@example.com/1", null, "away"));
+		jaxmpp.onStanzaReceived(presence("a@example.com/1", null, "dnd"));
+		jaxmpp.onStanzaReceived(presence("a@example.com/2", null, "xa"));
+		jaxmpp.onStanzaReceived(presence("a@example.com/1", null, "chat"));
+		jaxmpp.onStanzaReceived(presence("a@example.com/1", "subscribe", null));
+		jaxmpp.onStanzaReceived(presence("a@example.com/1", "subscribe", null));
+		assertEquals(6, tasks.size());
+		runTasks();
+
+		PresenceCoalescer coalescer = jaxmpp.getPresenceCoalescer();
+		assertEquals(4, coalescer.getOfferedCount());
+		assertEquals(2, coalescer.getCoalescedCount());
+		assertEquals(0, coalescer.getPendingCount());
+		assertEquals(4, events.size());
+		assertEquals(JID.jidInstance("a@example.com/2"), events.get(0).getJid());
+		assertEquals(Show.xa, events.get(0).getShow());
+		assertEquals(JID.jidInstance("a@example.com/1"), events.get(1).getJid());
+		assertEquals(Show.chat, events.get(1).getShow());
+		assertEquals(PresenceModule.SubscribeRequest, events.get(2).getType());
+		assertEquals(PresenceModule.SubscribeRequest, events.get(3).getType());
+		assertEquals(Show.xa, jaxmpp.getPresence().getPresence(JID.jidInstance("a@example.com/2")).getShow());
+
+		// presence processed already is not superseded
+		events.clear();
+		jaxmpp.onStanzaReceived(presence("a@example.com/1", "unavailable", null));
+		runTasks();
+		jaxmpp.onStanzaReceived(presence("a@example.com/1", null, null));
+		runTasks();
+		assertEquals(2, events.size());
+		assertEquals(2, coalescer.getCoalescedCount());
+	}
+
+	public void testDisabled() throws Exception {
+		jaxmpp.getProperties().setUserProperty(Jaxmpp.PRESENCE_COALESCING_KEY, Boolean.FALSE);
+		jaxmpp.onStanzaReceived(presence("a@example.com/1", null, "away"));
+		jaxmpp.onStanzaReceived(presence("a@example.com/1", null, "dnd"));
+		runTasks();
+		assertEquals(2, events.size());
+		assertEquals(0, jaxmpp.getPresenceCoalescer().getOfferedCount());
+	}
+
+}
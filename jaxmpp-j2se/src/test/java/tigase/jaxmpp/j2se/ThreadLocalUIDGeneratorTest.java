@@ -0,0 +1,74 @@
+/*
+ * Tigase XMPP Client Library
+ * Copyright (C) 2006-2012 "Bartosz Małkowski" <bartosz.malkowski@tigase.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.jaxmpp.j2se;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+import tigase.jaxmpp.core.client.UIDGenerator;
+
+public class ThreadLocalUIDGeneratorTest extends TestCase {
+
+	private static final int IDS_PER_THREAD = 50000;
+
+	private static final int THREADS = 8;
+
+	public void testUniqueUnderContention() throws Exception {
+		final Set<String> ids = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+		// values taken by default generator must not be reused
+		for (int i = 0; i < 10; i++) {
+			ids.add(UIDGenerator.next());
+		}
+		UIDGenerator.setGenerator(new ThreadLocalUIDGenerator());
+
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(THREADS);
+		final int[] duplicates = new int[1];
+		for (int t = 0; t < THREADS; t++) {
+			new Thread() {
+
+				@Override
+				public void run() {
+					try {
+						start.await();
+						for (int i = 0; i < IDS_PER_THREAD; i++) {
+							if (!ids.add(UIDGenerator.next())) {
+								synchronized (duplicates) {
+									duplicates[0]++;
+								}
+							}
+						}
+					} catch (InterruptedException e) {
+					} finally {
+						done.countDown();
+					}
+				}
+			}.start();
+		}
+		start.countDown();
+		assertTrue(done.await(60, TimeUnit.SECONDS));
+
+		assertEquals(0, duplicates[0]);
+		assertEquals(10 + THREADS * IDS_PER_THREAD, ids.size());
+	}
+
+}
@@ -0,0 +1,233 @@
+/*
+ * Tigase XMPP Client Library
+ * Copyright (C) 2006-2012 "Bartosz Małkowski" <bartosz.malkowski@tigase.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.jaxmpp.j2se;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+import tigase.jaxmpp.core.client.AsyncCallback;
+import tigase.jaxmpp.core.client.XMPPException.ErrorCondition;
+import tigase.jaxmpp.core.client.xml.DefaultElement;
+import tigase.jaxmpp.core.client.xml.Element;
+import tigase.jaxmpp.core.client.xmpp.stanzas.Stanza;
+import tigase.jaxmpp.j2se.scheduler.ScheduledTask;
+import tigase.jaxmpp.j2se.scheduler.Scheduler;
+
+public class ThreadSafeResponseManagerTest extends TestCase {
+
+	private static class RecordingCallback implements AsyncCallback {
+
+		private final String name;
+
+		private final List<String> timeouts;
+
+		private RecordingCallback(String name, List<String> timeouts) {
+			this.name = name;
+			this.timeouts = timeouts;
+		}
+
+		@Override
+		public void onError(Stanza responseStanza, ErrorCondition error) {
+		}
+
+		@Override
+		public void onSuccess(Stanza responseStanza) {
+		}
+
+		@Override
+		public void onTimeout() {
+			timeouts.add(name);
+		}
+	}
+
+	/**
+	 * Scheduler which never runs tasks.
+	 */
+	private static class StoppedScheduler implements Scheduler {
+
+		@Override
+		public ScheduledTask schedule(Runnable task, long delay) {
+			return new ScheduledTask() {
+
+				@Override
+				public boolean cancel() {
+					return true;
+				}
+
+				@Override
+				public boolean isCancelled() {
+					return false;
+				}
+			};
+		}
+
+		@Override
+		public ScheduledTask schedule(Runnable task, long delay, long period) {
+			return schedule(task, delay);
+		}
+	}
+
+	private static Element iq(String id, String type) throws Exception {
+		Element iq = new DefaultElement("iq");
+		iq.setAttribute("id", id);
+		iq.setAttribute("type", type);
+		return iq;
+	}
+
+	private final ThreadSafeResponseManager rm = new ThreadSafeResponseManager();
+
+	private final J2SESessionObject sessionObject = new J2SESessionObject();
+
+	public void testInFlightLimit() throws Exception {
+		final List<String> timeouts = Collections.synchronizedList(new ArrayList<String>());
+		rm.setMaxInFlightRequests(2);
+		rm.registerResponseHandler(iq("1", "get"), null, new RecordingCallback("1", timeouts));
+		rm.registerResponseHandler(iq("2", "get"), null, new RecordingCallback("2", timeouts));
+		assertEquals(2, rm.getInFlightRequests());
+
+		final CountDownLatch registered = new CountDownLatch(1);
+		Thread t = new Thread() {
+			@Override
+			public void run() {
+				try {
+					rm.registerResponseHandler(iq("3", "get"), null, new RecordingCallback("3", timeouts));
+					registered.countDown();
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
+		};
+		t.setDaemon(true);
+		t.start();
+		assertFalse("limit not applied", registered.await(200, TimeUnit.MILLISECONDS));
+
+		Runnable r = rm.getResponseHandler(iq("1", "result"), null, sessionObject);
+		assertNotNull(r);
+		assertTrue("blocked after response", registered.await(5, TimeUnit.SECONDS));
+		assertEquals(2, rm.getInFlightRequests());
+
+		// second response to the same request is ignored
+		assertNull(rm.getResponseHandler(iq("1", "result"), null, sessionObject));
+		assertEquals(2, rm.getInFlightRequests());
+		assertTrue(timeouts.isEmpty());
+	}
+
+	public void testBlockedUntilEarliestDeadline() throws Exception {
+		final ThreadSafeResponseManager rm = new ThreadSafeResponseManager(new StoppedScheduler());
+		final List<String> timeouts = Collections.synchronizedList(new ArrayList<String>());
+		rm.setMaxInFlightRequests(2);
+		rm.registerResponseHandler(iq("1", "get"), 5000L, new RecordingCallback("1", timeouts));
+		rm.registerResponseHandler(iq("2", "get"), 200L, new RecordingCallback("2", timeouts));
+
+		final long start = System.currentTimeMillis();
+		rm.registerResponseHandler(iq("3", "get"), 5000L, new RecordingCallback("3", timeouts));
+		final long time = System.currentTimeMillis() - start;
+		// waiting thread expired request itself, scheduler doesn't run
+		assertTrue("blocked " + time + " ms", time >= 150 && time < 2000);
+		assertEquals("[2]", timeouts.toString());
+		assertEquals(2, rm.getInFlightRequests());
+	}
+
+	public void testMaxInFlightWait() throws Exception {
+		final List<String> timeouts = Collections.synchronizedList(new ArrayList<String>());
+		rm.setMaxInFlightRequests(1);
+		rm.setMaxInFlightWait(200);
+		rm.registerResponseHandler(iq("1", "get"), 5000L, new RecordingCallback("1", timeouts));
+
+		final long start = System.currentTimeMillis();
+		// i.e. request sent from thread which should process the response
+		rm.registerResponseHandler(iq("2", "get"), 5000L, new RecordingCallback("2", timeouts));
+		final long time = System.currentTimeMillis() - start;
+		assertTrue("blocked " + time + " ms", time >= 150 && time < 2000);
+		assertEquals(2, rm.getInFlightRequests());
+
+		assertNotNull(rm.getResponseHandler(iq("2", "result"), null, sessionObject));
+		assertNotNull(rm.getResponseHandler(iq("1", "result"), null, sessionObject));
+		assertEquals(0, rm.getInFlightRequests());
+		assertTrue(timeouts.isEmpty());
+	}
+
+	public void testReaderThreadNotBlocked() throws Exception {
+		final List<String> timeouts = Collections.synchronizedList(new ArrayList<String>());
+		rm.setMaxInFlightRequests(1);
+		rm.registerResponseHandler(iq("1", "get"), 5000L, new RecordingCallback("1", timeouts));
+
+		final long start = System.currentTimeMillis();
+		ThreadSafeResponseManager.setReaderThread(true);
+		try {
+			rm.registerResponseHandler(iq("2", "get"), 5000L, new RecordingCallback("2", timeouts));
+		} finally {
+			ThreadSafeResponseManager.setReaderThread(false);
+		}
+		final long time = System.currentTimeMillis() - start;
+		assertTrue("blocked " + time + " ms", time < 100);
+		assertEquals(2, rm.getInFlightRequests());
+		assertFalse(ThreadSafeResponseManager.isReaderThread());
+	}
+
+	public void testLimitsFromSessionProperties() throws Exception {
+		final List<String> timeouts = Collections.synchronizedList(new ArrayList<String>());
+		J2SESessionObject so = new J2SESessionObject();
+		so.setUserProperty(ThreadSafeResponseManager.MAX_IN_FLIGHT_REQUESTS_KEY, 1);
+		so.setProperty(ThreadSafeResponseManager.MAX_IN_FLIGHT_WAIT_KEY, 200L);
+		so.registerResponseHandler(iq("1", "get"), 5000L, new RecordingCallback("1", timeouts));
+
+		long start = System.currentTimeMillis();
+		so.registerResponseHandler(iq("2", "get"), 5000L, new RecordingCallback("2", timeouts));
+		long time = System.currentTimeMillis() - start;
+		assertTrue("blocked " + time + " ms", time >= 150 && time < 2000);
+
+		// limit is kept in user properties, wait is set again
+		so.clearProperties();
+		so.setProperty(ThreadSafeResponseManager.MAX_IN_FLIGHT_WAIT_KEY, 100L);
+		start = System.currentTimeMillis();
+		so.registerResponseHandler(iq("3", "get"), 5000L, new RecordingCallback("3", timeouts));
+		time = System.currentTimeMillis() - start;
+		assertTrue("blocked " + time + " ms", time >= 50 && time < 150);
+
+		so.setUserProperty(ThreadSafeResponseManager.MAX_IN_FLIGHT_REQUESTS_KEY, null);
+		start = System.currentTimeMillis();
+		so.registerResponseHandler(iq("4", "get"), 5000L, new RecordingCallback("4", timeouts));
+		time = System.currentTimeMillis() - start;
+		assertTrue("blocked " + time + " ms", time < 50);
+	}
+
+	public void testTimeouts() throws Exception {
+		final List<String> timeouts = Collections.synchronizedList(new ArrayList<String>());
+		final long start = System.currentTimeMillis();
+		rm.registerResponseHandler(iq("late", "get"), 300L, new RecordingCallback("late", timeouts));
+		rm.registerResponseHandler(iq("answered", "get"), 100L, new RecordingCallback("answered", timeouts));
+		rm.registerResponseHandler(iq("early", "get"), 100L, new RecordingCallback("early", timeouts));
+		rm.registerResponseHandler(iq("none", "get"), 200L, null);
+		assertEquals(3, rm.getInFlightRequests());
+
+		assertNotNull(rm.getResponseHandler(iq("answered", "result"), null, sessionObject));
+
+		while (timeouts.size() < 2 && System.currentTimeMillis() - start < 5000)
+			Thread.sleep(10);
+		// timeouts are fired close to deadline, not by periodic check
+		assertEquals("[early, late]", timeouts.toString());
+		assertEquals(0, rm.getInFlightRequests());
+		assertNull(rm.getResponseHandler(iq("early", "result"), null, sessionObject));
+	}
+
+}
@@ -0,0 +1,78 @@
+/*
+ * Tigase XMPP Client Library
+ * Copyright (C) 2006-2012 "Bartosz Małkowski" <bartosz.malkowski@tigase.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.jaxmpp.j2se;
+
+import java.util.concurrent.CountDownLatch;
+
+import tigase.jaxmpp.core.client.UIDGenerator;
+
+/**
+ * Measures throughput of {@linkplain UIDGenerator#next()} with default
+ * synchronized generator and with {@linkplain ThreadLocalUIDGenerator}, for
+ * growing number of threads generating IDs at once.
+ */
+public class UIDGeneratorBenchmark {
+
+	private static final int IDS_PER_THREAD = 2000000;
+
+	private static volatile int sink;
+
+	public static void main(String[] args) throws Exception {
+		final int[] threads = new int[] { 1, 2, 4, 8 };
+		for (int round = 0; round < 3; round++) {
+			for (int t : threads) {
+				System.out.println("default, " + t + " threads: " + run(t) + " ns/id");
+			}
+		}
+		UIDGenerator.setGenerator(new ThreadLocalUIDGenerator());
+		for (int round = 0; round < 3; round++) {
+			for (int t : threads) {
+				System.out.println("thread-local, " + t + " threads: " + run(t) + " ns/id");
+			}
+		}
+	}
+
+	private static long run(int threads) throws Exception {
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(threads);
+		for (int t = 0; t < threads; t++) {
+			new Thread() {
+
+				@Override
+				public void run() {
+					try {
+						start.await();
+						int s = 0;
+						for (int i = 0; i < IDS_PER_THREAD; i++) {
+							s += UIDGenerator.next().length();
+						}
+						sink += s;
+					} catch (InterruptedException e) {
+					} finally {
+						done.countDown();
+					}
+				}
+			}.start();
+		}
+		long t0 = System.nanoTime();
+		start.countDown();
+		done.await();
+		return (System.nanoTime() - t0) / ((long) IDS_PER_THREAD * threads);
+	}
+
+}
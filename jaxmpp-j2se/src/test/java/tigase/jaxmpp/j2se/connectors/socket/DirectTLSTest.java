@@ -0,0 +1,140 @@
+/*
+ * Tigase XMPP Client Library
+ * Copyright (C) 2006-2012 "Bartosz Małkowski" <bartosz.malkowski@tigase.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.jaxmpp.j2se.connectors.socket;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSocket;
+
+import junit.framework.TestCase;
+import tigase.jaxmpp.core.client.Connector;
+import tigase.jaxmpp.core.client.SessionObject;
+import tigase.jaxmpp.core.client.observer.Listener;
+import tigase.jaxmpp.j2se.J2SESessionObject;
+
+/**
+ * Connects to local TLS server, which expects TLS handshake before stream
+ * header.
+ */
+public class DirectTLSTest extends TestCase {
+
+	private static String readUntil(InputStream in, String end) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		int c;
+		while ((c = in.read()) != -1) {
+			sb.append((char) c);
+			if (sb.toString().endsWith(end))
+				break;
+		}
+		return sb.toString();
+	}
+
+	private SSLServerSocket server;
+
+	private volatile String streamHeader;
+
+	private Thread serverThread;
+
+	private J2SESessionObject createSessionObject() {
+		J2SESessionObject sessionObject = new J2SESessionObject();
+		sessionObject.setProperty(SessionObject.DOMAIN_NAME, "localhost");
+		sessionObject.setProperty(SocketConnector.SERVER_HOST, "127.0.0.1");
+		sessionObject.setProperty(SocketConnector.SERVER_PORT, server.getLocalPort());
+		sessionObject.setProperty(SocketConnector.DIRECT_TLS_KEY, Boolean.TRUE);
+		return sessionObject;
+	}
+
+	private void runConnector(final SocketConnector connector) throws Exception {
+		final String[] received = new String[1];
+		connector.addListener(Connector.StanzaReceived, new Listener<Connector.ConnectorEvent>() {
+
+			@Override
+			public void handleEvent(Connector.ConnectorEvent be) {
+				try {
+					if (!"message".equals(be.getStanza().getName()))
+						return;
+					synchronized (received) {
+						received[0] = be.getStanza().getName();
+						received.notifyAll();
+					}
+				} catch (Exception e) {
+					fail(e.getMessage());
+				}
+			}
+		});
+		connector.start();
+		try {
+			synchronized (received) {
+				if (received[0] == null)
+					received.wait(5000);
+			}
+			assertTrue(connector.isSecure());
+			assertNotNull(streamHeader);
+			assertTrue(streamHeader, streamHeader.startsWith("<stream:stream"));
+			assertEquals("message", received[0]);
+		} finally {
+			connector.stop(true);
+		}
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		server = (SSLServerSocket) SSLContextCacheTest.createServerContext().getServerSocketFactory().createServerSocket(0);
+		serverThread = new Thread() {
+			@Override
+			public void run() {
+				try {
+					SSLSocket s = (SSLSocket) server.accept();
+					try {
+						s.startHandshake();
+						InputStream in = s.getInputStream();
+						OutputStream out = s.getOutputStream();
+						streamHeader = readUntil(in, "'1.0'>");
+						out.write(("<stream:stream xmlns='jabber:client' xmlns:stream='http://etherx.jabber.org/streams' "
+								+ "version='1.0'><stream:features/><message xmlns='jabber:client'><body>x</body></message>").getBytes("UTF-8"));
+						out.flush();
+						readUntil(in, "</stream:stream>");
+					} finally {
+						s.close();
+					}
+				} catch (IOException e) {
+				}
+			}
+		};
+		serverThread.setDaemon(true);
+		serverThread.start();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		server.close();
+		serverThread.join(5000);
+	}
+
+	public void testNioSocketConnector() throws Exception {
+		runConnector(new NioSocketConnector(null, createSessionObject()));
+	}
+
+	public void testSocketConnector() throws Exception {
+		runConnector(new SocketConnector(null, createSessionObject()));
+	}
+
+}
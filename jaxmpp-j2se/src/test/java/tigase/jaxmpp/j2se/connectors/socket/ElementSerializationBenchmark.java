@@ -0,0 +1,141 @@
+/*
+ * Tigase XMPP Client Library
+ * Copyright (C) 2006-2012 "Bartosz Małkowski" <bartosz.malkowski@tigase.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.jaxmpp.j2se.connectors.socket;
+
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+import tigase.jaxmpp.core.client.xml.DefaultElement;
+import tigase.jaxmpp.core.client.xml.Element;
+import tigase.jaxmpp.core.client.xml.XMLException;
+
+/**
+ * Compares sending stanzas built as string with serializing them directly into
+ * outbound buffer of {@linkplain WriteQueue} (blocking connector) and
+ * {@linkplain Utf8BufferAppender} (NIO connector). Uses message, roster result
+ * and pubsub publish stanzas.
+ */
+public class ElementSerializationBenchmark {
+
+	private static final int ITERATIONS = 200000;
+
+	private static final OutputStream NULL_STREAM = new OutputStream() {
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+		}
+
+		@Override
+		public void write(int b) {
+		}
+	};
+
+	private static volatile int sink;
+
+	private static Element message() throws XMLException {
+		Element message = new DefaultElement("message");
+		message.setAttribute("to", "romeo@example.net");
+		message.setAttribute("id", "msg-1");
+		message.setAttribute("type", "chat");
+		message.addChild(new DefaultElement("body", "Wherefore art thou, Romeo? <3 & \"kisses\"", null));
+		message.addChild(new DefaultElement("active", null, "http://jabber.org/protocol/chatstates"));
+		return message;
+	}
+
+	private static Element pubsubPublish() throws XMLException {
+		Element iq = new DefaultElement("iq");
+		iq.setAttribute("type", "set");
+		iq.setAttribute("to", "pubsub.example.net");
+		iq.setAttribute("id", "pub-1");
+		Element pubsub = iq.addChild(new DefaultElement("pubsub", null, "http://jabber.org/protocol/pubsub"));
+		Element publish = pubsub.addChild(new DefaultElement("publish"));
+		publish.setAttribute("node", "princely_musings");
+		Element item = publish.addChild(new DefaultElement("item"));
+		item.setAttribute("id", "ae890ac52d0df67ed7cfdf51b644e901");
+		Element entry = item.addChild(new DefaultElement("entry", null, "http://www.w3.org/2005/Atom"));
+		entry.addChild(new DefaultElement("title", "Soliloquy", null));
+		entry.addChild(new DefaultElement("summary",
+				"To be, or not to be: that is the question: Whether 'tis nobler in the mind to suffer", null));
+		entry.addChild(new DefaultElement("id", "tag:denmark.lit,2003:entry-32397", null));
+		entry.addChild(new DefaultElement("published", "2003-12-13T18:30:02Z", null));
+		return iq;
+	}
+
+	private static Element rosterResult() throws XMLException {
+		Element iq = new DefaultElement("iq");
+		iq.setAttribute("type", "result");
+		iq.setAttribute("id", "roster-1");
+		Element query = iq.addChild(new DefaultElement("query", null, "jabber:iq:roster"));
+		for (int i = 0; i < 50; i++) {
+			Element item = query.addChild(new DefaultElement("item"));
+			item.setAttribute("jid", "contact" + i + "@example.com");
+			item.setAttribute("name", "Contact Żółć " + i);
+			item.setAttribute("subscription", "both");
+			item.addChild(new DefaultElement("group", "Friends & Family", null));
+		}
+		return iq;
+	}
+
+	public static void main(String[] args) throws Exception {
+		Element[] stanzas = new Element[] { message(), rosterResult(), pubsubPublish() };
+		String[] names = new String[] { "message", "roster-result", "pubsub-publish" };
+		for (int round = 0; round < 3; round++) {
+			for (int i = 0; i < stanzas.length; i++) {
+				run(names[i], stanzas[i]);
+			}
+		}
+	}
+
+	private static void run(String name, Element stanza) throws Exception {
+		final int iterations = stanza.getChildren().size() > 1 ? ITERATIONS : ITERATIONS / 10;
+		WriteQueue q = new WriteQueue(NULL_STREAM, 64 * 1024, 0);
+
+		long start = System.nanoTime();
+		for (int i = 0; i < iterations; i++) {
+			q.write(stanza.getAsString(), true);
+		}
+		long asString = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		for (int i = 0; i < iterations; i++) {
+			q.write(stanza, true);
+		}
+		long writeTo = System.nanoTime() - start;
+
+		Utf8BufferAppender appender = new Utf8BufferAppender(1024);
+		start = System.nanoTime();
+		for (int i = 0; i < iterations; i++) {
+			ByteBuffer b = ByteBuffer.wrap(stanza.getAsString().getBytes("UTF-8"));
+			sink += b.remaining();
+		}
+		long nioAsString = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		for (int i = 0; i < iterations; i++) {
+			appender.reset();
+			stanza.writeTo(appender);
+			sink += appender.finish().remaining();
+		}
+		long nioWriteTo = System.nanoTime() - start;
+
+		System.out.println(name + ": WriteQueue getAsString " + asString / iterations + " ns, writeTo " + writeTo
+				/ iterations + " ns; NIO getBytes " + nioAsString / iterations + " ns, writeTo " + nioWriteTo / iterations
+				+ " ns");
+	}
+
+}
@@ -0,0 +1,328 @@
+/*
+ * Tigase XMPP Client Library
+ * Copyright (C) 2006-2012 "Bartosz Małkowski" <bartosz.malkowski@tigase.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.jaxmpp.j2se.connectors.socket;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.net.ssl.SSLSocket;
+
+import junit.framework.TestCase;
+import tigase.jaxmpp.core.client.BareJID;
+import tigase.jaxmpp.core.client.SessionObject;
+import tigase.jaxmpp.j2se.ConnectionConfiguration;
+import tigase.jaxmpp.j2se.Jaxmpp;
+
+/**
+ * Checks if requests are sent before stream features when features are known
+ * from previous login. Local server answers as late as possible, to give client
+ * chance to send requests early.
+ */
+public class FastLoginTest extends TestCase {
+
+	/**
+	 * Collects data received from client. Data is read only when awaited, so
+	 * connection may be switched to TLS.
+	 */
+	private static class Received {
+
+		private final StringBuilder data = new StringBuilder();
+
+		private final InputStream in;
+
+		private int pos;
+
+		private final Socket socket;
+
+		Received(final Socket socket) throws IOException {
+			this.socket = socket;
+			this.in = socket.getInputStream();
+		}
+
+		/**
+		 * Waits for data containing given text and moves after it.
+		 * 
+		 * @return <code>true</code> if text was received
+		 */
+		synchronized boolean await(String text, long timeout) throws IOException {
+			final long end = System.currentTimeMillis() + timeout;
+			final byte[] buf = new byte[1024];
+			int i;
+			while ((i = data.indexOf(text, pos)) == -1) {
+				long w = end - System.currentTimeMillis();
+				if (w <= 0)
+					return false;
+				socket.setSoTimeout((int) w);
+				final int r;
+				try {
+					r = in.read(buf);
+				} catch (SocketTimeoutException e) {
+					return false;
+				}
+				if (r == -1)
+					return false;
+				data.append(new String(buf, 0, r, "UTF-8"));
+			}
+			pos = i + text.length();
+			return true;
+		}
+
+		/**
+		 * Checks if data after current position contains given text.
+		 */
+		synchronized boolean contains(String text) {
+			return data.indexOf(text, pos) != -1;
+		}
+
+		synchronized String nextIqId(String xmlns) throws IOException {
+			if (!await(xmlns, 5000))
+				return null;
+			int start = data.lastIndexOf("<iq", pos);
+			Matcher m = ID.matcher(data.substring(start, pos));
+			return m.find() ? m.group(1) : null;
+		}
+	}
+
+	private static final Pattern ID = Pattern.compile("id=['\"]([^'\"]+)['\"]");
+
+	private static final String STREAM_HEADER = "<stream:stream xmlns='jabber:client' "
+			+ "xmlns:stream='http://etherx.jabber.org/streams' from='localhost' id='1' version='1.0'>";
+
+	private static final String BIND_FEATURE = "<bind xmlns='urn:ietf:params:xml:ns:xmpp-bind'/>";
+
+	private static final String MECHANISMS_FEATURE = "<mechanisms xmlns='urn:ietf:params:xml:ns:xmpp-sasl'>"
+			+ "<mechanism>PLAIN</mechanism></mechanisms>";
+
+	private static final String SESSION_FEATURE = "<session xmlns='urn:ietf:params:xml:ns:xmpp-session'/>";
+
+	private static void write(OutputStream out, String data) throws IOException {
+		out.write(data.getBytes("UTF-8"));
+		out.flush();
+	}
+
+	private boolean earlyAuth;
+
+	private boolean earlyBind;
+
+	private boolean earlySession;
+
+	private ServerSocket server;
+
+	private void serve(Socket s) throws Exception {
+		Received in = new Received(s);
+		OutputStream out = s.getOutputStream();
+		serveAuth(in, out);
+		serveSession(in, out, BIND_FEATURE + SESSION_FEATURE);
+		in.await("</stream:stream>", 5000);
+		s.close();
+	}
+
+	private void serveAuth(Received in, OutputStream out) throws Exception {
+		assertTrue(in.await("version='1.0'>", 5000));
+		// server waits before sending features
+		earlyAuth = in.await("<auth", 500);
+		write(out, STREAM_HEADER + "<stream:features>" + MECHANISMS_FEATURE + "</stream:features>");
+		if (!earlyAuth)
+			assertTrue(in.await("<auth", 5000));
+		write(out, "<success xmlns='urn:ietf:params:xml:ns:xmpp-sasl'/>");
+	}
+
+	/**
+	 * Binds resource. Server offers different features than at first login
+	 * and rejects binding requested before features were sent.
+	 */
+	private void serveChangedBind(Socket s) throws Exception {
+		Received in = new Received(s);
+		OutputStream out = s.getOutputStream();
+		serveAuth(in, out);
+
+		assertTrue(in.await("version='1.0'>", 5000));
+		earlyBind = in.await("urn:ietf:params:xml:ns:xmpp-bind", 500);
+		write(out, STREAM_HEADER + "<stream:features>" + BIND_FEATURE + "</stream:features>");
+		if (earlyBind) {
+			String bindId = in.nextIqId("</bind>");
+			write(out, "<iq type='error' id='" + bindId + "'><error type='wait'><resource-constraint "
+					+ "xmlns='urn:ietf:params:xml:ns:xmpp-stanzas'/></error></iq>");
+			earlySession = in.await("urn:ietf:params:xml:ns:xmpp-session", 500);
+		}
+		String bindId = in.nextIqId("urn:ietf:params:xml:ns:xmpp-bind");
+		write(out, "<iq type='result' id='" + bindId + "'><bind xmlns='urn:ietf:params:xml:ns:xmpp-bind'>"
+				+ "<jid>user@localhost/test</jid></bind></iq>");
+
+		in.await("</stream:stream>", 5000);
+		s.close();
+	}
+
+	private void serveSession(Received in, OutputStream out, String features) throws Exception {
+		assertTrue(in.await("version='1.0'>", 5000));
+		earlyBind = in.await("urn:ietf:params:xml:ns:xmpp-bind", 500);
+		write(out, STREAM_HEADER + "<stream:features>" + features + "</stream:features>");
+		String bindId = earlyBind ? in.nextIqId("</bind>") : in.nextIqId("urn:ietf:params:xml:ns:xmpp-bind");
+		earlySession = in.await("urn:ietf:params:xml:ns:xmpp-session", 500);
+		write(out, "<iq type='result' id='" + bindId + "'><bind xmlns='urn:ietf:params:xml:ns:xmpp-bind'>"
+				+ "<jid>user@localhost/test</jid></bind></iq>");
+		String sessionId = in.nextIqId(earlySession ? "/>" : "urn:ietf:params:xml:ns:xmpp-session");
+		write(out, "<iq type='result' id='" + sessionId + "'/>");
+	}
+
+	/**
+	 * Server requires STARTTLS now. Authentication sent before features is
+	 * rejected, and client has to start TLS.
+	 */
+	private void serveStartTLS(Socket s) throws Exception {
+		Received in = new Received(s);
+		OutputStream out = s.getOutputStream();
+		assertTrue(in.await("version='1.0'>", 5000));
+		earlyAuth = in.await("<auth", 500);
+		write(out, STREAM_HEADER + "<stream:features><starttls xmlns='urn:ietf:params:xml:ns:xmpp-tls'><required/>"
+				+ "</starttls>" + MECHANISMS_FEATURE + "</stream:features>");
+		if (earlyAuth)
+			write(out, "<failure xmlns='urn:ietf:params:xml:ns:xmpp-sasl'><encryption-required/></failure>");
+		assertTrue(in.await("<starttls", 5000));
+		assertFalse("Authentication repeated without TLS", in.contains("<auth"));
+		write(out, "<proceed xmlns='urn:ietf:params:xml:ns:xmpp-tls'/>");
+
+		SSLSocket ssl = (SSLSocket) SSLContextCacheTest.createServerContext().getSocketFactory()
+				.createSocket(s, "localhost", s.getPort(), true);
+		ssl.setUseClientMode(false);
+		ssl.startHandshake();
+		in = new Received(ssl);
+		out = ssl.getOutputStream();
+		final boolean pipelined = earlyAuth;
+		serveAuth(in, out);
+		assertFalse(earlyAuth);
+		earlyAuth = pipelined;
+		serveSession(in, out, BIND_FEATURE + SESSION_FEATURE);
+		in.await("</stream:stream>", 5000);
+		ssl.close();
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		server = new ServerSocket(0);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		server.close();
+	}
+
+	private Jaxmpp createJaxmpp() throws Exception {
+		Jaxmpp jaxmpp = new Jaxmpp();
+		ConnectionConfiguration cf = jaxmpp.getConnectionConfiguration();
+		cf.setServer("127.0.0.1");
+		cf.setPort(server.getLocalPort());
+		cf.setFastLogin(true);
+		jaxmpp.getProperties().setUserProperty(SessionObject.USER_BARE_JID, BareJID.bareJIDInstance("user@localhost"));
+		jaxmpp.getProperties().setUserProperty(SessionObject.PASSWORD, "secret");
+		jaxmpp.getProperties().setUserProperty(SessionObject.RESOURCE, "test");
+		jaxmpp.getProperties().setUserProperty(Jaxmpp.LOGIN_TIMEOUT_KEY, 10000L);
+		return jaxmpp;
+	}
+
+	/**
+	 * Starts server. First connection is served by {@linkplain #serve(Socket)},
+	 * second one by given method.
+	 */
+	private Exception[] startServer(final String second) {
+		final Exception[] serverError = new Exception[1];
+		Thread t = new Thread() {
+			@Override
+			public void run() {
+				try {
+					serve(server.accept());
+					Socket s = server.accept();
+					if ("startTLS".equals(second))
+						serveStartTLS(s);
+					else if ("changedBind".equals(second))
+						serveChangedBind(s);
+					else
+						serve(s);
+				} catch (Exception e) {
+					serverError[0] = e;
+				} catch (Error e) {
+					serverError[0] = new Exception(e);
+				}
+			}
+		};
+		t.setDaemon(true);
+		t.start();
+		return serverError;
+	}
+
+	public void testChangedBindFeatures() throws Exception {
+		final Exception[] serverError = startServer("changedBind");
+		Jaxmpp jaxmpp = createJaxmpp();
+		jaxmpp.login(true);
+		assertNull(serverError[0]);
+		jaxmpp.disconnect();
+
+		jaxmpp.login(true);
+		assertNull(serverError[0]);
+		assertTrue(earlyBind);
+		assertTrue(earlySession);
+		// binding is requested again using received features
+		assertTrue(jaxmpp.isConnected());
+		jaxmpp.disconnect();
+	}
+
+	public void testChangedToStartTLS() throws Exception {
+		final Exception[] serverError = startServer("startTLS");
+		Jaxmpp jaxmpp = createJaxmpp();
+		jaxmpp.login(true);
+		assertNull(serverError[0]);
+		assertFalse(jaxmpp.isSecure());
+		jaxmpp.disconnect();
+
+		jaxmpp.login(true);
+		assertNull(serverError[0]);
+		assertTrue(earlyAuth);
+		assertTrue(jaxmpp.isConnected());
+		assertTrue(jaxmpp.isSecure());
+		jaxmpp.disconnect();
+	}
+
+	public void testFastLogin() throws Exception {
+		final Exception[] serverError = startServer("fast");
+		Jaxmpp jaxmpp = createJaxmpp();
+
+		// first login is made step by step
+		jaxmpp.login(true);
+		assertNull(serverError[0]);
+		assertTrue(jaxmpp.isConnected());
+		assertFalse(earlyAuth);
+		assertFalse(earlyBind);
+		assertFalse(earlySession);
+		jaxmpp.disconnect();
+
+		jaxmpp.login(true);
+		assertNull(serverError[0]);
+		assertTrue(jaxmpp.isConnected());
+		assertTrue(earlyAuth);
+		assertTrue(earlyBind);
+		assertTrue(earlySession);
+		jaxmpp.disconnect();
+	}
+
+}
@@ -0,0 +1,360 @@
+/*
+ * Tigase XMPP Client Library
+ * Copyright (C) 2006-2012 "Bartosz Małkowski" <bartosz.malkowski@tigase.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.jaxmpp.j2se.connectors.socket;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLSocket;
+
+import junit.framework.TestCase;
+import tigase.jaxmpp.core.client.Connector;
+import tigase.jaxmpp.core.client.Connector.State;
+import tigase.jaxmpp.core.client.SessionObject;
+import tigase.jaxmpp.core.client.observer.Listener;
+import tigase.jaxmpp.core.client.xml.DefaultElement;
+import tigase.jaxmpp.core.client.xml.Element;
+import tigase.jaxmpp.j2se.J2SESessionObject;
+
+/**
+ * Connects {@linkplain NioSocketConnector} to local server, which sends data in
+ * small pieces, switches to TLS or closes connection.
+ */
+public class NioSocketConnectorTest extends TestCase {
+
+	/**
+	 * Serves single accepted connection.
+	 */
+	private interface Script {
+		void serve(Socket s) throws Exception;
+	}
+
+	private static final String STREAM_HEADER = "<stream:stream xmlns='jabber:client' "
+			+ "xmlns:stream='http://etherx.jabber.org/streams' from='localhost' id='1' version='1.0'>";
+
+	/**
+	 * Reads bytes until received data ends with given text.
+	 */
+	private static String readUntil(InputStream in, String end) throws IOException {
+		final byte[] e = end.getBytes("UTF-8");
+		ByteArrayOutputStream data = new ByteArrayOutputStream();
+		int matched = 0;
+		int c;
+		while (matched < e.length && (c = in.read()) != -1) {
+			data.write(c);
+			if (c == (e[matched] & 0xff))
+				++matched;
+			else
+				matched = c == (e[0] & 0xff) ? 1 : 0;
+		}
+		return new String(data.toByteArray(), "UTF-8");
+	}
+
+	private static void write(OutputStream out, String data) throws IOException {
+		out.write(data.getBytes("UTF-8"));
+		out.flush();
+	}
+
+	private final BlockingQueue<Element> received = new LinkedBlockingQueue<Element>();
+
+	private ServerSocket server;
+
+	private volatile Throwable serverError;
+
+	private Thread serverThread;
+
+	private SessionObject createSessionObject() {
+		J2SESessionObject sessionObject = new J2SESessionObject();
+		sessionObject.setProperty(SessionObject.DOMAIN_NAME, "localhost");
+		sessionObject.setProperty(SocketConnector.SERVER_HOST, "127.0.0.1");
+		sessionObject.setProperty(SocketConnector.SERVER_PORT, server.getLocalPort());
+		return sessionObject;
+	}
+
+	private NioSocketConnector createConnector(SessionObject sessionObject) throws Exception {
+		NioSocketConnector connector = new NioSocketConnector(null, sessionObject);
+		connector.addListener(Connector.StanzaReceived, new Listener<Connector.ConnectorEvent>() {
+
+			@Override
+			public void handleEvent(Connector.ConnectorEvent be) {
+				received.add(be.getStanza());
+			}
+		});
+		return connector;
+	}
+
+	private Element nextMessage() throws Exception {
+		Element e;
+		while ((e = received.poll(5, TimeUnit.SECONDS)) != null) {
+			if ("message".equals(e.getName()))
+				return e;
+		}
+		fail("Message not received");
+		return null;
+	}
+
+	private void startServer(final Script... scripts) throws Exception {
+		server = new ServerSocket(0);
+		serverThread = new Thread() {
+			@Override
+			public void run() {
+				for (final Script script : scripts) {
+					try {
+						final Socket s = server.accept();
+						s.setTcpNoDelay(true);
+						Thread t = new Thread() {
+							@Override
+							public void run() {
+								try {
+									script.serve(s);
+								} catch (Throwable e) {
+									serverError = e;
+								} finally {
+									try {
+										s.close();
+									} catch (IOException e) {
+									}
+								}
+							}
+						};
+						t.setDaemon(true);
+						t.start();
+					} catch (IOException e) {
+						return;
+					}
+				}
+			}
+		};
+		serverThread.setDaemon(true);
+		serverThread.start();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		if (server != null)
+			server.close();
+		if (serverThread != null)
+			serverThread.join(5000);
+		if (serverError != null)
+			throw new Exception("Server failed", serverError);
+	}
+
+	public void testLargeWrite() throws Exception {
+		final StringBuilder body = new StringBuilder();
+		while (body.length() < 1024 * 1024)
+			body.append("zażółć gęślą jaźń ");
+		final String[] clientData = new String[1];
+		final CountDownLatch done = new CountDownLatch(1);
+		startServer(new Script() {
+
+			@Override
+			public void serve(Socket s) throws Exception {
+				InputStream in = s.getInputStream();
+				readUntil(in, "'1.0'>");
+				write(s.getOutputStream(), STREAM_HEADER + "<stream:features/>");
+				// client writes faster than data is read
+				Thread.sleep(500);
+				clientData[0] = readUntil(new BufferedInputStream(in), "</message>");
+				done.countDown();
+			}
+		});
+		NioSocketConnector connector = createConnector(createSessionObject());
+		connector.start();
+		try {
+			Element message = new DefaultElement("message");
+			message.addChild(new DefaultElement("body", body.toString(), null));
+			connector.send(message, true);
+			assertTrue(done.await(10, TimeUnit.SECONDS));
+			assertTrue(clientData[0], clientData[0].startsWith("<message"));
+			assertTrue(clientData[0].contains("<body>" + body + "</body>"));
+		} finally {
+			connector.stop(true);
+		}
+	}
+
+	public void testPartialReads() throws Exception {
+		final String body = "zażółć € 😀";
+		startServer(new Script() {
+
+			@Override
+			public void serve(Socket s) throws Exception {
+				InputStream in = s.getInputStream();
+				OutputStream out = s.getOutputStream();
+				readUntil(in, "'1.0'>");
+				// every byte is sent separately, also inside multibyte
+				// characters
+				byte[] data = (STREAM_HEADER + "<stream:features/><message xmlns='jabber:client'><body>" + body
+						+ "</body></message>").getBytes("UTF-8");
+				for (byte b : data) {
+					out.write(b);
+					out.flush();
+					Thread.sleep(1);
+				}
+				readUntil(in, "</stream:stream>");
+			}
+		});
+		NioSocketConnector connector = createConnector(createSessionObject());
+		connector.start();
+		try {
+			assertEquals(body, nextMessage().getFirstChild().getValue());
+		} finally {
+			connector.stop(true);
+		}
+	}
+
+	public void testPeerClose() throws Exception {
+		startServer(new Script() {
+
+			@Override
+			public void serve(Socket s) throws Exception {
+				readUntil(s.getInputStream(), "'1.0'>");
+				write(s.getOutputStream(), STREAM_HEADER + "<stream:features/>"
+						+ "<message xmlns='jabber:client'><body>bye</body></message>");
+			}
+		});
+		final CountDownLatch terminated = new CountDownLatch(1);
+		final int[] receivedBefore = new int[1];
+		NioSocketConnector connector = createConnector(createSessionObject());
+		connector.addListener(Connector.StreamTerminated, new Listener<Connector.ConnectorEvent>() {
+
+			@Override
+			public void handleEvent(Connector.ConnectorEvent be) {
+				receivedBefore[0] = received.size();
+				terminated.countDown();
+			}
+		});
+		connector.start();
+		try {
+			assertTrue(terminated.await(5, TimeUnit.SECONDS));
+			// features and message are processed before termination
+			assertEquals(2, receivedBefore[0]);
+			assertEquals("bye", nextMessage().getFirstChild().getValue());
+			long end = System.currentTimeMillis() + 5000;
+			while (connector.getState() != State.disconnected && System.currentTimeMillis() < end)
+				Thread.sleep(10);
+			assertEquals(State.disconnected, connector.getState());
+		} finally {
+			connector.stop(true);
+		}
+	}
+
+	public void testSlowListenerDoesNotBlockLoop() throws Exception {
+		final Script script = new Script() {
+
+			@Override
+			public void serve(Socket s) throws Exception {
+				InputStream in = s.getInputStream();
+				readUntil(in, "'1.0'>");
+				write(s.getOutputStream(), STREAM_HEADER + "<stream:features/>"
+						+ "<message xmlns='jabber:client'><body>x</body></message>");
+				readUntil(in, "</stream:stream>");
+			}
+		};
+		startServer(script, script);
+		final SelectorLoopPool pool = new SelectorLoopPool(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final CountDownLatch blocked = new CountDownLatch(1);
+
+		SessionObject slowSession = createSessionObject();
+		slowSession.setProperty(NioSocketConnector.SELECTOR_LOOP_POOL_KEY, pool);
+		NioSocketConnector slow = new NioSocketConnector(null, slowSession);
+		slow.addListener(Connector.StanzaReceived, new Listener<Connector.ConnectorEvent>() {
+
+			@Override
+			public void handleEvent(Connector.ConnectorEvent be) {
+				blocked.countDown();
+				try {
+					release.await(10, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+				}
+			}
+		});
+		SessionObject fastSession = createSessionObject();
+		fastSession.setProperty(NioSocketConnector.SELECTOR_LOOP_POOL_KEY, pool);
+		NioSocketConnector fast = createConnector(fastSession);
+		slow.start();
+		try {
+			assertTrue(blocked.await(5, TimeUnit.SECONDS));
+			fast.start();
+			try {
+				assertEquals("x", nextMessage().getFirstChild().getValue());
+			} finally {
+				fast.stop(true);
+			}
+		} finally {
+			release.countDown();
+			slow.stop(true);
+		}
+	}
+
+	public void testStartTLS() throws Exception {
+		startServer(new Script() {
+
+			@Override
+			public void serve(Socket s) throws Exception {
+				readUntil(s.getInputStream(), "'1.0'>");
+				write(s.getOutputStream(), STREAM_HEADER + "<stream:features><starttls xmlns='urn:ietf:params:xml:ns:xmpp-tls'>"
+						+ "<required/></starttls></stream:features>");
+				readUntil(s.getInputStream(), "<starttls xmlns='urn:ietf:params:xml:ns:xmpp-tls'/>");
+				write(s.getOutputStream(), "<proceed xmlns='urn:ietf:params:xml:ns:xmpp-tls'/>");
+
+				SSLSocket ssl = (SSLSocket) SSLContextCacheTest.createServerContext().getSocketFactory()
+						.createSocket(s, "localhost", s.getPort(), true);
+				ssl.setUseClientMode(false);
+				ssl.startHandshake();
+				String header = readUntil(ssl.getInputStream(), "'1.0'>");
+				assertTrue(header, header.startsWith("<stream:stream"));
+				write(ssl.getOutputStream(), STREAM_HEADER + "<stream:features/>"
+						+ "<message xmlns='jabber:client'><body>secure</body></message>");
+				readUntil(ssl.getInputStream(), "</stream:stream>");
+				ssl.close();
+			}
+		});
+		final NioSocketConnector connector = createConnector(createSessionObject());
+		final CountDownLatch encrypted = new CountDownLatch(1);
+		connector.addListener(Connector.EncryptionEstablished, new Listener<Connector.ConnectorEvent>() {
+
+			@Override
+			public void handleEvent(Connector.ConnectorEvent be) {
+				encrypted.countDown();
+			}
+		});
+		connector.start();
+		try {
+			Element features = received.poll(5, TimeUnit.SECONDS);
+			assertNotNull(features);
+			assertEquals("features", features.getName());
+			connector.send("<starttls xmlns='urn:ietf:params:xml:ns:xmpp-tls'/>");
+			assertTrue(encrypted.await(5, TimeUnit.SECONDS));
+			assertTrue(connector.isSecure());
+			assertEquals("secure", nextMessage().getFirstChild().getValue());
+		} finally {
+			connector.stop(true);
+		}
+	}
+
+}
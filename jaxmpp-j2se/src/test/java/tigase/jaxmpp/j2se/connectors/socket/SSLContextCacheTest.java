@@ -0,0 +1,128 @@
+/*
+ * Tigase XMPP Client Library
+ * Copyright (C) 2006-2012 "Bartosz Małkowski" <bartosz.malkowski@tigase.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.jaxmpp.j2se.connectors.socket;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.KeyStore;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+
+import junit.framework.TestCase;
+
+public class SSLContextCacheTest extends TestCase {
+
+	private static final TrustManager trustAll = new X509TrustManager() {
+
+		@Override
+		public void checkClientTrusted(X509Certificate[] chain, String authType) throws CertificateException {
+		}
+
+		@Override
+		public void checkServerTrusted(X509Certificate[] chain, String authType) throws CertificateException {
+		}
+
+		@Override
+		public X509Certificate[] getAcceptedIssuers() {
+			return new X509Certificate[0];
+		}
+	};
+
+	static SSLContext createServerContext() throws Exception {
+		KeyStore ks = KeyStore.getInstance("JKS");
+		InputStream in = SSLContextCacheTest.class.getResourceAsStream("test-server.jks");
+		try {
+			ks.load(in, "secret".toCharArray());
+		} finally {
+			in.close();
+		}
+		KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+		kmf.init(ks, "secret".toCharArray());
+		SSLContext ctx = SSLContext.getInstance("TLS");
+		ctx.init(kmf.getKeyManagers(), null, null);
+		return ctx;
+	}
+
+	public void testContextIsShared() throws Exception {
+		SSLContextCache cache = new SSLContextCache();
+		SSLContext c1 = cache.get(null, new TrustManager[] { trustAll }, "example.com");
+		SSLContext c2 = cache.get(null, new TrustManager[] { trustAll }, "example.com");
+		SSLContext c3 = cache.get(null, new TrustManager[] { trustAll }, "example.net");
+		assertSame(c1, c2);
+		assertNotSame(c1, c3);
+
+		cache.clear();
+		assertNotSame(c1, cache.get(null, new TrustManager[] { trustAll }, "example.com"));
+	}
+
+	public void testSessionResumption() throws Exception {
+		final SSLServerSocket server = (SSLServerSocket) createServerContext().getServerSocketFactory().createServerSocket(0);
+		Thread t = new Thread() {
+			@Override
+			public void run() {
+				try {
+					while (true) {
+						SSLSocket s = (SSLSocket) server.accept();
+						try {
+							s.startHandshake();
+							s.getOutputStream().write('x');
+							s.getOutputStream().flush();
+							s.getInputStream().read();
+						} catch (IOException e) {
+						} finally {
+							s.close();
+						}
+					}
+				} catch (IOException e) {
+					// server closed
+				}
+			}
+		};
+		t.setDaemon(true);
+		t.start();
+		try {
+			SSLContextCache cache = new SSLContextCache();
+			for (int i = 0; i < 3; i++) {
+				SSLContext ctx = cache.get(null, new TrustManager[] { trustAll }, "localhost");
+				SSLSocket s = (SSLSocket) ctx.getSocketFactory().createSocket("localhost", server.getLocalPort());
+				try {
+					long start = System.currentTimeMillis();
+					Thread.sleep(5);
+					s.startHandshake();
+					// session ticket (TLS 1.3) is received after handshake
+					assertEquals('x', s.getInputStream().read());
+					cache.handshakeCompleted(s.getSession(), start);
+				} finally {
+					s.close();
+				}
+			}
+			assertEquals(1, cache.getFullHandshakes());
+			assertEquals(2, cache.getResumedHandshakes());
+		} finally {
+			server.close();
+		}
+	}
+
+}
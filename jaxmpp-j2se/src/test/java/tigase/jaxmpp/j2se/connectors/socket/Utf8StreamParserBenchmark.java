@@ -0,0 +1,131 @@
+/*
+ * Tigase XMPP Client Library
+ * Copyright (C) 2006-2012 "Bartosz Małkowski" <bartosz.malkowski@tigase.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.jaxmpp.j2se.connectors.socket;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+
+import tigase.xml.SimpleHandler;
+import tigase.xml.SimpleParser;
+import tigase.xml.SingletonFactory;
+
+/**
+ * Compares parsing of received stream by {@linkplain InputStreamReader} with
+ * {@linkplain SimpleParser} and by {@linkplain Utf8StreamParser}.
+ */
+public class Utf8StreamParserBenchmark {
+
+	private static class CountingHandler implements SimpleHandler {
+
+		private long count;
+
+		private Object state;
+
+		@Override
+		public void elementCData(StringBuilder cdata) {
+			count += cdata.length();
+		}
+
+		@Override
+		public void endElement(StringBuilder name) {
+			++count;
+		}
+
+		@Override
+		public void error(String errorMessage) {
+			throw new RuntimeException(errorMessage);
+		}
+
+		@Override
+		public void otherXML(StringBuilder other) {
+		}
+
+		@Override
+		public Object restoreParserState() {
+			return state;
+		}
+
+		@Override
+		public void saveParserState(Object state) {
+			this.state = state;
+		}
+
+		@Override
+		public void startElement(StringBuilder name, StringBuilder[] attr_names, StringBuilder[] attr_values) {
+			++count;
+		}
+	}
+
+	private static final int ROUNDS = 20;
+
+	private static final int STANZAS = 20000;
+
+	private static byte[] createStream(String body) throws Exception {
+		StringBuilder sb = new StringBuilder("<stream:stream xmlns='jabber:client' version='1.0'>");
+		for (int i = 0; i < STANZAS; i++) {
+			sb.append("<message to='user@example.com/res' from='other@example.com/res' type='chat' id='m").append(i).append("'>");
+			sb.append("<body>").append(body).append("</body><active xmlns='http://jabber.org/protocol/chatstates'/></message>");
+		}
+		return sb.toString().getBytes("UTF-8");
+	}
+
+	public static void main(String[] args) throws Exception {
+		run("ASCII", createStream("Lorem ipsum dolor sit amet, consectetur adipiscing elit."));
+		run("multi-byte", createStream("Zażółć gęślą jaźń. Съешь же ещё этих мягких французских булок."));
+	}
+
+	private static long parseBytes(byte[] data) throws Exception {
+		Utf8StreamParser parser = new Utf8StreamParser();
+		CountingHandler handler = new CountingHandler();
+		InputStream in = new ByteArrayInputStream(data);
+		byte[] buffer = new byte[10240];
+		int r;
+		while ((r = in.read(buffer)) != -1)
+			parser.parse(handler, buffer, 0, r);
+		return handler.count;
+	}
+
+	private static long parseChars(byte[] data) throws Exception {
+		SimpleParser parser = SingletonFactory.getParserInstance();
+		CountingHandler handler = new CountingHandler();
+		Reader in = new InputStreamReader(new ByteArrayInputStream(data), "UTF-8");
+		char[] buffer = new char[10240];
+		int r;
+		while ((r = in.read(buffer)) != -1)
+			parser.parse(handler, buffer, 0, r);
+		return handler.count;
+	}
+
+	private static void run(String name, byte[] data) throws Exception {
+		long charsTime = Long.MAX_VALUE;
+		long bytesTime = Long.MAX_VALUE;
+		for (int i = 0; i < ROUNDS; i++) {
+			long t = System.nanoTime();
+			parseChars(data);
+			charsTime = Math.min(charsTime, System.nanoTime() - t);
+			t = System.nanoTime();
+			parseBytes(data);
+			bytesTime = Math.min(bytesTime, System.nanoTime() - t);
+		}
+		System.out.println(name + " (" + data.length / 1024 + " KiB): InputStreamReader+SimpleParser " + charsTime / 1000000
+				+ " ms, Utf8StreamParser " + bytesTime / 1000000 + " ms");
+	}
+
+}
@@ -0,0 +1,147 @@
+/*
+ * Tigase XMPP Client Library
+ * Copyright (C) 2006-2012 "Bartosz Małkowski" <bartosz.malkowski@tigase.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.jaxmpp.j2se.connectors.socket;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+import tigase.xml.SimpleHandler;
+
+public class Utf8StreamParserTest extends TestCase {
+
+	private static class RecordingHandler implements SimpleHandler {
+
+		private final List<String> events = new ArrayList<String>();
+
+		private Object state;
+
+		private final StringBuilder text = new StringBuilder();
+
+		@Override
+		public void elementCData(StringBuilder cdata) {
+			// character data may be reported in parts
+			text.append(cdata);
+		}
+
+		@Override
+		public void endElement(StringBuilder name) {
+			flushText();
+			events.add("end:" + name);
+		}
+
+		@Override
+		public void error(String errorMessage) {
+			flushText();
+			events.add("error");
+		}
+
+		private void flushText() {
+			if (text.length() > 0) {
+				events.add("text:" + text);
+				text.setLength(0);
+			}
+		}
+
+		@Override
+		public void otherXML(StringBuilder other) {
+			flushText();
+			events.add("other:" + other);
+		}
+
+		@Override
+		public Object restoreParserState() {
+			return state;
+		}
+
+		@Override
+		public void saveParserState(Object state) {
+			this.state = state;
+		}
+
+		@Override
+		public void startElement(StringBuilder name, StringBuilder[] attr_names, StringBuilder[] attr_values) {
+			flushText();
+			StringBuilder sb = new StringBuilder("start:").append(name);
+			if (attr_names != null) {
+				for (int i = 0; i < attr_names.length; i++)
+					sb.append(' ').append(attr_names[i]).append('=').append(attr_values[i]);
+			}
+			events.add(sb.toString());
+		}
+	}
+
+	private static final String STREAM = "<?xml version='1.0'?><stream:stream xmlns='jabber:client' "
+			+ "xmlns:stream=\"http://etherx.jabber.org/streams\" from='zażółć.pl' version='1.0'>"
+			+ "<message to='jaźń@zażółć.pl' id=\"1\"><body>gęślą € 😀 &amp; x</body><!-- komentarz -->"
+			+ "<x xmlns='test'/><data><![CDATA[<a>&]]]></data></message>";
+
+	private static List<String> parse(byte[] data, int... splits) {
+		Utf8StreamParser parser = new Utf8StreamParser();
+		RecordingHandler handler = new RecordingHandler();
+		int off = 0;
+		for (int split : splits) {
+			parser.parse(handler, data, off, split - off);
+			off = split;
+		}
+		parser.parse(handler, data, off, data.length - off);
+		handler.flushText();
+		return handler.events;
+	}
+
+	public void testByteBuffer() throws Exception {
+		RecordingHandler handler = new RecordingHandler();
+		ByteBuffer buffer = ByteBuffer.wrap("<a b='ł'>ó</a>".getBytes("UTF-8"));
+		new Utf8StreamParser().parse(handler, buffer);
+		handler.flushText();
+		assertFalse(buffer.hasRemaining());
+		assertEquals("[start:a b=ł, text:ó, end:a]", handler.events.toString());
+	}
+
+	public void testErrors() throws Exception {
+		assertTrue(parse("<a b=c/>".getBytes("UTF-8")).contains("error"));
+		assertTrue(parse("< a/>".getBytes("UTF-8")).contains("error"));
+		assertTrue(parse("<a/ >".getBytes("UTF-8")).contains("error"));
+	}
+
+	public void testMalformedUtf8() throws Exception {
+		byte[] data = new byte[] { '<', 'a', '>', (byte) 0xC5, 'x', (byte) 0xFF, '<', '/', 'a', '>' };
+		assertEquals("[start:a, text:�x�, end:a]", parse(data).toString());
+	}
+
+	public void testSplits() throws Exception {
+		final byte[] data = STREAM.getBytes("UTF-8");
+		final List<String> expected = parse(data);
+		assertEquals("[other:?xml version='1.0', "
+				+ "start:stream:stream xmlns=jabber:client xmlns:stream=http://etherx.jabber.org/streams from=zażółć.pl version=1.0, "
+				+ "start:message to=jaźń@zażółć.pl id=1, start:body, text:gęślą € 😀 &amp; x, end:body, other:!-- komentarz , "
+				+ "start:x xmlns=test, end:x, start:data, text:&lt;a&gt;&amp;], end:data, end:message]", expected.toString());
+
+		for (int i = 0; i <= data.length; i++) {
+			assertEquals("split at " + i, expected, parse(data, i));
+		}
+		for (int i = 0; i < data.length; i++) {
+			int[] splits = new int[data.length - i];
+			for (int j = 0; j < splits.length; j++)
+				splits[j] = i + j;
+			assertEquals("byte by byte from " + i, expected, parse(data, splits));
+		}
+	}
+
+}
@@ -0,0 +1,133 @@
+/*
+ * Tigase XMPP Client Library
+ * Copyright (C) 2006-2012 "Bartosz Małkowski" <bartosz.malkowski@tigase.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.jaxmpp.j2se.connectors.socket;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import junit.framework.TestCase;
+import tigase.jaxmpp.core.client.xml.DefaultElement;
+import tigase.jaxmpp.core.client.xml.Element;
+
+public class WriteQueueTest extends TestCase {
+
+	private static class CountingStream extends ByteArrayOutputStream {
+
+		private int writes;
+
+		@Override
+		public synchronized void write(byte[] b, int off, int len) {
+			++writes;
+			super.write(b, off, len);
+		}
+
+	}
+
+	public void testCoalescingDelay() throws Exception {
+		CountingStream out = new CountingStream();
+		WriteQueue q = new WriteQueue(out, 16 * 1024, 50);
+		for (int i = 0; i < 100; i++) {
+			q.write("<presence id='" + i + "'/>", false);
+		}
+		assertEquals(0, out.writes);
+		Thread.sleep(300);
+		assertEquals(1, out.writes);
+		assertTrue(out.toString("UTF-8").startsWith("<presence id='0'/><presence id='1'/>"));
+		assertTrue(out.toString("UTF-8").endsWith("<presence id='99'/>"));
+	}
+
+	public void testExplicitFlush() throws Exception {
+		CountingStream out = new CountingStream();
+		WriteQueue q = new WriteQueue(out, 16 * 1024, 60 * 1000);
+		q.write("<message/>", false);
+		q.write("<message/>", false);
+		assertEquals(0, out.writes);
+		q.write(" ".getBytes(), true);
+		assertEquals(1, out.writes);
+		assertEquals("<message/><message/> ", out.toString("UTF-8"));
+
+		q.write("<iq/>", false);
+		q.flush();
+		assertEquals(2, out.writes);
+		assertEquals(2, q.getWritesCounter());
+	}
+
+	public void testWriteElement() throws Exception {
+		CountingStream out = new CountingStream();
+		WriteQueue q = new WriteQueue(out, 16 * 1024, 60 * 1000);
+		Element message = new DefaultElement("message");
+		message.setAttribute("to", "jülia@example.com");
+		message.addChild(new DefaultElement("body", "<Zażółć> & \uD83D\uDE00", null));
+
+		q.write(message, true);
+		assertEquals(1, out.writes);
+		assertEquals(message.getAsString(), out.toString("UTF-8"));
+	}
+
+	public void testFlushAndClose() throws Exception {
+		CountingStream out = new CountingStream();
+		WriteQueue q = new WriteQueue(out, 16 * 1024, 60 * 1000);
+		q.write("<message/>", false);
+		q.flushAndClose();
+		assertEquals(1, out.writes);
+		assertEquals("<message/>", out.toString("UTF-8"));
+
+		q.write("<iq/>", true);
+		assertEquals(1, out.writes);
+	}
+
+	public void testSizeLimit() throws Exception {
+		CountingStream out = new CountingStream();
+		WriteQueue q = new WriteQueue(out, 100, 60 * 1000);
+		for (int i = 0; i < 10; i++) {
+			q.write("<message>1234567890</message>", false);
+		}
+		// 29 bytes per stanza: every 4th write reaches the limit
+		assertEquals(2, out.writes);
+		q.close();
+		q.flush();
+		assertEquals(2, out.writes);
+	}
+
+	public void testSurrogatesAppendedSeparately() throws Exception {
+		CountingStream out = new CountingStream();
+		WriteQueue q = new WriteQueue(out, 16 * 1024, 0);
+		final String text = "<x>\uD83D\uDE00 \uD83D</x>\uDE00";
+		q.write(new DefaultElement("x") {
+
+			@Override
+			public void writeTo(Appendable a) throws IOException {
+				for (int i = 0; i < text.length(); i++) {
+					a.append(text.charAt(i));
+				}
+			}
+		}, false);
+		// unpaired surrogates are replaced
+		assertEquals("<x>\uD83D\uDE00 ?</x>?", out.toString("UTF-8"));
+	}
+
+	public void testUtf8() throws IOException {
+		CountingStream out = new CountingStream();
+		WriteQueue q = new WriteQueue(out, 16 * 1024, 0);
+		String text = "<body>zażółć gęślą jaźń € 😀</body>";
+		q.write(text, false);
+		assertEquals(1, out.writes);
+		assertEquals(text, out.toString("UTF-8"));
+	}
+
+}
@@ -0,0 +1,141 @@
+/*
+ * Tigase XMPP Client Library
+ * Copyright (C) 2006-2012 "Bartosz Małkowski" <bartosz.malkowski@tigase.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.jaxmpp.j2se.connectors.socket;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+
+import junit.framework.TestCase;
+
+public class ZlibStreamsTest extends TestCase {
+
+	/**
+	 * Returns data in small portions, as received from network.
+	 */
+	private static class ChunkedInputStream extends InputStream {
+
+		private final InputStream in;
+
+		private final int max;
+
+		ChunkedInputStream(byte[] data, int max) {
+			this.in = new ByteArrayInputStream(data);
+			this.max = max;
+		}
+
+		@Override
+		public int read() throws IOException {
+			return in.read();
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			return in.read(b, off, Math.min(len, max));
+		}
+	}
+
+	private static String read(InputStream in, int len) throws IOException {
+		byte[] buf = new byte[len];
+		int off = 0;
+		while (off < len) {
+			int r = in.read(buf, off, len - off);
+			assertTrue("Unexpected end of stream", r != -1);
+			off += r;
+		}
+		return new String(buf, "UTF-8");
+	}
+
+	public void testFlushedMessagesAreReadable() throws Exception {
+		final String[] messages = { "<stream:stream xmlns='jabber:client'>", "<message><body>zażółć</body></message>",
+				"<presence/>", "<iq type='get' id='1'><ping xmlns='urn:xmpp:ping'/></iq>" };
+		ByteArrayOutputStream net = new ByteArrayOutputStream();
+		ZlibOutputStream out = new ZlibOutputStream(net);
+		ZlibInputStream in = null;
+		int pos = 0;
+		for (String msg : messages) {
+			byte[] data = msg.getBytes("UTF-8");
+			out.write(data, 0, data.length);
+			out.flush();
+			// everything flushed so far must be decompressible without further
+			// data
+			byte[] sent = net.toByteArray();
+			in = new ZlibInputStream(new ByteArrayInputStream(sent));
+			StringBuilder all = new StringBuilder();
+			for (int i = 0; i <= pos; i++)
+				all.append(messages[i]);
+			assertEquals(all.toString(), read(in, all.toString().getBytes("UTF-8").length));
+			in.close();
+			++pos;
+		}
+		assertTrue(out.getBytesIn() > 0);
+		assertEquals(net.size(), out.getBytesOut());
+		out.close();
+	}
+
+	public void testLargeDataInChunks() throws Exception {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 5000; i++)
+			sb.append("<message id='").append(i).append("'><body>Lorem ipsum ").append(i * 31).append("</body></message>");
+		final byte[] data = sb.toString().getBytes("UTF-8");
+
+		ByteArrayOutputStream net = new ByteArrayOutputStream();
+		ZlibOutputStream out = new ZlibOutputStream(net);
+		out.write(data, 0, data.length);
+		out.flush();
+		assertTrue(net.size() < data.length / 4);
+
+		ZlibInputStream in = new ZlibInputStream(new ChunkedInputStream(net.toByteArray(), 7));
+		assertEquals(sb.toString(), read(in, data.length));
+		in.close();
+		out.close();
+	}
+
+	public void testPooledDeflaterIsReset() throws Exception {
+		for (int i = 0; i < 3; i++) {
+			ByteArrayOutputStream net = new ByteArrayOutputStream();
+			OutputStream out = new ZlibOutputStream(net);
+			out.write("<presence/>".getBytes("UTF-8"));
+			out.flush();
+			out.close();
+
+			// new connection must start with fresh zlib stream
+			ZlibInputStream in = new ZlibInputStream(new ByteArrayInputStream(net.toByteArray()));
+			assertEquals("<presence/>", read(in, 11));
+			in.close();
+		}
+		Deflater d = ZlibPool.takeDeflater();
+		assertEquals(0, d.getTotalIn());
+		ZlibPool.releaseDeflater(d);
+	}
+
+	public void testClosedStream() throws Exception {
+		ZlibOutputStream out = new ZlibOutputStream(new ByteArrayOutputStream());
+		out.close();
+		out.close();
+		try {
+			out.write(new byte[] { 1 }, 0, 1);
+			fail();
+		} catch (IOException e) {
+		}
+	}
+
+}
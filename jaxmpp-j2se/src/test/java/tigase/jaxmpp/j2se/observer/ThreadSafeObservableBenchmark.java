@@ -0,0 +1,86 @@
+/*
+ * Tigase XMPP Client Library
+ * Copyright (C) 2006-2012 "Bartosz Małkowski" <bartosz.malkowski@tigase.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.jaxmpp.j2se.observer;
+
+import tigase.jaxmpp.core.client.Connector;
+import tigase.jaxmpp.core.client.Connector.ConnectorEvent;
+import tigase.jaxmpp.core.client.exceptions.JaxmppException;
+import tigase.jaxmpp.core.client.observer.Listener;
+import tigase.jaxmpp.core.client.observer.Observable;
+import tigase.jaxmpp.core.client.xml.DefaultElement;
+import tigase.jaxmpp.core.client.xml.Element;
+
+/**
+ * Measures throughput of firing sent and received stanza events through
+ * chain of observables like connector, client and multi-client ones. Events
+ * are fired the way connector does it: without listeners event isn't created
+ * at all.
+ */
+public class ThreadSafeObservableBenchmark {
+
+	private static final int ITERATIONS = 5000000;
+
+	private static long count;
+
+	private static void fire(Observable observable, Element stanza) throws JaxmppException {
+		if (observable.hasListeners(Connector.StanzaSending)) {
+			ConnectorEvent event = new ConnectorEvent(Connector.StanzaSending, null);
+			event.setStanza(stanza);
+			observable.fireEvent(event);
+		}
+		if (observable.hasListeners(Connector.StanzaReceived)) {
+			ConnectorEvent event = new ConnectorEvent(Connector.StanzaReceived, null);
+			event.setStanza(stanza);
+			observable.fireEvent(event);
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		final Element stanza = new DefaultElement("message");
+		for (int round = 0; round < 3; round++) {
+			run(false, stanza);
+			run(true, stanza);
+		}
+	}
+
+	private static void run(boolean withListeners, Element stanza) throws JaxmppException {
+		ThreadSafeObservable multi = new ThreadSafeObservable();
+		ThreadSafeObservable jaxmpp = new ThreadSafeObservable(multi);
+		ThreadSafeObservable connector = new ThreadSafeObservable(jaxmpp);
+		if (withListeners) {
+			Listener<ConnectorEvent> l = new Listener<ConnectorEvent>() {
+
+				@Override
+				public void handleEvent(ConnectorEvent be) throws JaxmppException {
+					++count;
+				}
+			};
+			jaxmpp.addListener(Connector.StanzaSending, l);
+			jaxmpp.addListener(Connector.StanzaReceived, l);
+		}
+
+		final long start = System.nanoTime();
+		for (int i = 0; i < ITERATIONS; i++) {
+			fire(connector, stanza);
+		}
+		final long time = System.nanoTime() - start;
+		System.out.println((withListeners ? "with listeners: " : "without listeners: ") + ITERATIONS * 1000L
+				/ (time / 1000000 + 1) + " stanza pairs/s");
+	}
+
+}
@@ -0,0 +1,110 @@
+/*
+ * Tigase XMPP Client Library
+ * Copyright (C) 2006-2012 "Bartosz Małkowski" <bartosz.malkowski@tigase.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.jaxmpp.j2se.observer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+import tigase.jaxmpp.core.client.SessionObject;
+import tigase.jaxmpp.core.client.exceptions.JaxmppException;
+import tigase.jaxmpp.core.client.observer.BaseEvent;
+import tigase.jaxmpp.core.client.observer.DefaultObservable;
+import tigase.jaxmpp.core.client.observer.EventType;
+import tigase.jaxmpp.core.client.observer.Listener;
+import tigase.jaxmpp.core.client.observer.Observable;
+
+public class ThreadSafeObservableTest extends TestCase {
+
+	private static final EventType A = new EventType();
+
+	private static final EventType B = new EventType();
+
+	private final List<String> calls = new ArrayList<String>();
+
+	private Listener<BaseEvent> listener(final String name) {
+		return new Listener<BaseEvent>() {
+
+			@Override
+			public void handleEvent(BaseEvent be) throws JaxmppException {
+				calls.add(name);
+			}
+		};
+	}
+
+	public void testChainOrder() throws JaxmppException {
+		ThreadSafeObservable root = new ThreadSafeObservable();
+		ThreadSafeObservable child = new ThreadSafeObservable(root);
+
+		root.addListener(listener("root-all"));
+		root.addListener(A, listener("root-a"));
+		child.addListener(listener("child-all"));
+		child.addListener(A, listener("child-a"));
+
+		BaseEvent event = new BaseEvent(A, null);
+		child.fireEvent(event);
+
+		assertTrue(event.isHandled());
+		assertEquals("[child-a, child-all, root-a, root-all]", calls.toString());
+	}
+
+	public void testHasListeners() {
+		ThreadSafeObservable root = new ThreadSafeObservable();
+		ThreadSafeObservable child = new ThreadSafeObservable(root);
+
+		assertFalse(child.hasListeners(A));
+
+		Listener<BaseEvent> l = listener("root-a");
+		root.addListener(A, l);
+		assertTrue(child.hasListeners(A));
+		assertFalse(child.hasListeners(B));
+
+		root.removeListener(A, l);
+		assertFalse(child.hasListeners(A));
+
+		root.addListener(l);
+		assertTrue(child.hasListeners(B));
+		root.removeAllListeners();
+		assertFalse(child.hasListeners(B));
+	}
+
+	public void testParentChange() throws JaxmppException {
+		ThreadSafeObservable root = new ThreadSafeObservable();
+		ThreadSafeObservable child = new ThreadSafeObservable(root);
+
+		child.fireEvent(A, (SessionObject) null);
+		assertTrue(calls.isEmpty());
+
+		root.addListener(A, listener("root-a"));
+		child.fireEvent(new BaseEvent(A, null));
+		assertEquals("[root-a]", calls.toString());
+	}
+
+	public void testOtherParent() throws JaxmppException {
+		Observable root = new DefaultObservable();
+		ThreadSafeObservable child = new ThreadSafeObservable(new ThreadSafeObservable(root));
+
+		assertFalse(child.hasListeners(A));
+		root.addListener(A, listener("root-a"));
+		assertTrue(child.hasListeners(A));
+
+		child.fireEvent(new BaseEvent(A, null));
+		assertEquals("[root-a]", calls.toString());
+	}
+
+}
@@ -0,0 +1,136 @@
+/*
+ * Tigase XMPP Client Library
+ * Copyright (C) 2006-2012 "Bartosz Małkowski" <bartosz.malkowski@tigase.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.jaxmpp.j2se.scheduler;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+public class HashedWheelSchedulerTest extends TestCase {
+
+	private HashedWheelScheduler scheduler;
+
+	@Override
+	protected void setUp() throws Exception {
+		// small wheel, so tasks have to survive several rounds
+		scheduler = new HashedWheelScheduler("test-scheduler", 5, 8, null);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		scheduler.stop();
+	}
+
+	public void testCancel() throws Exception {
+		final AtomicInteger counter = new AtomicInteger();
+		Runnable r = new Runnable() {
+
+			@Override
+			public void run() {
+				counter.incrementAndGet();
+			}
+		};
+		ScheduledTask t1 = scheduler.schedule(r, 50);
+		ScheduledTask t2 = scheduler.schedule(r, 100, 20);
+		assertTrue(t1.cancel());
+		assertFalse(t1.cancel());
+		assertTrue(t1.isCancelled());
+		Thread.sleep(200);
+		assertTrue(t2.cancel());
+		int c = counter.get();
+		assertTrue(c >= 3);
+		Thread.sleep(100);
+		assertEquals(c, counter.get());
+	}
+
+	public void testDelay() throws Exception {
+		final CountDownLatch latch = new CountDownLatch(1);
+		final long start = System.currentTimeMillis();
+		final long[] executed = new long[1];
+		scheduler.schedule(new Runnable() {
+
+			@Override
+			public void run() {
+				executed[0] = System.currentTimeMillis();
+				latch.countDown();
+			}
+		}, 120);
+		assertTrue(latch.await(2, TimeUnit.SECONDS));
+		assertTrue(executed[0] - start >= 120);
+		assertTrue(executed[0] - start < 500);
+	}
+
+	public void testDefaultExecutorBounded() throws Exception {
+		final int count = HashedWheelScheduler.getDefaultThreads() * 4;
+		final CountDownLatch latch = new CountDownLatch(count);
+		final AtomicInteger running = new AtomicInteger();
+		final AtomicInteger maxRunning = new AtomicInteger();
+		for (int i = 0; i < count; i++) {
+			scheduler.schedule(new Runnable() {
+
+				@Override
+				public void run() {
+					int r = running.incrementAndGet();
+					int m;
+					while ((m = maxRunning.get()) < r && !maxRunning.compareAndSet(m, r))
+						;
+					try {
+						Thread.sleep(20);
+					} catch (InterruptedException e) {
+					}
+					running.decrementAndGet();
+					latch.countDown();
+				}
+			}, 1);
+		}
+		assertTrue(latch.await(5, TimeUnit.SECONDS));
+		assertTrue(maxRunning.get() <= HashedWheelScheduler.getDefaultThreads());
+	}
+
+	public void testManyTasks() throws Exception {
+		final int count = 10000;
+		final CountDownLatch latch = new CountDownLatch(count);
+		for (int i = 0; i < count; i++) {
+			scheduler.schedule(new Runnable() {
+
+				@Override
+				public void run() {
+					latch.countDown();
+				}
+			}, i % 300);
+		}
+		assertTrue(latch.await(5, TimeUnit.SECONDS));
+	}
+
+	public void testPeriodic() throws Exception {
+		final CountDownLatch latch = new CountDownLatch(5);
+		ScheduledTask t = scheduler.schedule(new Runnable() {
+
+			@Override
+			public void run() {
+				latch.countDown();
+			}
+		}, 0, 30);
+		assertTrue(latch.await(2, TimeUnit.SECONDS));
+		assertFalse(t.isCancelled());
+		t.cancel();
+	}
+
+}
@@ -105,6 +105,30 @@ public class J2seElementTest extends TestCase {
 		assertEquals("Wherefore art thou, Romeo?", body.getValue());
 	}
 
+	public void testRemoveChild() throws XMLException {
+		final Element element = createElement();
+
+		Element body = element.getChildren("body").get(0);
+		element.removeChild(body);
+
+		assertNull(body.getParent());
+		assertEquals(3, element.getChildren().size());
+		Element subject = element.getFirstChild();
+		assertEquals("thread", subject.getNextSibling().getName());
+		assertFalse(element.getAsString().contains("<body>"));
+	}
+
+	public void testWrappersReused() throws XMLException {
+		final Element element = createElement();
+
+		Element subject = element.getFirstChild();
+		assertSame(subject, element.getChildren("subject").get(0));
+		assertSame(subject, element.getChildren().get(0));
+		assertSame(element, subject.getParent());
+		assertSame(element.getChildrenNS("x", "tigase"), element.getChildrenNS("tigase").get(0));
+		assertSame(element.getChildren().get(1), subject.getNextSibling());
+	}
+
 	public void testGetXMLNS() throws XMLException {
 		final Element element = createElement();
 
@@ -117,4 +141,12 @@ public class J2seElementTest extends TestCase {
 
 	}
 
-}
\ No newline at end of file
+	public void testWriteTo() throws Exception {
+		final Element element = createElement();
+		element.getChildren("body").get(0).setAttribute("xml:lang", "en");
+		StringBuilder sb = new StringBuilder();
+		element.writeTo(sb);
+		assertEquals(element.getAsString(), sb.toString());
+	}
+
+}
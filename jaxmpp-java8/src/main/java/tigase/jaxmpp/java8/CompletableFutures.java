@@ -0,0 +1,87 @@
+/*
+ * Tigase XMPP Client Library
+ * Copyright (C) 2006-2012 "Bartosz Małkowski" <bartosz.malkowski@tigase.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.jaxmpp.java8;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import tigase.jaxmpp.core.client.JaxmppCore;
+import tigase.jaxmpp.core.client.ResponseFuture;
+import tigase.jaxmpp.core.client.exceptions.JaxmppException;
+import tigase.jaxmpp.core.client.xmpp.stanzas.Stanza;
+
+/**
+ * Adapters between {@linkplain ResponseFuture} and {@linkplain CompletableFuture}.
+ */
+public final class CompletableFutures {
+
+	/**
+	 * Returns {@linkplain CompletableFuture} completed with result of given
+	 * future. Failure is passed as {@linkplain JaxmppException}.
+	 */
+	public static <T> CompletableFuture<T> from(ResponseFuture<T> future) {
+		final CompletableFuture<T> result = new CompletableFuture<T>();
+		future.addListener(f -> {
+			JaxmppException failure = f.getFailure();
+			if (failure != null)
+				result.completeExceptionally(failure);
+			else
+				result.complete(f.getValue());
+		});
+		return result;
+	}
+
+	/**
+	 * Sends (IQ) stanza and returns {@linkplain CompletableFuture} of
+	 * response.
+	 * 
+	 * @see JaxmppCore#sendAsync(Stanza, Long)
+	 */
+	public static CompletableFuture<Stanza> sendAsync(JaxmppCore jaxmpp, Stanza stanza, Long timeout) {
+		try {
+			return from(jaxmpp.sendAsync(stanza, timeout));
+		} catch (JaxmppException e) {
+			CompletableFuture<Stanza> result = new CompletableFuture<Stanza>();
+			result.completeExceptionally(e);
+			return result;
+		}
+	}
+
+	/**
+	 * Returns {@linkplain ResponseFuture} completed with result of given
+	 * {@linkplain CompletableFuture}. Failures other than
+	 * {@linkplain JaxmppException} are wrapped.
+	 */
+	public static <T> ResponseFuture<T> to(CompletableFuture<T> future) {
+		final ResponseFuture<T> result = new ResponseFuture<T>();
+		future.whenComplete((value, failure) -> {
+			if (failure == null) {
+				result.complete(value);
+				return;
+			}
+			Throwable cause = failure instanceof CompletionException && failure.getCause() != null ? failure.getCause()
+					: failure;
+			result.fail(cause instanceof JaxmppException ? (JaxmppException) cause : new JaxmppException(cause));
+		});
+		return result;
+	}
+
+	private CompletableFutures() {
+	}
+
+}
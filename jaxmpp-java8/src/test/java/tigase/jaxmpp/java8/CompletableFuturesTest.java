@@ -0,0 +1,77 @@
+/*
+ * Tigase XMPP Client Library
+ * Copyright (C) 2006-2012 "Bartosz Małkowski" <bartosz.malkowski@tigase.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.jaxmpp.java8;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import junit.framework.TestCase;
+import tigase.jaxmpp.core.client.ResponseFuture;
+import tigase.jaxmpp.core.client.exceptions.JaxmppException;
+
+public class CompletableFuturesTest extends TestCase {
+
+	public void testFrom() throws Exception {
+		ResponseFuture<String> rf = new ResponseFuture<String>();
+		CompletableFuture<String> cf = CompletableFutures.from(rf);
+		assertFalse(cf.isDone());
+		rf.complete("x");
+		assertEquals("x", cf.get());
+
+		// already completed future
+		assertEquals("x", CompletableFutures.from(rf).get());
+	}
+
+	public void testFromFailed() throws Exception {
+		ResponseFuture<String> rf = new ResponseFuture<String>();
+		CompletableFuture<String> cf = CompletableFutures.from(rf);
+		JaxmppException failure = new JaxmppException("failed");
+		rf.fail(failure);
+		try {
+			cf.get();
+			fail("Failure not passed");
+		} catch (ExecutionException e) {
+			assertSame(failure, e.getCause());
+		}
+	}
+
+	public void testTo() throws Exception {
+		CompletableFuture<String> cf = new CompletableFuture<String>();
+		ResponseFuture<String> rf = CompletableFutures.to(cf);
+		assertFalse(rf.isDone());
+		cf.complete("y");
+		assertTrue(rf.isDone());
+		assertEquals("y", rf.getValue());
+	}
+
+	public void testToFailed() throws Exception {
+		CompletableFuture<String> cf = new CompletableFuture<String>();
+		ResponseFuture<String> rf = CompletableFutures.to(cf);
+		JaxmppException failure = new JaxmppException("failed");
+		cf.completeExceptionally(failure);
+		assertSame(failure, rf.getFailure());
+
+		// other failures are wrapped, also when passed through dependent stage
+		CompletableFuture<String> other = new CompletableFuture<String>();
+		ResponseFuture<String> wrapped = CompletableFutures.to(other.thenApply(s -> s));
+		IllegalStateException cause = new IllegalStateException();
+		other.completeExceptionally(cause);
+		assertSame(cause, wrapped.getFailure().getCause());
+	}
+
+}